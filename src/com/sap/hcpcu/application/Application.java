@@ -2,6 +2,7 @@ package com.sap.hcpcu.application;
 
 import com.sap.hcpcu.model.JSONModel;
 import com.sap.hcpcu.tools.Cache;
+import com.sap.hcpcu.tools.DatabasePool;
 import com.sap.hcpcu.tools.FileLoader;
 import com.sap.hcpcu.tools.HttpRequestAnalyzer;
 import com.sap.hcpcu.tools.StringUtility;
@@ -9,8 +10,11 @@ import com.sap.hcpcu.tools.StringUtility;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -54,7 +58,7 @@ public class Application extends HttpServlet {
       log.debug("+ Incoming request for " + parameters + " as " + type);
     }
 
-    if (!"raw".equals(type) && !"cfg".equals(type)) {
+    if (!"raw".equals(type) && !"cfg".equals(type) && !"query".equals(type)) {
       JSONModel model = null;
       try {
         if (type != null) {
@@ -151,6 +155,65 @@ public class Application extends HttpServlet {
        */
       final String result = Service.getAttribute(parameters);
       writeResponse(request, response, result, debug);
+    } else if ("query".equals(type)) {
+      /*
+       * Stream the result of a configured query
+       */
+      writeQueryResponse(request, response, parameters, debug);
+    }
+  }
+
+
+  /**
+   * Write the result of a configured query as JSON, row by row as it
+   * is read from the database, so that large tables are never held in
+   * memory as a whole. Only the queries configured as query_&lt;name&gt;
+   * can be run this way, e.g. ?type=query&amp;parameters=menu for
+   * query_menu.
+   *
+   * @param request The request.
+   * @param response The response.
+   * @param name The name of the query.
+   * @param debug True to log the request.
+   * @throws ServletException
+   * @throws IOException
+   */
+  private void writeQueryResponse(HttpServletRequest request, HttpServletResponse response, String name, boolean debug) throws ServletException, IOException {
+    if (debug) {
+      HttpRequestAnalyzer.printHeaderInfo(request, 200);
+    }
+
+    final String       sql = Service.getAttribute("query_" + name);
+    final DatabasePool db  = Service.getDatabasePool();
+
+    if ((sql == null) || (db == null)) {
+      log.error("! Query not configured or no database: " + name);
+      writeResponse(request, response, "{ \"success\" : \"false\" }", debug);
+
+      return;
+    }
+
+    setHeaders(response);
+    response.setCharacterEncoding("UTF-8");
+
+    /*
+     * The buffer bounds what we hold of the result; the
+     * container sends it on whenever it is full.
+     */
+    final Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"), StringUtility.StringToInteger(Service.getAttribute("query_buffer"), 8192));
+
+    try {
+      out.write("{ \"response\" : ");
+
+      final int rows = db.writeJSONFromDB(sql, null, out);
+
+      out.write(", \"success\" : \"" + (rows >= 0) + "\" }");
+
+      if (debug) {
+        log.debug("+ Streamed " + rows + " rows of " + name);
+      }
+    } finally {
+      out.close();
     }
   }
 
@@ -167,6 +230,18 @@ public class Application extends HttpServlet {
     }
 
     final PrintWriter out = response.getWriter();
+    setHeaders(response);
+    out.print(what);
+    out.close();
+  }
+
+
+  /**
+   * Set the content type and the caching and cross origin headers of a response.
+   *
+   * @param response The response.
+   */
+  private void setHeaders(HttpServletResponse response) {
     response.setContentType("text/html");
     response.setHeader("Cache-control", "no-cache, no-store");
     response.setHeader("Pragma", "no-cache");
@@ -176,7 +251,5 @@ public class Application extends HttpServlet {
     response.setHeader("Access-Control-Allow-Methods", "POST");
     response.setHeader("Access-Control-Allow-Headers", "Content-Type");
     response.setHeader("Access-Control-Max-Age", "86400");
-    out.print(what);
-    out.close();
   }
 }
@@ -1,18 +1,35 @@
 package com.sap.hcpcu.application;
 
 import com.sap.hcpcu.tools.Cache;
+import com.sap.hcpcu.tools.Codec;
+import com.sap.hcpcu.tools.DatagramInvalidationBus;
+import com.sap.hcpcu.tools.SharedFileStore;
+import com.sap.hcpcu.tools.Spool;
+import com.sap.hcpcu.tools.BoundedExecutor;
+import com.sap.hcpcu.tools.BufferPool;
 import com.sap.hcpcu.tools.DatabasePool;
 import com.sap.hcpcu.tools.StringUtility;
 import com.sap.hcpcu.worker.Worker;
+import com.sap.hcpcu.worker.WorkerPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+
+import java.net.SocketException;
+
 import java.sql.SQLException;
 
 import java.text.DecimalFormat;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.NamingException;
 
@@ -29,15 +46,45 @@ public class Service {
 
 
   /**
-   * The database pool
+   * The database pool, only set once its replicas are added
+   */
+  private static volatile DatabasePool databasePool = null;
+
+
+  /**
+   * The cache, only set once it is configured
+   */
+  private static volatile Cache cache        = null;
+
+
+  /**
+   * The workers persisting the batches of the collector, read without the lock
+   */
+  private static volatile WorkerPool workerPool = null;
+
+
+  /**
+   * The executor persisting the batches of the collector, read without the lock
+   */
+  private static volatile BoundedExecutor collectorExecutor = null;
+
+
+  /**
+   * The buffers the collector reads the uploads into, read without the lock
+   */
+  private static volatile BufferPool collectorBuffers = null;
+
+
+  /**
+   * The spool of the batches of the collector
    */
-  private static DatabasePool  databasePool  = null;
+  private static Spool         collectorSpool   = null;
 
 
   /**
-   * The cache
+   * Whether the spool was looked for, as there may be none
    */
-  private static Cache         cache         = null;
+  private static volatile boolean collectorSpooled = false;
 
 
   /**
@@ -45,6 +92,16 @@ public class Service {
    */
   private final static Logger  log           = LoggerFactory.getLogger(Service.class);
 
+
+  /**
+   * Loads the values of the database indirections into the cache
+   */
+  private static Cache.Loader  dbLoader      = new Cache.Loader() {
+      public Object load(String queryReference) {
+        return loadValueFromDB(queryReference);
+      }
+    };
+
   private Service() {}
 
   public static Service getInstance() {
@@ -92,50 +149,377 @@ public class Service {
 
   public static DatabasePool getDatabasePool() {
     if ((databasePool == null) && "true".equals(getAttribute("dbuse"))) {
-      log.debug("> Instantiating the Database Pool");
-
-      /*
-       * Instantiate the database pool
-       *
-       * dbsource=java:comp/env/jdbc/DefaultDB
-       * dbdriver=com.mysql.jdbc.Driver
-       * dburl=jdbc:mysql://localhost/hcpcu
-       * dbuse=true
-       * dbuser=hcpcu
-       * dbpass=hcpcu
-       * dbinitial=2
-       * dbmax=5
-       * dbwait=true
-       */
-      final String  dbSource          = getAttribute("dbsource");
-      final String  dbPersistenceUnit = getAttribute("dbpersistenceunit");
-      final String  dbDriver          = getAttribute("dbdriver");
-      final String  dbUrl             = getAttribute("dburl");
-      final String  dbUser            = getAttribute("dbuser");
-      final String  dbPass            = getAttribute("dbpass");
-      final int     dbInitial         = StringUtility.StringToInteger(getAttribute("dbinitial"), 1);
-      final int     dbMax             = StringUtility.StringToInteger(getAttribute("dbmax"), 1);
-      final boolean dbWait            = "true".equals(getAttribute("dbwait"));
+      synchronized (mutex) {
+        if (databasePool == null) {
+          log.debug("> Instantiating the Database Pool");
+
+          /*
+           * Instantiate the database pool
+           *
+           * dbsource=java:comp/env/jdbc/DefaultDB
+           * dbdriver=com.mysql.jdbc.Driver
+           * dburl=jdbc:mysql://localhost/hcpcu
+           * dbuse=true
+           * dbuser=hcpcu
+           * dbpass=hcpcu
+           * dbinitial=2
+           * dbmax=5
+           * dbwait=true
+           * dbfetchsize=500
+           * dbstatements=50
+           * dbleaktimeout=0
+           * dbjmx=true
+           * dbreplicas=replica
+           */
+          final String dbPersistenceUnit = getAttribute("dbpersistenceunit");
+
+          try {
+            final DatabasePool pool = createDatabasePool(DatabasePool.PRIMARY, dbPersistenceUnit);
+
+            /*
+             * The replicas are configured as the primary pool,
+             * with their name in front, e.g. replica_dburl; what
+             * is not given for them is taken from the primary.
+             * A replica that cannot be had is left out, so that
+             * the primary pool is not built again on each call.
+             */
+            for (final String name : StringUtility.split(StringUtility.getNonNullValue(getAttribute("dbreplicas")), ",")) {
+              if (!"".equals(name.trim())) {
+                try {
+                  pool.addReplica(createDatabasePool(name.trim(), null));
+                } catch (SQLException e2) {
+                  log.error("! Error instantiating the replica " + name.trim() + ": " + e2.getMessage());
+                } catch (NamingException e2) {
+                  log.error("! Error instantiating the replica " + name.trim() + ": " + e2.getMessage());
+                }
+              }
+            }
 
-      try {
-        log.debug("+ Attempting to instantiate database pool using " + dbUrl);
-        databasePool = DatabasePool.getInstance(dbSource, dbPersistenceUnit, dbDriver, dbUrl, dbUser, dbPass, dbInitial, dbMax, dbWait);
-      } catch (SQLException e2) {
-        log.error("! Error instantiating the Database Pool: " + e2.getMessage());
-      } catch (NamingException e2) {
-        log.error("! Error instantiating the Database Pool: " + e2.getMessage());
-      }
+            /*
+             * Publish the pool only once its replicas are added,
+             * as it is read without the lock
+             */
+            databasePool = pool;
+          } catch (SQLException e2) {
+            log.error("! Error instantiating the Database Pool: " + e2.getMessage());
+          } catch (NamingException e2) {
+            log.error("! Error instantiating the Database Pool: " + e2.getMessage());
+          }
 
-      log.debug("< Instantiating the Database Pool...");
+          log.debug("< Instantiating the Database Pool...");
+        }
+      }
     }
 
     return databasePool;
   }
 
 
+  /**
+   * Create a database pool from the configuration.
+   *
+   * @param name The name of the pool. For others than the primary,
+   *        the attributes are read with the name in front, e.g.
+   *        replica_dburl, falling back to those of the primary.
+   * @param dbPersistenceUnit The persistence unit, or null.
+   * @return The pool.
+   * @throws SQLException
+   * @throws NamingException
+   */
+  private static DatabasePool createDatabasePool(String name, String dbPersistenceUnit) throws SQLException, NamingException {
+    final String  dbSource     = getPoolAttribute(name, "dbsource");
+    final String  dbDriver     = getPoolAttribute(name, "dbdriver");
+    final String  dbUrl        = getPoolAttribute(name, "dburl");
+    final String  dbUser       = getPoolAttribute(name, "dbuser");
+    final String  dbPass       = getPoolAttribute(name, "dbpass");
+    final int     dbInitial    = StringUtility.StringToInteger(getPoolAttribute(name, "dbinitial"), 1);
+    final int     dbMax        = StringUtility.StringToInteger(getPoolAttribute(name, "dbmax"), 1);
+    final boolean dbWait       = "true".equals(getPoolAttribute(name, "dbwait"));
+    final int     dbFetchSize  = StringUtility.StringToInteger(getPoolAttribute(name, "dbfetchsize"), 0);
+    final int     dbStatements = StringUtility.StringToInteger(getPoolAttribute(name, "dbstatements"), DatabasePool.DEFAULT_MAX_STATEMENTS);
+
+    log.debug("+ Attempting to instantiate database pool " + name + " using " + dbUrl);
+
+    final DatabasePool pool = DatabasePool.PRIMARY.equals(name) ? DatabasePool.getInstance(dbSource, dbPersistenceUnit, dbDriver, dbUrl, dbUser, dbPass, dbInitial, dbMax, dbWait, dbStatements) : new DatabasePool(name, dbSource, dbPersistenceUnit, dbDriver, dbUrl, dbUser, dbPass, dbInitial, dbMax, dbWait, dbStatements);
+
+    pool.setFetchSize(dbFetchSize);
+    pool.setLeakDetection(StringUtility.StringToInteger(getPoolAttribute(name, "dbleaktimeout"), 0));
+
+    /*
+     * Publish the pool statistics to JMX
+     *
+     * dbjmx=true
+     */
+    if ("true".equals(getPoolAttribute(name, "dbjmx"))) {
+      pool.getStatistics().register(name);
+    }
+
+    return pool;
+  }
+
+
+  /**
+   * Get an attribute of a database pool.
+   *
+   * @param name The name of the pool.
+   * @param attributeName The name of the attribute, e.g. dburl.
+   * @return The attribute of the pool, if given, else the one of the primary.
+   */
+  private static String getPoolAttribute(String name, String attributeName) {
+    final String value = DatabasePool.PRIMARY.equals(name) ? null : getAttribute(name + "_" + attributeName);
+
+    return (value != null) ? value : getAttribute(attributeName);
+  }
+
+
+  /**
+   * Get the workers persisting the batches of the collector, each with
+   * a batch of its own, so that worker_shards batches can be persisted
+   * at the same time.
+   *
+   * @return The workers.
+   */
+  public static WorkerPool getWorkerPool() {
+    if (workerPool == null) {
+      synchronized (mutex) {
+        if (workerPool == null) {
+          /*
+           * worker_shards=4
+           */
+          final int shards = StringUtility.StringToInteger(getAttribute("worker_shards"), StringUtility.StringToInteger(getAttribute("collector_threads"), Runtime.getRuntime().availableProcessors()));
+
+          log.debug("+ Instantiating " + shards + " workers");
+
+          workerPool = new WorkerPool(shards, getAttribute("some"), getAttribute("configuration"), getAttribute("parameters"));
+        }
+      }
+    }
+
+    return workerPool;
+  }
+
+
+  /**
+   * Get the executor persisting the batches of the collector: a fixed
+   * number of threads, with a bound on the batches waiting for them, so
+   * that the collector stops reading an upload while as many batches
+   * are waiting. The lines held in memory are thus bounded by
+   * (collector_threads + collector_queue) batches.
+   *
+   * @return The executor.
+   */
+  public static BoundedExecutor getCollectorExecutor() {
+    if (collectorExecutor == null) {
+      synchronized (mutex) {
+        if (collectorExecutor == null) {
+          /*
+           * collector_threads=4
+           * collector_queue=2
+           */
+          final int threads = StringUtility.StringToInteger(getAttribute("collector_threads"), Runtime.getRuntime().availableProcessors());
+          final int queue   = StringUtility.StringToInteger(getAttribute("collector_queue"), 2);
+
+          log.debug("+ Instantiating the collector executor with " + threads + " threads and " + queue + " waiting batches");
+
+          collectorExecutor = new BoundedExecutor("Collector", threads, queue);
+        }
+      }
+    }
+
+    return collectorExecutor;
+  }
+
+
+  /**
+   * Get the buffers the collector reads the uploads into, of
+   * collector_buffer bytes each. A batch of lines is held in one
+   * buffer until persisted, so as many buffers are kept for reuse
+   * as batches may be persisted or waiting, and one being read.
+   *
+   * @return The buffers.
+   */
+  public static BufferPool getCollectorBuffers() {
+    if (collectorBuffers == null) {
+      synchronized (mutex) {
+        if (collectorBuffers == null) {
+          /*
+           * collector_buffer=1048576
+           */
+          final int size    = StringUtility.StringToInteger(getAttribute("collector_buffer"), 1024 * 1024);
+          final int threads = StringUtility.StringToInteger(getAttribute("collector_threads"), Runtime.getRuntime().availableProcessors());
+          final int queue   = StringUtility.StringToInteger(getAttribute("collector_queue"), 2);
+
+          log.debug("+ Instantiating the collector buffers of " + size + " bytes");
+
+          collectorBuffers = new BufferPool(size, threads + queue + 1);
+        }
+      }
+    }
+
+    return collectorBuffers;
+  }
+
+
+  /**
+   * Get the spool the collector writes the batches to before they are
+   * acknowledged, in the directory collector_spool, or null if there is
+   * none. The records are forced to disk once collector_spool_batches
+   * batches were written, or collector_spool_millis after the first one.
+   *
+   * @return The spool, or null.
+   */
+  public static Spool getCollectorSpool() {
+    if (!collectorSpooled) {
+      synchronized (mutex) {
+        if (!collectorSpooled) {
+          /*
+           * collector_spool=
+           * collector_spool_segment=67108864
+           * collector_spool_batches=16
+           * collector_spool_millis=10
+           */
+          final String directory = getAttribute("collector_spool");
+
+          if ((directory != null) && (directory.length() > 0)) {
+            try {
+              collectorSpool = new Spool(new File(directory), StringUtility.StringToInteger(getAttribute("collector_spool_segment"), 64 << 20), StringUtility.StringToInteger(getAttribute("collector_spool_batches"), 16), StringUtility.StringToInteger(getAttribute("collector_spool_millis"), 10));
+              log.debug("+ Opened the collector spool " + directory);
+            } catch (IOException ioe) {
+              log.error("! Could not open the collector spool " + directory + ": " + ioe.getMessage());
+            }
+          }
+
+          collectorSpooled = true;
+        }
+      }
+    }
+
+    return collectorSpool;
+  }
+
+
   public static Cache getCache() {
     if (cache == null) {
-      cache = new Cache();
+      synchronized (mutex) {
+        if (cache == null) {
+          /*
+           * Instantiate the cache
+           *
+           * cache_engine=concurrent
+           * cache_policy=tinylfu
+           */
+          final String engine = getAttribute("cache_engine");
+          final String policy = getAttribute("cache_policy");
+
+          log.debug("+ Instantiating the cache using the " + ("legacy".equals(engine) ? "legacy" : "concurrent") + " engine and the " + ("tinylfu".equals(policy) ? "tinylfu" : "lru") + " policy");
+          final Cache created = new Cache("legacy".equals(engine) ? Cache.ENGINE_LEGACY : Cache.ENGINE_CONCURRENT, "tinylfu".equals(policy) ? Cache.POLICY_TINYLFU : Cache.POLICY_LRU);
+
+          /*
+           * Restore the cache from its snapshot, and
+           * save it there periodically
+           *
+           * cache_snapshot=
+           * cache_snapshot_interval=60
+           */
+          final String snapshot = getAttribute("cache_snapshot");
+
+          if ((snapshot != null) && (snapshot.length() > 0)) {
+            if (new File(snapshot).isFile()) {
+              try {
+                created.load(snapshot);
+                log.debug("+ Restored the cache from " + snapshot);
+              } catch (Exception e) {
+                log.error("! Could not restore the cache from " + snapshot + ": " + e.getMessage());
+              }
+            }
+
+            created.setSnapshot(snapshot, StringUtility.StringToInteger(getAttribute("cache_snapshot_interval"), 60));
+          }
+
+          /*
+           * Limit the cache by the number of bytes
+           *
+           * cache_maxweight=-1
+           * cache_softvalues=true
+           */
+          created.setMaxWeight(StringUtility.StringToInteger(getAttribute("cache_maxweight"), -1));
+          created.setSoftValues(!"false".equals(getAttribute("cache_softvalues")));
+
+          /*
+           * Keep compressed entries outside of the heap
+           *
+           * cache_offheap=0
+           */
+          created.setOffHeap(StringUtility.StringToInteger(getAttribute("cache_offheap"), 0));
+
+          /*
+           * Choose the compressor of compressed entries
+           *
+           * cache_compressor=gzip
+           */
+          final String compressor = getAttribute("cache_compressor");
+
+          if ("fast".equals(compressor)) {
+            created.setCodec(new Codec(Codec.AUTO, Codec.FAST));
+          } else if ("none".equals(compressor)) {
+            created.setCodec(new Codec(Codec.AUTO, Codec.NONE));
+          }
+
+          /*
+           * Share loaded entries with the other processes
+           * of the host, and keep them across restarts
+           *
+           * cache_shared=
+           * cache_shared_entries=65536
+           * cache_shared_capacity=67108864
+           */
+          final String shared = getAttribute("cache_shared");
+
+          if ((shared != null) && (shared.length() > 0)) {
+            try {
+              created.setSharedStore(new SharedFileStore(new File(shared), StringUtility.StringToInteger(getAttribute("cache_shared_entries"), 65536), StringUtility.StringToInteger(getAttribute("cache_shared_capacity"), 64 << 20)));
+            } catch (IOException ioe) {
+              log.error("! Could not open the shared cache store " + shared + ": " + ioe.getMessage());
+            }
+          }
+
+          /*
+           * Remove the entries changed by the other
+           * nodes of the cluster
+           *
+           * cache_bus=none
+           * cache_bus_address=127.0.0.1
+           * cache_bus_port=7701
+           * cache_bus_peers=localhost:7701,localhost:7702
+           */
+          if ("udp".equals(getAttribute("cache_bus"))) {
+            final int port = StringUtility.StringToInteger(getAttribute("cache_bus_port"), 7701);
+
+            try {
+              created.setBus(new DatagramInvalidationBus(getAttribute("cache_bus_address"), port, StringUtility.getNonNullValue(getAttribute("cache_bus_peers"))), "hcpcu");
+            } catch (SocketException se) {
+              log.error("! Could not listen for cache invalidations on port " + port + ": " + se.getMessage());
+            }
+          }
+
+          /*
+           * Publish the cache statistics to JMX
+           *
+           * cache_jmx=hcpcu
+           */
+          final String jmx = getAttribute("cache_jmx");
+
+          if ((jmx != null) && (jmx.length() > 0)) {
+            created.getStatistics().register(jmx);
+          }
+
+          /*
+           * Publish the cache only once it is restored and
+           * configured, as it is read without the lock
+           */
+          cache = created;
+        }
+      }
     }
 
     return cache;
@@ -148,47 +532,131 @@ public class Service {
    * <pre>
    * db_transactions=select count(id) from transactions
    * db_transactions_lifetime=60
+   * db_transactions_maxlifetime=600
    * db_transactions_default=4,723,132
    * db_transactions_numberformat=#,###,###,##0.00
    * </pre>
    *
+   * Once the cached value is older than its lifetime, it is still
+   * returned, but the query is run again in the background, only
+   * once for all requests. Only if it could not be reloaded until
+   * its maximum lifetime, which defaults to ten times its lifetime,
+   * the query is run while the request waits for it.
+   *
    * @param queryReference
    * @return
    */
-  @SuppressWarnings("rawtypes")
   public static String getCachedValueFromDB(String queryReference) {
-    String valueFromDB = (String) getCache().getEntry(queryReference);
+    final long lifetime    = StringUtility.StringToInteger(getAttribute(queryReference + "_lifetime"), 120);
+    final long maxLifetime = StringUtility.StringToInteger(getAttribute(queryReference + "_maxlifetime"), (lifetime < 0) ? -1 : (int) (10 * lifetime));
+
+    String     valueFromDB = (String) getCache().get(queryReference, dbLoader, maxLifetime, lifetime);
 
     log.debug("+ Resolving: " + queryReference + ". Cached value: " + valueFromDB);
 
     if (valueFromDB == null) {
-      final String query = getAttribute(queryReference);
+      valueFromDB = getAttribute(queryReference + "_default");
+    }
 
-      if (query != null) {
-        final List tbl = getDatabasePool().selectFromDB(query);
+    return valueFromDB;
+  }
 
-        if ((tbl != null) && (tbl.size() > 0)) {
-          final List row = (List) tbl.get(0);
 
-          if ((row != null) && (row.size() > 0)) {
-            valueFromDB = "" + row.get(0);
+  /**
+   * Get some cached values from the database, as by getCachedValueFromDB,
+   * but in one pass over the cache. The queries of the values that are not
+   * cached are run at the same time, rather than one after the other.
+   *
+   * @param queryReferences
+   * @return The values, by their query references, in their order
+   */
+  public static Map<String, String> getCachedValuesFromDB(Collection<String> queryReferences) {
+    /*
+     * Group the references by their lifetimes, so
+     * that each group is resolved in one pass
+     */
+    final Map<String, List<String>> byLifetime = new LinkedHashMap<String, List<String>>();
 
-            final String numberFormat = getAttribute(queryReference + "_numberformat");
-            if (numberFormat != null) {
-              final DecimalFormat df = new DecimalFormat(numberFormat);
-              valueFromDB = df.format(StringUtility.StringToInteger(valueFromDB));
-            }
+    for (final String queryReference : queryReferences) {
+      final long   lifetime    = StringUtility.StringToInteger(getAttribute(queryReference + "_lifetime"), 120);
+      final long   maxLifetime = StringUtility.StringToInteger(getAttribute(queryReference + "_maxlifetime"), (lifetime < 0) ? -1 : (int) (10 * lifetime));
+      final String group       = lifetime + ";" + maxLifetime;
+
+      if (!byLifetime.containsKey(group)) {
+        byLifetime.put(group, new ArrayList<String>());
+      }
 
-            final long lifetime = StringUtility.StringToInteger(getAttribute(queryReference + "_lifetime"), 120);
+      byLifetime.get(group).add(queryReference);
+    }
+
+    final Map<String, Object> cached = new HashMap<String, Object>();
+
+    for (final Map.Entry<String, List<String>> group : byLifetime.entrySet()) {
+      final String[] lifetimes = group.getKey().split(";");
+
+      cached.putAll(getCache().getAll(group.getValue(), dbLoader, Long.parseLong(lifetimes[1]), Long.parseLong(lifetimes[0])));
+    }
+
+    final Map<String, String> values = new LinkedHashMap<String, String>();
 
-            getCache().setEntry(queryReference, valueFromDB, lifetime, false, false);
+    for (final String queryReference : queryReferences) {
+      String valueFromDB = (String) cached.get(queryReference);
+
+      log.debug("+ Resolving: " + queryReference + ". Cached value: " + valueFromDB);
+
+      if (valueFromDB == null) {
+        valueFromDB = getAttribute(queryReference + "_default");
+      }
+
+      values.put(queryReference, valueFromDB);
+    }
+
+    return values;
+  }
+
+
+  /**
+   * Load a value from the database, for getCachedValueFromDB.
+   *
+   * @param queryReference
+   * @return The value, null if the query is not configured
+   *         or did not return any row.
+   */
+  private static String loadValueFromDB(String queryReference) {
+    final String query = getAttribute(queryReference);
+
+    if (query == null) {
+      return null;
+    }
+
+    log.debug("+ Loading: " + queryReference);
+
+    /*
+     * We only need the first column of the first
+     * row, so we stop reading right there.
+     */
+    final String[] first = new String[1];
+
+    getDatabasePool().query(query, null, 1, new DatabasePool.RowHandler() {
+        public boolean row(DatabasePool.Row row) throws SQLException {
+          if (row.getColumnCount() > 0) {
+            first[0] = row.getString(1);
           }
+
+          return false;
         }
-      }
+      });
+
+    if (first[0] == null) {
+      return null;
     }
 
-    if (valueFromDB == null) {
-      valueFromDB = getAttribute(queryReference + "_default");
+    String       valueFromDB  = first[0];
+
+    final String numberFormat = getAttribute(queryReference + "_numberformat");
+    if (numberFormat != null) {
+      final DecimalFormat df = new DecimalFormat(numberFormat);
+      valueFromDB = df.format(StringUtility.StringToInteger(valueFromDB));
     }
 
     return valueFromDB;
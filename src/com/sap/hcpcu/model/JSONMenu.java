@@ -1,5 +1,8 @@
 package com.sap.hcpcu.model;
 
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -43,24 +46,35 @@ public class JSONMenu extends JSONModel {
     String             result = null;
 
     if (db != null) {
-      json   = db.selectJSONFromDB("select id, targetPage, targetPageType, title, icon, info, infoState, number, numberUnit from menu order by id");
+      final String query = Service.getAttribute("query_menu");
+
+      json   = db.selectJSONFromDB((query != null) ? query : "select id, targetPage, targetPageType, title, icon, info, infoState, number, numberUnit from menu order by id");
 
       result = json;
 
       final Pattern p = Pattern.compile("\"@(.*?)@\"");
       final Matcher m = p.matcher(json);
 
+      /*
+       * Collect the placeholders first, and resolve
+       * them all in one pass over the cache
+       */
+      final Set<String> queryReferences = new LinkedHashSet<String>();
+
       while (m.find()) {
         final int c = m.groupCount();
         for (int i = 1; i <= c; i++) {
-          final String queryReference = m.group(i);
-          
-          final String       valueFromDB    = ""+Service.getCachedValueFromDB(queryReference);
-
-          result = StringUtility.replace(result, "@" + queryReference + "@", valueFromDB, true);
+          queryReferences.add(m.group(i));
         }
       }
 
+      for (final Map.Entry<String, String> value : Service.getCachedValuesFromDB(queryReferences).entrySet()) {
+        final String queryReference = value.getKey();
+        final String valueFromDB    = "" + value.getValue();
+
+        result = StringUtility.replace(result, "@" + queryReference + "@", valueFromDB, true);
+      }
+
       log.debug("+ Menu before parsing: " + json);
       log.debug("+ Menu after  parsing: " + result);
 
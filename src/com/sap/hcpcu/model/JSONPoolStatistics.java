@@ -0,0 +1,119 @@
+package com.sap.hcpcu.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.hcpcu.application.Application;
+import com.sap.hcpcu.application.Service;
+import com.sap.hcpcu.tools.DatabasePool;
+import com.sap.hcpcu.tools.LatencyHistogram;
+import com.sap.hcpcu.tools.PoolStatistics;
+
+
+/**
+ * The statistics of the database pools, the primary and its replicas,
+ * e.g. to watch how many connections are in use and waited for, and
+ * which statements are slow. Counts are cumulative since the application
+ * was started; latencies are in milliseconds.
+ *
+ * <pre>
+ * ?type=JSONPoolStatistics
+ * </pre>
+ */
+public class JSONPoolStatistics extends JSONModel {
+  @SuppressWarnings("unused")
+  private List<Pool> pools = new ArrayList<Pool>();
+
+  public JSONPoolStatistics(Application application, HttpServletRequest request, HttpServletResponse response) {
+    super(application, request, response);
+
+    final DatabasePool db = Service.getDatabasePool();
+
+    if (db != null) {
+      this.pools.add(new Pool(db));
+
+      for (final DatabasePool replica : db.getReplicas()) {
+        this.pools.add(new Pool(replica));
+      }
+    }
+  }
+
+  /**
+   * The statistics of one pool.
+   */
+  @SuppressWarnings("unused")
+  private static class Pool {
+    private final String          name;
+    private final int             active;
+    private final int             idle;
+    private final int             waiters;
+    private final int             maxTotal;
+    private final long            abandoned;
+    private final Latency         borrows;
+    private final long            borrowFailures;
+    private final Latency         statements;
+    private final long            statementFailures;
+    private final Latency         batches;
+    private final List<Statement> slowest = new ArrayList<Statement>();
+
+    protected Pool(DatabasePool db) {
+      final PoolStatistics statistics = db.getStatistics();
+
+      this.name              = db.getName();
+      this.active            = statistics.getActive();
+      this.idle              = statistics.getIdle();
+      this.waiters           = statistics.getWaiters();
+      this.maxTotal          = statistics.getMaxTotal();
+      this.abandoned         = statistics.getAbandonedCount();
+      this.borrows           = new Latency(statistics.getBorrowLatency());
+      this.borrowFailures    = statistics.getBorrowFailureCount();
+      this.statements        = new Latency(statistics.getStatementLatency());
+      this.statementFailures = statistics.getStatementFailureCount();
+      this.batches           = new Latency(statistics.getBatchLatency());
+
+      for (final Map.Entry<String, LatencyHistogram> statement : statistics.getSlowest(10)) {
+        this.slowest.add(new Statement(statement.getKey(), statement.getValue()));
+      }
+    }
+  }
+
+  /**
+   * The number and latencies of something.
+   */
+  @SuppressWarnings("unused")
+  private static class Latency {
+    private final long   count;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    protected Latency(LatencyHistogram latency) {
+      this.count = latency.getCount();
+      this.mean  = latency.getMean();
+      this.p50   = latency.getPercentile(50);
+      this.p99   = latency.getPercentile(99);
+      this.p999  = latency.getPercentile(99.9);
+      this.max   = latency.getMax();
+    }
+  }
+
+  /**
+   * The latencies of a statement.
+   */
+  @SuppressWarnings("unused")
+  private static class Statement {
+    private final String  sql;
+    private final Latency latency;
+
+    protected Statement(String sql, LatencyHistogram latency) {
+      this.sql     = sql;
+      this.latency = new Latency(latency);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.sap.hcpcu.model;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sap.hcpcu.application.Application;
+import com.sap.hcpcu.application.Service;
+import com.sap.hcpcu.tools.CacheStatistics;
+import com.sap.hcpcu.tools.LatencyHistogram;
+import com.sap.hcpcu.tools.OffHeapStore;
+
+
+/**
+ * The statistics of the cache, e.g. to watch its hit ratio and the tail
+ * latency of its loads. Counts are cumulative since the application was
+ * started; latencies are in milliseconds.
+ *
+ * <pre>
+ * ?type=JSONStatistics
+ * </pre>
+ */
+public class JSONStatistics extends JSONModel {
+  @SuppressWarnings("unused")
+  private long    hits;
+
+  @SuppressWarnings("unused")
+  private long    sharedHits;
+
+  @SuppressWarnings("unused")
+  private long    misses;
+
+  @SuppressWarnings("unused")
+  private double  hitRatio;
+
+  @SuppressWarnings("unused")
+  private Loads   loads;
+
+  @SuppressWarnings("unused")
+  private long    evictionsBySize;
+
+  @SuppressWarnings("unused")
+  private long    evictionsByWeight;
+
+  @SuppressWarnings("unused")
+  private long    collected;
+
+  @SuppressWarnings("unused")
+  private long    expirations;
+
+  @SuppressWarnings("unused")
+  private long    removals;
+
+  @SuppressWarnings("unused")
+  private int     size;
+
+  @SuppressWarnings("unused")
+  private long    weight;
+
+  @SuppressWarnings("unused")
+  private long    offHeapUsed;
+
+  public JSONStatistics(Application application, HttpServletRequest request, HttpServletResponse response) {
+    super(application, request, response);
+
+    final CacheStatistics statistics = Service.getCache().getStatistics();
+    final OffHeapStore    offHeap    = Service.getCache().getOffHeap();
+
+    this.hits              = statistics.getHitCount();
+    this.sharedHits        = statistics.getSharedHitCount();
+    this.misses            = statistics.getMissCount();
+    this.hitRatio          = statistics.getHitRatio();
+    this.loads             = new Loads(statistics);
+    this.evictionsBySize   = statistics.getSizeEvictionCount();
+    this.evictionsByWeight = statistics.getWeightEvictionCount();
+    this.collected         = statistics.getCollectedCount();
+    this.expirations       = statistics.getExpirationCount();
+    this.removals          = statistics.getRemovalCount();
+    this.size              = statistics.getSize();
+    this.weight            = statistics.getWeight();
+    this.offHeapUsed       = (offHeap == null) ? 0 : offHeap.getUsed();
+  }
+
+  /**
+   * The loads of the cache and their latencies.
+   */
+  @SuppressWarnings("unused")
+  private static class Loads {
+    private final long   successes;
+    private final long   failures;
+    private final long   refreshes;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+
+    protected Loads(CacheStatistics statistics) {
+      final LatencyHistogram latency = statistics.getLoadLatency();
+
+      this.successes = statistics.getLoadSuccessCount();
+      this.failures  = statistics.getLoadFailureCount();
+      this.refreshes = statistics.getRefreshCount();
+      this.mean      = latency.getMean();
+      this.p50       = latency.getPercentile(50);
+      this.p99       = latency.getPercentile(99);
+      this.p999      = latency.getPercentile(99.9);
+      this.max       = latency.getMax();
+    }
+  }
+}
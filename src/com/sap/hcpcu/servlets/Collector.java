@@ -1,21 +1,38 @@
 package com.sap.hcpcu.servlets;
 
 import com.sap.hcpcu.application.Service;
-import com.sap.hcpcu.tools.ThreadRunner;
+import com.sap.hcpcu.tools.BoundedExecutor;
+import com.sap.hcpcu.tools.BoundedExecutor.Waiter;
+import com.sap.hcpcu.tools.LineBatch;
+import com.sap.hcpcu.tools.LineSplitter;
+import com.sap.hcpcu.tools.Spool;
+import com.sap.hcpcu.tools.StringUtility;
 import com.sap.hcpcu.tools.ThreadRunner.ThreadCaller;
 import com.sap.hcpcu.worker.Worker;
+import com.sap.hcpcu.worker.WorkerPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+
+import java.net.URLDecoder;
+
+import java.nio.charset.Charset;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -23,6 +40,22 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet implementation class Collector
+ * <p>
+ * If collector_async is true, and the container supports it, an upload
+ * is read asynchronously: the request is put into asynchronous mode, and
+ * the body is read as it arrives, by a {@link ReadListener}, so that no
+ * thread waits for a slow client meanwhile. The response is only sent once
+ * all batches of the upload are persisted, with status 500 if any of them
+ * failed. Otherwise, the upload is read on the thread of the request, and
+ * the response is sent once it is read, while the batches are persisted.
+ * <p>
+ * If there is a collector spool, each batch is written to the spool before
+ * it is handed over, and in either mode, the response is sent once all
+ * batches of the upload are on disk in the spool, rather than persisted. A
+ * batch is marked as done in the spool once persisted; the batches not done
+ * when the application stopped are persisted again when it starts, and the
+ * batches that failed are persisted again every collector_spool_retry
+ * milliseconds, as the client was not told about the failure.
  */
 public class Collector extends HttpServlet implements ThreadCaller {
   private static final long   serialVersionUID = 1L;
@@ -34,6 +67,56 @@ public class Collector extends HttpServlet implements ThreadCaller {
    */
   private static final Logger log              = LoggerFactory.getLogger(Collector.class);
 
+  /**
+   * Persist the batches left in the spool, if any, by
+   * the last run of the application, in the background;
+   * then retry the batches that failed, now and then.
+   *
+   * @see HttpServlet#init()
+   */
+  public void init() throws ServletException {
+    final Spool spool = Service.getCollectorSpool();
+
+    if (spool == null) {
+      return;
+    }
+
+    final long           retry    = StringUtility.StringToInteger(Service.getAttribute("collector_spool_retry"), 60000);
+    final Spool.Replayer replayer = new Spool.Replayer() {
+        public void replay(Spool.Entry entry, LineBatch batch, String partition) throws IOException {
+          submit(Service.getCollectorExecutor(), batch, partition, entry);
+        }
+      };
+
+    final Thread replay = new Thread(new Runnable() {
+          public void run() {
+            try {
+              spool.replay(replayer);
+            } catch (IOException ioe) {
+              log.error("! Error replaying the spool: " + ioe.getMessage());
+            }
+
+            while (retry > 0) {
+              try {
+                Thread.sleep(retry);
+
+                if (spool.retry(replayer) < 0) {
+                  return;
+                }
+              } catch (InterruptedException ie) {
+                return;
+              } catch (IOException ioe) {
+                log.error("! Error retrying the spool: " + ioe.getMessage());
+              }
+            }
+          }
+        }, "Collector-Replay");
+
+    replay.setDaemon(true);
+    replay.start();
+  }
+
+
   /**
    * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
    */
@@ -46,105 +129,628 @@ public class Collector extends HttpServlet implements ThreadCaller {
    * @see HttpServlet#doPost(HttpServletRequest request, HttpServletResponse response)
    */
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-    final Worker         worker        = Service.getWorker();
-    final BufferedReader reader        = request.getReader();
-    List<String>         batch         = new ArrayList<String>(batchSize);
-    int                  numberOfLines = 0;
-    int                  batchCount    = 0;
-    int                  maxLineSize   = 0;
-    String               line;
+    final String          partition     = getPartition(request);
+    final BoundedExecutor executor      = Service.getCollectorExecutor();
+    final Spool           spool         = Service.getCollectorSpool();
+    final Charset         charset       = getCharset(request);
+
+    if (request.isAsyncSupported() && "true".equals(Service.getAttribute("collector_async"))) {
+      final AsyncContext context = request.startAsync();
+
+      context.setTimeout(StringUtility.StringToInteger(Service.getAttribute("collector_timeout"), 0));
+
+      final Upload upload = new Upload(context, executor, spool, new LineSplitter(Service.getCollectorBuffers(), charset, batchSize), charset, partition);
+
+      context.addListener(upload);
+      request.getInputStream().setReadListener(upload);
+
+      return;
+    }
+
+    final InputStream     in            = request.getInputStream();
+    final LineSplitter    splitter      = new LineSplitter(Service.getCollectorBuffers(), charset, batchSize);
+    int                   numberOfLines = 0;
+    int                   maxLineSize   = 0;
+    LineBatch             batch;
+    Spool.Entry           entry         = null;
 
     /*
-     * TODO: We are actually parallelizing the batches,
-     *       as we fire off all of them in parallel
-     *       threads. We should review this strategy
-     *       and potentially be less aggressive.
+     * The upload is read as bytes into pooled buffers,
+     * and split into batches of lines without decoding
+     * it; the workers decode what they need. The batches
+     * are persisted in parallel, on the threads of the
+     * executor. If too many of them are waiting, handing
+     * over the next one blocks, and we stop reading the
+     * upload meanwhile.
      */
-    while ((line = reader.readLine()) != null) {
-      batch.add(line);
-
-      int curLineSize = line.length();
+    try {
+      while ((batch = splitter.next(in)) != null) {
+        numberOfLines += batch.size();
 
-      if (curLineSize > maxLineSize) {
-        maxLineSize = curLineSize;
-      }
+        if (batch.getMaxLength() > maxLineSize) {
+          maxLineSize = batch.getMaxLength();
+        }
 
-      if ((++batchCount % batchSize) == 0) {
         /*
-         * Hand over to persistence thread runner
+         * Write ahead to the spool, so that the
+         * batch is not lost if we stop before it
+         * is persisted
          */
-        new ThreadRunner(this, "persist", Arrays.asList(batch, worker)).run();
+        if (spool != null) {
+          try {
+            entry = spool.append(batch, partition, charset);
+          } catch (IOException ioe) {
+            batch.release();
+
+            throw ioe;
+          }
+        }
 
         /*
-         * Implicitly remove the hard reference
+         * Hand over to the persistence threads. If
+         * this fails, the client is told the upload
+         * failed, so the batch is not to be replayed
          */
-        batch = new ArrayList<String>(batchSize);
+        boolean handedOver = false;
+
+        try {
+          submit(executor, batch, partition, entry);
+          handedOver = true;
+        } finally {
+          if (!handedOver && (entry != null)) {
+            spool.done(entry);
+          }
+        }
       }
-
-      numberOfLines++;
+    } finally {
+      splitter.release();
+      in.close();
     }
 
     /*
-     * Add the remaining lines
+     * Acknowledge only once the batches are on disk
      */
-    final int rest = batch.size();
-    if (rest > 0) {
-      new ThreadRunner(this, "persist", Arrays.asList(batch, worker)).run();
-      batch = new ArrayList<String>(batchSize);
+    if (entry != null) {
+      spool.sync(entry);
+    }
+
+    log.debug("+ Added " + numberOfLines + " transactions to the backend. Max line size: " + maxLineSize);
+  }
+
+
+  /**
+   * Get the partition key of the upload, from the query string only:
+   * asking the request for its parameters would read a form encoded
+   * body, which is what e.g. curl --data-binary sends by default, and
+   * leave no lines to read.
+   *
+   * @param request The request.
+   * @return The partition key, or null if none is given.
+   */
+  private String getPartition(HttpServletRequest request) {
+    final String query = request.getQueryString();
+
+    if (query == null) {
+      return null;
     }
 
-    reader.close();
+    for (final String parameter : query.split("&")) {
+      if (parameter.startsWith("partition=")) {
+        try {
+          return URLDecoder.decode(parameter.substring("partition=".length()), "UTF-8");
+        } catch (IllegalArgumentException iae) {
+          log.error("! Malformed partition " + parameter + ", ignoring it");
+        } catch (UnsupportedEncodingException uee) {
+          log.error("! " + uee.getMessage());
+        }
+      }
+    }
 
-    log.debug("+ Added " + (numberOfLines + rest - 2) + " transactions to the backend. Max line size: " + maxLineSize);
+    return null;
+  }
+
+
+  /**
+   * Get the charset of the upload, as given by the request, or
+   * ISO-8859-1, the default for HTTP.
+   *
+   * @param request The request.
+   * @return The charset.
+   */
+  private Charset getCharset(HttpServletRequest request) {
+    final String encoding = request.getCharacterEncoding();
+
+    try {
+      if (encoding != null) {
+        return Charset.forName(encoding);
+      }
+    } catch (IllegalArgumentException iae) {
+      log.error("! Unknown encoding " + encoding + ", reading the upload as ISO-8859-1");
+    }
+
+    return Charset.forName("ISO-8859-1");
+  }
+
+
+  /**
+   * Hand over a batch to the persistence threads, waiting while
+   * too many batches are waiting for them.
+   *
+   * @param executor The executor of the persistence threads.
+   * @param batch The batch, released once persisted.
+   * @param partition The partition key of the batch, which picks
+   *        the worker; null for any worker.
+   * @param entry The entry of the batch in the spool, or null.
+   * @throws IOException If interrupted while waiting.
+   */
+  private void submit(BoundedExecutor executor, LineBatch batch, String partition, Spool.Entry entry) throws IOException {
+    try {
+      executor.submit(this, "persist", Arrays.asList(batch, partition, entry));
+    } catch (InterruptedException ie) {
+      batch.release();
+      Thread.currentThread().interrupt();
+
+      throw new InterruptedIOException("Interrupted handing over a batch");
+    }
   }
 
 
-  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @SuppressWarnings("rawtypes")
   @Override public Object threadStart(String callName, Object callArgument) {
     log.debug("> Start: " + callName);
 
-    final List<String> batch  = (ArrayList<String>) ((List) callArgument).get(0);
+    final List arguments = (List) callArgument;
+    final int  inserted  = persist((LineBatch) arguments.get(0), (String) arguments.get(1), (Spool.Entry) arguments.get(2));
+
+    return (inserted < 0) ? "Failed, inserted 0 entries." : ("Inserted " + inserted + " entries.");
+  }
+
+
+  @Override public void threadEnd(String callName, Object callArgument, Object callResult) {
+    log.debug("< Done: " + callName + ". Result: " + callResult);
+  }
+
 
-    final Worker       worker = (Worker) ((List) callArgument).get(1);
+  /**
+   * Persist a batch, with a worker of the pool of workers.
+   *
+   * @param batch The batch, released once persisted.
+   * @param partition The partition key of the batch, which picks
+   *        the worker; null for any worker.
+   * @param entry The entry of the batch in the spool, marked as
+   *        done if persisted, or handed back to be retried if not;
+   *        null if not spooled.
+   * @return The number of lines persisted, or -1 if persisting failed.
+   */
+  private int persist(LineBatch batch, String partition, Spool.Entry entry) {
+    final WorkerPool workers = Service.getWorkerPool();
 
     /*
-     * Not perfect but allows us to safely insert. If we don't
-     * synchronize here, we're running out of pool space, and
-     * if we massively parallelize, we don't recover fast
-     * enough and will risk dropping inserts.
+     * Each worker has a batch of its own, so we only need
+     * the one we acquire for ourselves; the other batches
+     * are persisted by the other workers meanwhile.
      */
-    synchronized (worker) {
-      int batchCount = 0;
+    final Worker     worker;
+
+    try {
+      worker = workers.acquire(partition);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      batch.release();
 
+      if (entry != null) {
+        Service.getCollectorSpool().failed(entry);
+      }
+
+      return -1;
+    }
+
+    try {
       try {
         worker.prepareBatch();
 
-        for (final String transaction : batch) {
-          ++batchCount;
-          worker.addToBatch(transaction);
-        }
+        worker.addToBatch(batch);
 
         worker.executeBatch();
 
-        worker.closeBatch();
+        if (entry != null) {
+          Service.getCollectorSpool().done(entry);
+        }
+
+        return batch.size();
       } catch (Exception e) {
         log.error("! Error executing batch: " + e.getMessage());
+
+        if (entry != null) {
+          Service.getCollectorSpool().failed(entry);
+        }
+
+        return -1;
       } finally {
-        if (worker != null) {
-          try {
-            worker.closeBatch();
-          } catch (Exception e) {
-            log.error("! Error closing batch: " + e.getMessage());
+        try {
+          worker.closeBatch();
+        } catch (Exception e) {
+          log.error("! Error closing batch: " + e.getMessage());
+        }
+      }
+    } finally {
+      workers.release(worker);
+      batch.release();
+    }
+  }
+
+  /**
+   * An upload read asynchronously. The batches read are handed over
+   * to the executor without blocking; if there is no room for a batch,
+   * we stop reading until the executor calls back, and go on reading on
+   * a thread of the container. The reading counts as one more batch not
+   * yet persisted, so that the response is sent by whichever is done
+   * last: the reading, or persisting the last batch. With a spool, it is
+   * sent once the reading is done, and the last batch is on disk.
+   */
+  private final class Upload implements ReadListener, AsyncListener, ThreadCaller {
+    private final AsyncContext       context;
+    private final BoundedExecutor    executor;
+    private final Spool              spool;
+    private final LineSplitter       splitter;
+    private final Charset            charset;
+    private final String             partition;
+    private final ServletInputStream in;
+
+    /** The batches not yet persisted, and one for the reading. */
+    private final AtomicInteger      outstanding  = new AtomicInteger(1);
+
+    /** The lines persisted, or -1 if a batch failed. */
+    private final AtomicInteger      inserted     = new AtomicInteger();
+
+    /** Calls back once there may be room for the batch to hand over. */
+    private final Waiter             whenRoom     = new Waiter() {
+        public boolean room() {
+          return resume();
+        }
+      };
+
+    /** The batch to hand over, when there is room for it. */
+    private LineBatch                pending      = null;
+
+    /** The entry of the batch to hand over in the spool. */
+    private Spool.Entry              pendingEntry = null;
+
+    /** The entry of the last batch handed over in the spool. */
+    private Spool.Entry              lastEntry    = null;
+
+    /** Whether we gave up reading. */
+    private boolean                  aborted      = false;
+
+    /** Whether the whole body was read. */
+    private boolean                  allRead      = false;
+
+    /** Whether the last batch was taken from the splitter. */
+    private boolean                  finished     = false;
+
+    /** Whether we are done reading. */
+    private boolean                  read         = false;
+
+    /** Whether the response was sent, or we gave up. */
+    private boolean                  done         = false;
+
+    private int                      lines        = 0;
+    private int                      maxLineSize  = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param context The context of the request.
+     * @param executor The executor to persist the batches with.
+     * @param spool The spool to write the batches to, or null.
+     * @param splitter The splitter to read the batches with.
+     * @param charset The charset of the upload.
+     * @param partition The partition key of the upload.
+     * @throws IOException If the body cannot be read.
+     */
+    Upload(AsyncContext context, BoundedExecutor executor, Spool spool, LineSplitter splitter, Charset charset, String partition) throws IOException {
+      this.context   = context;
+      this.executor  = executor;
+      this.spool     = spool;
+      this.splitter  = splitter;
+      this.charset   = charset;
+      this.partition = partition;
+      this.in        = context.getRequest().getInputStream();
+    }
+
+    public void onDataAvailable() {
+      proceed();
+    }
+
+
+    public synchronized void onAllDataRead() {
+      this.allRead = true;
+      proceed();
+    }
+
+
+    public void onError(Throwable t) {
+      log.error("! Error reading upload: " + t.getMessage());
+      abort();
+      readDone();
+    }
+
+
+    @SuppressWarnings("rawtypes")
+    @Override public Object threadStart(String callName, Object callArgument) {
+      log.debug("> Start: " + callName);
+
+      final List arguments = (List) callArgument;
+
+      return Integer.valueOf(persist((LineBatch) arguments.get(0), this.partition, (Spool.Entry) arguments.get(1)));
+    }
+
+
+    @Override public void threadEnd(String callName, Object callArgument, Object callResult) {
+      log.debug("< Done: " + callName + ". Result: " + callResult);
+
+      /*
+       * No result if persisting the batch threw.
+       */
+      final int result = (callResult == null) ? -1 : ((Integer) callResult).intValue();
+
+      if (result < 0) {
+        this.inserted.set(-1);
+      } else {
+        int current;
+
+        do {
+          current = this.inserted.get();
+        } while ((current >= 0) && !this.inserted.compareAndSet(current, current + result));
+      }
+
+      if ((this.outstanding.decrementAndGet() == 0) && (this.spool == null)) {
+        respond();
+      }
+    }
+
+
+    public void onStartAsync(AsyncEvent event) {}
+
+
+    public void onComplete(AsyncEvent event) {}
+
+
+    public void onTimeout(AsyncEvent event) {
+      log.error("! Upload timed out after " + this.lines + " lines");
+      giveUp(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+
+    public void onError(AsyncEvent event) {
+      log.error("! Error in upload after " + this.lines + " lines: " + ((event.getThrowable() == null) ? "" : event.getThrowable().getMessage()));
+      giveUp(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+
+    /**
+     * Hand over the batches read, and read on, until there is no room
+     * for a batch, nothing to read without blocking, or all is read.
+     */
+    private synchronized void proceed() {
+      if (this.done) {
+        return;
+      }
+
+      try {
+        while (true) {
+          if (this.pending == null) {
+            this.pending = this.splitter.poll();
           }
+
+          if ((this.pending == null) && this.allRead && !this.finished) {
+            this.finished = true;
+            this.pending  = this.splitter.finish();
+
+            if (this.pending == null) {
+              readDone();
+
+              return;
+            }
+          }
+
+          if (this.pending != null) {
+            if ((this.spool != null) && (this.pendingEntry == null)) {
+              this.pendingEntry = this.spool.append(this.pending, this.partition, this.charset);
+            }
+
+            this.outstanding.incrementAndGet();
+
+            if (this.executor.trySubmit(this, "persist", Arrays.asList(this.pending, this.pendingEntry), this.whenRoom) == null) {
+              this.outstanding.decrementAndGet();
+
+              return;
+            }
+
+            if (this.pendingEntry != null) {
+              this.lastEntry    = this.pendingEntry;
+              this.pendingEntry = null;
+            }
+
+            this.lines += this.pending.size();
+
+            if (this.pending.getMaxLength() > this.maxLineSize) {
+              this.maxLineSize = this.pending.getMaxLength();
+            }
+
+            this.pending = null;
+
+            if (this.finished) {
+              readDone();
+
+              return;
+            }
+
+            continue;
+          }
+
+          /*
+           * If the stream is not ready, the container
+           * calls onDataAvailable once it is again.
+           */
+          if (this.allRead || !this.in.isReady()) {
+            return;
+          }
+
+          if (this.splitter.read(this.in) < 0) {
+            this.allRead = true;
+          }
+        }
+      } catch (IOException ioe) {
+        log.error("! Error reading upload: " + ioe.getMessage());
+        abort();
+        readDone();
+      }
+    }
+
+
+    /**
+     * Go on reading on a thread of the container, once
+     * there may be room to hand over the next batch.
+     *
+     * @return True if we go on, false if there is no batch
+     *         to hand over, or we gave up on the upload.
+     */
+    private boolean resume() {
+      synchronized (this) {
+        if (this.done || (this.pending == null)) {
+          return false;
         }
       }
 
-      return "Inserted " + batchCount + " entries.";
+      try {
+        this.context.start(new Runnable() {
+            public void run() {
+              proceed();
+            }
+          });
+
+        return true;
+      } catch (IllegalStateException ise) {
+        log.debug("+ Upload no longer to be read on: " + ise.getMessage());
+
+        return false;
+      }
     }
-  }
 
 
-  @Override public void threadEnd(String callName, Object callArgument, Object callResult) {
-    log.debug("< Done: " + callName + ". Result: " + callResult);
+    /**
+     * Stop reading, giving up on the batches not yet handed over.
+     */
+    private synchronized void abort() {
+      this.aborted = true;
+
+      if (this.pending != null) {
+        this.pending.release();
+        this.pending = null;
+      }
+
+      /*
+       * The client is told the upload failed,
+       * so the batch is not to be replayed
+       */
+      if (this.pendingEntry != null) {
+        this.spool.done(this.pendingEntry);
+        this.pendingEntry = null;
+      }
+
+      this.splitter.release();
+      this.finished = true;
+      this.allRead  = true;
+    }
+
+
+    /**
+     * Done reading; respond if all batches are persisted, or
+     * with a spool, once the last batch is on disk.
+     */
+    private void readDone() {
+      synchronized (this) {
+        if (this.read) {
+          return;
+        }
+
+        this.read = true;
+      }
+
+      log.debug("+ Read " + this.lines + " transactions. Max line size: " + this.maxLineSize);
+
+      final Spool.Entry last;
+
+      synchronized (this) {
+        last = this.lastEntry;
+      }
+
+      if (this.outstanding.decrementAndGet() == 0) {
+        respond();
+      } else if (this.spool != null) {
+        if (last == null) {
+          respond();
+        } else {
+          this.spool.whenDurable(last, new Runnable() {
+              public void run() {
+                respond();
+              }
+            });
+        }
+      }
+    }
+
+
+    /**
+     * Send the response, once all batches are persisted, or on disk.
+     */
+    private synchronized void respond() {
+      if (this.done) {
+        return;
+      }
+
+      this.done = true;
+
+      final int     result = this.inserted.get();
+      final boolean failed = this.aborted || ((this.spool == null) && (result < 0));
+
+      if (this.spool == null) {
+        log.debug("+ Added " + result + " transactions to the backend");
+      } else {
+        log.debug("+ Spooled " + this.lines + " transactions");
+      }
+
+      try {
+        ((HttpServletResponse) this.context.getResponse()).setStatus(failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : HttpServletResponse.SC_OK);
+      } finally {
+        this.context.complete();
+      }
+    }
+
+
+    /**
+     * Give up on the upload, as the container did, and send an error,
+     * without waiting for the batches handed over.
+     *
+     * @param status The status to send.
+     */
+    private void giveUp(int status) {
+      abort();
+
+      synchronized (this) {
+        if (this.done) {
+          return;
+        }
+
+        this.done = true;
+      }
+
+      try {
+        ((HttpServletResponse) this.context.getResponse()).setStatus(status);
+      } finally {
+        this.context.complete();
+      }
+    }
   }
 }
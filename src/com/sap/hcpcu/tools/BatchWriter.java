@@ -0,0 +1,534 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * This class writes many rows to the database with one statement, in
+ * batches of a given size, rather than one round trip per row. Each
+ * batch is written in a transaction of its own: if it fails, it is
+ * rolled back as a whole, and the batches written before stay. Or all
+ * batches are written in one transaction, which is committed when the
+ * writer is closed, so that either all rows are written or none.
+ * <p>
+ * A writer is opened by {@link DatabasePool#openBatch(String, int, boolean, boolean)},
+ * and holds on to its connection until it is closed, which writes the
+ * rows not yet written; if adding the rows fails, the writer is aborted
+ * instead, which drops them and never throws, so that it does not hide
+ * the error:
+ *
+ * <pre>
+ * final BatchWriter writer = db.openBatch("insert into t (a, b) values (?, ?)", 1000, true);
+ * try {
+ *   for (...) {
+ *     writer.add(Arrays.asList(a, b));
+ *   }
+ *
+ *   writer.close();
+ * } finally {
+ *   writer.abort();
+ * }
+ * </pre>
+ *
+ * An INSERT ... VALUES (...) statement can be rewritten to insert many
+ * rows at once, as INSERT ... VALUES (...), (...), ...; this is often
+ * much faster than a JDBC batch, which some drivers send as one round
+ * trip per row anyway. Each batch then takes as few statements as the
+ * limit of the database on the number of parameters of a statement
+ * allows. A clause after the values, e.g. ON DUPLICATE KEY UPDATE, is
+ * kept once, after all rows, as long as it has no parameters of its own.
+ */
+public class BatchWriter {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger          log            = LoggerFactory.getLogger(BatchWriter.class);
+
+  /**
+   * The most parameters we give to a rewritten statement; e.g.
+   * SQL Server takes 2100, most other databases at least 32767.
+   */
+  public static final int        MAX_PARAMETERS = 2000;
+
+  /** Matches an INSERT statement up to VALUES, and what follows it. */
+  private static final Pattern   INSERT         = Pattern.compile("(?is)^\\s*(insert\\s.*?\\svalues)\\s*(\\(.*?)\\s*;?\\s*$");
+
+  private final DatabasePool     pool;
+  private final Connection       con;
+  private final boolean          autoCommit;
+  private final boolean          oneTransaction;
+  private final String           sql;
+  private final int              batchSize;
+
+  /** The statement of single rows. */
+  private final PreparedStatement pst;
+
+  /** The rewritten statement of many rows, or null. */
+  private PreparedStatement      multiPst;
+
+  /** The rewritten statement of the rows left over, or null. */
+  private PreparedStatement      restPst;
+
+  /** The number of rows of the statement of the rows left over. */
+  private int                    restRows       = 0;
+
+  /** The rewritten SQL of one row, or null if not rewriting. */
+  private final String           multiHead;
+  private final String           multiTuple;
+
+  /** The clause after the rows, e.g. ON DUPLICATE KEY UPDATE, or empty. */
+  private final String           multiTail;
+
+  /** The number of rows per rewritten statement. */
+  private final int              multiRows;
+
+  /** The rows to write with the rewritten statement. */
+  @SuppressWarnings("rawtypes")
+  private final List<List>       pending        = new ArrayList<List>();
+
+  /** The number of rows added to the JDBC batch. */
+  private int                    batched        = 0;
+
+  /** The number of rows written. */
+  private long                   rows           = 0;
+
+  /** The number of batches written. */
+  private long                   batches        = 0;
+
+  /** The time the last batch took, in nanoseconds. */
+  private long                   lastLatency    = 0;
+
+  private boolean                closed         = false;
+
+  /**
+   * Constructor.
+   *
+   * @param pool The pool, recording the latencies of the batches.
+   * @param con The connection, which is closed with the writer.
+   * @param sql The SQL statement of one row.
+   * @param batchSize The number of rows per batch.
+   * @param rewrite True to rewrite an INSERT statement to insert many rows at once.
+   * @param oneTransaction True to write all batches in one transaction,
+   *        committed when the writer is closed.
+   * @throws SQLException If the statement could not be prepared.
+   */
+  protected BatchWriter(DatabasePool pool, Connection con, String sql, int batchSize, boolean rewrite, boolean oneTransaction) throws SQLException {
+    this.pool           = pool;
+    this.con            = con;
+    this.sql            = sql;
+    this.batchSize      = Math.max(1, batchSize);
+    this.autoCommit     = con.getAutoCommit();
+    this.oneTransaction = oneTransaction;
+
+    final Matcher m          = rewrite ? INSERT.matcher(sql) : null;
+    final int     end        = (m != null) && m.matches() ? tupleEnd(m.group(2)) : -1;
+    final int     parameters = (end > 0) ? count(m.group(2).substring(0, end), '?') : 0;
+
+    if ((parameters > 0) && (count(m.group(2).substring(end), '?') == 0)) {
+      this.multiHead  = m.group(1);
+      this.multiTuple = m.group(2).substring(0, end);
+      this.multiTail  = m.group(2).substring(end).trim();
+      this.multiRows  = Math.max(1, Math.min(this.batchSize, MAX_PARAMETERS / parameters));
+    } else {
+      if (rewrite) {
+        log.debug("+ Not rewriting, no INSERT with parameters only in its values: " + sql);
+      }
+
+      this.multiHead  = null;
+      this.multiTuple = null;
+      this.multiTail  = null;
+      this.multiRows  = 0;
+    }
+
+    if (this.autoCommit) {
+      con.setAutoCommit(false);
+    }
+
+    this.pst = con.prepareStatement(sql);
+  }
+
+  /**
+   * Add a row. If the batch is full, it is written.
+   *
+   * @param parameters The parameters of the row, as for
+   *        {@link DatabasePool#updateDB(String, List)}.
+   * @throws SQLException If the batch was written and failed.
+   */
+  @SuppressWarnings("rawtypes")
+  public void add(List parameters) throws SQLException {
+    if (this.closed) {
+      throw new SQLException("Batch is closed");
+    }
+
+    if (this.multiRows > 1) {
+      this.pending.add(parameters);
+    } else {
+      DatabasePool.setParameters(this.pst, parameters);
+      this.pst.addBatch();
+      this.batched++;
+    }
+
+    if ((this.pending.size() + this.batched) >= this.batchSize) {
+      flush();
+    }
+  }
+
+
+  /**
+   * Write the rows added since the last batch, and commit them,
+   * unless all batches are written in one transaction.
+   *
+   * @return The number of rows written.
+   * @throws SQLException If the batch failed; it is rolled back,
+   *         with all batches before if written in one transaction.
+   */
+  public int flush() throws SQLException {
+    final int size = this.pending.size() + this.batched;
+
+    if (size == 0) {
+      return 0;
+    }
+
+    final long start = System.nanoTime();
+
+    try {
+      int done = 0;
+
+      /*
+       * Write as many full rewritten statements as we can,
+       * and the rows left over with a rewritten statement
+       * of their own, which is kept as long as the same
+       * number of rows is left over.
+       */
+      while ((this.pending.size() - done) >= this.multiRows && (this.multiRows > 1)) {
+        if (this.multiPst == null) {
+          this.multiPst = this.con.prepareStatement(rewrite(this.multiRows));
+        }
+
+        DatabasePool.setParameters(this.multiPst, flatten(done, this.multiRows));
+        this.multiPst.executeUpdate();
+
+        done += this.multiRows;
+      }
+
+      final int rest = this.pending.size() - done;
+
+      if (rest > 1) {
+        if ((this.restPst == null) || (this.restRows != rest)) {
+          close(this.restPst);
+          this.restPst  = null;
+          this.restPst  = this.con.prepareStatement(rewrite(rest));
+          this.restRows = rest;
+        }
+
+        DatabasePool.setParameters(this.restPst, flatten(done, rest));
+        this.restPst.executeUpdate();
+      } else if (rest == 1) {
+        DatabasePool.setParameters(this.pst, this.pending.get(done));
+        this.pst.addBatch();
+        this.batched++;
+      }
+
+      if (this.batched > 0) {
+        this.pst.executeBatch();
+      }
+
+      if (!this.oneTransaction) {
+        this.con.commit();
+      }
+    } catch (SQLException sqle) {
+      log.error("! Error writing batch of " + size + " rows: " + sqle.getMessage());
+      log.error("! The SQL statement was: \n\t" + this.sql);
+
+      try {
+        this.pst.clearBatch();
+        this.con.rollback();
+      } catch (SQLException e) {
+        log.error("! Error rolling back the batch: " + e.getMessage());
+      }
+
+      throw sqle;
+    } finally {
+      this.pending.clear();
+      this.batched = 0;
+    }
+
+    this.lastLatency = System.nanoTime() - start;
+    this.rows       += size;
+    this.batches++;
+    this.pool.getBatchLatency().record(this.lastLatency);
+
+    log.debug("+ Wrote batch of " + size + " rows in " + (this.lastLatency / 1000000) + " ms");
+
+    return size;
+  }
+
+
+  /**
+   * Write the rows not yet written, commit all batches if they are
+   * written in one transaction, and close the writer, giving back its
+   * connection. Call {@link #abort()} instead to give up on the rows.
+   *
+   * @throws SQLException If the last batch or the commit failed; the
+   *         writer is closed anyway.
+   */
+  public void close() throws SQLException {
+    if (this.closed) {
+      return;
+    }
+
+    try {
+      flush();
+
+      if (this.oneTransaction) {
+        commit();
+      }
+    } finally {
+      release();
+    }
+  }
+
+
+  /**
+   * Commit all batches written in one transaction.
+   *
+   * @throws SQLException If the commit failed; all batches are rolled back.
+   */
+  private void commit() throws SQLException {
+    try {
+      this.con.commit();
+    } catch (SQLException sqle) {
+      log.error("! Error committing " + this.rows + " rows: " + sqle.getMessage());
+
+      try {
+        this.con.rollback();
+      } catch (SQLException e) {
+        log.error("! Error rolling back the batches: " + e.getMessage());
+      }
+
+      throw sqle;
+    }
+  }
+
+
+  /**
+   * Close the writer without writing the rows not yet written, giving
+   * back its connection, e.g. when adding the rows failed. The batches
+   * written before stay. Does nothing if the writer is closed already,
+   * and never throws, so that it can be called in a finally block
+   * without hiding an earlier error.
+   */
+  public void abort() {
+    if (this.closed) {
+      return;
+    }
+
+    if ((this.pending.size() + this.batched) > 0) {
+      log.debug("+ Dropping " + (this.pending.size() + this.batched) + " rows not written");
+    }
+
+    this.pending.clear();
+    this.batched = 0;
+
+    try {
+      this.pst.clearBatch();
+      this.con.rollback();
+    } catch (SQLException e) {
+      log.error("! Error rolling back the batch: " + e.getMessage());
+    }
+
+    release();
+  }
+
+
+  /**
+   * Close the statements, and give back the connection.
+   */
+  private void release() {
+    this.closed = true;
+
+    close(this.pst);
+    close(this.multiPst);
+    close(this.restPst);
+
+    try {
+      if (this.autoCommit) {
+        this.con.setAutoCommit(true);
+      }
+
+      this.con.close();
+    } catch (SQLException e) {
+      log.error("! Error closing the connection: " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Get the number of rows written.
+   *
+   * @return The number of rows.
+   */
+  public long getRows() {
+    return this.rows;
+  }
+
+
+  /**
+   * Get the number of batches written.
+   *
+   * @return The number of batches.
+   */
+  public long getBatches() {
+    return this.batches;
+  }
+
+
+  /**
+   * Get the time the last batch took to write and commit.
+   *
+   * @return The latency in milliseconds.
+   */
+  public double getLastLatency() {
+    return this.lastLatency / 1000000.0;
+  }
+
+
+  /**
+   * Check whether the statement is rewritten to insert many rows at once.
+   *
+   * @return True if it is.
+   */
+  public boolean isRewriting() {
+    return this.multiRows > 1;
+  }
+
+
+  /**
+   * Get the rewritten SQL statement for a number of rows.
+   *
+   * @param rows The number of rows.
+   * @return The SQL statement.
+   */
+  private String rewrite(int rows) {
+    final StringBuilder sb = new StringBuilder(this.multiHead.length() + ((this.multiTuple.length() + 2) * rows));
+
+    sb.append(this.multiHead);
+    sb.append(' ');
+
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+
+      sb.append(this.multiTuple);
+    }
+
+    if (this.multiTail.length() > 0) {
+      sb.append(' ');
+      sb.append(this.multiTail);
+    }
+
+    return sb.toString();
+  }
+
+
+  /**
+   * Get the parameters of some pending rows as one list.
+   *
+   * @param from The first row.
+   * @param rows The number of rows.
+   * @return The parameters.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private List flatten(int from, int rows) {
+    final List result = new ArrayList();
+
+    for (int i = from; i < (from + rows); i++) {
+      result.addAll(this.pending.get(i));
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Find the end of the tuple a String starts with, i.e. the closing
+   * parenthesis matching the opening one at its start, outside of
+   * quotes.
+   *
+   * @param s The String.
+   * @return The index after the closing parenthesis, -1 if there is none.
+   */
+  private static int tupleEnd(String s) {
+    int     depth  = 0;
+    boolean quoted = false;
+
+    for (int i = 0; i < s.length(); i++) {
+      final char ch = s.charAt(i);
+
+      if (ch == '\'') {
+        quoted = !quoted;
+      } else if (quoted) {
+        continue;
+      } else if (ch == '(') {
+        depth++;
+      } else if ((ch == ')') && (--depth == 0)) {
+        return i + 1;
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Count a character in a String, outside of quotes.
+   *
+   * @param s The String.
+   * @param c The character.
+   * @return The count.
+   */
+  private static int count(String s, char c) {
+    int     count  = 0;
+    boolean quoted = false;
+
+    for (int i = 0; i < s.length(); i++) {
+      final char ch = s.charAt(i);
+
+      if (ch == '\'') {
+        quoted = !quoted;
+      } else if ((ch == c) && !quoted) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Close a statement, if any.
+   *
+   * @param st The statement, or null.
+   */
+  private static void close(Statement st) {
+    try {
+      if (st != null) {
+        st.close();
+      }
+    } catch (SQLException sqle) {
+      log.error("! Error closing the statement: " + sqle.getMessage());
+    }
+  }
+}
@@ -0,0 +1,252 @@
+package com.sap.hcpcu.tools;
+
+import com.sap.hcpcu.tools.ThreadRunner.ThreadCaller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class runs the calls of {@link ThreadCaller}s, as the
+ * {@link ThreadRunner} does, but on a fixed number of threads, and with
+ * a bound on the calls waiting for a thread: when as many calls are
+ * waiting, the next call to submit blocks until one of them is started.
+ * <p>
+ * This way, a caller handing over work faster than it is done, e.g. the
+ * Collector reading batches from an upload, is slowed down to the pace
+ * of the work instead of starting ever more threads, and the memory held
+ * by the work handed over is bounded by the threads plus the calls that
+ * may wait.
+ * <p>
+ * A caller that must not block, e.g. reading an upload asynchronously,
+ * uses {@link #trySubmit(ThreadCaller, String, Object, Waiter)}, which
+ * rather gives up, and calls back once there is room again.
+ */
+public class BoundedExecutor {
+  /**
+   * Logger for this class
+   */
+  private static final Logger                   log     = LoggerFactory.getLogger(BoundedExecutor.class);
+
+  /** The threads. */
+  private final ThreadPoolExecutor              executor;
+
+  /** A permit for each call running or waiting. */
+  private final Semaphore                       permits;
+
+  /** The number of calls that had to wait to be submitted. */
+  private final AtomicInteger                   blocked = new AtomicInteger();
+
+  /** The callbacks waiting for room to submit a call. */
+  private final ConcurrentLinkedQueue<Waiter>   waiting = new ConcurrentLinkedQueue<Waiter>();
+
+  /**
+   * Constructor.
+   *
+   * @param name The name of the threads, followed by their number.
+   * @param threads The number of threads.
+   * @param queue The number of calls that may wait for a thread.
+   */
+  public BoundedExecutor(final String name, final int threads, final int queue) {
+    final int           size   = Math.max(1, threads);
+    final AtomicInteger number = new AtomicInteger();
+
+    this.permits  = new Semaphore(size + Math.max(0, queue));
+    this.executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, name + "-" + number.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+          }
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Submit a call, blocking while as many calls are waiting for a
+   * thread as the queue takes. The threadStart method of the caller
+   * is called on one of the threads, and then its threadEnd method,
+   * which is called with a null result if threadStart failed.
+   *
+   * @param callBack The object to call back.
+   * @param callName The name of the callback.
+   * @param callArgument The argument for the callback.
+   * @return The result of threadStart, once it is done.
+   * @throws InterruptedException If interrupted while blocking.
+   */
+  public Future<Object> submit(final ThreadCaller callBack, final String callName, final Object callArgument) throws InterruptedException {
+    if (!this.permits.tryAcquire()) {
+      this.blocked.incrementAndGet();
+      log.debug("+ Waiting to submit " + callName + ", " + getQueued() + " calls waiting");
+      this.permits.acquire();
+    }
+
+    return execute(callBack, callName, callArgument);
+  }
+
+
+  /**
+   * Submit a call if there is room for it, without blocking. If there
+   * is not, the call is not submitted, and a callback is called once
+   * there may be room again, on the thread of a call that is done, to
+   * try again; it may then find the room taken by another call.
+   *
+   * @param callBack The object to call back.
+   * @param callName The name of the callback.
+   * @param callArgument The argument for the callback.
+   * @param whenRoom The callback to call once there may be room.
+   * @return The result of threadStart, once it is done; null if
+   *         the call was not submitted.
+   */
+  public Future<Object> trySubmit(final ThreadCaller callBack, final String callName, final Object callArgument, final Waiter whenRoom) {
+    if (!this.permits.tryAcquire()) {
+      this.waiting.offer(whenRoom);
+
+      /*
+       * A call may have been done before we
+       * were waiting, and not have seen us.
+       */
+      if (!this.permits.tryAcquire()) {
+        this.blocked.incrementAndGet();
+        log.debug("+ No room to submit " + callName + ", " + getQueued() + " calls waiting");
+
+        return null;
+      }
+
+      /*
+       * We are no longer waiting; a call that is
+       * done is to call back the next caller.
+       */
+      this.waiting.remove(whenRoom);
+    }
+
+    return execute(callBack, callName, callArgument);
+  }
+
+
+  /**
+   * Run a call, for which we have a permit, on one of the threads.
+   *
+   * @param callBack The object to call back.
+   * @param callName The name of the callback.
+   * @param callArgument The argument for the callback.
+   * @return The result of threadStart, once it is done.
+   */
+  private Future<Object> execute(final ThreadCaller callBack, final String callName, final Object callArgument) {
+    try {
+      return this.executor.submit(new Callable<Object>() {
+            public Object call() {
+              Object callResult = null;
+
+              try {
+                callResult = callBack.threadStart(callName, callArgument);
+
+                return callResult;
+              } finally {
+                try {
+                  callBack.threadEnd(callName, callArgument, callResult);
+                } finally {
+                  release();
+                }
+              }
+            }
+          });
+    } catch (RuntimeException re) {
+      release();
+
+      throw re;
+    }
+  }
+
+
+  /**
+   * Give back the permit of a call, and call back the callers waiting
+   * for room, one after the other, until one of them is still waiting.
+   */
+  private void release() {
+    this.permits.release();
+
+    Waiter whenRoom;
+
+    while ((whenRoom = this.waiting.poll()) != null) {
+      try {
+        if (whenRoom.room()) {
+          return;
+        }
+      } catch (RuntimeException re) {
+        log.error("! Error calling back for room: " + re.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Get the number of calls running.
+   *
+   * @return The number of calls.
+   */
+  public int getActive() {
+    return this.executor.getActiveCount();
+  }
+
+
+  /**
+   * Get the number of calls waiting for a thread.
+   *
+   * @return The number of calls.
+   */
+  public int getQueued() {
+    return this.executor.getQueue().size();
+  }
+
+
+  /**
+   * Get the number of calls that had to wait to be submitted,
+   * as the queue was full.
+   *
+   * @return The number of calls.
+   */
+  public int getBlocked() {
+    return this.blocked.get();
+  }
+
+
+  /**
+   * Stop taking calls, and wait for the calls submitted to be done.
+   *
+   * @param millis The longest time to wait.
+   * @return True if all calls are done.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public boolean shutdown(long millis) throws InterruptedException {
+    this.executor.shutdown();
+
+    return this.executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * A caller waiting for room to submit a call.
+   */
+  public interface Waiter {
+    /**
+     * Called once there may be room to submit a call, on the
+     * thread of a call that is done. Must not block.
+     *
+     * @return True if the caller is still waiting, and is going to try
+     *         again; false if it no longer is, e.g. as it gave up, so
+     *         that the next caller waiting is called back instead.
+     */
+    public boolean room();
+  }
+}
@@ -0,0 +1,82 @@
+package com.sap.hcpcu.tools;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class keeps byte buffers of one size for reuse, so that reading
+ * e.g. large uploads does not allocate a new buffer for each chunk. A
+ * buffer taken from the pool is given back to it when done with; the
+ * pool keeps up to a given number of them, and lets the garbage
+ * collector take the others, as well as buffers of other sizes.
+ */
+public class BufferPool {
+  /** The size of the buffers. */
+  private final int                           size;
+
+  /** The most buffers to keep. */
+  private final int                           max;
+
+  /** The buffers kept. */
+  private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+  /** The number of buffers kept. */
+  private final AtomicInteger                 count   = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param size The size of the buffers.
+   * @param max The most buffers to keep.
+   */
+  public BufferPool(int size, int max) {
+    this.size = size;
+    this.max  = max;
+  }
+
+  /**
+   * Get the size of the buffers.
+   *
+   * @return The size in bytes.
+   */
+  public int getSize() {
+    return this.size;
+  }
+
+
+  /**
+   * Take a buffer from the pool, or a new one if the pool is empty.
+   *
+   * @return The buffer, of the size of the pool. Its content is undefined.
+   */
+  public byte[] acquire() {
+    final byte[] buffer = this.buffers.poll();
+
+    if (buffer == null) {
+      return new byte[this.size];
+    }
+
+    this.count.decrementAndGet();
+
+    return buffer;
+  }
+
+
+  /**
+   * Give a buffer back to the pool. It must no longer be used.
+   *
+   * @param buffer The buffer; ignored if not of the size of the pool.
+   */
+  public void release(byte[] buffer) {
+    if ((buffer == null) || (buffer.length != this.size)) {
+      return;
+    }
+
+    if (this.count.incrementAndGet() <= this.max) {
+      this.buffers.offer(buffer);
+    } else {
+      this.count.decrementAndGet();
+    }
+  }
+}
@@ -5,17 +5,45 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 
 /**
@@ -40,11 +68,21 @@ import java.util.zip.GZIPOutputStream;
  *     not use the setLifetime function. If you use that function or choose
  *     a particular setting for one given entry using the more detailed
  *     version of the setEntry function, the entries will be cleaned up
- *     either by a cleaner thread that is started automatically when you
- *     instantiate the cache, or by the fact that you access an expired
- *     item before the next run of the cleaner thread took place. The
- *     default interval for the cleaner is 1 minute. This can be controlled
- *     by the setUpdateInterval function.</li>
+ *     either by the {@link ExpiryWheel} within a second after they expired,
+ *     or by the fact that you access an expired item before the wheel got
+ *     to it. There is a single wheel, with a single thread, for all caches;
+ *     each tick of the wheel only touches the entries that are actually
+ *     due, so the cost of expiring entries does not grow with the size of
+ *     the cache, and the wheel never locks more than the segment of the
+ *     entry it expires.</li>
+ * <li>Besides the number of entries, the cache can be limited by the number
+ *     of bytes its entries take, using the setMaxWeight function. The size
+ *     of a compressed entry is the size of its compressed form; the size
+ *     of any other entry is estimated by a Weigher, which you can replace
+ *     using the setWeigher function. When adding an entry pushes the cache
+ *     over its budget, entries are moved out from the tail of the queue
+ *     until it fits again. An entry that is bigger than the entire budget
+ *     is not cached at all.</li>
  * <li>Each cache entry is encapsulated in a "SoftReference". This means,
  *     that when running into an out of memory situation, some entries
  *     may be moved out of the cache by the garbage collector. As you
@@ -54,7 +92,14 @@ import java.util.zip.GZIPOutputStream;
  *     Each time you access the cache using the getEntry function, you must
  *     check whether you received a null object, and if so, you have to
  *     take care yourself for recreating the object from scratch - and for
- *     adding it back to the cache if you want.</li>
+ *     adding it back to the cache if you want. The entries released by
+ *     the garbage collector are removed from the cache at the next tick of
+ *     the {@link ExpiryWheel}. If you give the cache a budget using the
+ *     setMaxWeight function, you can switch this off using the
+ *     setSoftValues function: The entries are then only moved out of the
+ *     cache deterministically, by their size, and you can size the heap
+ *     for the budget of the cache instead of relying on the garbage
+ *     collector to clear the soft references.</li>
  * <li>It is possible to compress the cache content if you have huge but
  *     redundant objects to store. To do so, use the setCompressed function
  *     to activate this setting for the entire cache, or activate it only
@@ -63,7 +108,20 @@ import java.util.zip.GZIPOutputStream;
  *     the entry, so you do not have to worry about whether any entry had
  *     been compressed previously. Please make sure to note that the
  *     compression takes place in memory, and may imply a severe load
- *     on the CPU.</li>
+ *     on the CPU. How an entry is compressed is up to a {@link Codec},
+ *     combining a serializer and a compressor: By default, Strings and
+ *     byte arrays are written as they are and any other object using the
+ *     Java serialization, and the bytes are compressed with GZIP. Use the
+ *     setCodec function to choose another codec for the entire cache, e.g.
+ *     the much faster Codec.FAST compressor, or the version of setEntry
+ *     taking a codec for single entries. The compressed entries can be kept outside of the
+ *     Java heap, in an {@link OffHeapStore} given a capacity by the
+ *     setOffHeap function; they are then decompressed straight from
+ *     there when hit, and large entries do not fill up the old generation
+ *     of the heap. Compressed entries that do not fit into the store
+ *     anymore are kept on the heap, as before. Entries kept outside of
+ *     the heap are not referenced softly, as the garbage collector
+ *     would not know about the memory they take.</li>
  * <li>When compressing, it is possible to activate a double buffer
  *     for single entries or for the entire cache using the setDoublebuffer
  *     function. When doing so, storing and hitting a cache entry will
@@ -76,6 +134,31 @@ import java.util.zip.GZIPOutputStream;
  *     renders the entire cache inactive such that hitting a huge cache
  *     entry forces all other cache entries out of the cache immediately.
  *     The cache statistics can be reset by the resetStatistics function.</li>
+ * <li>Families of entries can be removed in one pass, without looking at
+ *     the other entries: by a common prefix of their keys, e.g. all of
+ *     "0025-xml", "0025-xls" using the removeByPrefix function, which
+ *     uses a sorted index of the keys, or by a tag attached to each of
+ *     them using the tag function, using the removeTagged function. The
+ *     removeLike function still removes the entries whose keys contain
+ *     a given string anywhere, which looks at all keys. Tags stay with
+ *     a key when its entry is replaced, but are not saved to disk.</li>
+ * <li>When several nodes of a cluster each have a cache of their own, the
+ *     caches can be attached to an {@link InvalidationBus} using the setBus
+ *     function. Entries put into or removed from one of them, by any of the
+ *     functions above, are then removed from the others right away, so
+ *     that the nodes do not serve stale entries until they expire.</li>
+ * <li>The processes of a host can share a second level below their caches,
+ *     a {@link SharedFileStore} in a memory mapped file, given by the
+ *     setSharedStore function. Entries missing from the cache are looked
+ *     up there before they are loaded, and moved up into the cache when
+ *     found; loaded entries and entries moved out of the cache to make
+ *     room are written there, so that the results of expensive loads are
+ *     shared between the processes, and survive restarts.</li>
+ * <li>Beyond these counters, which are reset whenever the cache is
+ *     flushed, the cache keeps cumulative {@link CacheStatistics}: hits,
+ *     misses, loads and their latencies, and the entries moved out, by
+ *     cause. They are recorded without locking, and can be registered
+ *     with JMX by their register function.</li>
  * <li>It is very probable that using the double buffer and the compression
  *     as an overall cache setting does not make sense. All tests that have
  *     been untertaken so far show that the doublebuffer takes up at least
@@ -92,8 +175,11 @@ import java.util.zip.GZIPOutputStream;
  *     rarely, the double buffer will more likely be prone to be moved out of the
  *     cache by the garbage collector, as it can be considered to take more space
  *     as opposed to the "other" entries.</li>
- * <li>It is possible to persist a cache on disk using the save function.
- *     The cache is compressed when doing so. See the documentation for
+ * <li>It is possible to persist a cache on disk using the save function,
+ *     or periodically in the background using the setSnapshot function.
+ *     The cache is written as a {@link SnapshotFile}, to which each
+ *     further save only appends the entries that changed, and which
+ *     survives a crash while it is written. See the documentation for
  *     that function vs. the load function for considerations to make
  *     that affect the compression, doublebuffer and lifetime settings
  *     of a given cache entry if these are not inline with the overall
@@ -102,17 +188,59 @@ import java.util.zip.GZIPOutputStream;
  *     addition, due to the many factors that may influence the content
  *     of the cache, you cannot rely on the assumption that loading a cache
  *     will lead to exactly the same content as it had when it was saved.
- *     Loading the cache adds the entries back to the cache as fresh
- *     entries, with the cache wide compression and double buffering
- *     setting, so already while loading the cache, the garbage collector
- *     may step into the place and remove objects from the cache if
- *     running into an out of memory situation.</li>
+ *     Loading the cache maps the file into memory and adds the entries
+ *     back to the cache right away, but decodes each of them only when
+ *     it is first hit, with the cache wide compression and double
+ *     buffering setting.</li>
  * <li>Particular emphasis was placed on making this cache thread safe. Every
  *     structural modification is synchronized. Since some modifications are
  *     detectable only when accessing the cache, the accessors are
  *     synchronized, as well, as when they detect the invalidity of
  *     a SoftReference pointer, they immediately move that SoftReference
  *     object out of the cache, as well.</li>
+ * <li>The queue is a doubly linked list running through the cache entries
+ *     themselves. Adding an entry, moving a hit back to the head of the
+ *     queue and moving an entry out from the tail are constant time
+ *     operations, and a hit does not allocate any memory.</li>
+ * <li>The cache can be run with one of two engines, chosen when constructing
+ *     it. The legacy engine (ENGINE_LEGACY, the default) keeps all entries in
+ *     a single queue, and every access, including a read, waits for the lock
+ *     of that queue, as described above. The concurrent engine
+ *     (ENGINE_CONCURRENT) stripes the entries over a number of independently
+ *     locked segments, each with its own queue: Reads do not wait for any
+ *     lock at all, and structural modifications only lock the segment they
+ *     touch. As the queue order is kept per segment, the entry that is moved
+ *     out when the cache is full is the least recently used entry of its
+ *     segment, which is only an approximation of the least recently used
+ *     entry of the entire cache. Under heavy contention, a hit may also skip
+ *     being moved back to the head of its segment's queue rather than wait
+ *     for the segment lock.</li>
+ * <li>The cache can be run with one of two policies, chosen when constructing
+ *     it. The LRU policy (POLICY_LRU, the default) works as described above:
+ *     Every new entry is added to the head of the queue, so that a single
+ *     scan over many entries that are only used once, like a bulk prefill,
+ *     moves all the frequently used entries out of the cache. The TinyLFU
+ *     policy (POLICY_TINYLFU) protects them: A {@link FrequencySketch}
+ *     estimates how often each key was recently added or hit. New entries
+ *     enter a small window queue taking about one percent of the cache; an
+ *     entry leaving the window is then admitted to the main part of the
+ *     cache only if it is more frequent than the entry it would move out,
+ *     otherwise it is moved out itself. The main part is split into a
+ *     probation queue for the entries admitted, and a protected queue taking
+ *     up to 80 percent of the cache for the entries hit again while on
+ *     probation. The hit ratios of both policies can be compared on recorded
+ *     key traces using com.sap.sometest.CachePolicySimulation.</li>
+ * <li>The cache can load missing entries itself, if you give it a Loader,
+ *     either using the setLoader function or for single calls to the get
+ *     function. When several threads miss the same key at the same time,
+ *     only one of them calls the loader, and the others wait for its result.
+ *     If, in addition, you give the cache a refresh interval using the
+ *     setRefreshAfter function, a hit on an entry older than that interval
+ *     still returns the entry, but has the loader reload it in the
+ *     background, again only once for all threads hitting it. This way, a
+ *     frequently used entry is never missed because of its age; the
+ *     lifetime of the entry becomes the time after which it must not be
+ *     used anymore, e.g. if the loader kept failing.</li>
  * </ol>
  * @author Copyright (c) 2003 Matthias Nott, Business Objects
  */
@@ -120,77 +248,249 @@ public class Cache {
   /**
    * The Log4J Logger.
    */
-  private static Logger           log            = LoggerFactory.getLogger(Cache.class);
+  private static Logger           log               = LoggerFactory.getLogger(Cache.class);
 
+  /** Engine: A single queue; every access waits for its lock. */
+  public static final int         ENGINE_LEGACY     = 0;
 
-  /** The Updator Thread. */
-  private CacheUpdator            updator        = null;
+  /** Engine: Stripe the cache over independently locked segments. */
+  public static final int         ENGINE_CONCURRENT = 1;
 
-  /** The Key/Cursor map. */
-  private TreeMap<String, Object> CacheCursor    = null;
+  /** Policy: Move out the least recently used entry. */
+  public static final int         POLICY_LRU        = 0;
 
-  /** The Cursor/Key map. */
-  private TreeMap<String, Object> CursorCache    = null;
+  /** Policy: Admit entries to the main part of the cache by their frequency. */
+  public static final int         POLICY_TINYLFU    = 1;
 
-  /** The Cache: Cursor/Value map. */
-  private TreeMap<String, Object> ObjectCache    = null;
+  /** Queue: The window, or the only queue for the LRU policy. */
+  private static final int        WINDOW            = 0;
+
+  /** Queue: The entries admitted from the window. */
+  private static final int        PROBATION         = 1;
+
+  /** Queue: The entries hit while on probation. */
+  private static final int        PROTECTED         = 2;
+
+  /**
+   * The default Weigher. Strings and byte arrays are weighed by their
+   * length; any other object is assumed to take 64 bytes.
+   */
+  private static final Weigher    DEFAULT_WEIGHER   = new Weigher() {
+      public long weigh(String key, Object value) {
+        if (value instanceof String) {
+          return 40 + (2 * ((String) value).length());
+        } else if (value instanceof byte[]) {
+          return 16 + ((byte[]) value).length;
+        }
+
+        return 64;
+      }
+    };
+
+  /** Number of segments used by the concurrent engine. Must be a power of two. */
+  private static final int        SEGMENTS          = 16;
+
+  /** Number of threads reloading entries in the background, for all caches. */
+  private static final int        LOADER_THREADS    = 4;
+
+  /** The codec of the entries in snapshot files. */
+  private static final Codec      SNAPSHOT_CODEC    = new Codec(Codec.AUTO, Codec.FAST);
+
+  /** A snapshot file is rewritten once it grew to this many times the size it was written with. */
+  private static final int        COMPACT_RATIO     = 4;
+
+  /** A snapshot file is not rewritten before it grew to this size. */
+  private static final long       COMPACT_MINIMUM   = 1 << 20;
+
+  /** The threads reloading entries in the background, read without the lock. */
+  private static volatile ExecutorService loaderPool = null;
+
+  /** The thread saving caches in the background, read without the lock. */
+  private static volatile ScheduledExecutorService snapshotPool = null;
+  private static Object           mutex             = new Object();
+
+
+  /** The wheel expiring the entries that have a lifetime. */
+  private final ExpiryWheel       wheel             = ExpiryWheel.getInstance();
+
+  /** The queue receiving the references released by the garbage collector. */
+  private final ReferenceQueue<Object> released     = new ReferenceQueue<Object>();
+
+  /**
+   * Removes the released entries once per tick of the wheel. The
+   * wheel only holds it weakly, so it lives as long as the cache.
+   */
+  private final ExpiryWheel.TickListener collector  = new ExpiryWheel.TickListener() {
+      public void tick() {
+        removeReleased();
+      }
+    };
+
+  /** The segments holding the cache entries. */
+  private final Segment[]         segments;
+
+  /** Whether reads may skip waiting for the segment lock. */
+  private final boolean           concurrent;
+
+  /** Whether the TinyLFU policy is used. */
+  private final boolean           tinyLfu;
+
+  /** The access frequencies for the TinyLFU policy, else null. */
+  private volatile FrequencySketch sketch           = null;
+
+  /** The keys of the entries over all segments, sorted for lookups by prefix. */
+  private final ConcurrentSkipListSet<String> keyIndex = new ConcurrentSkipListSet<String>();
+
+  /** The keys of the tagged entries, by tag. Modified only while holding the map itself. */
+  private final Map<String, Set<String>> tagIndex   = new HashMap<String, Set<String>>();
+
+  /** The loads in progress, by key. */
+  private final ConcurrentHashMap<String, FutureTask<Object>> loading = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+  /** The loader used by the get function. */
+  private volatile Loader         loader            = null;
+
+  /** Age in seconds after which a hit reloads an entry in the background. -1: Never. */
+  private volatile long           refreshAfter      = -1;
+
+  /** The store for compressed entries outside of the heap, else null. */
+  private volatile OffHeapStore   offHeap           = null;
 
 
   /** Store objects in a compressed way. */
-  private boolean                 compressed     = false;
+  private volatile boolean        compressed        = false;
+
+  /** The codec compressing the objects. */
+  private volatile Codec          codec             = Codec.DEFAULT;
 
   /** Debug output. */
-  private boolean                 debug          = false;
+  private volatile boolean        debug             = false;
 
   /** Whether the cache is enabled. */
-  private boolean                 enabled        = true;
+  private volatile boolean        enabled           = true;
 
   /** Doublebuffer compressed objects. */
-  private boolean                 doublebuffer   = false;
+  private volatile boolean        doublebuffer      = false;
+
+  /** Number of entries over all segments. */
+  private final AtomicInteger     size              = new AtomicInteger();
+
+  /** Number of bytes taken by the entries over all segments. */
+  private final AtomicLong        weight            = new AtomicLong();
 
   /** Modifying actions performed on the cached. */
-  private int                     actions        = 0;
+  private final AtomicInteger     actions           = new AtomicInteger();
+
+  /** The statistics of the cache. */
+  private final CacheStatistics   statistics        = new CacheStatistics(this);
 
-  /** Cache Hit Counter. */
-  private int                     cacheHit       = 0;
+  /** The hits counted by the statistics when the hit counter was last reset. */
+  private volatile long           cacheHitBase      = 0;
 
-  /** Cache Miss Counter. */
-  private int                     cacheMiss      = 0;
+  /** The misses counted by the statistics when the miss counter was last reset. */
+  private volatile long           cacheMissBase     = 0;
 
   /** Size of the Cache (number of entries). */
-  private int                     cacheSize      = 1000;
+  private volatile int            cacheSize         = 1000;
 
-  /** Current Key in the Cache, max of cacheSize. */
-  private int                     mapCursor      = 0;
+  /** Maximum number of bytes taken by the entries. -1: No limit. */
+  private volatile long           maxWeight         = -1;
+
+  /** The Weigher estimating the size of uncompressed entries. */
+  private volatile Weigher        weigher           = DEFAULT_WEIGHER;
+
+  /** Whether the entries are referenced softly. */
+  private volatile boolean        softValues        = true;
 
   /** Reset Cache after this number of modifying actions. */
-  private int                     resetAfter     = 1000000;
+  private volatile int            resetAfter        = 1000000;
 
   /** Default lifetime in seconds for cache entries. -1: Endless life for cache entries. */
-  private long                    lifetime       = -1;
+  private volatile long           lifetime          = -1;
+
+  /** Update interval for the cache, in milliseconds. Only kept for the save file. */
+  private long                    updateInterval    = 60000;
+
+  /** The snapshot file changes are tracked for, null if none. */
+  private volatile File           snapshotFile      = null;
+
+  /** The length of the snapshot file after its last commit. 0: Write all entries. */
+  private long                    snapshotLength    = 0;
+
+  /** The length of the snapshot file when all entries were last written. */
+  private long                    snapshotBase      = 0;
+
+  /** The mapping of the snapshot file the entries loaded from it are slices of, null if none. */
+  private ByteBuffer              snapshotMapping   = null;
+
+  /** The keys added or removed since the last save to the snapshot file. */
+  private final Set<String>       dirty             = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /** The periodic save to the snapshot file, null if none. */
+  private ScheduledFuture<?>      snapshotTask      = null;
+
+  /** The bus telling the caches of other nodes about changed entries, null if none. */
+  private volatile InvalidationBus bus              = null;
+
+  /** The shared store serving as the second level of the cache, null if none. */
+  private volatile SharedFileStore shared           = null;
+
+  /** The channel of the cache on the bus. */
+  private volatile String         channel           = null;
 
-  /** Update interval for the cache, in milliseconds. */
-  private long                    updateInterval = 60000;
+  /** Removes the entries changed by the caches of other nodes. */
+  private final InvalidationBus.Listener busListener = new InvalidationBus.Listener() {
+      public void onEvent(int type, String key) {
+        if (Cache.this.debug) {
+          log.debug("- Cache Invalidation: " + type + " [" + key + "]");
+        }
+
+        invalidate(type, key);
+      }
+    };
 
   /**
-   * Whether the updator thread was started.
-   * The updator thread should only be started
-   * if there are any entries that have a timeout.
+   * Constructor. Initializes the internal data structures
+   * for the legacy engine.
    */
-  private boolean                 updatorStarted = false;
+  public Cache() {
+    this(ENGINE_LEGACY);
+  }
+
 
   /**
-   * Constructor. Initializes the internal data structures.
+   * Constructor. Initializes the internal data structures
+   * for the given engine and the LRU policy.
+   *
+   * @param engine The engine to use, ENGINE_LEGACY or ENGINE_CONCURRENT.
    */
-  public Cache() {
+  public Cache(int engine) {
+    this(engine, POLICY_LRU);
+  }
+
+
+  /**
+   * Constructor. Initializes the internal data structures
+   * for the given engine and policy.
+   *
+   * @param engine The engine to use, ENGINE_LEGACY or ENGINE_CONCURRENT.
+   * @param policy The policy to use, POLICY_LRU or POLICY_TINYLFU.
+   */
+  public Cache(int engine, int policy) {
     super();
-    ObjectCache  = new TreeMap<String, Object>();
-    CacheCursor  = new TreeMap<String, Object>();
-    CursorCache  = new TreeMap<String, Object>();
-    this.updator = new CacheUpdator();
-    this.updator.setDaemon(true);
-    this.updator.setParent(this);
-    //updator.start();
+    this.concurrent = (engine == ENGINE_CONCURRENT);
+    this.tinyLfu    = (policy == POLICY_TINYLFU);
+    this.segments   = new Segment[this.concurrent ? SEGMENTS : 1];
+
+    if (this.tinyLfu) {
+      this.sketch = new FrequencySketch(this.cacheSize);
+    }
+
+    for (int i = 0; i < this.segments.length; i++) {
+      this.segments[i] = new Segment();
+    }
+
+    this.wheel.addTickListener(this.collector);
   }
 
   /**
@@ -212,15 +512,20 @@ public class Cache {
 
 
   /**
-   * Start the updator thread. This should only
-   * be done if there are any entries that expire,
-   * i.e. that have a lifetime >=0.
+   * Get whether the cache uses the concurrent engine.
+   * @return True if the concurrent engine is used, false for the legacy engine.
    */
-  private void startUpdator() {
-    if (!this.updatorStarted) {
-      updator.start();
-      this.updatorStarted = true;
-    }
+  public boolean isConcurrent() {
+    return this.concurrent;
+  }
+
+
+  /**
+   * Get the policy of the cache.
+   * @return POLICY_LRU or POLICY_TINYLFU.
+   */
+  public int getPolicy() {
+    return this.tinyLfu ? POLICY_TINYLFU : POLICY_LRU;
   }
 
 
@@ -229,8 +534,8 @@ public class Cache {
    *
    * @return The internal Cache Hit counter.
    */
-  public synchronized int getCacheHit() {
-    return this.cacheHit;
+  public int getCacheHit() {
+    return (int) Math.min(Integer.MAX_VALUE, this.statistics.getHitCount() - this.cacheHitBase);
   }
 
 
@@ -239,8 +544,28 @@ public class Cache {
    *
    * @return The internal Cache Miss counter.
    */
-  public synchronized int getCacheMiss() {
-    return this.cacheMiss;
+  public int getCacheMiss() {
+    return (int) Math.min(Integer.MAX_VALUE, this.statistics.getMissCount() - this.cacheMissBase);
+  }
+
+
+  /**
+   * Get the statistics of the cache.
+   *
+   * @return The statistics.
+   */
+  public CacheStatistics getStatistics() {
+    return this.statistics;
+  }
+
+
+  /**
+   * Get the number of entries in the cache.
+   *
+   * @return The number of entries.
+   */
+  public int getSize() {
+    return this.size.get();
   }
 
 
@@ -257,6 +582,91 @@ public class Cache {
    */
   public synchronized void setCacheSize(int size) {
     this.cacheSize = size;
+
+    if (this.tinyLfu) {
+      this.sketch = new FrequencySketch(size);
+    }
+  }
+
+
+  /**
+   * Set the maximum number of bytes the entries of the cache may take. Like
+   * the cache size, this has no immediate effect to the cache; only when new
+   * entries are added, entries are moved out from the tail of the queue until
+   * the cache fits its budget again. Entries that are bigger than the entire
+   * budget are not cached. The default value for this parameter is -1, i.e.
+   * only the number of entries is limited.
+   *
+   * @param maxWeight The maximum number of bytes, or -1 for no limit.
+   */
+  public synchronized void setMaxWeight(long maxWeight) {
+    this.maxWeight = maxWeight;
+  }
+
+
+  /**
+   * Get the number of bytes currently taken by the entries of the cache, as
+   * measured for compressed entries and as estimated by the Weigher for any
+   * other entry.
+   *
+   * @return The number of bytes.
+   */
+  public long getWeight() {
+    return this.weight.get();
+  }
+
+
+  /**
+   * Set the Weigher estimating the number of bytes taken by entries that are
+   * not compressed. Compressed entries are always weighed by the size of their
+   * compressed form. The default Weigher weighs Strings and byte arrays by
+   * their length, and assumes 64 bytes for any other object.
+   *
+   * @param weigher The Weigher, or null for the default Weigher.
+   */
+  public synchronized void setWeigher(Weigher weigher) {
+    this.weigher = (weigher == null) ? DEFAULT_WEIGHER : weigher;
+  }
+
+
+  /**
+   * Set whether new entries are referenced softly, so that they may be
+   * released by the garbage collector when running out of memory. The default
+   * is true. Set this to false together with a budget given by setMaxWeight
+   * to have entries moved out of the cache only by their size. The
+   * uncompressed form of a compressed entry kept by the doublebuffer is
+   * always referenced softly, and is not counted in the budget.
+   *
+   * @param softValues True to reference new entries softly, else false.
+   */
+  public synchronized void setSoftValues(boolean softValues) {
+    this.softValues = softValues;
+  }
+
+
+  /**
+   * Keep compressed entries outside of the Java heap, in direct memory
+   * of the given capacity. The entries already in the cache stay where
+   * they are. The default is 0, i.e. compressed entries are kept on the
+   * heap. Entries kept outside of the heap still count in the budget
+   * given by setMaxWeight.
+   *
+   * @param capacity The number of bytes of direct memory to use for
+   *          compressed entries, or 0 to keep them on the heap.
+   */
+  public synchronized void setOffHeap(long capacity) {
+    this.offHeap = (capacity > 0) ? new OffHeapStore(capacity) : null;
+  }
+
+
+  /**
+   * Get the store keeping compressed entries outside of the heap,
+   * e.g. to monitor how much of its capacity is used.
+   *
+   * @return The store, null if compressed entries are kept on the heap.
+   */
+  public OffHeapStore getOffHeap() {
+    return this.offHeap;
   }
 
 
@@ -281,6 +691,19 @@ public class Cache {
   }
 
 
+  /**
+   * Set the codec used to compress objects, whether generally by the
+   * compression mode or for single calls to setEntry. The default codec
+   * writes Strings and byte arrays as they are, and any other object
+   * using the Java serialization, and compresses the bytes with GZIP.
+   *
+   * @param codec The codec, or null for the default codec.
+   */
+  public synchronized void setCodec(Codec codec) {
+    this.codec = (codec == null) ? Codec.DEFAULT : codec;
+  }
+
+
   /**
    * Set the debug mode. If the cache is persisted to disk, the debug mode is
    * not saved, as this is typically not interesting when reusing a given cache
@@ -320,26 +743,23 @@ public class Cache {
 
   /**
    * Adds an Entry to the Cache. The cache key and the object to be cached have
-   * to be passed. Internally, the following data structures are constructed:
+   * to be passed. Internally, the entries are kept in segments, chosen by the
+   * hash of the cache key. Each segment consists of:
    * <p>
    * <ul>
-   * <li><b>CursorCache: </b> This TreeMap contains an integer as primary key
-   * and the cache key as value. It is used to keep the cache sorted as a FIFO /
-   * queue buffer.</li>
-   * <li><b>ObjectCache: </b> This TreeMap contains the cache key as primary
-   * key and the actual object as value.</li>
-   * <li><b>CacheCursor: </b> This TreeMap contains the cache key as primary
-   * key and the integer from CursorCache as value. It is used to locate the
-   * right entry in the CursorCache TreeMap upon removal of Objects from the
-   * Cache.</li>
+   * <li><b>map: </b> This ConcurrentHashMap contains the cache key as primary
+   * key and the cache entry as value.</li>
+   * <li><b>queue: </b> This doubly linked list runs through the cache entries
+   * of the segment and keeps them sorted as a FIFO / queue buffer, the most
+   * recently used entry at the head, the next entry to be moved out at the
+   * tail.</li>
    * </ul>
    * <p>
    * When the resetAfter value is bypassed, the entire cache is invalidated.
    * This is used to keep the cache structure consistent in the long run.
    * <p>
-   * If the size of the Cache bypasses cacheSize, the first entry in the Cache,
-   * defined by the CursorCache TreeMap, is removed and the new entry is added
-   * to the end of the Cache.
+   * If the size of the Cache bypasses cacheSize, the entry at the tail of the
+   * queue is removed. The new entry is added to the head of the queue.
    * <p>
    * If we had a cache hit on a cache entry, the entry is reappended to the head
    * of the cache. This way, the cache acts in a self-optimizing way to maintain
@@ -355,13 +775,12 @@ public class Cache {
    * object will never expire, but you have the option of setting the lifetime
    * explicitely by calling the version of this function that accepts the
    * lifetime as a parameter), the object will be removed from the cache by the
-   * cache updator which runs at regular intervals (you can set this interval by
-   * setUpdateInterval()).
+   * {@link ExpiryWheel} within a second after it expired.
    *
    * @param aKey The Key under which the Object was cached.
    * @param obj The Object to be cached.
    */
-  public synchronized void setEntry(String aKey, Object obj) {
+  public void setEntry(String aKey, Object obj) {
     setEntry(aKey, obj, this.lifetime, this.compressed, this.doublebuffer);
   }
 
@@ -378,7 +797,46 @@ public class Cache {
    * @param doublebuffer True if an attempt shall be made to keep a
    *          SoftReference to the object in its uncompressed form.
    */
-  public synchronized void setEntry(String aKey, Object obj, long lifetime, boolean compressed, boolean doublebuffer) {
+  public void setEntry(String aKey, Object obj, long lifetime, boolean compressed, boolean doublebuffer) {
+    setEntry(aKey, obj, lifetime, compressed ? this.codec : null, doublebuffer);
+  }
+
+
+  /**
+   * Adds an Entry to the Cache, compressed with a given codec, and in
+   * addition sets a maximum lifetime.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @param obj The Object to be cached.
+   * @param lifetime The lifetime in seconds that the object may remain in the
+   *          cache.
+   * @param codec The codec to compress the object with, or null if the
+   *          object is to be stored uncompressed.
+   * @param doublebuffer True if an attempt shall be made to keep a
+   *          SoftReference to the object in its uncompressed form.
+   */
+  public void setEntry(String aKey, Object obj, long lifetime, Codec codec, boolean doublebuffer) {
+    put(aKey, obj, lifetime, codec, doublebuffer, true);
+
+    if (this.shared != null) {
+      this.shared.remove(aKey);
+    }
+  }
+
+
+  /**
+   * Adds an Entry to the Cache.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @param obj The Object to be cached.
+   * @param lifetime The lifetime in seconds, or -1.
+   * @param codec The codec to compress the object with, or null.
+   * @param doublebuffer True to keep the uncompressed object softly, as well.
+   * @param publish True to tell the caches of other nodes about the entry.
+   */
+  private void put(String aKey, Object obj, long lifetime, Codec codec, boolean doublebuffer, boolean publish) {
+    final boolean compressed = (codec != null);
+
     log.debug("> Caching object for key: " + aKey + "; lifetime: " + lifetime + "; compressed: " + compressed + "; doublebuffer: " + doublebuffer);
 
     if (!this.enabled) {
@@ -388,779 +846,2620 @@ public class Cache {
       return;
     }
 
-    ++this.mapCursor;
-    ++this.actions;
+    countActions(1);
 
-    if (((this.actions > (this.resetAfter - 1)) && (this.resetAfter != -1)) || (this.actions > (Integer.MAX_VALUE - 1)) || (this.mapCursor > (Integer.MAX_VALUE - 1)) || (this.cacheMiss > (Integer.MAX_VALUE - 1)) || (this.cacheHit > (Integer.MAX_VALUE - 1))) {
-      log.debug("! Cache has to be flushed because it hit boundary conditions");
-      flush();
-    } else {
-      while (ObjectCache.size() >= this.cacheSize) {
-        /*
-         * Get the first Cursor Cache Entry.
-         */
-        Object CursorCacheFirstEntry = getCacheEntry(CursorCache, CursorCache.firstKey(), "CursorCache");
+    /*
+     * Compress the object, if requested, before
+     * taking the lock.
+     */
+    final CachedObject cachedObject = newEntry(aKey, obj, lifetime, codec, doublebuffer);
 
-        if (CursorCacheFirstEntry == null) {
-          continue;
-        }
+    if (cachedObject == null) {
+      invalidate(InvalidationBus.REMOVE, aKey);
+    } else {
+      insert(aKey, cachedObject, lifetime);
 
-        /*
-         * Then remove from the other caches and finally from the CursorCache.
-         */
-        ObjectCache.remove((String) CursorCacheFirstEntry);
-        CacheCursor.remove((String) CursorCacheFirstEntry);
-        CursorCache.remove(CursorCache.firstKey());
+      if (this.snapshotFile != null) {
+        this.dirty.add(aKey);
       }
     }
 
-    /* Calculate Cursor key */
-    String cKey = "" + this.mapCursor;
-
-    /* Add Cache and Cursor Keys/Values to their Maps */
-    setCacheEntry(ObjectCache, aKey, obj, lifetime, compressed, doublebuffer);
-    setCacheEntry(CacheCursor, aKey, cKey, lifetime, false, false);
-    setCacheEntry(CursorCache, cKey, aKey, lifetime, false, false);
-
-    if (lifetime >= 0) {
-      startUpdator();
+    if (publish) {
+      publish(InvalidationBus.PUT, aKey);
     }
 
     log.debug("< Caching object for key: " + aKey);
   }
 
 
-  public synchronized Set<String> getKeys() {
-    return this.CacheCursor.keySet();
+  /**
+   * Adds Entries to the Cache, with the default lifetime, compression and
+   * doublebuffer. This is the same as calling setEntry for each of them,
+   * but each segment of the cache is locked only once for all of its new
+   * entries, so that e.g. filling the cache at startup takes the time to
+   * compress the objects rather than the time to wait for the locks.
+   *
+   * @param entries The Objects to be cached, by the Keys to cache them under.
+   *          Null Objects are skipped.
+   */
+  public void putAll(Map<String, ? extends Object> entries) {
+    putAll(entries, this.lifetime);
   }
 
 
   /**
-   * Gets an Entry from the Cache. The cache key has to be passed. The Entry is
-   * returned as java.lang.Object, so you have to cast it to the required type.
-   * If the object was found in the cache, the cache position of the object is
-   * changed as if the object had just been added to the cache. The net result
-   * is that this object will stay in the cache longer, as the cache itself has
-   * the structure of a FIFO / queue.
+   * Adds Entries to the Cache with a given lifetime, with the default
+   * compression and doublebuffer.
    *
-   * @param aKey The Key under which the Object was cached.
-   * @return Object The cached Object or null, if none was found.
+   * @param entries The Objects to be cached, by the Keys to cache them under.
+   *          Null Objects are skipped.
+   * @param lifetime The lifetime in seconds that the objects may remain in
+   *          the cache.
    */
-  public synchronized Object getEntry(String aKey) {
+  @SuppressWarnings("unchecked")
+  public void putAll(Map<String, ? extends Object> entries, long lifetime) {
     if (!this.enabled) {
       log.debug("! Cache is disabled.");
 
-      return null;
+      return;
     }
 
-    Object obj = getCacheEntry(ObjectCache, aKey, "ObjectCache");
+    countActions(entries.size());
 
-    if (obj == null) {
-      if (this.debug) {
-        log.debug("- Cache Miss: [" + aKey + "]");
+    final Codec                    codec        = this.compressed ? this.codec : null;
+    final boolean                  doublebuffer = this.doublebuffer;
+    final List<List<CachedObject>> bySegment    = new ArrayList<List<CachedObject>>(Collections.<List<CachedObject>>nCopies(this.segments.length, null));
+
+    for (final Map.Entry<String, ? extends Object> entry : entries.entrySet()) {
+      if (entry.getValue() == null) {
+        continue;
       }
 
-      ++this.cacheMiss;
-    } else {
-      String cKey = (String) getCacheEntry(CacheCursor, aKey, "CacheCursor");
+      final CachedObject cachedObject = newEntry(entry.getKey(), entry.getValue(), lifetime, codec, doublebuffer);
 
-      if (cKey == null) {
-        if (this.debug) {
-          log.debug("- Cache Miss: [" + aKey + "]");
-        }
+      if (cachedObject == null) {
+        invalidate(InvalidationBus.REMOVE, entry.getKey());
+
+        continue;
+      }
 
-        ++this.cacheMiss;
+      final int index = segmentIndex(entry.getKey());
 
-        return null;
+      if (bySegment.get(index) == null) {
+        bySegment.set(index, new ArrayList<CachedObject>());
       }
 
-      long lifetimeCKey = getCacheEntryLifetime(CacheCursor, aKey);
-      long lifetimeAKey = getCacheEntryLifetime(CursorCache, cKey);
+      bySegment.get(index).add(cachedObject);
+    }
 
-      if (this.debug) {
-        log.debug("+ Cache Hit : [" + cKey + "][" + aKey + "]");
+    for (int index = 0; index < bySegment.size(); index++) {
+      final List<CachedObject> cachedObjects = bySegment.get(index);
+
+      if (cachedObjects == null) {
+        continue;
+      }
+
+      final Segment segment = this.segments[index];
+
+      segment.lock();
+      try {
+        for (final CachedObject cachedObject : cachedObjects) {
+          link(segment, cachedObject.getKey(), cachedObject, lifetime);
+        }
+      } finally {
+        segment.unlock();
       }
 
-      ++this.mapCursor;
-      ++this.cacheHit;
+      evict(index, cachedObjects.get(cachedObjects.size() - 1));
+
+      if (this.snapshotFile != null) {
+        for (final CachedObject cachedObject : cachedObjects) {
+          this.dirty.add(cachedObject.getKey());
+        }
+      }
+    }
 
-      /* Calculate Cursor key */
-      CacheCursor.remove(aKey);
-      CursorCache.remove(cKey);
-      cKey = "" + this.mapCursor;
-      setCacheEntry(CacheCursor, aKey, cKey, lifetimeCKey, false, false);
-      setCacheEntry(CursorCache, cKey, aKey, lifetimeAKey, false, false);
+    if (this.shared != null) {
+      for (final String aKey : entries.keySet()) {
+        this.shared.remove(aKey);
+      }
     }
 
-    return obj;
+    if (this.bus != null) {
+      for (final String aKey : entries.keySet()) {
+        publish(InvalidationBus.PUT, aKey);
+      }
+    }
   }
 
 
   /**
-   * Set the default lifetime for new objects that are added to the cache.
+   * Count modifying actions, and flush the cache when they
+   * bypass the resetAfter value.
    *
-   * @param lifetime The lifetime in seconds.
+   * @param n The number of actions.
    */
-  public synchronized void setLifetime(long lifetime) {
-    this.lifetime = lifetime;
+  private void countActions(int n) {
+    final int actions = this.actions.addAndGet(n);
+
+    if (((actions > (this.resetAfter - 1)) && (this.resetAfter != -1)) || (actions > (Integer.MAX_VALUE - n))) {
+      log.debug("! Cache has to be flushed because it hit boundary conditions");
+      clear();
+    }
   }
 
 
   /**
-   * Set the Reset After Threshold. When this number of modifications was made
-   * to the cache (an addition is a modification) the cache is expired. The
-   * default value for this parameter is 1000000. If set to -1, the cache will
-   * only be flushed after about 2147483647 modifications.
+   * Create a new entry, compressing the object if requested, and
+   * weigh it. No lock is held meanwhile.
    *
-   * @param threshold Integer value containing the reset after threshold.
+   * @param aKey The key.
+   * @param obj The object.
+   * @param lifetime The lifetime in seconds, or -1.
+   * @param codec The codec to compress the object with, or null.
+   * @param doublebuffer True to keep the uncompressed object softly, as well.
+   * @return The entry, null if it exceeds the budget of the cache.
    */
-  public synchronized void setResetAfter(int threshold) {
-    this.resetAfter = threshold;
+  private CachedObject newEntry(String aKey, Object obj, long lifetime, Codec codec, boolean doublebuffer) {
+    final CachedObject cachedObject = new CachedObject(this, aKey, obj, System.currentTimeMillis(), lifetime, codec, doublebuffer, this.softValues, this.offHeap);
+    final long         maxWeight    = this.maxWeight;
+
+    cachedObject.setWeight(cachedObject.getCompressed() ? cachedObject.getCompressedSize() : this.weigher.weigh(aKey, obj));
+
+    if ((maxWeight >= 0) && (cachedObject.getWeight() > maxWeight)) {
+      cachedObject.release();
+      log.debug("! Object for key " + aKey + " takes " + cachedObject.getWeight() + " bytes, exceeding the budget of the cache");
+
+      return null;
+    }
+
+    return cachedObject;
   }
 
 
   /**
-   * Set the default update interval for the cache.
+   * Put an entry into its segment, replacing the entry previously
+   * cached under its key, and move entries out of the cache until
+   * it fits the cache size and budget again.
    *
-   * @param updateInterval The update interval in seconds.
+   * @param aKey The key.
+   * @param cachedObject The entry.
+   * @param lifetime The lifetime of the entry in seconds, or -1.
    */
-  public synchronized void setUpdateInterval(long updateInterval) {
-    this.updateInterval = updateInterval * 1000;
-    this.updator.setUpdateInterval(this.updateInterval);
+  private void insert(String aKey, CachedObject cachedObject, long lifetime) {
+    final int     index   = segmentIndex(aKey);
+    final Segment segment = this.segments[index];
+
+    segment.lock();
+    try {
+      link(segment, aKey, cachedObject, lifetime);
+    } finally {
+      segment.unlock();
+    }
+
+    evict(index, cachedObject);
   }
 
 
   /**
-   * Destroy the cache and stop the update thread. Call this method when the
-   * cache is no longer needed, to avoid wasting memory and cpu time. If you
-   * attempt to use the cache after calling the destroy method, a null pointer
-   * exception will be thrown.
+   * Put an entry into a segment, replacing the entry previously
+   * cached under its key. The caller must hold the segment lock.
+   *
+   * @param segment The segment.
+   * @param aKey The key.
+   * @param cachedObject The entry.
+   * @param lifetime The lifetime of the entry in seconds, or -1.
    */
-  public synchronized void destroy() {
-    log.debug("> Destroy");
-    this.updator.setActive(false);
-    this.updator.setDaemon(false);
-    this.updator.interrupt();
-    this.updator = null;
-    flush();
-    log.debug("< Destroy");
+  private void link(Segment segment, String aKey, CachedObject cachedObject, long lifetime) {
+    final CachedObject previous = segment.map.put(aKey, cachedObject);
+
+    if (previous != null) {
+      segment.unlink(previous);
+      this.wheel.cancel(previous);
+      this.weight.addAndGet(-previous.release());
+      cachedObject.tags = previous.tags;
+    } else {
+      this.size.incrementAndGet();
+      this.keyIndex.add(aKey);
+    }
+
+    this.weight.addAndGet(cachedObject.admit());
+
+    segment.linkHead(WINDOW, cachedObject);
+
+    if (this.tinyLfu) {
+      this.sketch.increment(aKey.hashCode());
+      overflowWindow(segment);
+    }
+
+    if (lifetime >= 0) {
+      this.wheel.schedule(cachedObject, cachedObject.getExpiryTime());
+    }
   }
 
 
   /**
-   * Flush the entire content of the cache.
+   * Get the keys of the entries in the cache. This is a sorted
+   * snapshot taken at the time of the call.
+   *
+   * @return The keys of the entries in the cache.
    */
-  public synchronized void flush() {
-    log.debug("> flush");
-    this.mapCursor = 1;
-    this.actions   = 1;
-    this.cacheMiss = 0;
-    this.cacheHit  = 0;
-    ObjectCache.clear();
-    CacheCursor.clear();
-    CursorCache.clear();
-    log.debug("< flush");
+  public Set<String> getKeys() {
+    return Collections.unmodifiableSet(new TreeSet<String>(this.keyIndex));
   }
 
 
   /**
-   * Load the Cache from a ZIP compresed format. Using the
-   * {@link FileLoader}, the file is
-   * retrieved either from the WEB-INF directory of a web application or from
-   * the current directory of the .jar file.
-   * <p>
-   * Only objects that are serializable must be added to the Cache if you want
-   * to persist the Cache. Otherwise, the Exception
-   * java.io.NotSerializableException will be thrown.
-   * <p>
-   * If you were using compression or doublebuffering on some of the cached
-   * objects, these settings will not be restored on a per object basis.
-   * Instead, only the cache-wide settings are applied to all objects.
-   * This as well aplies to the object lifetime.
-   * <p>
-   * You must understand that saving and then loading the cache does not
-   * lead to the same cache object. This is due to the complex inner
-   * mechanisms of the cache. As the cache wide compression, doublebuffering
-   * and lifetime are applied, reloading the cache from disk may at the same
-   * time, while adding the entries back to the cache, already trigger
+   * Gets an Entry from the Cache. The cache key has to be passed. The Entry is
+   * returned as java.lang.Object, so you have to cast it to the required type.
+   * If the object was found in the cache, the cache position of the object is
+   * changed as if the object had just been added to the cache. The net result
+   * is that this object will stay in the cache longer, as the cache itself has
+   * the structure of a FIFO / queue.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @return Object The cached Object or null, if none was found.
+   */
+  public Object getEntry(String aKey) {
+    if (!this.enabled) {
+      log.debug("! Cache is disabled.");
+
+      return null;
+    }
+
+    final Object obj = getNear(aKey);
+
+    if (obj != null) {
+      return obj;
+    }
+
+    final Object promoted = promote(aKey);
+
+    if (promoted != null) {
+      this.statistics.recordSharedHit();
+
+      return promoted;
+    }
+
+    this.statistics.recordMiss();
+
+    return null;
+  }
+
+
+  /**
+   * Gets an Entry from the segments of the Cache, counting a hit.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @return Object The cached Object or null, if none was found.
+   */
+  private Object getNear(String aKey) {
+    final Segment segment = this.segments[segmentIndex(aKey)];
+
+    if (!this.concurrent) {
+      segment.lock();
+    }
+
+    try {
+      final CachedObject cachedObject = segment.map.get(aKey);
+      final Object       obj          = ((cachedObject == null) || cachedObject.expired()) ? null : cachedObject.getObject();
+
+      if (obj == null) {
+        if (cachedObject != null) {
+          remove(segment, cachedObject, cachedObject.expired() ? CacheStatistics.EXPIRED : CacheStatistics.COLLECTED);
+        }
+
+        if (this.debug) {
+          log.debug("- Cache Miss: [" + aKey + "]");
+        }
+
+        return null;
+      }
+
+      if (this.debug) {
+        log.debug("+ Cache Hit : [" + aKey + "]");
+      }
+
+      this.statistics.recordHit();
+
+      if (this.tinyLfu) {
+        this.sketch.increment(aKey.hashCode());
+      }
+
+      /*
+       * With the legacy engine, we already hold the lock.
+       * With the concurrent engine, we skip moving the
+       * entry to the head rather than wait for the lock.
+       */
+      if (segment.tryLock()) {
+        try {
+          if (segment.map.get(aKey) == cachedObject) {
+            touch(segment, cachedObject);
+          }
+        } finally {
+          segment.unlock();
+        }
+      }
+
+      return obj;
+    } finally {
+      if (!this.concurrent) {
+        segment.unlock();
+      }
+    }
+  }
+
+
+  /**
+   * Gets Entries from the Cache. This is the same as calling getEntry for
+   * each of the keys, but the keys are looked up segment by segment, and
+   * each segment is locked only once to move all of its hit entries back
+   * to the head of the queue, so that e.g. resolving all placeholders of
+   * a page takes the time to look up the keys rather than the time to
+   * wait for the locks.
+   *
+   * @param keys The Keys under which the Objects were cached.
+   * @return The cached Objects found, by their Keys, in the order of
+   *         the keys; keys that were not found are missing.
+   */
+  public Map<String, Object> getAll(Collection<String> keys) {
+    final Map<String, Object> found = new LinkedHashMap<String, Object>();
+
+    if (!this.enabled) {
+      log.debug("! Cache is disabled.");
+
+      return found;
+    }
+
+    final List<List<String>> bySegment = bySegment(keys);
+    int                      hits      = 0;
+    int                      misses    = 0;
+
+    for (int index = 0; index < bySegment.size(); index++) {
+      final List<String> segmentKeys = bySegment.get(index);
+
+      if (segmentKeys == null) {
+        continue;
+      }
+
+      final Segment            segment = this.segments[index];
+      final List<CachedObject> hit     = new ArrayList<CachedObject>(segmentKeys.size());
+
+      if (!this.concurrent) {
+        segment.lock();
+      }
+
+      try {
+        for (final String aKey : segmentKeys) {
+          final CachedObject cachedObject = segment.map.get(aKey);
+          final Object       obj          = ((cachedObject == null) || cachedObject.expired()) ? null : cachedObject.getObject();
+
+          if (obj == null) {
+            if (cachedObject != null) {
+              remove(segment, cachedObject, cachedObject.expired() ? CacheStatistics.EXPIRED : CacheStatistics.COLLECTED);
+            }
+
+            if (this.debug) {
+              log.debug("- Cache Miss: [" + aKey + "]");
+            }
+
+            misses++;
+
+            continue;
+          }
+
+          if (this.debug) {
+            log.debug("+ Cache Hit : [" + aKey + "]");
+          }
+
+          if (this.tinyLfu) {
+            this.sketch.increment(aKey.hashCode());
+          }
+
+          found.put(aKey, obj);
+          hit.add(cachedObject);
+          hits++;
+        }
+
+        if (!hit.isEmpty() && segment.tryLock()) {
+          try {
+            for (final CachedObject cachedObject : hit) {
+              if (segment.map.get(cachedObject.getKey()) == cachedObject) {
+                touch(segment, cachedObject);
+              }
+            }
+          } finally {
+            segment.unlock();
+          }
+        }
+      } finally {
+        if (!this.concurrent) {
+          segment.unlock();
+        }
+      }
+    }
+
+    if ((this.shared != null) && (misses > 0)) {
+      for (final String aKey : keys) {
+        if (!found.containsKey(aKey)) {
+          final Object promoted = promote(aKey);
+
+          if (promoted != null) {
+            found.put(aKey, promoted);
+            this.statistics.recordSharedHit();
+            misses--;
+          }
+        }
+      }
+    }
+
+    this.statistics.recordHits(hits);
+    this.statistics.recordMisses(misses);
+
+    /*
+     * Return the objects in the order of the keys.
+     */
+    final Map<String, Object> ordered = new LinkedHashMap<String, Object>();
+
+    for (final String aKey : keys) {
+      final Object obj = found.get(aKey);
+
+      if (obj != null) {
+        ordered.put(aKey, obj);
+      }
+    }
+
+    return ordered;
+  }
+
+
+  /**
+   * Gets Entries from the Cache, loading the missing ones. The entries
+   * found are looked up as by getAll, and those older than the refresh
+   * interval are reloaded in the background, as by the get function. The
+   * missing entries are all loaded at the same time, by the threads that
+   * reload entries in the background, so that the call takes about as long
+   * as the slowest load rather than as all loads together; the calling
+   * thread waits for them, and runs those loads itself that no thread has
+   * started yet, so that it does not depend on those threads being free,
+   * e.g. when a Loader calls getAll in turn. Loads of keys that are being
+   * loaded already are joined rather than started again.
+   *
+   * @param keys The Keys under which the Objects were cached.
+   * @param loader The loader, or null to only look into the cache.
+   * @param lifetime The lifetime in seconds of the loaded entries, or -1.
+   * @param refreshAfter The age in seconds after which a hit reloads
+   *          the entry in the background, or -1.
+   * @return The Objects, by their Keys, in the order of the keys; keys
+   *         that were missing and could not be loaded are missing.
+   */
+  public Map<String, Object> getAll(Collection<String> keys, Loader loader, long lifetime, long refreshAfter) {
+    final Map<String, Object> found = getAll(keys);
+
+    if ((loader == null) || !this.enabled) {
+      return found;
+    }
+
+    final Map<String, FutureTask<Object>> loads = new LinkedHashMap<String, FutureTask<Object>>();
+
+    for (final String aKey : keys) {
+      if (found.containsKey(aKey)) {
+        if (refreshAfter >= 0) {
+          final CachedObject cachedObject = this.segments[segmentIndex(aKey)].map.get(aKey);
+
+          if ((cachedObject != null) && cachedObject.startRefresh(refreshAfter)) {
+            refresh(aKey, loader, lifetime);
+          }
+        }
+      } else if (!loads.containsKey(aKey)) {
+        final FutureTask<Object> task    = new LoadTask(aKey, loader, lifetime, true);
+        FutureTask<Object>       running = this.loading.putIfAbsent(aKey, task);
+
+        if (running == null) {
+          running = task;
+
+          try {
+            getLoaderPool().execute(task);
+          } catch (RejectedExecutionException ree) {
+            task.run();
+          }
+        }
+
+        loads.put(aKey, running);
+      }
+    }
+
+    if (loads.isEmpty()) {
+      return found;
+    }
+
+    for (final Map.Entry<String, FutureTask<Object>> load : loads.entrySet()) {
+      /*
+       * Run the load here unless a thread of the pool has taken
+       * it already; it is then skipped by the pool.
+       */
+      load.getValue().run();
+
+      try {
+        final Object obj = load.getValue().get();
+
+        if (obj != null) {
+          found.put(load.getKey(), obj);
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+
+        break;
+      } catch (ExecutionException ee) {
+        log.error("! Error loading " + load.getKey() + ": " + ee.getCause());
+      }
+    }
+
+    /*
+     * Return the objects in the order of the keys.
+     */
+    final Map<String, Object> ordered = new LinkedHashMap<String, Object>();
+
+    for (final String aKey : keys) {
+      final Object obj = found.get(aKey);
+
+      if (obj != null) {
+        ordered.put(aKey, obj);
+      }
+    }
+
+    return ordered;
+  }
+
+
+  /**
+   * Group keys by the segments holding them.
+   *
+   * @param keys The keys.
+   * @return The keys of each segment, without duplicates; null
+   *         for the segments holding none of the keys.
+   */
+  private List<List<String>> bySegment(Collection<String> keys) {
+    final List<List<String>> bySegment = new ArrayList<List<String>>(Collections.<List<String>>nCopies(this.segments.length, null));
+
+    for (final String aKey : new LinkedHashSet<String>(keys)) {
+      final int index = segmentIndex(aKey);
+
+      if (bySegment.get(index) == null) {
+        bySegment.set(index, new ArrayList<String>());
+      }
+
+      bySegment.get(index).add(aKey);
+    }
+
+    return bySegment;
+  }
+
+
+  /**
+   * Set the loader used by the get function to load missing entries.
+   *
+   * @param loader The loader, or null if the get function shall
+   *          not load missing entries.
+   */
+  public synchronized void setLoader(Loader loader) {
+    this.loader = loader;
+  }
+
+
+  /**
+   * Set the age after which a hit on an entry makes the get function
+   * reload it in the background, while still returning the entry. The
+   * default value for this parameter is -1, i.e. entries are only loaded
+   * when they are missing.
+   *
+   * @param refreshAfter The age in seconds, or -1.
+   */
+  public synchronized void setRefreshAfter(long refreshAfter) {
+    this.refreshAfter = refreshAfter;
+  }
+
+
+  /**
+   * Get an entry from the cache, loading it using the loader set by
+   * setLoader if it is missing. Entries are loaded with the default
+   * lifetime, and reloaded in the background once they are older than
+   * set by setRefreshAfter.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @return The Object, null if it was missing and could not be loaded.
+   */
+  public Object get(String aKey) {
+    return get(aKey, this.loader, this.lifetime, this.refreshAfter);
+  }
+
+
+  /**
+   * Get an entry from the cache, loading it if it is missing.
+   * <p>
+   * If several threads miss the same key at the same time, only one of
+   * them calls the loader, and the others wait for its result. If the
+   * entry is older than the refresh interval, it is returned nevertheless,
+   * but reloaded in the background; it is not reloaded again before
+   * another refresh interval has passed, even if loading it fails. If the
+   * loader fails or returns null, null is returned for a missing entry,
+   * and nothing is cached.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @param loader The loader, or null to only look into the cache.
+   * @param lifetime The lifetime in seconds of a loaded entry, or -1.
+   * @param refreshAfter The age in seconds after which a hit reloads
+   *          the entry in the background, or -1.
+   * @return The Object, null if it was missing and could not be loaded.
+   */
+  public Object get(String aKey, Loader loader, long lifetime, long refreshAfter) {
+    final Object obj = getEntry(aKey);
+
+    if ((loader == null) || !this.enabled) {
+      return obj;
+    }
+
+    if (obj == null) {
+      return load(aKey, loader, lifetime);
+    }
+
+    if (refreshAfter >= 0) {
+      final CachedObject cachedObject = this.segments[segmentIndex(aKey)].map.get(aKey);
+
+      if ((cachedObject != null) && cachedObject.startRefresh(refreshAfter)) {
+        refresh(aKey, loader, lifetime);
+      }
+    }
+
+    return obj;
+  }
+
+
+  /**
+   * Get an entry from the cache, loading it if it is missing, with the
+   * default lifetime. The loader is called at most once, however many
+   * threads miss the key at the same time, and not at all if another
+   * thread cached the entry meanwhile; all of them get the same object.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @param loader The loader.
+   * @return The Object, null if it was missing and could not be loaded.
+   */
+  public Object computeIfAbsent(String aKey, Loader loader) {
+    return get(aKey, loader, this.lifetime, -1);
+  }
+
+
+  /**
+   * Set the default lifetime for new objects that are added to the cache.
+   *
+   * @param lifetime The lifetime in seconds.
+   */
+  public synchronized void setLifetime(long lifetime) {
+    this.lifetime = lifetime;
+  }
+
+
+  /**
+   * Set the Reset After Threshold. When this number of modifications was made
+   * to the cache (an addition is a modification) the cache is expired. The
+   * default value for this parameter is 1000000. If set to -1, the cache will
+   * only be flushed after about 2147483647 modifications.
+   *
+   * @param threshold Integer value containing the reset after threshold.
+   */
+  public synchronized void setResetAfter(int threshold) {
+    this.resetAfter = threshold;
+  }
+
+
+  /**
+   * Set the default update interval for the cache. Earlier versions of the
+   * cache ran an updator thread per cache, scanning the entire cache at this
+   * interval. Expired entries are now removed by the {@link ExpiryWheel}
+   * within a second after they expired, so the interval has no effect
+   * anymore; it is only kept in the file written by the save function.
+   *
+   * @param updateInterval The update interval in seconds.
+   */
+  public synchronized void setUpdateInterval(long updateInterval) {
+    this.updateInterval = updateInterval * 1000;
+  }
+
+
+  /**
+   * Destroy the cache. Call this method when the cache is no longer needed,
+   * to take its entries off the {@link ExpiryWheel} right away rather than
+   * waiting for them to expire.
+   */
+  public synchronized void destroy() {
+    log.debug("> Destroy");
+    this.wheel.removeTickListener(this.collector);
+    this.statistics.unregister();
+    setBus(null, null);
+    setSnapshot(null, 0);
+    clear();
+    log.debug("< Destroy");
+  }
+
+
+  /**
+   * Flush the entire content of the cache, and of the caches of the
+   * other nodes on the same bus.
+   */
+  public void flush() {
+    invalidate(InvalidationBus.FLUSH, "");
+    publish(InvalidationBus.FLUSH, "");
+  }
+
+
+  /**
+   * Flush the entire content of the cache, on this node only.
+   */
+  private void clear() {
+    log.debug("> flush");
+
+    for (final Segment segment : this.segments) {
+      segment.lock();
+      try {
+        this.size.addAndGet(-segment.map.size());
+
+        for (final CachedObject cachedObject : segment.map.values()) {
+          this.wheel.cancel(cachedObject);
+          this.weight.addAndGet(-cachedObject.release());
+          this.keyIndex.remove(cachedObject.getKey());
+          untag(cachedObject);
+        }
+
+        segment.clear();
+      } finally {
+        segment.unlock();
+      }
+    }
+
+    if (this.tinyLfu) {
+      this.sketch = new FrequencySketch(this.cacheSize);
+    }
+
+    this.snapshotLength = 0;
+    this.actions.set(1);
+    resetStatistics();
+    log.debug("< flush");
+  }
+
+
+  /**
+   * Load the Cache from a snapshot written by the save function. The file
+   * is taken from the file system if it exists there; else, using the
+   * {@link FileLoader}, the file is retrieved either from the WEB-INF
+   * directory of a web application or from the current directory of the
+   * .jar file. Files written in the ZIP compressed format of earlier
+   * versions of the cache can be loaded, as well.
+   * <p>
+   * The snapshot is memory mapped, and only its records are checked and
+   * indexed: The entries are added to the cache right away, but each
+   * entry is only decoded when it is hit for the first time, so that
+   * loading even a large cache does not take longer than reading through
+   * its file. Entries keep the expiry time they had when they were saved;
+   * entries that have expired meanwhile are not loaded. If the snapshot
+   * was cut off by a crash while it was written, only the entries up to
+   * the last complete save are loaded.
+   * <p>
+   * The cache-wide settings are restored from the snapshot. Entries that
+   * were compressed are compressed again with the cache-wide codec when
+   * they are decoded, whatever codec they had been compressed with before.
+   * <p>
+   * You must understand that saving and then loading the cache does not
+   * lead to the same cache object. This is due to the complex inner
+   * mechanisms of the cache. Reloading the cache from disk may at the same
+   * time, while adding the entries back to the cache, already trigger
    * cache cleaning operations that lead to a different view of the cache.
    * But this only underlines the fact that you can never rely on the
    * existence of an object in the cache only because you put it there,
    * because there are many reasons why such an object could have been
    * moved out of the cache in the meantime.
    * <p>
-   * The upside is that if you want to e.g. compress your entire cache,
-   * you can easily do so by just saving and restoring it with a different
-   * compression setting.
+   * After loading a snapshot from the file system, the next save to the
+   * same file only appends the entries that changed since.
+   *
+   * @param FileName The filename under which the Cache had been saved
+   *          previously.
+   */
+  public synchronized void load(String FileName) throws java.io.FileNotFoundException, java.io.IOException, java.lang.ClassNotFoundException {
+    final File file   = new File(FileName);
+    ByteBuffer buffer;
+
+    if (file.isFile()) {
+      buffer = SnapshotFile.map(file);
+    } else {
+      final InputStream fis = FileLoader.load(FileName);
+
+      if (fis == null) {
+        throw new java.io.FileNotFoundException(FileName);
+      }
+
+      buffer = SnapshotFile.read(fis);
+    }
+
+    if (!SnapshotFile.isSnapshot(buffer)) {
+      loadLegacy(file.isFile() ? new FileInputStream(file) : new ByteArrayInputStream(buffer.array()));
+
+      return;
+    }
+
+    final SnapshotFile.Content content = SnapshotFile.read(buffer);
+    final Properties           config  = content.getConfig();
+
+    clear();
+
+    if (config != null) {
+      this.cacheSize      = Integer.parseInt(config.getProperty("cacheSize", "" + this.cacheSize));
+      this.resetAfter     = Integer.parseInt(config.getProperty("resetAfter", "" + this.resetAfter));
+      this.debug          = Boolean.valueOf(config.getProperty("debug", "" + this.debug)).booleanValue();
+      this.lifetime       = Long.parseLong(config.getProperty("lifetime", "" + this.lifetime));
+      this.updateInterval = Long.parseLong(config.getProperty("updateInterval", "" + this.updateInterval));
+      this.compressed     = Boolean.valueOf(config.getProperty("compressed", "" + this.compressed)).booleanValue();
+      this.doublebuffer   = Boolean.valueOf(config.getProperty("doublebuffer", "" + this.doublebuffer)).booleanValue();
+
+      if (this.tinyLfu) {
+        this.sketch = new FrequencySketch(this.cacheSize);
+      }
+    }
+
+    final long now = System.currentTimeMillis();
+
+    for (final Map.Entry<String, SnapshotFile.Entry> entry : content.getEntries().entrySet()) {
+      final long expiryTime = entry.getValue().getExpiryTime();
+
+      if ((expiryTime >= 0) && (expiryTime <= now)) {
+        continue;
+      }
+
+      final long         lifetime     = (expiryTime < 0) ? -1 : (((expiryTime - now) + 999) / 1000);
+      final CachedObject cachedObject = new CachedObject(this, entry.getKey(), entry.getValue().getValue(), now, lifetime);
+
+      insert(entry.getKey(), cachedObject, lifetime);
+    }
+
+    if (file.isFile()) {
+      this.snapshotFile    = file;
+      this.snapshotLength  = content.getLength();
+      this.snapshotBase    = content.getLength();
+      this.snapshotMapping = buffer;
+      this.dirty.clear();
+    }
+  }
+
+
+  /**
+   * Load the Cache from the ZIP compressed format of earlier versions
+   * of the cache. The cache-wide settings are applied to all objects,
+   * including the lifetime.
+   *
+   * @param fis The stream of the file.
+   */
+  @SuppressWarnings("unchecked")
+  private void loadLegacy(InputStream fis) throws java.io.IOException, java.lang.ClassNotFoundException {
+    GZIPInputStream   gis = new GZIPInputStream(fis);
+    ObjectInputStream ois = new ObjectInputStream(gis);
+
+    clear();
+
+    TreeMap<String, Object> myObjectCache = (TreeMap<String, Object>) ois.readObject();
+
+    this.cacheSize = ((Integer) ois.readObject()).intValue();
+
+    /*
+     * The map cursor of earlier versions of the cache
+     * is kept in the file format, but no longer used.
+     */
+    ois.readObject();
+    this.actions.set(((Integer) ois.readObject()).intValue());
+    this.resetAfter = ((Integer) ois.readObject()).intValue();
+    this.cacheMissBase = this.statistics.getMissCount() - ((Integer) ois.readObject()).intValue();
+    this.cacheHitBase  = this.statistics.getHitCount() - ((Integer) ois.readObject()).intValue();
+    this.debug          = ((Boolean) ois.readObject()).booleanValue();
+    this.lifetime       = ((Long) ois.readObject()).longValue();
+    this.updateInterval = ((Long) ois.readObject()).longValue();
+    this.compressed     = ((Boolean) ois.readObject()).booleanValue();
+    this.doublebuffer   = ((Boolean) ois.readObject()).booleanValue();
+    ois.close();
+
+    for (final Map.Entry<String, Object> entry : myObjectCache.entrySet()) {
+      final Object o = entry.getValue();
+
+      if (o == null) {
+        continue;
+      }
+
+      /*
+       * Restoring the entries does not change them
+       * for the caches of the other nodes.
+       */
+      put(entry.getKey(), o, this.lifetime, this.compressed ? this.codec : null, this.doublebuffer, false);
+    }
+  }
+
+
+
+  /**
+   * Removes an Entry from the Cache. The cache key has to be passed and hence
+   * to be known precisely.
+   *
+   * @param aKey The Key under which the Object was cached.
+   */
+  public void removeEntry(String aKey) {
+    invalidate(InvalidationBus.REMOVE, aKey);
+    publish(InvalidationBus.REMOVE, aKey);
+  }
+
+
+  /**
+   * Removes an Entry from the Cache, on this node only.
+   *
+   * @param aKey The Key under which the Object was cached.
+   */
+  private void removeLocal(String aKey) {
+    final Segment segment = this.segments[segmentIndex(aKey)];
+
+    this.actions.incrementAndGet();
+
+    segment.lock();
+    try {
+      final CachedObject cachedObject = segment.map.get(aKey);
+
+      if (cachedObject != null) {
+        discard(segment, cachedObject, CacheStatistics.EXPLICIT);
+      }
+    } finally {
+      segment.unlock();
+    }
+  }
+
+
+  /**
+   * Removes an Entry or a Set of Entries from the Cache. It is sufficient to
+   * know a fraction of the cache key. For example, if you have cached entries
+   * that have a prefix "document-" in common, and you want to uncache all
+   * documents, pass "document-" as parameter to this function.
+   *
+   * @param aKey Part of the Key under which the Objects were cached.
+   */
+  public void removeLike(String aKey) {
+    invalidate(InvalidationBus.REMOVE_LIKE, aKey);
+    publish(InvalidationBus.REMOVE_LIKE, aKey);
+  }
+
+
+  /**
+   * Removes the Entries whose keys start with a given prefix. For example,
+   * pass "0025-" to remove "0025-xml" and "0025-xls". Unlike removeLike,
+   * this only looks at the matching keys, found in a sorted index of all
+   * keys, so it takes the same time however many other entries there are.
+   *
+   * @param prefix The prefix of the Keys under which the Objects were cached.
+   */
+  public void removeByPrefix(String prefix) {
+    invalidate(InvalidationBus.REMOVE_PREFIX, prefix);
+    publish(InvalidationBus.REMOVE_PREFIX, prefix);
+  }
+
+
+  /**
+   * Tag an Entry, so that it can be removed together with all other entries
+   * given the same tag by the removeTagged function. An entry can have any
+   * number of tags; they stay with its key when the entry is replaced, until
+   * the entry is removed from the cache.
+   *
+   * @param aKey The Key under which the Object was cached.
+   * @param tag The tag.
+   * @return True if the entry was tagged, false if it is not in the cache.
+   */
+  public boolean tag(String aKey, String tag) {
+    final Segment segment = this.segments[segmentIndex(aKey)];
+
+    segment.lock();
+    try {
+      final CachedObject cachedObject = segment.map.get(aKey);
+
+      if (cachedObject == null) {
+        return false;
+      }
+
+      synchronized (this.tagIndex) {
+        final String[] tags = cachedObject.tags;
+
+        if (tags == null) {
+          cachedObject.tags = new String[] { tag };
+        } else if (!Arrays.asList(tags).contains(tag)) {
+          final String[] more = Arrays.copyOf(tags, tags.length + 1);
+          more[tags.length] = tag;
+          cachedObject.tags = more;
+        }
+
+        Set<String> keys = this.tagIndex.get(tag);
+
+        if (keys == null) {
+          keys = new HashSet<String>();
+          this.tagIndex.put(tag, keys);
+        }
+
+        keys.add(aKey);
+      }
+
+      return true;
+    } finally {
+      segment.unlock();
+    }
+  }
+
+
+  /**
+   * Removes the Entries given a tag by the tag function, looking at
+   * no other entries.
+   *
+   * @param tag The tag.
+   */
+  public void removeTagged(String tag) {
+    invalidate(InvalidationBus.REMOVE_TAG, tag);
+    publish(InvalidationBus.REMOVE_TAG, tag);
+  }
+
+
+  /**
+   * Attach the cache to a bus, so that the entries put into it or removed
+   * from it are removed from the caches of the other nodes on the same
+   * channel, and vice versa. Entries loaded by the get functions are only
+   * published if they replace an entry of a different value, so that the
+   * nodes do not keep invalidating each other by reloading the same value.
+   *
+   * @param bus The bus, or null to detach the cache from its bus.
+   * @param channel The channel of the cache on the bus, the same for all
+   *          nodes, e.g. the name of the cache.
+   */
+  public synchronized void setBus(InvalidationBus bus, String channel) {
+    if (this.bus != null) {
+      this.bus.unsubscribe(this.channel, this.busListener);
+    }
+
+    this.bus     = bus;
+    this.channel = channel;
+
+    if (bus != null) {
+      bus.subscribe(channel, this.busListener);
+    }
+  }
+
+
+  /**
+   * Get the bus the cache is attached to.
+   *
+   * @return The bus, null if none.
+   */
+  public InvalidationBus getBus() {
+    return this.bus;
+  }
+
+
+  /**
+   * Tell the caches of the other nodes about a change, if the
+   * cache is attached to a bus.
+   *
+   * @param type The type of the event, e.g. InvalidationBus.PUT.
+   * @param key The key the event is about.
+   */
+  private void publish(int type, String key) {
+    final InvalidationBus bus = this.bus;
+
+    if (bus != null) {
+      bus.publish(this.busListener, this.channel, type, key);
+    }
+  }
+
+
+  /**
+   * Remove the entries concerned by a change, on this node only,
+   * from the cache and from its shared store. An entry that was put
+   * is left in the shared store: The process putting it has replaced
+   * or removed it there already, and may have shared it afresh.
+   *
+   * @param type The type of the change, e.g. InvalidationBus.REMOVE.
+   * @param key The key the change is about.
+   */
+  private void invalidate(int type, String key) {
+    final SharedFileStore shared = this.shared;
+
+    if (shared != null) {
+      if (type == InvalidationBus.REMOVE) {
+        shared.remove(key);
+      } else if (type == InvalidationBus.FLUSH) {
+        shared.clear();
+      } else if ((type == InvalidationBus.REMOVE_PREFIX) || (type == InvalidationBus.REMOVE_LIKE)) {
+        for (final String xKey : shared.getKeys()) {
+          if ((type == InvalidationBus.REMOVE_PREFIX) ? xKey.startsWith(key) : (xKey.indexOf(key) != -1)) {
+            shared.remove(xKey);
+          }
+        }
+      }
+    }
+
+    switch (type) {
+      case InvalidationBus.PUT:
+      case InvalidationBus.REMOVE:
+        removeLocal(key);
+
+        break;
+
+      case InvalidationBus.REMOVE_PREFIX:
+        for (final String xKey : this.keyIndex.tailSet(key)) {
+          if (!xKey.startsWith(key)) {
+            break;
+          }
+
+          removeLocal(xKey);
+        }
+
+        break;
+
+      case InvalidationBus.REMOVE_TAG:
+        final Set<String> keys;
+
+        synchronized (this.tagIndex) {
+          keys = this.tagIndex.remove(key);
+        }
+
+        if (keys != null) {
+          for (final String xKey : keys) {
+            removeLocal(xKey);
+
+            if (shared != null) {
+              shared.remove(xKey);
+            }
+          }
+        }
+
+        break;
+
+      case InvalidationBus.REMOVE_LIKE:
+        for (final String xKey : this.keyIndex) {
+          if (xKey.indexOf(key) != -1) {
+            removeLocal(xKey);
+          }
+        }
+
+        break;
+
+      case InvalidationBus.FLUSH:
+        clear();
+
+        break;
+
+      default:
+        log.debug("! Unknown invalidation: " + type);
+    }
+  }
+
+
+  /**
+   * Reset the internal Cache Miss and Cache Hit counters. The
+   * cumulative statistics returned by getStatistics are kept.
+   */
+  public void resetStatistics() {
+    synchronized (this.statistics) {
+      this.cacheMissBase = this.statistics.getMissCount();
+      this.cacheHitBase  = this.statistics.getHitCount();
+    }
+  }
+
+
+  /**
+   * Reset the cumulative statistics, and with them the internal
+   * Cache Miss and Cache Hit counters, which are based on them.
+   */
+  void clearStatistics() {
+    synchronized (this.statistics) {
+      this.statistics.clear();
+      this.cacheMissBase = 0;
+      this.cacheHitBase  = 0;
+    }
+  }
+
+
+  /**
+   * Save the Cache to a snapshot file on Disk.
+   * <p>
+   * Only objects that are serializable must be added to the Cache if you want
+   * to persist the Cache. Otherwise, the Exception
+   * java.io.NotSerializableException will be thrown. Strings and byte arrays
+   * are written as they are, any other object using the Java serialization;
+   * all of them are compressed with the FAST compressor of the {@link Codec}.
+   * <p>
+   * The first save to a file writes all entries to a new file, which then
+   * replaces the file, so that a crash while saving leaves the previous
+   * file intact. Each further save to the same file only appends the entries
+   * that were added or removed since, and forces them to disk; a crash while
+   * appending loses only the changes of that save. Once the appended changes
+   * take up much more room than the entries written first, the next save
+   * writes all entries to a new file again. Use the setSnapshot function to
+   * have the cache saved in the background periodically.
+   * <p>
+   * If you were using compression or doublebuffering on some of the cached
+   * objects, these settings will not be stored on a per object basis. Instead,
+   * only the cache-wide settings will be stored, along with the expiry time
+   * of each entry.
+   *
+   * @param FileName The filename under which the Cache is to be saved. In
+   *   earlier versions of the cache, the DirectoryLocator was immediately
+   *   applied to the filename, creating potential incompatibilities with
+   *   some environments / application servers. For this reason, the pure
+   *   filename is given here, i.e. it is your own responsibility to make
+   *   sure that filename points to a valid location.
+   */
+  public synchronized void save(String FileName) throws java.io.FileNotFoundException, java.io.IOException {
+    final File file = new File( /* DirectoryLocator.getBasePath() + */FileName);
+
+    if (file.equals(this.snapshotFile) && (this.snapshotLength > 0) && (file.length() >= this.snapshotLength) && (this.snapshotLength < (COMPACT_RATIO * Math.max(this.snapshotBase, COMPACT_MINIMUM)))) {
+      appendSnapshot(file);
+    } else {
+      writeSnapshot(file);
+    }
+  }
+
+
+  /**
+   * Save the cache periodically in the background, using the save function.
+   * Only the first save writes all entries; the later ones only append the
+   * entries that changed.
+   *
+   * @param FileName The filename under which the Cache is to be saved,
+   *          or null to stop saving it.
+   * @param interval The interval in seconds, or 0 to stop saving it.
+   */
+  public synchronized void setSnapshot(final String FileName, long interval) {
+    if (this.snapshotTask != null) {
+      this.snapshotTask.cancel(false);
+      this.snapshotTask = null;
+    }
+
+    if ((FileName == null) || (interval <= 0)) {
+      return;
+    }
+
+    this.snapshotTask = getSnapshotPool().scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            try {
+              save(FileName);
+            } catch (Throwable t) {
+              log.error("! Error saving the cache to " + FileName + ": " + t.getMessage());
+            }
+          }
+        }, interval, interval, TimeUnit.SECONDS);
+  }
+
+
+  /**
+   * Write all entries to a new snapshot file, replacing the
+   * given file once it is complete.
+   *
+   * @param file The file.
+   */
+  private void writeSnapshot(File file) throws java.io.IOException {
+    final File                tmp    = new File(file.getPath() + ".tmp");
+    final SnapshotFile.Writer writer = new SnapshotFile.Writer(tmp, 0);
+    long                      length;
+
+    /*
+     * Track the changes from now on, so that those
+     * made while writing are appended next time.
+     */
+    this.snapshotFile = file;
+    this.dirty.clear();
+
+    try {
+      writer.writeConfig(getSnapshotConfig());
+
+      for (final Segment segment : this.segments) {
+        for (final CachedObject cachedObject : segment.map.values()) {
+          writeSnapshotEntry(writer, cachedObject);
+        }
+      }
+
+      length = writer.commit();
+    } finally {
+      writer.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      /*
+       * A file that is still mapped cannot be replaced on
+       * Windows: Copy the entries not accessed since they
+       * were loaded out of the mapping, and release it.
+       */
+      releaseMapping();
+      file.delete();
+
+      if (!tmp.renameTo(file)) {
+        this.snapshotLength = 0;
+
+        throw new java.io.IOException("Could not rename " + tmp + " to " + file);
+      }
+    }
+
+    SnapshotFile.syncDirectory(file);
+
+    this.snapshotLength = length;
+    this.snapshotBase   = length;
+  }
+
+
+  /**
+   * Release the mapping of the snapshot file the cache was loaded
+   * from, copying the entries not yet decoded out of it first.
+   */
+  private void releaseMapping() {
+    final ByteBuffer mapping = this.snapshotMapping;
+
+    if (mapping == null) {
+      return;
+    }
+
+    this.snapshotMapping = null;
+
+    for (final Segment segment : this.segments) {
+      /*
+       * Entries are only released under the segment lock, so
+       * none is left behind that could still read the mapping.
+       */
+      segment.lock();
+      try {
+        for (final CachedObject cachedObject : segment.map.values()) {
+          cachedObject.detach();
+        }
+      } finally {
+        segment.unlock();
+      }
+    }
+
+    SnapshotFile.unmap(mapping);
+  }
+
+
+  /**
+   * Append the entries that changed since the last save
+   * to the snapshot file.
+   *
+   * @param file The file.
+   */
+  private void appendSnapshot(File file) throws java.io.IOException {
+    final SnapshotFile.Writer writer = new SnapshotFile.Writer(file, this.snapshotLength);
+
+    try {
+      for (final String key : this.dirty) {
+        this.dirty.remove(key);
+
+        final CachedObject cachedObject = this.segments[segmentIndex(key)].map.get(key);
+
+        if ((cachedObject == null) || !writeSnapshotEntry(writer, cachedObject)) {
+          writer.writeRemove(key);
+        }
+      }
+
+      writer.writeConfig(getSnapshotConfig());
+      this.snapshotLength = writer.commit();
+    } catch (java.io.IOException ioe) {
+      this.snapshotLength = 0;
+
+      throw ioe;
+    } finally {
+      writer.close();
+    }
+  }
+
+
+  /**
+   * Write an entry to a snapshot file.
+   *
+   * @param writer The writer of the file.
+   * @param cachedObject The entry.
+   * @return False if the entry has expired or was released,
+   *         and was not written.
+   */
+  private boolean writeSnapshotEntry(SnapshotFile.Writer writer, CachedObject cachedObject) throws java.io.IOException {
+    if (cachedObject.expired()) {
+      return false;
+    }
+
+    final long       expiryTime = cachedObject.livesForever ? -1 : cachedObject.getExpiryTime();
+    final ByteBuffer mapped     = cachedObject.getMapped();
+
+    if (mapped != null) {
+      writer.writeEntry(cachedObject.getKey(), expiryTime, mapped);
+
+      return true;
+    }
+
+    final Object o = cachedObject.peekObject();
+
+    if (o == null) {
+      return false;
+    }
+
+    final CompressedBuffer fos = new CompressedBuffer();
+    SNAPSHOT_CODEC.encode(o, fos);
+    fos.writeEntry(writer, cachedObject.getKey(), expiryTime);
+
+    return true;
+  }
+
+
+  /**
+   * Get the cache-wide settings to write to a snapshot.
+   *
+   * @return The settings.
+   */
+  private Properties getSnapshotConfig() {
+    final Properties config = new Properties();
+
+    config.setProperty("cacheSize", "" + this.cacheSize);
+    config.setProperty("resetAfter", "" + this.resetAfter);
+    config.setProperty("debug", "" + this.debug);
+    config.setProperty("lifetime", "" + this.lifetime);
+    config.setProperty("updateInterval", "" + this.updateInterval);
+    config.setProperty("compressed", "" + this.compressed);
+    config.setProperty("doublebuffer", "" + this.doublebuffer);
+
+    return config;
+  }
+
+
+  /**
+   * Get the thread saving caches in the background,
+   * starting it if needed.
+   *
+   * @return The thread.
+   */
+  private static ScheduledExecutorService getSnapshotPool() {
+    if (snapshotPool == null) {
+      synchronized (mutex) {
+        if (snapshotPool == null) {
+          snapshotPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                  final Thread thread = new Thread(r, "CacheSnapshot");
+                  thread.setDaemon(true);
+
+                  return thread;
+                }
+              });
+        }
+      }
+    }
+
+    return snapshotPool;
+  }
+
+
+
+  /**
+   * Get the index of the segment holding a key.
+   *
+   * @param aKey The key.
+   * @return The index of the segment.
+   */
+  private int segmentIndex(String aKey) {
+    int h = aKey.hashCode();
+    h ^= (h >>> 16);
+
+    return h & (this.segments.length - 1);
+  }
+
+
+  /**
+   * Check whether the cache exceeds its size or its budget.
+   *
+   * @return True if entries have to be moved out of the cache.
+   */
+  private boolean overflows() {
+    final long maxWeight = this.maxWeight;
+
+    return (this.size.get() > this.cacheSize) || ((maxWeight >= 0) && (this.weight.get() > maxWeight));
+  }
+
+
+  /**
+   * Move entries out of the cache until it fits the cache size and budget again. The
+   * segment that received the new entry is looked at first; the new entry
+   * itself is never moved out. Only one segment is locked at a time.
+   *
+   * @param index The index of the segment that received the new entry.
+   * @param newObject The new entry.
+   */
+  private void evict(int index, CachedObject newObject) {
+    int n = 0;
+
+    while (overflows() && (n < this.segments.length)) {
+      final Segment segment = this.segments[(index + n) & (this.segments.length - 1)];
+      CachedObject  evicted = null;
+      Object        demoted = null;
+
+      segment.lock();
+      try {
+        final CachedObject victim = this.tinyLfu ? victim(segment, newObject) : segment.tail(WINDOW);
+
+        if ((victim != null) && (victim != newObject)) {
+          /*
+           * Keep the object of an entry that is not in the
+           * shared store yet, to move it there.
+           */
+          if ((this.shared != null) && !victim.shared && !victim.expired()) {
+            demoted = victim.peekObject();
+          }
+
+          discard(segment, victim, (this.size.get() > this.cacheSize) ? CacheStatistics.SIZE : CacheStatistics.WEIGHT);
+          evicted = victim;
+        }
+      } finally {
+        segment.unlock();
+      }
+
+      if (evicted == null) {
+        n++;
+      } else if (demoted != null) {
+        share(evicted.getKey(), demoted, evicted.livesForever ? -1 : evicted.getExpiryTime());
+      }
+    }
+  }
+
+
+  /**
+   * Get the share of the cache size one segment may hold.
+   *
+   * @return The number of entries.
+   */
+  private int share() {
+    return Math.max(1, this.cacheSize / this.segments.length);
+  }
+
+
+  /**
+   * Move the entries that do not fit the window of a segment
+   * anymore to its probation queue, where they compete for
+   * staying in the cache. The caller must hold the segment lock.
+   *
+   * @param segment The segment.
+   */
+  private void overflowWindow(Segment segment) {
+    final int windowSize = Math.max(1, share() / 100);
+
+    while (segment.size(WINDOW) > windowSize) {
+      final CachedObject candidate = segment.tail(WINDOW);
+
+      segment.unlink(candidate);
+      segment.linkHead(PROBATION, candidate);
+    }
+  }
+
+
+  /**
+   * Record a hit in the queues of a segment. For the LRU policy, the
+   * entry is moved back to the head of the queue. For the TinyLFU policy,
+   * an entry hit while on probation is promoted to the protected queue,
+   * whose least recently used entries are in turn put back on probation
+   * when it grows too large. The caller must hold the segment lock.
+   *
+   * @param segment The segment.
+   * @param cachedObject The entry hit.
+   */
+  private void touch(Segment segment, CachedObject cachedObject) {
+    if (cachedObject.region != PROBATION) {
+      segment.moveToHead(cachedObject.region, cachedObject);
+
+      return;
+    }
+
+    final int share         = share();
+    final int protectedSize = ((share - Math.max(1, share / 100)) * 8) / 10;
+
+    segment.unlink(cachedObject);
+    segment.linkHead(PROTECTED, cachedObject);
+
+    while (segment.size(PROTECTED) > Math.max(1, protectedSize)) {
+      final CachedObject demoted = segment.tail(PROTECTED);
+
+      segment.unlink(demoted);
+      segment.linkHead(PROBATION, demoted);
+    }
+  }
+
+
+  /**
+   * Pick the entry to move out of a segment for the TinyLFU policy. The
+   * entry that most recently left the window, at the head of the probation
+   * queue, competes with the least recently used entry on probation: The one
+   * that was accessed less often loses; on a tie, the newcomer does, so that
+   * a scan does not replace entries that are just as popular. Only if the
+   * probation queue is empty, the protected queue and then the window are
+   * looked at. The caller must hold the segment lock.
+   *
+   * @param segment The segment.
+   * @param newObject The new entry, which is never picked.
+   * @return The entry to move out, null if there is none.
+   */
+  private CachedObject victim(Segment segment, CachedObject newObject) {
+    final CachedObject candidate = segment.head(PROBATION);
+    final CachedObject victim    = segment.tail(PROBATION);
+
+    if (victim == null) {
+      final CachedObject tail = segment.tail(PROTECTED);
+
+      return (tail != null) ? tail : segment.tail(WINDOW);
+    }
+
+    if (candidate == victim) {
+      return victim;
+    }
+
+    final FrequencySketch sketch = this.sketch;
+
+    return (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.getKey().hashCode())) ? victim : candidate;
+  }
+
+
+  /**
+   * Set the shared store serving as the second level of the cache. Entries
+   * missing from the cache are looked up in the store before they are
+   * loaded, and are put into the cache when found there. Entries loaded by
+   * the get functions, and entries moved out of the cache to make room, are
+   * put into the store. Entries put into the cache by its user, or removed
+   * from it, are removed from the store, so that it does not serve them
+   * stale. Objects are written to the store as they are to snapshots, so
+   * only serializable objects can be kept there.
+   *
+   * @param shared The store, or null to use no second level.
+   */
+  public synchronized void setSharedStore(SharedFileStore shared) {
+    this.shared = shared;
+  }
+
+
+  /**
+   * Get the shared store serving as the second level of the cache.
    *
-   * @param FileName The filename under which the Cache had been saved
-   *          previously.
+   * @return The store, null if none.
    */
-  @SuppressWarnings("unchecked")
-  public synchronized void load(String FileName) throws java.io.FileNotFoundException, java.io.IOException, java.lang.ClassNotFoundException {
-    InputStream       fis = FileLoader.load(FileName);
-    GZIPInputStream   gis = new GZIPInputStream(fis);
-    ObjectInputStream ois = new ObjectInputStream(gis);
+  public SharedFileStore getSharedStore() {
+    return this.shared;
+  }
 
-    flush();
 
-    TreeMap<String, Object> myObjectCache = (TreeMap<String, Object>) ois.readObject();
+  /**
+   * Look up an entry missing from the cache in the shared store,
+   * and put it into the cache if it is found there.
+   *
+   * @param aKey The key.
+   * @return The object, null if it is not in the store.
+   */
+  private Object promote(String aKey) {
+    final SharedFileStore shared = this.shared;
 
-    this.cacheSize      = ((Integer) ois.readObject()).intValue();
-    this.mapCursor      = ((Integer) ois.readObject()).intValue();
-    this.actions        = ((Integer) ois.readObject()).intValue();
-    this.resetAfter     = ((Integer) ois.readObject()).intValue();
-    this.cacheMiss      = ((Integer) ois.readObject()).intValue();
-    this.cacheHit       = ((Integer) ois.readObject()).intValue();
-    this.debug          = ((Boolean) ois.readObject()).booleanValue();
-    this.lifetime       = ((Long) ois.readObject()).longValue();
-    this.updateInterval = ((Long) ois.readObject()).longValue();
-    this.compressed     = ((Boolean) ois.readObject()).booleanValue();
-    this.doublebuffer   = ((Boolean) ois.readObject()).booleanValue();
-    ois.close();
+    if (shared == null) {
+      return null;
+    }
+
+    final SharedFileStore.Entry entry = shared.get(aKey);
 
-    if (this.lifetime >= 0) {
-      startUpdator();
+    if (entry == null) {
+      return null;
     }
 
-    this.updator.setUpdateInterval(this.updateInterval);
+    final Object obj;
+
+    try {
+      obj = SNAPSHOT_CODEC.decode(new ByteArrayInputStream(entry.getValue()));
+    } catch (Exception e) {
+      log.error("! Could not decode " + aKey + " from the shared store: " + e.getMessage());
 
-    String[] tKey = new String[myObjectCache.size()];
-    int      i    = 0;
+      return null;
+    }
 
-    for (final String s : myObjectCache.keySet()) {
-      tKey[i++] = s;
+    if (this.debug) {
+      log.debug("+ Cache Promotion: [" + aKey + "]");
     }
 
-    for (int j = 0; j < myObjectCache.size(); j++) {
-      Object o = myObjectCache.get(tKey[j]);
+    final long         lifetime     = (entry.getExpiryTime() < 0) ? -1 : Math.max(1, (entry.getExpiryTime() - System.currentTimeMillis() + 999) / 1000);
+    final CachedObject cachedObject = newEntry(aKey, obj, lifetime, this.compressed ? this.codec : null, this.doublebuffer);
 
-      if (o == null) {
-        continue;
-      }
+    if (cachedObject != null) {
+      cachedObject.shared = true;
+      insert(aKey, cachedObject, lifetime);
 
-      setEntry(tKey[j], o, this.lifetime, this.compressed, this.doublebuffer);
+      if (this.snapshotFile != null) {
+        this.dirty.add(aKey);
+      }
     }
+
+    return obj;
   }
 
 
   /**
-   * Removes an Entry from the Cache. The cache key has to be passed and hence
-   * to be known precisely.
+   * Put an object into the shared store, if there is one.
    *
-   * @param aKey The Key under which the Object was cached.
+   * @param aKey The key.
+   * @param obj The object.
+   * @param expiryTime The time the object expires, or -1 if never.
    */
-  public synchronized void removeEntry(String aKey) {
-    String cKey = (String) getCacheEntry(CacheCursor, aKey, "CacheCursor");
-    ++this.actions;
+  private void share(String aKey, Object obj, long expiryTime) {
+    final SharedFileStore shared = this.shared;
 
-    if (ObjectCache.containsKey(aKey)) {
-      ObjectCache.remove(aKey);
+    if (shared == null) {
+      return;
     }
 
-    if (CacheCursor.containsKey(aKey)) {
-      CacheCursor.remove(aKey);
+    try {
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      SNAPSHOT_CODEC.encode(obj, bos);
+      shared.put(aKey, bos.toByteArray(), expiryTime);
+    } catch (IOException ioe) {
+      log.debug("! Could not put " + aKey + " into the shared store: " + ioe.getMessage());
     }
+  }
+
+
+  /**
+   * Get the object of an entry, if it is in the cache and alive,
+   * without counting a hit or moving it in the queue.
+   *
+   * @param aKey The key.
+   * @return The object, null if there is none.
+   */
+  private Object peek(String aKey) {
+    final CachedObject cachedObject = this.segments[segmentIndex(aKey)].map.get(aKey);
+
+    return ((cachedObject == null) || cachedObject.expired()) ? null : cachedObject.getObject();
+  }
 
-    if (CursorCache.containsKey(aKey)) {
-      CursorCache.remove(cKey);
+
+  /**
+   * Removes an Entry from a segment, if it is still mapped
+   * to its key.
+   *
+   * @param segment The segment holding the entry.
+   * @param cachedObject The entry.
+   * @param cause The cause of the removal, for the statistics.
+   */
+  private void remove(Segment segment, CachedObject cachedObject, int cause) {
+    segment.lock();
+    try {
+      if (segment.map.get(cachedObject.getKey()) == cachedObject) {
+        discard(segment, cachedObject, cause);
+      }
+    } finally {
+      segment.unlock();
     }
   }
 
 
   /**
-   * Removes an Entry or a Set of Entries from the Cache. It is sufficient to
-   * know a fraction of the cache key. For example, if you have cached entries
-   * that have a prefix "document-" in common, and you want to uncache all
-   * documents, pass "document-" as parameter to this function.
+   * Take an entry out of its segment and off the wheel. The
+   * caller must hold the segment lock.
    *
-   * @param aKey Part of the Key under which the Objects were cached.
+   * @param segment The segment holding the entry.
+   * @param cachedObject The entry.
+   * @param cause The cause of the removal, for the statistics.
    */
-  public synchronized void removeLike(String aKey) {
-    boolean found = false;
-    String  tKey  = "";
+  private void discard(Segment segment, CachedObject cachedObject, int cause) {
+    segment.map.remove(cachedObject.getKey());
+    segment.unlink(cachedObject);
+    this.wheel.cancel(cachedObject);
+    this.size.decrementAndGet();
+    this.weight.addAndGet(-cachedObject.release());
+    this.keyIndex.remove(cachedObject.getKey());
+    untag(cachedObject);
+    this.statistics.recordRemoval(cause);
+
+    if (this.snapshotFile != null) {
+      this.dirty.add(cachedObject.getKey());
+    }
+  }
 
-    do {
-      found = false;
 
-      if ((ObjectCache != null) && (ObjectCache.size() > 0)) {
-        for (final String xKey : ObjectCache.keySet()) {
-          if (xKey.indexOf(aKey) != -1) {
-            found = true;
-            tKey  = xKey;
+  /**
+   * Take the key of an entry out of the sets of its tags. The
+   * caller must hold the segment lock.
+   *
+   * @param cachedObject The entry.
+   */
+  private void untag(CachedObject cachedObject) {
+    final String[] tags = cachedObject.tags;
 
-            break;
-          }
+    if (tags == null) {
+      return;
+    }
+
+    synchronized (this.tagIndex) {
+      for (final String tag : tags) {
+        final Set<String> keys = this.tagIndex.get(tag);
+
+        if ((keys != null) && keys.remove(cachedObject.getKey()) && keys.isEmpty()) {
+          this.tagIndex.remove(tag);
         }
       }
+    }
+  }
 
-      if (found) {
-        ++this.actions;
-        removeEntry(tKey);
-      }
-    } while (found);
+
+  /**
+   * Called by the wheel when an entry is due.
+   *
+   * @param cachedObject The entry.
+   */
+  private void expire(CachedObject cachedObject) {
+    if (this.debug) {
+      log.debug("- Cache Expiry: [" + cachedObject.getKey() + "]");
+    }
+
+    remove(this.segments[segmentIndex(cachedObject.getKey())], cachedObject, CacheStatistics.EXPIRED);
   }
 
 
   /**
-   * Reset the internal Cache Miss and Cache Hit counters.
+   * Remove the entries that have been released by the
+   * garbage collector since the last call.
    */
-  public synchronized void resetStatistics() {
-    this.cacheMiss = this.cacheHit = 0;
+  private void removeReleased() {
+    Reference<? extends Object> ref;
+
+    while ((ref = this.released.poll()) != null) {
+      final CachedObject cachedObject = ((EntryReference) ref).getEntry();
+
+      remove(this.segments[segmentIndex(cachedObject.getKey())], cachedObject, CacheStatistics.COLLECTED);
+    }
   }
 
 
   /**
-   * Save the Cache in a ZIP compressed format to Disk.
-   * <p>
-   * Only objects that are serializable must be added to the Cache if you want
-   * to persist the Cache. Otherwise, the Exception
-   * java.io.NotSerializableException will be thrown.
-   * <p>
-   * If you were using compression or doublebuffering on some of the cached
-   * objects, these settings will not be stored on a per object basis. Instead,
-   * only the cache-wide settings will be stored. When reloading the cache,
-   * each object is entered, with standard lifetime, into the cache.
-   * <p>
-   * You must understand that saving and then loading the cache does not
-   * lead to the same cache object. This is due to the complex inner
-   * mechanisms of the cache. As the cache wide compression, doublebuffering
-   * and lifetime are applied, reloading the cache from disk may at the same
-   * time, while adding the entries back to the cache, already trigger
-   * cache cleaning operations that lead to a different view of the cache.
-   * But this only underlines the fact that you can never rely on the
-   * existence of an object in the cache only because you put it there,
-   * because there are many reasons why such an object could have been
-   * moved out of the cache in the meantime.
-   * <p>
-   * The upside is that if you want to e.g. compress your entire cache,
-   * you can easily do so by just saving and restoring it with a different
-   * compression setting.
+   * Load a missing entry, joining a load of the same key that
+   * is already in progress.
    *
-   * @param FileName The filename under which the Cache is to be saved. In
-   *   earlier versions of the cache, the DirectoryLocator was immediately
-   *   applied to the filename, creating potential incompatibilities with
-   *   some environments / application servers. For this reason, the pure
-   *   filename is given here, i.e. it is your own responsibility to make
-   *   sure that filename points to a valid location.
+   * @param aKey The key.
+   * @param loader The loader.
+   * @param lifetime The lifetime in seconds of the loaded entry.
+   * @return The loaded object, null if loading failed.
    */
-  @SuppressWarnings("rawtypes")
-  public synchronized void save(String FileName) throws java.io.FileNotFoundException, java.io.IOException {
-    FileOutputStream        fos           = new FileOutputStream( /* DirectoryLocator.getBasePath() + */FileName);
-    GZIPOutputStream        gos           = new GZIPOutputStream(fos);
-    ObjectOutputStream      oos           = new ObjectOutputStream(gos);
+  private Object load(String aKey, Loader loader, long lifetime) {
+    final FutureTask<Object> task    = new LoadTask(aKey, loader, lifetime, true);
+    FutureTask<Object>       running = this.loading.putIfAbsent(aKey, task);
 
-    TreeMap<String, Object> myObjectCache = new TreeMap<String, Object>();
-
-    String[]                tKey          = new String[ObjectCache.size()];
-    int                     i             = 0;
+    if (running == null) {
+      task.run();
+      running = task;
+    }
 
-    for (final String s : ObjectCache.keySet()) {
-      tKey[i++] = s;
+    try {
+      return running.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ee) {
+      log.error("! Error loading " + aKey + ": " + ee.getCause());
     }
 
-    for (int j = 0; j < ObjectCache.size(); j++) {
-      SoftReference ref = (SoftReference) ObjectCache.get(tKey[j]);
+    return null;
+  }
 
-      if (ref == null) {
-        continue;
-      }
 
-      CachedObject cachedObject = (CachedObject) ref.get();
+  /**
+   * Reload an entry in the background, unless it is
+   * being loaded already.
+   *
+   * @param aKey The key.
+   * @param loader The loader.
+   * @param lifetime The lifetime in seconds of the reloaded entry.
+   */
+  private void refresh(String aKey, Loader loader, long lifetime) {
+    final FutureTask<Object> task = new LoadTask(aKey, loader, lifetime, false);
 
-      if ((cachedObject == null) || cachedObject.expired()) {
-        ObjectCache.remove(tKey[j]);
+    if (this.loading.putIfAbsent(aKey, task) != null) {
+      return;
+    }
 
-        continue;
-      }
+    if (this.debug) {
+      log.debug("+ Cache Refresh: [" + aKey + "]");
+    }
 
-      boolean tempDoubleBuffer = cachedObject.getDoublebuffer();
-      cachedObject.setDoublebuffer(false);
+    this.statistics.recordRefresh();
 
-      Object o = cachedObject.getObject();
+    try {
+      getLoaderPool().execute(task);
+    } catch (RejectedExecutionException ree) {
+      this.loading.remove(aKey, task);
+    }
+  }
 
-      if (o != null) {
-        myObjectCache.put(tKey[j], o);
-      }
 
-      cachedObject.setDoublebuffer(tempDoubleBuffer);
+  /**
+   * Get the threads reloading entries in the background,
+   * starting them if needed.
+   *
+   * @return The threads.
+   */
+  private static ExecutorService getLoaderPool() {
+    if (loaderPool == null) {
+      synchronized (mutex) {
+        if (loaderPool == null) {
+          loaderPool = Executors.newFixedThreadPool(LOADER_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                  final Thread thread = new Thread(r, "CacheLoader-" + this.count.incrementAndGet());
+                  thread.setDaemon(true);
+
+                  return thread;
+                }
+              });
+        }
+      }
     }
 
-    oos.writeObject(myObjectCache);
-    oos.writeObject(new Integer(this.cacheSize));
-    oos.writeObject(new Integer(this.mapCursor));
-    oos.writeObject(new Integer(this.actions));
-    oos.writeObject(new Integer(this.resetAfter));
-    oos.writeObject(new Integer(this.cacheMiss));
-    oos.writeObject(new Integer(this.cacheHit));
-    oos.writeObject(Boolean.valueOf("" + this.debug));
-    oos.writeObject(new Long(this.lifetime));
-    oos.writeObject(new Long(this.updateInterval));
-    oos.writeObject(Boolean.valueOf("" + this.compressed));
-    oos.writeObject(Boolean.valueOf("" + this.doublebuffer));
-    oos.flush();
-    oos.close();
+    return loaderPool;
   }
 
 
   /**
-   * Put an entry in the SoftReferenced Cache.
+   * Print the content of the cache.
    *
-   * @param cache The Cache to put the object in.
-   * @param key The key that shall point to the object.
-   * @param obj The object to store in the cache.
-   * @param lifetime The lifetime.
-   * @param compressed True if the object is to be stored compressed.
-   * @param doublebuffer True if an attempt shall be made to keep a
-   *          SoftReference to the object in its uncompressed form.
+   * @return The content of the cache.
    */
-  private synchronized void setCacheEntry(TreeMap<String, Object> cache, String key, Object obj, long lifetime, boolean compressed, boolean doublebuffer) {
-    cache.put(key, new SoftReference<Object>(new CachedObject(obj, Calendar.getInstance().getTime(), lifetime /* * 1000*/, compressed, doublebuffer)));
+  public synchronized String toString() {
+    final StringBuffer                  sb            = new StringBuffer();
+    final TreeMap<String, CachedObject> myObjectCache = new TreeMap<String, CachedObject>();
+
+    for (final Segment segment : this.segments) {
+      myObjectCache.putAll(segment.map);
+    }
+
+    for (final Map.Entry<String, CachedObject> entry : myObjectCache.entrySet()) {
+      final Object obj = entry.getValue().peekObject();
+
+      if (obj != null) {
+        sb.append("\n[" + entry.getKey() + "]\t=>\t" + obj);
+      } else {
+        sb.append("\n" + entry.getKey() + "\t=>\tnull (object referenced softly was null)");
+      }
+    }
+
+    return sb.toString();
   }
 
 
   /**
-   * Get an entry from the SoftReferenced Cache.
-   *
-   * @param cache The Cache to get an object from.
-   * @param key The Cache key pointing to the object.
-   * @return The object. Null, if the object was not available.
+   * A segment of the cache. The segment itself is the lock
+   * guarding its structural modifications, i.e. the map
+   * and the queues.
    */
-  @SuppressWarnings("rawtypes")
-  private synchronized Object getCacheEntry(TreeMap cache, Object key, String name) {
-    if (key == null) {
-      return null;
+  private static class Segment extends ReentrantLock {
+    private static final long                             serialVersionUID = 1L;
+
+    /** The Cache: Key/Value map. */
+    private final ConcurrentHashMap<String, CachedObject> map              = new ConcurrentHashMap<String, CachedObject>();
+
+    /**
+     * The sentinels of the queues, by region. The next entry of a
+     * sentinel is the head of its queue, i.e. the most recently used
+     * entry; its previous entry is the tail of the queue, i.e. the
+     * next entry to be moved out. The LRU policy only uses the
+     * window queue.
+     */
+    private final CachedObject[]                          queues           = { new CachedObject(), new CachedObject(), new CachedObject() };
+
+    /** The number of entries in the queues, by region. */
+    private final int[]                                   sizes            = new int[3];
+
+    /**
+     * Get the head of a queue.
+     *
+     * @param region The queue.
+     * @return The head of the queue, null if the queue is empty.
+     */
+    protected CachedObject head(int region) {
+      final CachedObject queue = this.queues[region];
+
+      return (queue.next == queue) ? null : queue.next;
     }
 
-    SoftReference ref = (SoftReference) cache.get(key);
 
-    if (ref == null) {
-      return null;
+    /**
+     * Get the tail of a queue.
+     *
+     * @param region The queue.
+     * @return The tail of the queue, null if the queue is empty.
+     */
+    protected CachedObject tail(int region) {
+      final CachedObject queue = this.queues[region];
+
+      return (queue.prev == queue) ? null : queue.prev;
     }
 
-    CachedObject cachedObject = (CachedObject) ref.get();
 
-    if ((cachedObject == null) || cachedObject.expired()) {
-      cache.remove(key);
+    /**
+     * Get the number of entries in a queue.
+     *
+     * @param region The queue.
+     * @return The number of entries.
+     */
+    protected int size(int region) {
+      return this.sizes[region];
+    }
+
 
-      return null;
+    /**
+     * Add an entry at the head of a queue.
+     *
+     * @param region The queue.
+     * @param cachedObject The entry.
+     */
+    protected void linkHead(int region, CachedObject cachedObject) {
+      final CachedObject queue = this.queues[region];
+
+      cachedObject.region = region;
+      cachedObject.prev   = queue;
+      cachedObject.next   = queue.next;
+      queue.next.prev     = cachedObject;
+      queue.next          = cachedObject;
+      this.sizes[region]++;
+    }
+
+
+    /**
+     * Take an entry out of its queue.
+     *
+     * @param cachedObject The entry.
+     */
+    protected void unlink(CachedObject cachedObject) {
+      if (cachedObject.prev == null) {
+        return;
+      }
+
+      cachedObject.prev.next = cachedObject.next;
+      cachedObject.next.prev = cachedObject.prev;
+      cachedObject.prev      = null;
+      cachedObject.next      = null;
+      this.sizes[cachedObject.region]--;
+    }
+
+
+    /**
+     * Move an entry back to the head of its queue.
+     *
+     * @param region The queue of the entry.
+     * @param cachedObject The entry.
+     */
+    protected void moveToHead(int region, CachedObject cachedObject) {
+      if (this.queues[region].next != cachedObject) {
+        unlink(cachedObject);
+        linkHead(region, cachedObject);
+      }
+    }
+
+
+    /**
+     * Remove all entries from the segment.
+     */
+    protected void clear() {
+      this.map.clear();
+
+      for (int region = 0; region < this.queues.length; region++) {
+        this.queues[region].prev = this.queues[region];
+        this.queues[region].next = this.queues[region];
+        this.sizes[region]       = 0;
+      }
     }
+  }
+
+  /**
+   * A load of an entry. The loaded object is put into the cache,
+   * and the load is no longer in progress once it is done.
+   */
+  private class LoadTask extends FutureTask<Object> {
+    /** The key. */
+    private final String key;
+
+    /**
+     * Constructor.
+     *
+     * @param aKey The key.
+     * @param loader The loader.
+     * @param lifetime The lifetime in seconds of the loaded entry.
+     * @param ifAbsent True to return the entry rather than loading
+     *          it, if another load cached it meanwhile.
+     */
+    protected LoadTask(final String aKey, final Loader loader, final long lifetime, final boolean ifAbsent) {
+      super(new Callable<Object>() {
+          public Object call() throws Exception {
+            if (ifAbsent) {
+              final Object cached = peek(aKey);
+
+              if (cached != null) {
+                return cached;
+              }
+            }
+
+            final long start = System.nanoTime();
+            Object     obj   = null;
+
+            try {
+              obj = loader.load(aKey);
+            } finally {
+              Cache.this.statistics.recordLoad(System.nanoTime() - start, obj != null);
+            }
+
+            if (obj != null) {
+              /*
+               * Only tell the other nodes about a reloaded
+               * entry if its value changed.
+               */
+              final Object previous = (Cache.this.bus != null) ? peek(aKey) : null;
+
+              /*
+               * Share the loaded object with the other processes
+               * of the host before telling the other nodes.
+               */
+              if (Cache.this.shared != null) {
+                share(aKey, obj, (lifetime < 0) ? -1 : (System.currentTimeMillis() + (lifetime * 1000)));
+              }
 
-    //cachedObject.resetTimer();
+              put(aKey, obj, lifetime, Cache.this.compressed ? Cache.this.codec : null, Cache.this.doublebuffer, (previous != null) && !previous.equals(obj));
+
+              if (Cache.this.shared != null) {
+                final CachedObject cachedObject = Cache.this.segments[segmentIndex(aKey)].map.get(aKey);
+
+                if (cachedObject != null) {
+                  cachedObject.shared = true;
+                }
+              }
+            }
+
+            return obj;
+          }
+        });
+      this.key = aKey;
+    }
 
-    return cachedObject.getObject();
+    protected void done() {
+      Cache.this.loading.remove(this.key, this);
+    }
   }
 
+  /**
+   * A soft reference to a cached object that knows the entry
+   * holding it, so that the entry can be removed once the
+   * reference was released by the garbage collector.
+   */
+  private static class EntryReference extends SoftReference<Object> {
+    /** The entry holding the reference. */
+    private final CachedObject entry;
+
+    /**
+     * Constructor.
+     *
+     * @param referent The cached object.
+     * @param queue The queue to put the reference on once it was released.
+     * @param entry The entry holding the reference.
+     */
+    protected EntryReference(Object referent, ReferenceQueue<Object> queue, CachedObject entry) {
+      super(referent, queue);
+      this.entry = entry;
+    }
+
+
+    /**
+     * Get the entry holding the reference.
+     *
+     * @return The entry.
+     */
+    protected CachedObject getEntry() {
+      return this.entry;
+    }
+  }
 
   /**
-   * Get the lifetime for an entry in the SoftReferenced Cache.
-   *
-   * @param cache The Cache to get the lifetime for an object from.
-   * @param key The Cache key pointing to the object.
-   * @return The lifetime. 0 if not available.
+   * The compressed form of an object kept on the heap. It can be
+   * read and moved outside of the heap without copying it first.
    */
-  @SuppressWarnings("rawtypes")
-  private synchronized long getCacheEntryLifetime(TreeMap cache, Object key) {
-    if (key == null) {
-      return 0;
+  private static class CompressedBuffer extends ByteArrayOutputStream {
+    /**
+     * Open a stream reading the compressed form.
+     *
+     * @return The stream.
+     */
+    protected InputStream openStream() {
+      return new ByteArrayInputStream(this.buf, 0, this.count);
+    }
+
+
+    /**
+     * Copy the compressed form into a store outside of the heap.
+     *
+     * @param store The store.
+     * @return The block holding the compressed form, null if it
+     *         did not fit.
+     */
+    protected OffHeapStore.Block storeIn(OffHeapStore store) {
+      return store.store(this.buf, 0, this.count);
     }
 
-    SoftReference ref = (SoftReference) cache.get(key);
 
-    if (ref == null) {
-      return 0;
+    /**
+     * Write the compressed form as an entry of a snapshot file.
+     *
+     * @param writer The writer of the snapshot file.
+     * @param key The key of the entry.
+     * @param expiryTime The expiry time of the entry, -1 if it never expires.
+     */
+    protected void writeEntry(SnapshotFile.Writer writer, String key, long expiryTime) throws IOException {
+      writer.writeEntry(key, expiryTime, this.buf, 0, this.count);
     }
+  }
+
+  /**
+   * A container for objects that are in the cache. It is at the same
+   * time the link of the queue of the segment holding the object,
+   * and the timer of the object on the {@link ExpiryWheel}.
+   */
+  private static class CachedObject extends ExpiryWheel.Timer {
+    /**
+     * The cache holding the object.
+     */
+    private final Cache           owner;
+
+    /**
+     * The key under which the object is cached.
+     */
+    private final String          key;
+
+    /**
+     * The expiry time for the Object, in milliseconds.
+     */
+    private long                  expiryTime         = 0;
+
+    /**
+     * The time the Object was last loaded, or last tried to be
+     * reloaded, in milliseconds.
+     */
+    private long                  refreshTime        = 0;
 
-    CachedObject cachedObject = (CachedObject) ref.get();
+    /**
+     * The Object that is cached, if it is referenced softly,
+     * so that it may be released when running out of memory.
+     */
+    private SoftReference<Object> object             = null;
+
+    /**
+     * The Object that is cached, if it is referenced strongly.
+     */
+    private Object                strongObject       = null;
 
-    if ((cachedObject == null) || cachedObject.expired()) {
-      cache.remove(key);
+    /**
+     * The number of bytes taken by the object.
+     */
+    private long                  weight             = 0;
 
-      return 0;
-    }
+    /**
+     * The SoftReference to the uncompressed object.
+     */
+    @SuppressWarnings("rawtypes")
+    private SoftReference         uncompressedObject = null;
 
-    return cachedObject.getLifeTime();
-  }
 
+    /**
+     * Whether the object is stored compressed.
+     */
+    private boolean               compressed         = false;
 
-  /**
-   * Print the content of the cache.
-   *
-   * @return The content of the cache.
-   */
-  @SuppressWarnings("rawtypes")
-  public synchronized String toString() {
-    final StringBuffer sb = new StringBuffer();
+    /**
+     * The codec the object is compressed with.
+     */
+    private Codec                 codec              = null;
 
-    if (ObjectCache == null) {
-      return "";
-    }
+    /**
+     * True if an attempt shall be made to keep a SoftReference to the object in
+     * its uncompressed form.
+     */
+    private boolean               doublebuffer       = false;
 
-    final java.util.Set ks = ObjectCache.keySet();
-    if (ks == null) {
-      return "";
-    }
+    /**
+     * Whether or not an object may life forever. Caching the object with a
+     * lifetime < 0 will leave the object forever in the cache. But it may still
+     * fall out of the cache in an out of memory situation.
+     */
+    private boolean               livesForever       = false;
 
-    final String[] tKey = new String[ObjectCache.size()];
-    int            i    = 0;
+    /**
+     * The actual lifetime of the object.
+     */
+    private long                  lifeTime           = -1;
 
-    for (final String xKey : ObjectCache.keySet()) {
-      tKey[i++] = xKey;
-    }
+    /**
+     * The previous entry in the queue, towards the head.
+     */
+    private CachedObject          prev               = null;
 
-    for (int j = 0; j < ObjectCache.size(); j++) {
-      final SoftReference ref = (SoftReference) ObjectCache.get(tKey[j]);
-      if (ref != null) {
-        final CachedObject obj = (CachedObject) ref.get();
-        if (obj != null) {
-          sb.append("\n[" + tKey[j] + "]\t=>\t" + obj.getObject());
-        } else {
-          sb.append("\n" + tKey[j] + "\t=>\tnull (object referenced softly was null)");
-        }
-      } else {
-        sb.append("\n" + tKey[j] + "\t=>\tnull (soft reference was null)");
-      }
-    }
+    /**
+     * The next entry in the queue, towards the tail.
+     */
+    private CachedObject          next               = null;
 
-    return sb.toString();
-  }
+    /**
+     * The queue holding the entry.
+     */
+    private int                   region             = WINDOW;
 
+    /**
+     * The encoded object, as loaded from a snapshot file, until
+     * it is first accessed.
+     */
+    private volatile ByteBuffer   mapped             = null;
 
-  /**
-   * Updator thread used to update the cache at the specified interval.
-   */
-  private class CacheUpdator extends Thread {
     /**
-     * The invoking (Cache) object.
+     * The tags of the entry, null if it has none.
      */
-    private Cache   parent         = null;
+    private String[]              tags               = null;
 
     /**
-     * Wheter or not the Thread is active.
+     * Whether the entry is in the shared store, as well.
      */
-    private boolean active         = true;
+    private volatile boolean      shared             = false;
 
+    /**
+     * Whether the object is held by the cache, and counted in its weight.
+     */
+    private boolean               admitted           = false;
 
-    /** Update interval for the cache, in milliseconds. */
-    private long    updateInterval = 5000;
 
     /**
-     * Set the default update interval for the cache.
-     *
-     * @param updateInterval The update interval in seconds.
+     * Constructor for the sentinel of a queue.
      */
-    public synchronized void setUpdateInterval(long updateInterval) {
-      this.updateInterval = updateInterval;
+    protected CachedObject() {
+      this.owner = null;
+      this.key   = null;
+      this.prev  = this;
+      this.next  = this;
     }
 
 
     /**
-     * Run the updator thread.
+     * Constructor.
+     *
+     * @param owner The cache holding the object.
+     * @param key The key under which the object is cached.
+     * @param o The object to cache.
+     * @param birth The birthday of the object in the cache, in milliseconds.
+     * @param lifeTime The lifetime we allow this object to stay in the cache.
+     * @param codec The codec to compress the object with, or null
+     *          to store it uncompressed.
+     * @param doublebuffer True if an attempt shall be made to keep a
+     *          SoftReference to the object in its uncompressed form.
+     * @param soft True if the object is to be referenced softly.
+     * @param offHeap The store to keep the compressed form in, or
+     *          null to keep it on the heap.
      */
-    @SuppressWarnings("rawtypes")
-    public void run() {
-      while (true) {
-        synchronized (this) {
-          if ((ObjectCache != null) && (ObjectCache.size() > 0)) {
-            synchronized (this.parent) {
-              String[] tKey = new String[ObjectCache.size()];
-              int      i    = 0;
-
-              for (final String xKey : ObjectCache.keySet()) {
-                tKey[i++] = xKey;
-              }
-
-              for (int j = 0; j < ObjectCache.size(); j++) {
-                SoftReference ref = (SoftReference) ObjectCache.get(tKey[j]);
+    protected CachedObject(Cache owner, String key, Object o, long birth, long lifeTime, Codec codec, boolean doublebuffer, boolean soft, OffHeapStore offHeap) {
+      this.owner        = owner;
+      this.key          = key;
+      this.codec        = codec;
+      this.compressed   = (codec != null);
+      this.doublebuffer = doublebuffer;
 
-                if (ref == null) {
-                  continue;
-                }
+      keep(o, soft, offHeap);
 
-                CachedObject cachedObject = (CachedObject) ref.get();
+      if (lifeTime < 0) {
+        this.livesForever = true;
+      }
 
-                if ((cachedObject == null) || cachedObject.expired()) {
-                  ObjectCache.remove(tKey[j]);
-                }
+      this.expiryTime  = birth + (lifeTime * 1000);
+      this.refreshTime = birth;
+      this.lifeTime    = lifeTime;
+    }
 
-                continue;
-              }
-            }
-          }
 
-          if ((CursorCache != null) && (CursorCache.size() > 0)) {
-            synchronized (this.parent) {
-              String[] tKey = new String[CursorCache.size()];
-              int      i    = 0;
+    /**
+     * Constructor for an object loaded from a snapshot file. The
+     * object is only decoded when it is first accessed.
+     *
+     * @param owner The cache holding the object.
+     * @param key The key under which the object is cached.
+     * @param mapped The encoded object.
+     * @param birth The birthday of the object in the cache, in milliseconds.
+     * @param lifeTime The lifetime we allow this object to stay in the cache.
+     */
+    protected CachedObject(Cache owner, String key, ByteBuffer mapped, long birth, long lifeTime) {
+      this.owner  = owner;
+      this.key    = key;
+      this.mapped = mapped;
+      this.weight = mapped.remaining();
 
-              for (final String xKey : CursorCache.keySet()) {
-                tKey[i++] = xKey;
-              }
+      if (lifeTime < 0) {
+        this.livesForever = true;
+      }
 
-              for (int j = 0; j < CursorCache.size(); j++) {
-                SoftReference ref = (SoftReference) CursorCache.get(tKey[j]);
+      this.expiryTime  = birth + (lifeTime * 1000);
+      this.refreshTime = birth;
+      this.lifeTime    = lifeTime;
+    }
 
-                if (ref == null) {
-                  continue;
-                }
 
-                CachedObject cachedObject = (CachedObject) ref.get();
+    /**
+     * Keep the object, compressing it with the codec if there is one.
+     *
+     * @param o The object.
+     * @param soft True if the object is to be referenced softly.
+     * @param offHeap The store to keep the compressed form in, or
+     *          null to keep it on the heap.
+     */
+    private void keep(Object o, boolean soft, OffHeapStore offHeap) {
+      if (this.compressed) {
+        try {
+          CompressedBuffer fos = new CompressedBuffer();
+          this.codec.encode(o, fos);
 
-                if ((cachedObject == null) || cachedObject.expired()) {
-                  CursorCache.remove(tKey[j]);
-                }
+          final OffHeapStore.Block block = (offHeap == null) ? null : fos.storeIn(offHeap);
 
-                continue;
-              }
-            }
+          if (block != null) {
+            this.strongObject = block;
+          } else {
+            store(fos, soft);
           }
 
-          if ((CacheCursor != null) && (CacheCursor.size() > 0)) {
-            synchronized (this.parent) {
-              String[] tKey = new String[CacheCursor.size()];
-              int      i    = 0;
-
-              for (final String xKey : CacheCursor.keySet()) {
-                tKey[i++] = xKey;
-              }
+          if (this.doublebuffer) {
+            this.uncompressedObject = new SoftReference<Object>(o);
+          }
+        } catch (java.io.IOException ioe) {
+          ioe.printStackTrace();
+        }
+      } else {
+        store(o, soft);
+      }
+    }
 
-              for (int j = 0; j < CacheCursor.size(); j++) {
-                SoftReference ref = (SoftReference) CacheCursor.get(tKey[j]);
 
-                if (ref == null) {
-                  continue;
-                }
+    /**
+     * Get the encoded object, if it was loaded from a snapshot
+     * file and not accessed since.
+     *
+     * @return The encoded object, else null.
+     */
+    protected ByteBuffer getMapped() {
+      final ByteBuffer mapped = this.mapped;
 
-                CachedObject cachedObject = (CachedObject) ref.get();
+      return (mapped == null) ? null : mapped.duplicate();
+    }
 
-                if ((cachedObject == null) || cachedObject.expired()) {
-                  CacheCursor.remove(tKey[j]);
-                }
 
-                continue;
-              }
-            }
-          }
+    /**
+     * Copy the encoded object, if it was loaded from a snapshot file
+     * and not accessed since, out of the mapping of the file.
+     */
+    protected synchronized void detach() {
+      final ByteBuffer mapped = this.mapped;
 
-          try {
-            Thread.sleep(this.updateInterval);
+      if (mapped != null) {
+        final ByteBuffer copy = ByteBuffer.allocate(mapped.remaining());
 
-            if (!active) {
-              break;
-            }
-          } catch (InterruptedException ie) {}
-        }
+        copy.put(mapped.duplicate());
+        copy.flip();
+        this.mapped = copy;
       }
     }
 
 
     /**
-     * Activate or deactivate the updator thread.
+     * Keep the object, either softly or strongly.
      *
-     * @param b True to activate the thread, false to deactivate the thread.
+     * @param o The object.
+     * @param soft True if the object is to be referenced softly.
      */
-    protected synchronized void setActive(boolean b) {
-      log.debug("> setActive");
-      active = b;
-      log.debug("< setActive");
+    private void store(Object o, boolean soft) {
+      if (soft) {
+        this.object = new EntryReference(o, this.owner.released, this);
+      } else {
+        this.strongObject = o;
+      }
     }
 
 
     /**
-     * Set the invoker of this thread. This is used to synchronize the thread
-     * with its invoking object.
+     * Get the size of the compressed form of the object.
      *
-     * @param parent The parent (Cache) object.
+     * @return The number of bytes, 0 if the object is not
+     *         stored compressed or has been released.
      */
-    protected synchronized void setParent(Cache parent) {
-      this.parent = parent;
+    protected long getCompressedSize() {
+      final Object stored = getStored();
+
+      if (!this.compressed || (stored == null)) {
+        return 0;
+      }
+
+      return (stored instanceof OffHeapStore.Block) ? ((OffHeapStore.Block) stored).getLength() : ((CompressedBuffer) stored).size();
     }
-  }
 
-  /**
-   * A container for objects that are in the cache.
-   */
-  private static class CachedObject {
-    /**
-     * The expiry time for the Object.
-     */
-    private Date          expiryTime         = new Date();
 
     /**
-     * The Object that is cached.
+     * Mark the object as held by the cache, so that later
+     * changes of its weight are counted for the cache.
+     *
+     * @return The number of bytes taken by the object.
      */
-    private Object        object             = null;
+    protected synchronized long admit() {
+      this.admitted = true;
 
-    /**
-     * The SoftReference to the uncompressed object.
-     */
-    @SuppressWarnings("rawtypes")
-    private SoftReference uncompressedObject = null;
+      return this.weight;
+    }
 
 
     /**
-     * Whether the object is stored compressed.
+     * Release the memory taken outside of the heap, if any, once
+     * the object has left the cache. Readers still decompressing
+     * it finish first.
+     *
+     * @return The number of bytes taken by the object.
      */
-    private boolean       compressed         = false;
+    protected synchronized long release() {
+      this.admitted = false;
+      this.mapped   = null;
+
+      if (this.strongObject instanceof OffHeapStore.Block) {
+        ((OffHeapStore.Block) this.strongObject).release();
+      }
+
+      return this.weight;
+    }
 
-    /**
-     * True if an attempt shall be made to keep a SoftReference to the object in
-     * its uncompressed form.
-     */
-    private boolean       doublebuffer       = false;
 
     /**
-     * Whether or not an object may life forever. Caching the object with a
-     * lifetime < 0 will leave the object forever in the cache. But it may still
-     * fall out of the cache in an out of memory situation.
+     * Get the number of bytes taken by the object.
+     *
+     * @return The number of bytes.
      */
-    private boolean       livesForever       = false;
+    protected long getWeight() {
+      return this.weight;
+    }
+
 
     /**
-     * The actual lifetime of the object.
+     * Set the number of bytes taken by the object.
+     *
+     * @param weight The number of bytes.
      */
-    private long          lifeTime           = -1;
+    protected void setWeight(long weight) {
+      this.weight = weight;
+    }
 
 
     /**
-     * Constructor.
+     * Get the key under which the object is cached.
      *
-     * @param o The object to cache.
-     * @param birth The birthday of the object in the cache.
-     * @param lifeTime The lifetime we allow this object to stay in the cache.
-     * @param doublebuffer True if an attempt shall be made to keep a
-     *          SoftReference to the object in its uncompressed form.
+     * @return The key.
      */
-    protected CachedObject(Object o, Date birth, long lifeTime, boolean compressed, boolean doublebuffer) {
-      this.compressed   = compressed;
-      this.doublebuffer = doublebuffer;
+    protected String getKey() {
+      return this.key;
+    }
 
-      if (this.compressed) {
-        try {
-          ByteArrayOutputStream fos = new ByteArrayOutputStream();
-          GZIPOutputStream      gos = new GZIPOutputStream(fos);
-          ObjectOutputStream    oos = new ObjectOutputStream(gos);
-          oos.writeObject(o);
-          oos.flush();
-          oos.close();
-          this.object = fos;
 
-          if (this.doublebuffer) {
-            this.uncompressedObject = new SoftReference<Object>(o);
-          }
-        } catch (java.io.IOException ioe) {
-          ioe.printStackTrace();
-        }
-      } else {
-        this.object = o;
-      }
+    /**
+     * Get the expiry time for the object.
+     *
+     * @return The expiry time, in milliseconds.
+     */
+    protected long getExpiryTime() {
+      return this.expiryTime;
+    }
 
-      if (lifeTime < 0) {
-        this.livesForever = true;
-      }
 
-      this.expiryTime.setTime(birth.getTime() + (lifeTime * 1000));
-      this.lifeTime = lifeTime;
+    /**
+     * Called by the wheel when the object expired.
+     */
+    protected void expire() {
+      this.owner.expire(this);
     }
 
 
@@ -1169,50 +3468,58 @@ public class Cache {
      *
      * @return True if the object is compressed, else false.
      */
-    @SuppressWarnings("unused")
     protected boolean getCompressed() {
       return this.compressed;
     }
 
 
     /**
-     * Set the doublebuffer state for this object.
+     * Get the lifetime for the object in the cache.
      *
-     * @param doublebuffer True if the doublebuffer shall be activated, else
-     *          false.
+     * @return The lifetime, in seconds.
      */
-    protected synchronized void setDoublebuffer(boolean doublebuffer) {
-      this.doublebuffer = doublebuffer;
+    @SuppressWarnings("unused")
+    protected long getLifeTime() {
+      return this.lifeTime;
     }
 
 
     /**
-     * Get the doublebuffer state of the object.
+     * Get the object itself.
      *
-     * @return True if the doublebuffer is active for this object, else false.
+     * @return The object itself, null if it has been released.
      */
-    protected synchronized boolean getDoublebuffer() {
-      return this.doublebuffer;
+    protected synchronized Object getObject() {
+      return getObject(this.doublebuffer);
     }
 
 
     /**
-     * Get the lifetime for the object in the cache.
+     * Get the object itself, without keeping a SoftReference to
+     * the uncompressed form if it had to be decompressed.
      *
-     * @return The lifetime, in milliseconds.
+     * @return The object itself, null if it has been released.
      */
-    protected long getLifeTime() {
-      return this.lifeTime;
+    protected synchronized Object peekObject() {
+      return getObject(false);
     }
 
 
     /**
      * Get the object itself.
      *
-     * @return The object itself.
+     * @param doublebuffer True if a SoftReference to the uncompressed
+     *          form shall be kept if the object had to be decompressed.
+     * @return The object itself, null if it has been released.
      */
-    protected synchronized Object getObject() {
-      if (this.compressed) {
+    private Object getObject(boolean doublebuffer) {
+      if (this.mapped != null) {
+        return decodeMapped();
+      }
+
+      final Object stored = getStored();
+
+      if (this.compressed && (stored != null)) {
         if (this.uncompressedObject != null) {
           Object o = this.uncompressedObject.get();
 
@@ -1222,14 +3529,25 @@ public class Cache {
         }
 
         try {
-          ByteArrayOutputStream fos = (ByteArrayOutputStream) this.object;
-          ByteArrayInputStream  fis = new ByteArrayInputStream(fos.toByteArray());
-          GZIPInputStream       gis = new GZIPInputStream(fis);
-          ObjectInputStream     ois = new ObjectInputStream(gis);
-          Object                o   = (Object) ois.readObject();
-          ois.close();
+          Object o;
 
-          if (this.doublebuffer) {
+          if (stored instanceof OffHeapStore.Block) {
+            final OffHeapStore.Block block = (OffHeapStore.Block) stored;
+
+            if (!block.retain()) {
+              return null;
+            }
+
+            try {
+              o = decompress(block.openStream());
+            } finally {
+              block.release();
+            }
+          } else {
+            o = decompress(((CompressedBuffer) stored).openStream());
+          }
+
+          if (doublebuffer) {
             this.uncompressedObject = new SoftReference<Object>(o);
           }
 
@@ -1239,9 +3557,107 @@ public class Cache {
         } catch (java.lang.ClassNotFoundException cnfe) {
           cnfe.printStackTrace();
         }
+
+        return null;
+      }
+
+      return stored;
+    }
+
+
+    /**
+     * Decode an object loaded from a snapshot file, and keep it as
+     * set for the cache by now.
+     *
+     * @return The object, null if it could not be decoded.
+     */
+    private Object decodeMapped() {
+      Object o = null;
+
+      try {
+        o = SNAPSHOT_CODEC.decode(new OffHeapStore.ByteBufferInputStream(this.mapped.duplicate()));
+      } catch (java.io.IOException ioe) {
+        log.error("! Could not decode an entry of the snapshot: " + ioe.getMessage());
+      } catch (java.lang.ClassNotFoundException cnfe) {
+        log.error("! Could not decode an entry of the snapshot: " + cnfe.getMessage());
+      }
+
+      if (o == null) {
+        this.mapped = null;
+
+        return null;
+      }
+
+      /*
+       * An object not held by the cache is not kept; it
+       * stays to be decoded from the mapping again.
+       */
+      if (this.admitted) {
+        this.codec        = this.owner.compressed ? this.owner.codec : null;
+        this.compressed   = (this.codec != null);
+        this.doublebuffer = this.owner.doublebuffer;
+        keep(o, this.owner.softValues, this.owner.offHeap);
+
+        /*
+         * Weigh the object as kept by now, instead
+         * of by the size of its encoded form.
+         */
+        final long weight = this.compressed ? getCompressedSize() : this.owner.weigher.weigh(this.key, o);
+
+        this.owner.weight.addAndGet(weight - this.weight);
+        this.weight = weight;
+        this.mapped = null;
+      }
+
+      return o;
+    }
+
+
+    /**
+     * Read an object from its compressed form.
+     *
+     * @param fis The stream of the compressed form.
+     * @return The object.
+     */
+    private Object decompress(InputStream fis) throws IOException, ClassNotFoundException {
+      return this.codec.decode(fis);
+    }
+
+
+    /**
+     * Get the object as it is stored, i.e. in its compressed
+     * form if it is compressed.
+     *
+     * @return The stored object, null if it has been released.
+     */
+    private Object getStored() {
+      if (this.strongObject != null) {
+        return this.strongObject;
+      }
+
+      return (this.object == null) ? null : this.object.get();
+    }
+
+
+    /**
+     * Check whether the object is due to be reloaded, and if so,
+     * note that it is being reloaded now, so that only one thread
+     * gets to reload it.
+     *
+     * @param refreshAfter The age in seconds after which the
+     *          object is due to be reloaded.
+     * @return True if the caller has to reload the object.
+     */
+    protected synchronized boolean startRefresh(long refreshAfter) {
+      final long now = System.currentTimeMillis();
+
+      if ((now - this.refreshTime) < (refreshAfter * 1000)) {
+        return false;
       }
 
-      return this.object;
+      this.refreshTime = now;
+
+      return true;
     }
 
 
@@ -1255,9 +3671,7 @@ public class Cache {
         return false;
       }
 
-      Date currentTime = Calendar.getInstance().getTime();
-
-      return this.expiryTime.before(currentTime);
+      return this.expiryTime < System.currentTimeMillis();
     }
 
 
@@ -1278,7 +3692,26 @@ public class Cache {
      */
     @SuppressWarnings("unused")
     protected synchronized void resetTimer() {
-      this.expiryTime.setTime(Calendar.getInstance().getTime().getTime() + (this.lifeTime * 1000));
+      this.expiryTime = System.currentTimeMillis() + (this.lifeTime * 1000);
     }
   }
+
+  /**
+   * A Weigher estimates the number of bytes an object takes
+   * in the cache. Implement this interface and pass it to the
+   * setWeigher function if the default estimate does not fit
+   * the objects you cache.
+   */
+  public interface Weigher {
+    public long weigh(String key, Object value);
+  }
+
+  /**
+   * A Loader loads the object for a key that is missing from
+   * the cache, or that is due to be reloaded. Pass it to the
+   * setLoader function, or to a single call of the get function.
+   */
+  public interface Loader {
+    public Object load(String key) throws Exception;
+  }
 }
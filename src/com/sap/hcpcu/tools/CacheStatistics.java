@@ -0,0 +1,366 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * This class provides the statistics of a {@link Cache}: how often entries
+ * were hit, missed, loaded, moved out and expired, and how long the loads
+ * took.
+ * <p>
+ * The counters are {@link StripedCounter}s and the load latencies are kept
+ * in a {@link LatencyHistogram}, so recording never takes a lock, and many
+ * threads hitting the cache at the same time do not contend for a counter.
+ * The counts are cumulative; unlike the cache hit and miss counters of the
+ * cache itself, they are not reset when the cache is flushed, but only by
+ * the reset function.
+ * <p>
+ * The statistics can be registered with the platform MBean server, to be
+ * watched with any JMX console, and they are returned as JSON by the
+ * JSONStatistics model of the application.
+ */
+public class CacheStatistics implements CacheStatisticsMBean {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger          log           = LoggerFactory.getLogger(CacheStatistics.class);
+
+  /** Cause: The entry was moved out as the cache exceeded its size. */
+  public static final int        SIZE          = 0;
+
+  /** Cause: The entry was moved out as the cache exceeded its budget. */
+  public static final int        WEIGHT        = 1;
+
+  /** Cause: The entry was released by the garbage collector. */
+  public static final int        COLLECTED     = 2;
+
+  /** Cause: The entry expired. */
+  public static final int        EXPIRED       = 3;
+
+  /** Cause: The entry was removed explicitly. */
+  public static final int        EXPLICIT      = 4;
+
+  /** The cache the statistics are kept for. */
+  private final Cache            cache;
+
+  /** The hits. */
+  private final StripedCounter   hits          = new StripedCounter();
+
+  /** The hits in the shared store, after a miss in the cache. */
+  private final StripedCounter   sharedHits    = new StripedCounter();
+
+  /** The misses. */
+  private final StripedCounter   misses        = new StripedCounter();
+
+  /** The loads that returned an object. */
+  private final StripedCounter   loadSuccesses = new StripedCounter();
+
+  /** The loads that failed or returned null. */
+  private final StripedCounter   loadFailures  = new StripedCounter();
+
+  /** The reloads started in the background. */
+  private final StripedCounter   refreshes     = new StripedCounter();
+
+  /** The entries removed, by cause. */
+  private final StripedCounter[] removals      = { new StripedCounter(), new StripedCounter(), new StripedCounter(), new StripedCounter(), new StripedCounter() };
+
+  /** The latencies of the loads, whether they succeeded or not. */
+  private final LatencyHistogram loadLatency   = new LatencyHistogram();
+
+  /** The name the statistics are registered under, null if they are not. */
+  private ObjectName             name          = null;
+
+  /**
+   * Constructor.
+   *
+   * @param cache The cache the statistics are kept for.
+   */
+  protected CacheStatistics(Cache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Record a hit.
+   */
+  protected void recordHit() {
+    this.hits.increment();
+  }
+
+
+  /**
+   * Record the hits of a bulk lookup.
+   *
+   * @param n The number of hits.
+   */
+  protected void recordHits(int n) {
+    if (n > 0) {
+      this.hits.add(n);
+    }
+  }
+
+
+  /**
+   * Record a hit in the shared store.
+   */
+  protected void recordSharedHit() {
+    this.sharedHits.increment();
+  }
+
+
+  /**
+   * Record a miss.
+   */
+  protected void recordMiss() {
+    this.misses.increment();
+  }
+
+
+  /**
+   * Record the misses of a bulk lookup.
+   *
+   * @param n The number of misses.
+   */
+  protected void recordMisses(int n) {
+    if (n > 0) {
+      this.misses.add(n);
+    }
+  }
+
+
+  /**
+   * Record a load.
+   *
+   * @param nanos The time the load took, in nanoseconds.
+   * @param success True if the load returned an object.
+   */
+  protected void recordLoad(long nanos, boolean success) {
+    (success ? this.loadSuccesses : this.loadFailures).increment();
+    this.loadLatency.record(nanos);
+  }
+
+
+  /**
+   * Record a reload started in the background.
+   */
+  protected void recordRefresh() {
+    this.refreshes.increment();
+  }
+
+
+  /**
+   * Record the removal of an entry.
+   *
+   * @param cause SIZE, WEIGHT, COLLECTED, EXPIRED or EXPLICIT.
+   */
+  protected void recordRemoval(int cause) {
+    this.removals[cause].increment();
+  }
+
+
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+
+  public long getSharedHitCount() {
+    return this.sharedHits.sum();
+  }
+
+
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+
+  /**
+   * Get the share of the lookups that hit an entry, whether in the
+   * cache or in the shared store.
+   *
+   * @return The hit ratio, from 0 to 1; 1 if there were no lookups.
+   */
+  public double getHitRatio() {
+    final long hits     = this.hits.sum() + this.sharedHits.sum();
+    final long requests = hits + this.misses.sum();
+
+    return (requests == 0) ? 1.0 : ((double) hits / requests);
+  }
+
+
+  public long getLoadSuccessCount() {
+    return this.loadSuccesses.sum();
+  }
+
+
+  public long getLoadFailureCount() {
+    return this.loadFailures.sum();
+  }
+
+
+  public long getRefreshCount() {
+    return this.refreshes.sum();
+  }
+
+
+  /**
+   * Get the average time a load took.
+   *
+   * @return The time in milliseconds.
+   */
+  public double getAverageLoadPenalty() {
+    return this.loadLatency.getMean();
+  }
+
+
+  public double getLoadLatency50() {
+    return this.loadLatency.getPercentile(50);
+  }
+
+
+  public double getLoadLatency99() {
+    return this.loadLatency.getPercentile(99);
+  }
+
+
+  public double getLoadLatency999() {
+    return this.loadLatency.getPercentile(99.9);
+  }
+
+
+  public double getMaxLoadLatency() {
+    return this.loadLatency.getMax();
+  }
+
+
+  /**
+   * Get the latencies of the loads, e.g. for other percentiles.
+   *
+   * @return The histogram.
+   */
+  public LatencyHistogram getLoadLatency() {
+    return this.loadLatency;
+  }
+
+
+  /**
+   * Get the number of entries moved out to make room, whether
+   * for the size or for the budget of the cache.
+   *
+   * @return The number of entries.
+   */
+  public long getEvictionCount() {
+    return this.removals[SIZE].sum() + this.removals[WEIGHT].sum();
+  }
+
+
+  public long getSizeEvictionCount() {
+    return this.removals[SIZE].sum();
+  }
+
+
+  public long getWeightEvictionCount() {
+    return this.removals[WEIGHT].sum();
+  }
+
+
+  public long getCollectedCount() {
+    return this.removals[COLLECTED].sum();
+  }
+
+
+  public long getExpirationCount() {
+    return this.removals[EXPIRED].sum();
+  }
+
+
+  public long getRemovalCount() {
+    return this.removals[EXPLICIT].sum();
+  }
+
+
+  public int getSize() {
+    return this.cache.getSize();
+  }
+
+
+  public long getWeight() {
+    return this.cache.getWeight();
+  }
+
+
+  /**
+   * Reset all counters and the latencies, along with the internal
+   * Cache Hit and Cache Miss counters of the cache. Events recorded
+   * while resetting may or may not be kept.
+   */
+  public void reset() {
+    this.cache.clearStatistics();
+  }
+
+
+  /**
+   * Reset all counters and the latencies, for the cache only.
+   */
+  void clear() {
+    for (final StripedCounter counter : new StripedCounter[] { this.hits, this.sharedHits, this.misses, this.loadSuccesses, this.loadFailures, this.refreshes }) {
+      counter.add(-counter.sum());
+    }
+
+    for (final StripedCounter counter : this.removals) {
+      counter.add(-counter.sum());
+    }
+
+    this.loadLatency.reset();
+  }
+
+
+  /**
+   * Register the statistics with the platform MBean server, under
+   * com.sap.hcpcu:type=Cache,name=<i>name</i>, replacing any statistics
+   * registered under that name before.
+   *
+   * @param name The name of the cache.
+   */
+  public synchronized void register(String name) {
+    unregister();
+
+    try {
+      final MBeanServer server     = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName  objectName = new ObjectName("com.sap.hcpcu:type=Cache,name=" + ObjectName.quote(name));
+
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+
+      server.registerMBean(this, objectName);
+      this.name = objectName;
+      log.debug("+ Registered cache statistics as " + objectName);
+    } catch (Exception e) {
+      log.error("! Could not register the cache statistics as " + name + ": " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Unregister the statistics from the platform MBean server,
+   * if they are registered.
+   */
+  public synchronized void unregister() {
+    if (this.name == null) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+    } catch (Exception e) {
+      log.debug("! Could not unregister the cache statistics " + this.name + ": " + e.getMessage());
+    }
+
+    this.name = null;
+  }
+}
@@ -0,0 +1,50 @@
+package com.sap.hcpcu.tools;
+
+/**
+ * The management interface of the {@link CacheStatistics}, as shown by JMX
+ * consoles. Counts are cumulative since the cache was created or the
+ * statistics were last reset; latencies are in milliseconds.
+ */
+public interface CacheStatisticsMBean {
+  public long getHitCount();
+
+  public long getSharedHitCount();
+
+  public long getMissCount();
+
+  public double getHitRatio();
+
+  public long getLoadSuccessCount();
+
+  public long getLoadFailureCount();
+
+  public long getRefreshCount();
+
+  public double getAverageLoadPenalty();
+
+  public double getLoadLatency50();
+
+  public double getLoadLatency99();
+
+  public double getLoadLatency999();
+
+  public double getMaxLoadLatency();
+
+  public long getEvictionCount();
+
+  public long getSizeEvictionCount();
+
+  public long getWeightEvictionCount();
+
+  public long getCollectedCount();
+
+  public long getExpirationCount();
+
+  public long getRemovalCount();
+
+  public int getSize();
+
+  public long getWeight();
+
+  public void reset();
+}
@@ -0,0 +1,696 @@
+package com.sap.hcpcu.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * This class describes how the {@link Cache} turns an object into the bytes
+ * it keeps for a compressed entry, and back.
+ * <p>
+ * A codec consists of a Serializer, turning the object into bytes, and a
+ * Compressor, compressing those bytes. Both are interfaces, so that you
+ * can plug in your own; the following are built in:
+ * <ul>
+ * <li>Serializers: STRING writes a String as UTF-8, BYTES writes a byte
+ *     array as it is, JAVA uses the Java serialization, and AUTO picks
+ *     one of the former by the class of the object, so that Strings and
+ *     byte arrays never go through the Java serialization.</li>
+ * <li>Compressors: GZIP, FAST, a block compression trading some of the
+ *     compression ratio for a lot less CPU, and NONE.</li>
+ * </ul>
+ * The DEFAULT codec combines AUTO and GZIP. Pass a codec to the cache
+ * using its setCodec function, or to a single call of setEntry.
+ */
+public class Codec {
+  /** The charset of Strings. */
+  private static final Charset     UTF8     = Charset.forName("UTF-8");
+
+  /** Serializer: Strings, as UTF-8. */
+  public static final Serializer   STRING   = new Serializer() {
+      public void write(Object o, OutputStream out) throws IOException {
+        out.write(((String) o).getBytes(UTF8));
+      }
+
+
+      public Object read(InputStream in) throws IOException {
+        final ByteArrayOutputStream bos = readFully(in);
+
+        return new String(bos.toByteArray(), UTF8);
+      }
+    };
+
+  /** Serializer: Byte arrays, as they are. */
+  public static final Serializer   BYTES    = new Serializer() {
+      public void write(Object o, OutputStream out) throws IOException {
+        out.write((byte[]) o);
+      }
+
+
+      public Object read(InputStream in) throws IOException {
+        return readFully(in).toByteArray();
+      }
+    };
+
+  /** Serializer: Any serializable object, using the Java serialization. */
+  public static final Serializer   JAVA     = new Serializer() {
+      public void write(Object o, OutputStream out) throws IOException {
+        final ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(o);
+        oos.flush();
+      }
+
+
+      public Object read(InputStream in) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(in).readObject();
+      }
+    };
+
+  /**
+   * Serializer: Strings and byte arrays as by STRING and BYTES, any
+   * other object as by JAVA. The bytes start with a tag telling which.
+   */
+  public static final Serializer   AUTO     = new Serializer() {
+      public void write(Object o, OutputStream out) throws IOException {
+        if (o instanceof String) {
+          out.write(0);
+          STRING.write(o, out);
+        } else if (o instanceof byte[]) {
+          out.write(1);
+          BYTES.write(o, out);
+        } else {
+          out.write(2);
+          JAVA.write(o, out);
+        }
+      }
+
+
+      public Object read(InputStream in) throws IOException, ClassNotFoundException {
+        switch (in.read()) {
+          case 0:
+            return STRING.read(in);
+
+          case 1:
+            return BYTES.read(in);
+
+          case 2:
+            return JAVA.read(in);
+
+          default:
+            throw new IOException("Unknown serializer tag");
+        }
+      }
+    };
+
+  /** Compressor: None, the bytes are kept as they are. */
+  public static final Compressor   NONE     = new Compressor() {
+      public OutputStream compress(OutputStream out) {
+        return out;
+      }
+
+
+      public InputStream decompress(InputStream in) {
+        return in;
+      }
+    };
+
+  /** Compressor: GZIP. */
+  public static final Compressor   GZIP     = new Compressor() {
+      public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out);
+      }
+
+
+      public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in);
+      }
+    };
+
+  /**
+   * Compressor: A block compression in the spirit of LZ4. The bytes are
+   * cut into blocks of 64 kilobytes; within each block, repeated sequences
+   * of at least four bytes are replaced by references to their previous
+   * occurrence, found using a hash table. There is no entropy coding, so
+   * the ratio is lower than for GZIP, but compressing and in particular
+   * decompressing are much faster. Blocks that do not get smaller are
+   * kept as they are.
+   */
+  public static final Compressor   FAST     = new Compressor() {
+      public OutputStream compress(OutputStream out) {
+        return new BlockOutputStream(out);
+      }
+
+
+      public InputStream decompress(InputStream in) {
+        return new BlockInputStream(in);
+      }
+    };
+
+  /** Codec: AUTO serializer, GZIP compressor. */
+  public static final Codec        DEFAULT  = new Codec(AUTO, GZIP);
+
+  /** The size of a block of the FAST compressor. */
+  private static final int         BLOCK    = 1 << 16;
+
+  /** Maximum number of bits of the hash table of the FAST compressor. */
+  private static final int         HASH_LOG = 12;
+
+  /** Minimum length of a match of the FAST compressor. */
+  private static final int         MIN_MATCH = 4;
+
+  /** The serializer. */
+  private final Serializer         serializer;
+
+  /** The compressor. */
+  private final Compressor         compressor;
+
+  /**
+   * Constructor.
+   *
+   * @param serializer The serializer.
+   * @param compressor The compressor.
+   */
+  public Codec(Serializer serializer, Compressor compressor) {
+    this.serializer = serializer;
+    this.compressor = compressor;
+  }
+
+  /**
+   * Get the serializer.
+   *
+   * @return The serializer.
+   */
+  public Serializer getSerializer() {
+    return this.serializer;
+  }
+
+
+  /**
+   * Get the compressor.
+   *
+   * @return The compressor.
+   */
+  public Compressor getCompressor() {
+    return this.compressor;
+  }
+
+
+  /**
+   * Write an object, serialized and compressed. The stream
+   * is closed afterwards.
+   *
+   * @param o The object.
+   * @param out The stream.
+   */
+  public void encode(Object o, OutputStream out) throws IOException {
+    final OutputStream cos = this.compressor.compress(out);
+    this.serializer.write(o, cos);
+    cos.close();
+  }
+
+
+  /**
+   * Read an object, decompressed and deserialized. The stream
+   * is closed afterwards.
+   *
+   * @param in The stream.
+   * @return The object.
+   */
+  public Object decode(InputStream in) throws IOException, ClassNotFoundException {
+    final InputStream cis = this.compressor.decompress(in);
+
+    try {
+      return this.serializer.read(cis);
+    } finally {
+      cis.close();
+    }
+  }
+
+
+  /**
+   * Read a stream to its end.
+   *
+   * @param in The stream.
+   * @return The bytes read.
+   */
+  private static ByteArrayOutputStream readFully(InputStream in) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(32, in.available()));
+    final byte[]                buf = new byte[4096];
+    int                         n;
+
+    while ((n = in.read(buf)) != -1) {
+      bos.write(buf, 0, n);
+    }
+
+    return bos;
+  }
+
+
+  /**
+   * Compress a block for the FAST compressor. The compressed form is a
+   * sequence of tokens, each followed by a number of literal bytes and a
+   * reference to a match: The high four bits of the token hold the number
+   * of literals, the low four bits the length of the match less four; a
+   * value of 15 is continued in the following bytes, each adding up to
+   * 255. The reference is the distance back to the match, in two bytes.
+   * The last token only has literals.
+   *
+   * @param src The bytes.
+   * @param len The number of bytes, at most BLOCK.
+   * @param dst The buffer for the compressed form, at least
+   *          len + len / 255 + 16 bytes.
+   * @return The length of the compressed form.
+   */
+  private static int compressBlock(byte[] src, int len, byte[] dst) {
+    final int   bits   = Math.max(4, Math.min(HASH_LOG, 32 - Integer.numberOfLeadingZeros(len)));
+    final int[] table  = new int[1 << bits];
+    final int   limit  = len - MIN_MATCH;
+    int         anchor = 0;
+    int         ip     = 0;
+    int         op     = 0;
+
+    while (ip < limit) {
+      final int sequence = readInt(src, ip);
+      final int hash     = (sequence * -1640531535) >>> (32 - bits);
+      final int ref      = table[hash] - 1;
+
+      table[hash] = ip + 1;
+
+      if ((ref < 0) || ((ip - ref) > 0xffff) || (readInt(src, ref) != sequence)) {
+        ip++;
+
+        continue;
+      }
+
+      int matchLength = MIN_MATCH;
+
+      while (((ip + matchLength) < len) && (src[ref + matchLength] == src[ip + matchLength])) {
+        matchLength++;
+      }
+
+      final int token = op;
+
+      op        = writeSequence(src, anchor, ip - anchor, dst, op);
+      dst[op++] = (byte) (ip - ref);
+      dst[op++] = (byte) ((ip - ref) >>> 8);
+
+      if ((matchLength - MIN_MATCH) >= 15) {
+        dst[token] |= 15;
+        op = writeLength(matchLength - MIN_MATCH - 15, dst, op);
+      } else {
+        dst[token] |= (byte) (matchLength - MIN_MATCH);
+      }
+
+      ip     += matchLength;
+      anchor  = ip;
+    }
+
+    return writeSequence(src, anchor, len - anchor, dst, op);
+  }
+
+
+  /**
+   * Write a token with its literals, leaving the match length of
+   * the token empty.
+   *
+   * @return The position after the literals.
+   */
+  private static int writeSequence(byte[] src, int offset, int literals, byte[] dst, int op) {
+    if (literals >= 15) {
+      dst[op++] = (byte) 0xf0;
+      op        = writeLength(literals - 15, dst, op);
+    } else {
+      dst[op++] = (byte) (literals << 4);
+    }
+
+    System.arraycopy(src, offset, dst, op, literals);
+
+    return op + literals;
+  }
+
+
+  /**
+   * Write the continuation of a length of 15 or more.
+   *
+   * @return The position after the length.
+   */
+  private static int writeLength(int length, byte[] dst, int op) {
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length   -= 255;
+    }
+
+    dst[op++] = (byte) length;
+
+    return op;
+  }
+
+
+  /**
+   * Decompress a block of the FAST compressor.
+   *
+   * @param src The compressed form.
+   * @param len The length of the compressed form.
+   * @param dst The buffer for the bytes.
+   * @param size The number of bytes.
+   */
+  private static void decompressBlock(byte[] src, int len, byte[] dst, int size) throws IOException {
+    int ip = 0;
+    int op = 0;
+
+    try {
+      while (ip < len) {
+        final int token    = src[ip++] & 0xff;
+        int       literals = token >>> 4;
+
+        if (literals == 15) {
+          int b;
+
+          do {
+            b         = src[ip++] & 0xff;
+            literals += b;
+          } while (b == 255);
+        }
+
+        System.arraycopy(src, ip, dst, op, literals);
+        ip += literals;
+        op += literals;
+
+        if (ip >= len) {
+          break;
+        }
+
+        final int distance    = (src[ip++] & 0xff) | ((src[ip++] & 0xff) << 8);
+        int       matchLength = token & 0x0f;
+
+        if (matchLength == 15) {
+          int b;
+
+          do {
+            b            = src[ip++] & 0xff;
+            matchLength += b;
+          } while (b == 255);
+        }
+
+        matchLength += MIN_MATCH;
+
+        for (int ref = op - distance, end = op + matchLength; op < end; ) {
+          dst[op++] = dst[ref++];
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt block");
+    }
+
+    if (op != size) {
+      throw new IOException("Corrupt block");
+    }
+  }
+
+
+  /**
+   * Read four bytes as an int.
+   */
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+  }
+
+
+  /**
+   * A Serializer turns an object into bytes and back.
+   */
+  public interface Serializer {
+    public void write(Object o, OutputStream out) throws IOException;
+
+
+    public Object read(InputStream in) throws IOException, ClassNotFoundException;
+  }
+
+  /**
+   * A Compressor wraps the streams the serialized bytes are
+   * written to and read from. Closing the stream returned by
+   * compress must finish the compressed form.
+   */
+  public interface Compressor {
+    public OutputStream compress(OutputStream out) throws IOException;
+
+
+    public InputStream decompress(InputStream in) throws IOException;
+  }
+
+  /**
+   * The stream of the FAST compressor. Each block is written
+   * as its length, the length of its compressed form, and the
+   * compressed form; if the block did not get smaller, both
+   * lengths are equal and the block is written as it is.
+   */
+  private static class BlockOutputStream extends FilterOutputStream {
+    /** The block being filled. It grows up to BLOCK bytes. */
+    private byte[]       block      = new byte[256];
+
+    /** The buffer for the compressed form. */
+    private byte[]       compressed = null;
+
+    /** The number of bytes in the block. */
+    private int          count      = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param out The stream to write to.
+     */
+    protected BlockOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      if (this.count == BLOCK) {
+        writeBlock();
+      }
+
+      ensureCapacity(this.count + 1);
+      this.block[this.count++] = (byte) b;
+    }
+
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (this.count == BLOCK) {
+          writeBlock();
+        }
+
+        final int n = Math.min(len, BLOCK - this.count);
+        ensureCapacity(this.count + n);
+        System.arraycopy(b, off, this.block, this.count, n);
+        this.count += n;
+        off        += n;
+        len        -= n;
+      }
+    }
+
+
+    public void close() throws IOException {
+      writeBlock();
+      super.close();
+    }
+
+
+    /**
+     * Write the block, if it holds any bytes.
+     */
+    private void writeBlock() throws IOException {
+      if (this.count == 0) {
+        return;
+      }
+
+      final int bound = this.count + (this.count / 255) + 16;
+
+      if ((this.compressed == null) || (this.compressed.length < bound)) {
+        this.compressed = new byte[bound];
+      }
+
+      final int length = compressBlock(this.block, this.count, this.compressed);
+
+      writeInt(this.count);
+
+      if (length < this.count) {
+        writeInt(length);
+        this.out.write(this.compressed, 0, length);
+      } else {
+        writeInt(this.count);
+        this.out.write(this.block, 0, this.count);
+      }
+
+      this.count = 0;
+    }
+
+
+    /**
+     * Grow the block, so that small objects only take small buffers.
+     *
+     * @param capacity The number of bytes needed.
+     */
+    private void ensureCapacity(int capacity) {
+      if (capacity > this.block.length) {
+        final byte[] grown = new byte[Math.min(BLOCK, Math.max(capacity, 2 * this.block.length))];
+        System.arraycopy(this.block, 0, grown, 0, this.count);
+        this.block = grown;
+      }
+    }
+
+
+    /**
+     * Write an int.
+     */
+    private void writeInt(int v) throws IOException {
+      this.out.write(v >>> 24);
+      this.out.write(v >>> 16);
+      this.out.write(v >>> 8);
+      this.out.write(v);
+    }
+  }
+
+  /**
+   * The stream of the FAST decompressor.
+   */
+  private static class BlockInputStream extends InputStream {
+    /** The stream to read from. */
+    private final InputStream in;
+
+    /** The current block. */
+    private byte[]            block      = null;
+
+    /** The buffer for the compressed form. */
+    private byte[]            compressed = null;
+
+    /** The number of bytes in the block. */
+    private int               count      = 0;
+
+    /** The position in the block. */
+    private int               position   = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param in The stream to read from.
+     */
+    protected BlockInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    public int read() throws IOException {
+      if ((this.position == this.count) && !readBlock()) {
+        return -1;
+      }
+
+      return this.block[this.position++] & 0xff;
+    }
+
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+
+      if ((this.position == this.count) && !readBlock()) {
+        return -1;
+      }
+
+      final int n = Math.min(len, this.count - this.position);
+      System.arraycopy(this.block, this.position, b, off, n);
+      this.position += n;
+
+      return n;
+    }
+
+
+    public int available() {
+      return this.count - this.position;
+    }
+
+
+    public void close() throws IOException {
+      this.in.close();
+    }
+
+
+    /**
+     * Read the next block.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean readBlock() throws IOException {
+      final int first = this.in.read();
+
+      if (first == -1) {
+        return false;
+      }
+
+      final byte[] header = new byte[8];
+      header[0] = (byte) first;
+      readFully(header, 1, 7);
+
+      final int size   = readInt(header, 0);
+      final int length = readInt(header, 4);
+
+      if ((size <= 0) || (size > BLOCK) || (length <= 0) || (length > size)) {
+        throw new IOException("Corrupt block header");
+      }
+
+      if ((this.block == null) || (this.block.length < size)) {
+        this.block = new byte[size];
+      }
+
+      if (length == size) {
+        readFully(this.block, 0, length);
+      } else {
+        if ((this.compressed == null) || (this.compressed.length < length)) {
+          this.compressed = new byte[length];
+        }
+
+        readFully(this.compressed, 0, length);
+        decompressBlock(this.compressed, length, this.block, size);
+      }
+
+      this.count    = size;
+      this.position = 0;
+
+      return true;
+    }
+
+
+    /**
+     * Read an int written by the BlockOutputStream.
+     */
+    private static int readInt(byte[] b, int i) {
+      return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+
+
+    /**
+     * Read a number of bytes.
+     */
+    private void readFully(byte[] b, int off, int len) throws IOException {
+      final int end = off + len;
+
+      while (off < end) {
+        final int n = this.in.read(b, off, end - off);
+
+        if (n == -1) {
+          throw new EOFException();
+        }
+
+        off += n;
+      }
+    }
+  }
+}
@@ -5,26 +5,39 @@ import org.apache.commons.dbcp2.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp2.PoolableConnection;
 import org.apache.commons.dbcp2.PoolableConnectionFactory;
 import org.apache.commons.dbcp2.PoolingDataSource;
-import org.apache.commons.pool2.ObjectPool;
+import org.apache.commons.pool2.impl.AbandonedConfig;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 
 import org.eclipse.persistence.config.PersistenceUnitProperties;
 
+import com.google.gson.stream.JsonWriter;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -46,19 +59,191 @@ public class DatabasePool {
   private static DatabasePool  instance         = null;
   private static Object        mutex            = new Object();
 
+  /**
+   * The default number of prepared statements kept open per
+   * connection, see {@link #DatabasePool(String, String, String, String, String, String, int, int, boolean, int)}.
+   */
+  public static final int      DEFAULT_MAX_STATEMENTS = 50;
+
+  /** The name of the pool written to. */
+  public static final String   PRIMARY          = "primary";
+
+  /** The usual name of a pool read from, see {@link #addReplica(DatabasePool)}. */
+  public static final String   REPLICA          = "replica";
+
+  /** A statement that reads, see {@link #isQuery(String)}. */
+  private static final Pattern QUERY            = Pattern.compile("(?is)^\\s*select\\b");
+
+  /** A query that locks rows or writes them, see {@link #isQuery(String)}. */
+  private static final Pattern WRITING          = Pattern.compile("(?is)\\bfor\\s+update\\b|\\binto\\b");
+
+  /**
+   * How to set parameters of the different classes into a statement,
+   * see {@link #setParameters(PreparedStatement, List)}. Parameters of
+   * other classes are looked up by their superclasses and interfaces,
+   * and the result is remembered here.
+   */
+  private static final ConcurrentHashMap<Class<?>, Binder> binders = new ConcurrentHashMap<Class<?>, Binder>();
+
+  static {
+    registerBinder(String.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setString(i, (String) object);
+        }
+      });
+    registerBinder(java.util.Date.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setTimestamp(i, new Timestamp(((java.util.Date) object).getTime()));
+        }
+      });
+    registerBinder(java.sql.Array.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setArray(i, (java.sql.Array) object);
+        }
+      });
+    registerBinder(java.math.BigDecimal.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setBigDecimal(i, (java.math.BigDecimal) object);
+        }
+      });
+    registerBinder(java.sql.Blob.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setBlob(i, (java.sql.Blob) object);
+        }
+      });
+    registerBinder(Boolean.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setBoolean(i, ((Boolean) object).booleanValue());
+        }
+      });
+    registerBinder(java.sql.Clob.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setClob(i, (java.sql.Clob) object);
+        }
+      });
+    registerBinder(java.sql.Date.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setDate(i, (java.sql.Date) object);
+        }
+      });
+    registerBinder(Double.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setDouble(i, ((Double) object).doubleValue());
+        }
+      });
+    registerBinder(Float.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setFloat(i, ((Float) object).floatValue());
+        }
+      });
+    registerBinder(Integer.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setInt(i, ((Integer) object).intValue());
+        }
+      });
+    registerBinder(Long.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setLong(i, ((Long) object).longValue());
+        }
+      });
+    registerBinder(java.sql.Ref.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setRef(i, (java.sql.Ref) object);
+        }
+      });
+    registerBinder(Short.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setShort(i, ((Short) object).shortValue());
+        }
+      });
+    registerBinder(java.sql.Time.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setTime(i, (java.sql.Time) object);
+        }
+      });
+    registerBinder(Timestamp.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          pst.setTimestamp(i, (Timestamp) object);
+        }
+      });
+    registerBinder(Object.class, new Binder() {
+        public void bind(PreparedStatement pst, int i, Object object) throws SQLException {
+          if (object.getClass() == Object.class) {
+            pst.setObject(i, object);
+          } else {
+            pst.setString(i, "" + object);
+          }
+        }
+      });
+  }
+
+  private final String         name;
+
   private DataSource           dataSource;
   private boolean              containerManaged = true;
+
+  /**
+   * The pool of the connections, if they are not container managed.
+   */
+  private GenericObjectPool<PoolableConnection> connectionPool = null;
+
+  /**
+   * The pools the queries are read from, in turn; if empty,
+   * or none of them has a connection, they read from this pool.
+   */
+  private final List<DatabasePool> replicas     = new CopyOnWriteArrayList<DatabasePool>();
+
+  /**
+   * The replica to read from next.
+   */
+  private final AtomicInteger  nextReplica      = new AtomicInteger();
   
   private String persistenceUnit = null;
 
+  /**
+   * The number of rows fetched from the database at a time
+   * by the queries; 0 for the default of the driver.
+   */
+  private int                  fetchSize        = 0;
+
+  /**
+   * The statistics of the pool.
+   */
+  private final PoolStatistics statistics       = new PoolStatistics(this);
+
 
   /**
    * The Entity Manager Factory
    */
   private EntityManagerFactory emf              = null;
 
-  @SuppressWarnings({ "rawtypes", "unchecked" })
   public DatabasePool(final String dataSource, final String persistenceUnit, final String driver, final String url, final String username, final String password, final int initialConnections, final int maxConnections, boolean waitIfBusy) throws SQLException, NamingException {
+    this(dataSource, persistenceUnit, driver, url, username, password, initialConnections, maxConnections, waitIfBusy, DEFAULT_MAX_STATEMENTS);
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param maxStatements The number of prepared statements kept open per
+   *        connection, keyed by their SQL, so that running the same SQL again
+   *        does not have the database parse it again; 0 to not keep them.
+   *        Only applies to plain JDBC connections; for a container managed
+   *        data source, this is up to the configuration of the container.
+   */
+  public DatabasePool(final String dataSource, final String persistenceUnit, final String driver, final String url, final String username, final String password, final int initialConnections, final int maxConnections, boolean waitIfBusy, final int maxStatements) throws SQLException, NamingException {
+    this(PRIMARY, dataSource, persistenceUnit, driver, url, username, password, initialConnections, maxConnections, waitIfBusy, maxStatements);
+  }
+
+
+  /**
+   * Constructor.
+   *
+   * @param name The name of the pool, e.g. {@link #PRIMARY} or {@link #REPLICA}.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  public DatabasePool(final String name, final String dataSource, final String persistenceUnit, final String driver, final String url, final String username, final String password, final int initialConnections, final int maxConnections, boolean waitIfBusy, final int maxStatements) throws SQLException, NamingException {
+    this.name            = name;
     this.persistenceUnit = persistenceUnit;
     
     /*
@@ -78,7 +263,7 @@ public class DatabasePool {
 
           DataSource ds = (DataSource) initialContext.lookup(dataSource);
           try {
-            ds.getConnection();
+            ds.getConnection().close();
           } catch (SQLException e) {
             log.debug("+ Container managed data source definition does not deliver a valid data source. Will use plain JDBC connections.");
             containerManaged = false;
@@ -117,33 +302,56 @@ public class DatabasePool {
     }
 
     /*
-     * TODO: check whether initialSize really does take effect.
+     * The properties are handed to the driver; the
+     * pool is configured on the pool itself.
      *
-     * MySQL variant:
+     * MySQL variant to check the connections:
      * show processlist;
      * SHOW STATUS WHERE `variable_name` = 'Threads_connected';
      *
      */
     final Properties properties = new Properties();
 
-    properties.setProperty("url", url);
     properties.setProperty("user", username);
     properties.setProperty("password", password);
-    properties.setProperty("initialSize", "" + initialConnections);
-    properties.setProperty("maxTotal", "" + maxConnections);
-    properties.setProperty("maxWaitMillis", waitIfBusy ? "-1 " : "0");
-    properties.setProperty("accessToUnderlyingConnectionAllowed", "true");
-    properties.setProperty("testOnBorrow", "true");
 
     final ConnectionFactory              connectionFactory         = new DriverManagerConnectionFactory(url, properties);
 
     final PoolableConnectionFactory      poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory, null);
 
-    final ObjectPool<PoolableConnection> connectionPool            = new GenericObjectPool<PoolableConnection>(poolableConnectionFactory);
+    /*
+     * Keep the prepared statements open per connection; closing
+     * them returns them to the pool of their connection.
+     */
+    if (maxStatements > 0) {
+      poolableConnectionFactory.setPoolStatements(true);
+      poolableConnectionFactory.setMaxOpenPrepatedStatements(maxStatements);
+    }
+
+    final GenericObjectPool<PoolableConnection> connectionPool     = new GenericObjectPool<PoolableConnection>(poolableConnectionFactory);
+
+    connectionPool.setMaxTotal(maxConnections);
+    connectionPool.setMaxIdle(maxConnections);
+    connectionPool.setMinIdle(Math.min(initialConnections, maxConnections));
+    connectionPool.setBlockWhenExhausted(waitIfBusy);
+    connectionPool.setMaxWaitMillis(-1);
+    connectionPool.setTestOnBorrow(true);
 
     poolableConnectionFactory.setPool(connectionPool);
 
+    /*
+     * Open the initial connections.
+     */
+    try {
+      connectionPool.preparePool();
+    } catch (Exception e) {
+      log.error("! Error opening the initial connections of " + this.name + ": " + e.getMessage());
+    }
+
+    this.connectionPool = connectionPool;
+
     final PoolingDataSource<PoolableConnection> ds = new PoolingDataSource<PoolableConnection>(connectionPool);
+    ds.setAccessToUnderlyingConnectionAllowed(true);
 
     this.dataSource = ds;
 
@@ -155,10 +363,15 @@ public class DatabasePool {
   }
 
   public static DatabasePool getInstance(final String dbSource, final String persistenceUnit, final String driver, final String url, final String username, final String password, final int initialConnections, final int maxConnections, final boolean waitIfBusy) throws SQLException, NamingException {
+    return getInstance(dbSource, persistenceUnit, driver, url, username, password, initialConnections, maxConnections, waitIfBusy, DEFAULT_MAX_STATEMENTS);
+  }
+
+
+  public static DatabasePool getInstance(final String dbSource, final String persistenceUnit, final String driver, final String url, final String username, final String password, final int initialConnections, final int maxConnections, final boolean waitIfBusy, final int maxStatements) throws SQLException, NamingException {
     if (instance == null) {
       synchronized (mutex) {
         if (instance == null) {
-          instance = new DatabasePool(dbSource, persistenceUnit, driver, url, username, password, initialConnections, maxConnections, waitIfBusy);
+          instance = new DatabasePool(dbSource, persistenceUnit, driver, url, username, password, initialConnections, maxConnections, waitIfBusy, maxStatements);
         }
       }
     }
@@ -172,8 +385,88 @@ public class DatabasePool {
   }
 
 
+  /**
+   * Get the name of the pool.
+   *
+   * @return The name, e.g. {@link #PRIMARY}.
+   */
+  public String getName() {
+    return this.name;
+  }
+
+
+  /**
+   * Get a connection of this pool, e.g. to write to.
+   *
+   * @return The connection.
+   * @throws SQLException If no connection could be had.
+   */
   public Connection getConnection() throws SQLException {
-    return this.dataSource.getConnection();
+    final long start   = System.nanoTime();
+    boolean    success = false;
+
+    try {
+      final Connection con = this.dataSource.getConnection();
+      success = true;
+
+      return con;
+    } finally {
+      this.statistics.recordBorrow(System.nanoTime() - start, success);
+    }
+  }
+
+
+  /**
+   * Add a pool to read from instead of this one, e.g. one connected to
+   * a replica of the database, so that long reads do not take the
+   * connections needed for writing. The queries then read from the
+   * replicas in turn, and only from this pool if none of them has a
+   * connection; updates and batches always go to this pool. Note that
+   * a replica may lag behind, so a query may not yet see what was just
+   * written.
+   *
+   * @param replica The pool to read from.
+   */
+  public void addReplica(final DatabasePool replica) {
+    this.replicas.add(replica);
+  }
+
+
+  /**
+   * Get the pools read from instead of this one.
+   *
+   * @return The replicas, possibly empty.
+   */
+  public List<DatabasePool> getReplicas() {
+    return this.replicas;
+  }
+
+
+  /**
+   * Get a connection to read from: one of a replica, if any of them
+   * has one, else one of this pool.
+   *
+   * @return The connection.
+   * @throws SQLException If no connection could be had.
+   */
+  public Connection getReadConnection() throws SQLException {
+    final int count = this.replicas.size();
+
+    if (count > 0) {
+      final int first = (this.nextReplica.getAndIncrement() & Integer.MAX_VALUE) % count;
+
+      for (int i = 0; i < count; i++) {
+        final DatabasePool replica = this.replicas.get((first + i) % count);
+
+        try {
+          return replica.getConnection();
+        } catch (SQLException sqle) {
+          log.debug("! No connection from " + replica.getName() + ", trying the next: " + sqle.getMessage());
+        }
+      }
+    }
+
+    return getConnection();
   }
 
 
@@ -189,6 +482,173 @@ public class DatabasePool {
     return this.persistenceUnit;
   }
 
+
+  /**
+   * Get the number of rows fetched from the database at a time.
+   *
+   * @return The fetch size; 0 for the default of the driver.
+   */
+  public int getFetchSize() {
+    return this.fetchSize;
+  }
+
+
+  /**
+   * Set the number of rows fetched from the database at a time by the
+   * queries that do not give their own. Note that some drivers only
+   * honour it under certain conditions, e.g. MySQL only with
+   * useCursorFetch=true in the url, and PostgreSQL only outside of
+   * auto commit; otherwise, they still read the whole result at once.
+   *
+   * @param fetchSize The fetch size; 0 for the default of the driver.
+   */
+  public void setFetchSize(int fetchSize) {
+    this.fetchSize = Math.max(0, fetchSize);
+  }
+
+  /**
+   * Get the latencies of the batches written by the {@link BatchWriter}s
+   * of this pool, from the start of writing a batch to its commit.
+   *
+   * @return The latencies.
+   */
+  public LatencyHistogram getBatchLatency() {
+    return this.statistics.getBatchLatency();
+  }
+
+
+  /**
+   * Get the statistics of the pool.
+   *
+   * @return The statistics.
+   */
+  public PoolStatistics getStatistics() {
+    return this.statistics;
+  }
+
+
+  /**
+   * Get the pool of the connections.
+   *
+   * @return The pool, null if the connections are container managed.
+   */
+  GenericObjectPool<PoolableConnection> getConnectionPool() {
+    return this.connectionPool;
+  }
+
+
+  /**
+   * Give up on the connections not given back to the pool in time, e.g.
+   * as they were not closed, logging where they were had from the pool;
+   * see {@link PoolStatistics#getAbandonedCount()}. This takes a stack
+   * trace each time a connection is had from the pool. Only applies to
+   * plain JDBC connections; for a container managed data source, this
+   * is up to the configuration of the container.
+   *
+   * @param timeout The seconds after which a connection not used is
+   *        given up on; 0 to not give up on connections.
+   */
+  public void setLeakDetection(final int timeout) {
+    if (this.connectionPool == null) {
+      return;
+    }
+
+    if (timeout <= 0) {
+      this.connectionPool.setAbandonedConfig(null);
+      this.connectionPool.setTimeBetweenEvictionRunsMillis(-1);
+
+      return;
+    }
+
+    final AbandonedConfig config = new AbandonedConfig();
+
+    config.setRemoveAbandonedTimeout(timeout);
+    config.setRemoveAbandonedOnBorrow(true);
+    config.setRemoveAbandonedOnMaintenance(true);
+    config.setLogAbandoned(true);
+    config.setLogWriter(new PrintWriter(this.statistics.getAbandonedLog(), true));
+
+    this.connectionPool.setAbandonedConfig(config);
+
+    /*
+     * The pool only traces the connections it opens from now
+     * on, so we replace the idle ones opened before.
+     */
+    this.connectionPool.clear();
+
+    try {
+      this.connectionPool.preparePool();
+    } catch (Exception e) {
+      log.error("! Error opening the initial connections of " + this.name + ": " + e.getMessage());
+    }
+
+    /*
+     * The connections are looked at when the pool is
+     * exhausted, and by the evictor, from time to time.
+     */
+    this.connectionPool.setTimeBetweenEvictionRunsMillis(Math.min(60000L, timeout * 500L));
+  }
+
+
+  /**
+   * Open a writer writing many rows with one statement, in batches.
+   * The writer holds on to a connection until it is closed.
+   *
+   * @param sql The SQL statement of one row.
+   * @param batchSize The number of rows to write and commit at a time.
+   * @return The writer.
+   * @throws SQLException If no connection could be had, or the statement
+   *         could not be prepared.
+   */
+  public BatchWriter openBatch(final String sql, final int batchSize) throws SQLException {
+    return openBatch(sql, batchSize, false);
+  }
+
+
+  /**
+   * Open a writer writing many rows with one statement, in batches.
+   * The writer holds on to a connection until it is closed.
+   *
+   * @param sql The SQL statement of one row.
+   * @param batchSize The number of rows to write and commit at a time.
+   * @param rewrite True to rewrite an INSERT ... VALUES (...) statement to
+   *        insert many rows at once, see {@link BatchWriter}.
+   * @return The writer.
+   * @throws SQLException If no connection could be had, or the statement
+   *         could not be prepared.
+   */
+  public BatchWriter openBatch(final String sql, final int batchSize, final boolean rewrite) throws SQLException {
+    return openBatch(sql, batchSize, rewrite, false);
+  }
+
+
+  /**
+   * Open a writer writing many rows with one statement, in batches.
+   * The writer holds on to a connection until it is closed.
+   *
+   * @param sql The SQL statement of one row.
+   * @param batchSize The number of rows to write at a time.
+   * @param rewrite True to rewrite an INSERT ... VALUES (...) statement to
+   *        insert many rows at once, see {@link BatchWriter}.
+   * @param oneTransaction True to write all batches in one transaction,
+   *        committed when the writer is closed, false to commit each batch.
+   * @return The writer.
+   * @throws SQLException If no connection could be had, or the statement
+   *         could not be prepared.
+   */
+  public BatchWriter openBatch(final String sql, final int batchSize, final boolean rewrite, final boolean oneTransaction) throws SQLException {
+    final Connection con = getConnection();
+
+    try {
+      return new BatchWriter(this, con, sql, batchSize, rewrite, oneTransaction);
+    } catch (SQLException sqle) {
+      con.close();
+
+      throw sqle;
+    }
+  }
+
+
   /**
    * Lookup something from the Database.
    *
@@ -207,42 +667,107 @@ public class DatabasePool {
    * @param sql The SQL Statement.
    * @return The JSON array, with table headers as labels.
    */
-  @SuppressWarnings({ "rawtypes", "unchecked" })
   public String selectJSONFromDB(final String sql) {
-    final List<String> headers = new ArrayList<String>();
-    final List<List>   tbl     = selectFromDB(sql, null, headers, false, 0);
+    final StringWriter out = new StringWriter();
+
+    try {
+      writeJSONFromDB(sql, null, out);
+    } catch (IOException ioe) {
+      /*
+       * Cannot happen on a StringWriter.
+       */
+      log.error("! Error writing the JSON array: " + ioe.getMessage());
+    }
+
+    return out.toString();
+  }
+
+
+  /**
+   * Lookup something from the database, and write it as JSON array
+   * to a Writer as the rows are read, rather than collecting them
+   * first. Numbers and booleans are written as such, SQL NULL as
+   * null, and everything else as escaped string; a value that cannot
+   * be read, e.g. as it does not fit into its Java type, as null.
+   * <p>
+   * The array is always closed, so that the output is valid JSON
+   * even if the query failed; tell from the result whether it did.
+   * The writer is flushed, but not closed.
+   *
+   * @param sql The SQL Statement.
+   * @param parameters A List containing in each row an object that shall be parsed
+   *        into the statement. Null, if no such objects are needed.
+   * @param out The Writer to write to.
+   * @return The number of rows written, -1 if the query failed.
+   * @throws IOException If the Writer failed.
+   */
+  @SuppressWarnings("rawtypes")
+  public int writeJSONFromDB(final String sql, final List parameters, final Writer out) throws IOException {
+    final JsonWriter    json  = new JsonWriter(out);
+    final IOException[] error = new IOException[1];
 
-    final int          cols    = headers.size();
-    final int          rows    = tbl.size();
+    json.beginArray();
 
-    final StringBuffer sb      = new StringBuffer();
-    sb.append("[");
+    final int rows = query(sql, parameters, new RowHandler() {
+        private String[] headers;
+        private int[]    kinds;
+        private boolean  failed;
 
-    for (int i = 0; i < rows; i++) {
-      final List row = tbl.get(i);
+        public boolean row(final Row row) throws SQLException {
+          if (this.headers == null) {
+            final int cols = row.getColumnCount();
 
-      sb.append("{");
+            this.headers = new String[cols];
+            this.kinds   = new int[cols];
 
-      for (int j = 0; j < cols; j++) {
-        sb.append("\"");
-        sb.append(headers.get(j));
-        sb.append("\": \"");
-        sb.append(row.get(j));
-        sb.append("\"");
-        if (j < (cols - 1)) {
-          sb.append(",");
+            for (int j = 0; j < cols; j++) {
+              this.headers[j] = row.getColumnName(j + 1);
+              this.kinds[j]   = getJSONKind(row.getColumnType(j + 1));
+            }
+          }
+
+          try {
+            json.beginObject();
+
+            for (int j = 0; j < this.headers.length; j++) {
+              json.name(this.headers[j]);
+
+              try {
+                writeJSONValue(json, row, j + 1, this.kinds[j]);
+              } catch (SQLException sqle) {
+                /*
+                 * Keep the object complete, e.g. if a number
+                 * does not fit into its Java type, and only
+                 * log the first of such errors.
+                 */
+                if (!this.failed) {
+                  log.error("! Error reading " + this.headers[j] + ", writing null: " + sqle.getMessage());
+                  this.failed = true;
+                }
+
+                json.nullValue();
+              }
+            }
+
+            json.endObject();
+          } catch (IOException ioe) {
+            error[0] = ioe;
+
+            return false;
+          }
+
+          return true;
         }
-      }
+      });
 
-      sb.append("}");
-      if (i < (rows - 1)) {
-        sb.append(",");
-      }
+    if (error[0] != null) {
+      throw error[0];
     }
 
-    sb.append("]");
+    json.endArray();
+    json.flush();
 
-    return sb.toString();
+    return rows;
   }
 
 
@@ -325,23 +850,92 @@ public class DatabasePool {
    *        their original object types, false if they are to be returned as Strings.
    * @param attempt The selection attempt. See {@link #maxAttempts}.
    * @return List of Lists of Objects or Strings, depending on the asObjects parameter,
-   *         holding the values.
+   *         holding the values. SQL NULL values are returned as null.
    */
   @SuppressWarnings({ "rawtypes" })
   private List selectFromDB(final String sql, final List parameters, final List<String> columnHeaders, final boolean asObjects, final int attempt) {
+    final ArrayList<ArrayList> result = new ArrayList<ArrayList>();
+
+    query(sql, parameters, new RowHandler() {
+        public boolean row(final Row row) throws SQLException {
+          final int cols = row.getColumnCount();
+
+          if ((columnHeaders != null) && result.isEmpty()) {
+            for (int j = 1; j <= cols; j++) {
+              columnHeaders.add(row.getColumnName(j));
+            }
+          }
+
+          final ArrayList<Object> values = new ArrayList<Object>(cols);
+
+          for (int j = 1; j <= cols; j++) {
+            values.add(asObjects ? row.getObject(j) : row.getString(j));
+          }
+
+          result.add(values);
+
+          return true;
+        }
+      });
+
+    return (result);
+  }
+
+
+  /**
+   * Lookup something from the Database, handing the rows one by one
+   * to a handler as they are read, rather than collecting them first;
+   * this way, large results can be processed in constant memory.
+   *
+   * @param sql The SQL Statement
+   * @param parameters A List containing in each row an object that shall be parsed
+   *        into the statement. Null, if no such objects are needed.
+   * @param handler The handler receiving the rows.
+   * @return The number of rows handed to the handler, -1 on error.
+   */
+  @SuppressWarnings("rawtypes")
+  public int query(final String sql, final List parameters, final RowHandler handler) {
+    return query(sql, parameters, this.fetchSize, handler);
+  }
+
+
+  /**
+   * Lookup something from the Database, handing the rows one by one
+   * to a handler as they are read, rather than collecting them first;
+   * this way, large results can be processed in constant memory.
+   * <p>
+   * The handler is given the same {@link Row} for each row, which is
+   * only valid until the handler returns. Queries are run on a replica,
+   * if any; other statements, e.g. updates run through selectFromDB,
+   * are run on this pool.
+   *
+   * @param sql The SQL Statement
+   * @param parameters A List containing in each row an object that shall be parsed
+   *        into the statement. Null, if no such objects are needed.
+   * @param fetchSize The number of rows to fetch from the database at a time,
+   *        0 for the default of the driver. See {@link #setFetchSize(int)}.
+   * @param handler The handler receiving the rows.
+   * @return The number of rows handed to the handler, -1 on error.
+   */
+  @SuppressWarnings("rawtypes")
+  public int query(final String sql, final List parameters, final int fetchSize, final RowHandler handler) {
     log.debug("> Selecting from Database");
 
-    Connection                 con    = null;
-    PreparedStatement          pst    = null;
-    ResultSet                  rs     = null;
-    final ArrayList<ArrayList> result = new ArrayList<ArrayList>();
+    Connection        con   = null;
+    PreparedStatement pst   = null;
+    ResultSet         rs    = null;
+    int               count = 0;
+    long              start = 0;
 
     try {
       /*
-       * Get the connection.
+       * Get the connection, from a replica if any
+       * and if the statement only reads.
        */
       log.debug("+ Get Connection");
-      con = getConnection();
+      con = isQuery(sql) ? getReadConnection() : getConnection();
+
+      start = System.nanoTime();
 
       /*
        * Prepare the statement.
@@ -349,60 +943,15 @@ public class DatabasePool {
       log.debug("+ Preparing Statement: " + sql);
       pst = con.prepareStatement(sql);
 
+      if (fetchSize > 0) {
+        pst.setFetchSize(fetchSize);
+      }
+
       /*
        * If we have parameters to set, we do
        * so now.
        */
-      if (parameters != null) {
-        int i = 1;
-        for (final Object object : parameters) {
-          final String type = object.getClass().getName();
-
-          /*
-           * Decide, what to do. this list can be
-           * extended in the future.
-           */
-          if ("java.lang.String".equals(type)) {
-            pst.setString(i, "" + object);
-          } else if ("java.util.Date".equals(type)) {
-            pst.setTimestamp(i, new Timestamp(((java.util.Date) object).getTime()));
-          } else if ("java.sql.Array".equals(type)) {
-            pst.setArray(i, (java.sql.Array) object);
-          } else if ("java.math.BigDecimal".equals(type)) {
-            pst.setBigDecimal(i, (java.math.BigDecimal) object);
-          } else if ("java.sql.Blob".equals(type)) {
-            pst.setBlob(i, (java.sql.Blob) object);
-          } else if ("java.lang.Boolean".equals(type)) {
-            pst.setBoolean(i, ((Boolean) object).booleanValue());
-          } else if ("java.sql.Clob".equals(type)) {
-            pst.setClob(i, (java.sql.Clob) object);
-          } else if ("java.sql.Date".equals(type)) {
-            pst.setDate(i, (java.sql.Date) object);
-          } else if ("java.lang.Double".equals(type)) {
-            pst.setDouble(i, ((Double) object).doubleValue());
-          } else if ("java.lang.Float".equals(type)) {
-            pst.setFloat(i, ((Float) object).floatValue());
-          } else if ("java.lang.Integer".equals(type)) {
-            pst.setInt(i, ((Integer) object).intValue());
-          } else if ("java.lang.Long".equals(type)) {
-            pst.setLong(i, ((Long) object).longValue());
-          } else if ("java.sql.Ref".equals(type)) {
-            pst.setRef(i, (java.sql.Ref) object);
-          } else if ("java.lang.Short".equals(type)) {
-            pst.setShort(i, ((Short) object).shortValue());
-          } else if ("java.sql.Time".equals(type)) {
-            pst.setTime(i, (java.sql.Time) object);
-          } else if ("java.sql.Timestamp".equals(type)) {
-            pst.setTimestamp(i, (java.sql.Timestamp) object);
-          } else if ("java.lang.Object".equals(type)) {
-            pst.setObject(i, object);
-          } else {
-            pst.setString(i, "" + object);
-          }
-
-          i++;
-        }
-      }
+      setParameters(pst, parameters);
 
       /*
        * Execute the query.
@@ -436,39 +985,17 @@ public class DatabasePool {
       }
 
       /*
-       * Get the data.
+       * Hand over the data.
        */
       if (rsmd != null) {
-        final int cols = rsmd.getColumnCount();
-
-        if (columnHeaders != null) {
-          for (int j = 1; j <= cols; j++) {
-            /*
-             * 20150613 MN:
-             * Adding toLowerCase, as HANA reports all column names
-             * in all caps.
-             */
-            columnHeaders.add(rsmd.getColumnName(j).toLowerCase());
-          }
-        }
+        final Row row = new Row(rs, rsmd);
 
         while (rs.next()) {
-          final ArrayList<Object> row = new ArrayList<Object>(cols);
+          count++;
 
-          for (int j = 1; j <= cols; j++) {
-            if (asObjects) {
-              row.add(rs.getObject(j));
-            } else {
-              /*
-               * 20150613 MN:
-               * Adding .trim, as HANA does not trim. Should be
-               * a nicer solution around, this is a hack.
-               */
-              row.add(rs.getString(j).trim());
-            }
+          if (!handler.row(row)) {
+            break;
           }
-
-          result.add(row);
         }
       }
     } catch (SQLException sqle) {
@@ -478,6 +1005,8 @@ public class DatabasePool {
        */
       log.error("! Error selecting from the database: " + sqle.getMessage());
       log.error("! The SQL statement was: \n\t" + sql);
+
+      count = -1;
     } finally {
       /*
        * Close the open cursors.
@@ -495,15 +1024,35 @@ public class DatabasePool {
       }
 
       try {
-        con.close();
+        if (con != null) {
+          con.close();
+        }
       } catch (SQLException e) {
         log.error("! Error closing the connection: " + e.getMessage());
       }
+
+      if (start != 0) {
+        this.statistics.recordStatement(sql, System.nanoTime() - start, count >= 0);
+      }
     }
 
     log.debug("< Selecting from Database");
 
-    return (result);
+    return count;
+  }
+
+
+  /**
+   * Tell whether a statement only reads, so that it
+   * may be run on a replica.
+   *
+   * @param sql The SQL Statement
+   * @return True for a SELECT statement that does not lock rows, or
+   *         select into anything. The words may be separated by any
+   *         whitespace, and are matched regardless of the locale.
+   */
+  private static boolean isQuery(final String sql) {
+    return QUERY.matcher(sql).find() && !WRITING.matcher(sql).find();
   }
 
 
@@ -519,8 +1068,10 @@ public class DatabasePool {
   private void updateDB(final String sql, final List parameters, final int attempt) {
     log.debug("> Updating the Database");
 
-    Connection        con = null;
-    PreparedStatement pst = null;
+    Connection        con     = null;
+    PreparedStatement pst     = null;
+    long              start   = 0;
+    boolean           success = false;
 
     try {
       /*
@@ -529,6 +1080,8 @@ public class DatabasePool {
       log.debug("+ Get Connection");
       con = getConnection();
 
+      start = System.nanoTime();
+
       /*
        * Prepare the statement.
        */
@@ -538,56 +1091,7 @@ public class DatabasePool {
        * If we have parameters to set, we do
        * so now.
        */
-      if (parameters != null) {
-        int i = 1;
-        for (final Object object : parameters) {
-          final String type = object.getClass().getName();
-
-          /*
-           * Decide, what to do. this list can be
-           * extended in the future.
-           */
-          if ("java.lang.String".equals(type)) {
-            pst.setString(i, "" + object);
-          } else if ("java.util.Date".equals(type)) {
-            pst.setTimestamp(i, new Timestamp(((java.util.Date) object).getTime()));
-          } else if ("java.sql.Array".equals(type)) {
-            pst.setArray(i, (java.sql.Array) object);
-          } else if ("java.math.BigDecimal".equals(type)) {
-            pst.setBigDecimal(i, (java.math.BigDecimal) object);
-          } else if ("java.sql.Blob".equals(type)) {
-            pst.setBlob(i, (java.sql.Blob) object);
-          } else if ("java.lang.Boolean".equals(type)) {
-            pst.setBoolean(i, ((Boolean) object).booleanValue());
-          } else if ("java.sql.Clob".equals(type)) {
-            pst.setClob(i, (java.sql.Clob) object);
-          } else if ("java.sql.Date".equals(type)) {
-            pst.setDate(i, (java.sql.Date) object);
-          } else if ("java.lang.Double".equals(type)) {
-            pst.setDouble(i, ((Double) object).doubleValue());
-          } else if ("java.lang.Float".equals(type)) {
-            pst.setFloat(i, ((Float) object).floatValue());
-          } else if ("java.lang.Integer".equals(type)) {
-            pst.setInt(i, ((Integer) object).intValue());
-          } else if ("java.lang.Long".equals(type)) {
-            pst.setLong(i, ((Long) object).longValue());
-          } else if ("java.sql.Ref".equals(type)) {
-            pst.setRef(i, (java.sql.Ref) object);
-          } else if ("java.lang.Short".equals(type)) {
-            pst.setShort(i, ((Short) object).shortValue());
-          } else if ("java.sql.Time".equals(type)) {
-            pst.setTime(i, (java.sql.Time) object);
-          } else if ("java.sql.Timestamp".equals(type)) {
-            pst.setTimestamp(i, (java.sql.Timestamp) object);
-          } else if ("java.lang.Object".equals(type)) {
-            pst.setObject(i, object);
-          } else {
-            pst.setString(i, "" + object);
-          }
-
-          i++;
-        }
-      }
+      setParameters(pst, parameters);
 
       /*
        * Execute the query.
@@ -603,6 +1107,8 @@ public class DatabasePool {
           throw (e);
         }
       }
+
+      success = true;
     } catch (SQLException sqle) {
       /*
        * If we had an error, we may
@@ -623,16 +1129,432 @@ public class DatabasePool {
       }
 
       try {
-        con.close();
+        if (con != null) {
+          con.close();
+        }
       } catch (SQLException e) {
         log.error("! Error closing the connection: " + e.getMessage());
       }
+
+      if (start != 0) {
+        this.statistics.recordStatement(sql, System.nanoTime() - start, success);
+      }
     }
 
     log.debug("< Updating the Database");
   }
 
 
+  /**
+   * Register how to set parameters of a class into a statement. This
+   * also applies to the subclasses, and, for an interface, to the classes
+   * implementing it, unless they have a binder of their own.
+   *
+   * @param klass The class.
+   * @param binder The binder.
+   */
+  public static void registerBinder(final Class<?> klass, final Binder binder) {
+    binders.put(klass, binder);
+  }
+
+
+  /**
+   * Set the parameters of a statement.
+   *
+   * @param pst The statement.
+   * @param parameters A List containing in each row an object that shall be parsed
+   *        into the statement. Null, if no such objects are needed.
+   * @throws SQLException If a parameter could not be set.
+   */
+  @SuppressWarnings("rawtypes")
+  static void setParameters(final PreparedStatement pst, final List parameters) throws SQLException {
+    if (parameters == null) {
+      return;
+    }
+
+    int i = 1;
+    for (final Object object : parameters) {
+      if (object == null) {
+        /*
+         * The type is a hint only, which all
+         * drivers we know of accept for null.
+         */
+        pst.setNull(i, Types.VARCHAR);
+      } else {
+        getBinder(object.getClass()).bind(pst, i, object);
+      }
+
+      i++;
+    }
+  }
+
+
+  /**
+   * Get the binder of a class: its own, or else the one of its closest
+   * superclass or interface, looked up breadth first. The latter is
+   * remembered for the class, so it is only looked up once.
+   *
+   * @param klass The class.
+   * @return The binder; at least the one of Object.
+   */
+  private static Binder getBinder(final Class<?> klass) {
+    Binder binder = binders.get(klass);
+
+    if (binder != null) {
+      return binder;
+    }
+
+    final LinkedList<Class<?>> todo = new LinkedList<Class<?>>();
+    todo.add(klass);
+
+    while (!todo.isEmpty() && (binder == null)) {
+      final Class<?> next = todo.removeFirst();
+
+      for (final Class<?> i : next.getInterfaces()) {
+        binder = binders.get(i);
+
+        if (binder != null) {
+          break;
+        }
+
+        todo.add(i);
+      }
+
+      if ((binder == null) && (next.getSuperclass() != null) && (next.getSuperclass() != Object.class)) {
+        binder = binders.get(next.getSuperclass());
+        todo.add(next.getSuperclass());
+      }
+    }
+
+    if (binder == null) {
+      binder = binders.get(Object.class);
+    }
+
+    binders.putIfAbsent(klass, binder);
+
+    return binder;
+  }
+
+
+  /**
+   * Get how a column of an SQL type is written as JSON.
+   *
+   * @param sqlType The SQL type, see {@link Types}.
+   * @return 'l' for integral numbers, 'd' for decimals, 'f' for
+   *         floating point numbers, 'b' for booleans, 's' for everything else.
+   */
+  private static int getJSONKind(final int sqlType) {
+    switch (sqlType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+        return 'l';
+
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        return 'd';
+
+      case Types.REAL:
+      case Types.FLOAT:
+      case Types.DOUBLE:
+        return 'f';
+
+      case Types.BIT:
+      case Types.BOOLEAN:
+        return 'b';
+
+      default:
+        return 's';
+    }
+  }
+
+
+  /**
+   * Write a column of a row as JSON value.
+   *
+   * @param json The JsonWriter.
+   * @param row The row.
+   * @param column The column, from 1.
+   * @param kind How to write the column, see {@link #getJSONKind(int)}.
+   * @throws SQLException If the column could not be read.
+   * @throws IOException If the value could not be written.
+   */
+  private static void writeJSONValue(final JsonWriter json, final Row row, final int column, final int kind) throws SQLException, IOException {
+    switch (kind) {
+      case 'l': {
+        final long value = row.getLong(column);
+
+        if (row.wasNull()) {
+          json.nullValue();
+        } else {
+          json.value(value);
+        }
+
+        break;
+      }
+
+      case 'd': {
+        /*
+         * Decimals are written with all their digits.
+         */
+        final java.math.BigDecimal value = row.getBigDecimal(column);
+
+        if (value == null) {
+          json.nullValue();
+        } else {
+          json.value(value);
+        }
+
+        break;
+      }
+
+      case 'f': {
+        /*
+         * JSON does not know NaN and Infinity.
+         */
+        final double value = row.getDouble(column);
+
+        if (row.wasNull() || Double.isNaN(value) || Double.isInfinite(value)) {
+          json.nullValue();
+        } else {
+          json.value(value);
+        }
+
+        break;
+      }
+
+      case 'b': {
+        final boolean value = row.getBoolean(column);
+
+        if (row.wasNull()) {
+          json.nullValue();
+        } else {
+          json.value(value);
+        }
+
+        break;
+      }
+
+      default:
+        json.value(row.getString(column));
+    }
+  }
+
+
+  /**
+   * Sets a parameter of a class into a statement,
+   * see {@link DatabasePool#registerBinder(Class, Binder)}.
+   */
+  public interface Binder {
+    /**
+     * Set a parameter.
+     *
+     * @param pst The statement.
+     * @param i The index of the parameter, from 1.
+     * @param object The value, not null.
+     * @throws SQLException If the parameter could not be set.
+     */
+    void bind(PreparedStatement pst, int i, Object object) throws SQLException;
+  }
+
+  /**
+   * Receives the rows of a query, see {@link DatabasePool#query(String, List, RowHandler)}.
+   */
+  public interface RowHandler {
+    /**
+     * Called for each row of the result.
+     *
+     * @param row The current row. Only valid until this function returns.
+     * @return True to continue with the next row, false to stop.
+     * @throws SQLException If the row could not be read; the query is aborted.
+     */
+    boolean row(Row row) throws SQLException;
+  }
+
+  /**
+   * The current row of a query, with typed access to its columns. The
+   * columns are numbered from 1, as in JDBC.
+   */
+  public static final class Row {
+    private final ResultSet         rs;
+    private final ResultSetMetaData rsmd;
+    private final int               cols;
+
+    protected Row(ResultSet rs, ResultSetMetaData rsmd) throws SQLException {
+      this.rs   = rs;
+      this.rsmd = rsmd;
+      this.cols = rsmd.getColumnCount();
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+      return this.cols;
+    }
+
+
+    /**
+     * Get the name of a column.
+     *
+     * @param column The column, from 1.
+     * @return The name of the column, in lower case.
+     * @throws SQLException If the name could not be read.
+     */
+    public String getColumnName(int column) throws SQLException {
+      /*
+       * 20150613 MN:
+       * Adding toLowerCase, as HANA reports all column names
+       * in all caps.
+       */
+      return this.rsmd.getColumnName(column).toLowerCase();
+    }
+
+
+    /**
+     * Get the SQL type of a column.
+     *
+     * @param column The column, from 1.
+     * @return The type, see {@link java.sql.Types}.
+     * @throws SQLException If the type could not be read.
+     */
+    public int getColumnType(int column) throws SQLException {
+      return this.rsmd.getColumnType(column);
+    }
+
+
+    /**
+     * Get a column as String.
+     *
+     * @param column The column, from 1.
+     * @return The value, trimmed; null if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public String getString(int column) throws SQLException {
+      final String value = this.rs.getString(column);
+
+      /*
+       * 20150613 MN:
+       * Adding .trim, as HANA does not trim. Should be
+       * a nicer solution around, this is a hack.
+       */
+      return (value == null) ? null : value.trim();
+    }
+
+
+    /**
+     * Get a column as int.
+     *
+     * @param column The column, from 1.
+     * @return The value; 0 if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public int getInt(int column) throws SQLException {
+      return this.rs.getInt(column);
+    }
+
+
+    /**
+     * Get a column as long.
+     *
+     * @param column The column, from 1.
+     * @return The value; 0 if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public long getLong(int column) throws SQLException {
+      return this.rs.getLong(column);
+    }
+
+
+    /**
+     * Get a column as double.
+     *
+     * @param column The column, from 1.
+     * @return The value; 0 if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public double getDouble(int column) throws SQLException {
+      return this.rs.getDouble(column);
+    }
+
+
+    /**
+     * Get a column as boolean.
+     *
+     * @param column The column, from 1.
+     * @return The value; false if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public boolean getBoolean(int column) throws SQLException {
+      return this.rs.getBoolean(column);
+    }
+
+
+    /**
+     * Get a column as BigDecimal.
+     *
+     * @param column The column, from 1.
+     * @return The value; null if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public java.math.BigDecimal getBigDecimal(int column) throws SQLException {
+      return this.rs.getBigDecimal(column);
+    }
+
+
+    /**
+     * Get a column as Timestamp.
+     *
+     * @param column The column, from 1.
+     * @return The value; null if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public Timestamp getTimestamp(int column) throws SQLException {
+      return this.rs.getTimestamp(column);
+    }
+
+
+    /**
+     * Get a column as its original object type.
+     *
+     * @param column The column, from 1.
+     * @return The value; null if it is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public Object getObject(int column) throws SQLException {
+      return this.rs.getObject(column);
+    }
+
+
+    /**
+     * Check whether a column is SQL NULL. Note that this reads the
+     * column; for the primitive getters, call it after them instead
+     * to tell a 0 from a NULL.
+     *
+     * @param column The column, from 1.
+     * @return True if the column is SQL NULL.
+     * @throws SQLException If the value could not be read.
+     */
+    public boolean isNull(int column) throws SQLException {
+      return this.rs.getObject(column) == null;
+    }
+
+
+    /**
+     * Check whether the column last read was SQL NULL.
+     *
+     * @return True if it was SQL NULL.
+     * @throws SQLException If the result set is closed.
+     */
+    public boolean wasNull() throws SQLException {
+      return this.rs.wasNull();
+    }
+  }
+
+
   @SuppressWarnings("rawtypes")
   public static void main(final String[] args) throws Exception {
     final DatabasePool db = DatabasePool.getInstance(null, null, "com.mysql.jdbc.Driver", "jdbc:mysql://localhost/hcpcu", "hcpcu", "hcpcu", 2, 5, true);
@@ -0,0 +1,206 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * An {@link InvalidationBus} sending the events as UDP datagrams to the
+ * other nodes of a cluster, e.g. to the other instances of the application
+ * running on the same machine, which is what makes it easy to test.
+ * <p>
+ * Each node listens on a port of its own, and is given the addresses of the
+ * other nodes, its peers; an event is sent to each peer in a datagram of its
+ * own. A daemon thread receives the events of the peers and delivers them to
+ * the listeners of this node. Datagrams may be lost, in which case the stale
+ * entries of a node are only dropped once they expire.
+ * <p>
+ * The bus does not authenticate its datagrams, so a node only listens on the
+ * address it is given, the loopback address by default, and drops the
+ * datagrams not sent from the address and port of one of its peers.
+ * <p>
+ * The datagrams carry a random id of the sending node, so that a node does
+ * not act on its own events if it is given its own address as a peer; this
+ * way, all nodes can be given the same list of addresses.
+ */
+public class DatagramInvalidationBus extends InvalidationBus {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger                  log     = LoggerFactory.getLogger(DatagramInvalidationBus.class);
+
+  /** Marks the datagrams of the bus. */
+  private static final int               MAGIC   = 0x48434942;
+
+  /** The largest datagram. */
+  private static final int               MAX_LEN = 65507;
+
+  /** The id of this node. */
+  private final long                     node    = new Random().nextLong();
+
+  /** The socket sending and receiving the datagrams. */
+  private final DatagramSocket           socket;
+
+  /** The addresses of the other nodes. */
+  private final Set<InetSocketAddress>   peers   = new LinkedHashSet<InetSocketAddress>();
+
+  /** The thread receiving the datagrams. */
+  private final Thread                   receiver;
+
+  /**
+   * Constructor. Binds the port and starts receiving.
+   *
+   * @param address The address this node listens on, the loopback
+   *          address if null or empty.
+   * @param port The port this node listens on.
+   * @param peers The addresses of the other nodes, as comma separated
+   *          host:port pairs, e.g. "localhost:7701,localhost:7702".
+   * @throws SocketException If the port could not be bound.
+   */
+  public DatagramInvalidationBus(String address, int port, String peers) throws SocketException {
+    final InetSocketAddress local = new InetSocketAddress(((address == null) || "".equals(address.trim())) ? "127.0.0.1" : address.trim(), port);
+
+    if (local.isUnresolved()) {
+      throw new SocketException("Unknown address " + address);
+    }
+
+    this.socket = new DatagramSocket(local);
+
+    for (final String peer : StringUtility.split(peers, ",")) {
+      final String host  = peer.trim();
+      final int    colon = host.lastIndexOf(':');
+
+      if (colon <= 0) {
+        log.error("! Ignoring peer without port: " + host);
+
+        continue;
+      }
+
+      final InetSocketAddress remote = new InetSocketAddress(host.substring(0, colon), StringUtility.StringToInteger(host.substring(colon + 1), 0));
+
+      if (remote.isUnresolved()) {
+        log.error("! Ignoring peer with unknown address: " + host);
+
+        continue;
+      }
+
+      this.peers.add(remote);
+    }
+
+    this.receiver = new Thread("InvalidationBus-" + port) {
+        public void run() {
+          receive();
+        }
+      };
+    this.receiver.setDaemon(true);
+    this.receiver.start();
+  }
+
+  /**
+   * Get the port this node listens on.
+   *
+   * @return The port.
+   */
+  public int getPort() {
+    return this.socket.getLocalPort();
+  }
+
+
+  public void publish(Listener origin, String channel, int type, String key) {
+    deliver(origin, channel, type, key);
+
+    final byte[] b;
+
+    try {
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      final DataOutputStream      dos = new DataOutputStream(bos);
+
+      dos.writeInt(MAGIC);
+      dos.writeLong(this.node);
+      dos.writeByte(type);
+      dos.writeUTF(channel);
+      dos.writeUTF(key);
+      dos.close();
+      b = bos.toByteArray();
+    } catch (IOException ioe) {
+      log.error("! Could not encode event " + type + " for " + key + ": " + ioe.getMessage());
+
+      return;
+    }
+
+    if (b.length > MAX_LEN) {
+      log.error("! Key too long to publish: " + key.substring(0, Math.min(64, key.length())) + "...");
+
+      return;
+    }
+
+    for (final InetSocketAddress peer : this.peers) {
+      try {
+        this.socket.send(new DatagramPacket(b, b.length, peer));
+      } catch (IOException ioe) {
+        log.debug("! Could not send event to " + peer + ": " + ioe.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Stop receiving and close the socket.
+   */
+  public void close() {
+    this.socket.close();
+  }
+
+
+  /**
+   * Receive the datagrams of the peers until the socket is
+   * closed, and deliver their events. Datagrams from others
+   * are dropped.
+   */
+  private void receive() {
+    final byte[]         b      = new byte[MAX_LEN];
+    final DatagramPacket packet = new DatagramPacket(b, b.length);
+
+    while (!this.socket.isClosed()) {
+      try {
+        packet.setLength(b.length);
+        this.socket.receive(packet);
+
+        if (!this.peers.contains(packet.getSocketAddress())) {
+          log.debug("! Dropping a datagram from " + packet.getSocketAddress() + ", not a peer");
+
+          continue;
+        }
+
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(b, 0, packet.getLength()));
+
+        if ((dis.readInt() != MAGIC) || (dis.readLong() == this.node)) {
+          continue;
+        }
+
+        final int    type    = dis.readByte();
+        final String channel = dis.readUTF();
+        final String key     = dis.readUTF();
+
+        deliver(null, channel, type, key);
+      } catch (IOException ioe) {
+        if (!this.socket.isClosed()) {
+          log.debug("! Could not receive event: " + ioe.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class provides a hierarchical timing wheel that expires timers
+ * at a resolution of one second.
+ * <p>
+ * The wheel has four levels of 64 slots each. The first level holds the
+ * timers that are due within the next 64 seconds, one slot per second; each
+ * further level covers 64 times the span of the level below it, so that the
+ * four levels cover about 194 days. Timers that are due even later are kept
+ * in the last slot of the last level and are put back into the wheel when
+ * that slot comes around. Whenever the first slot of a level is reached, the
+ * timers of the current slot of the level above are moved down into the
+ * level they now belong to. Scheduling and cancelling a timer are constant
+ * time operations, and each tick only touches the timers that are due or
+ * that move down one level.
+ * <p>
+ * The timers are the links of the slots themselves, so the wheel does not
+ * allocate any memory when scheduling or cancelling a timer.
+ * <p>
+ * There is a single wheel, driven by a single daemon thread, for all users.
+ * That thread also calls the registered tick listeners once per tick.
+ */
+public class ExpiryWheel {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger                log       = LoggerFactory.getLogger(ExpiryWheel.class);
+
+  /** The resolution of the wheel, in milliseconds. */
+  public static final long             TICK      = 1000;
+
+  /** Number of bits for the slots of one level. */
+  private static final int             BITS      = 6;
+
+  /** Number of slots per level. */
+  private static final int             SLOTS     = 1 << BITS;
+
+  /** Number of levels. */
+  private static final int             LEVELS    = 4;
+
+  /** Number of ticks covered by the entire wheel. */
+  private static final long            SPAN      = 1L << (BITS * LEVELS);
+
+  private static ExpiryWheel           instance  = null;
+  private static Object                mutex     = new Object();
+
+  /** The slots, by level. */
+  private final Timer[][]              wheel     = new Timer[LEVELS][SLOTS];
+
+  /** The tick the wheel has advanced to. */
+  private long                         currentTick;
+
+  /** The timers found due during a tick. Only used by the tick thread. */
+  private final ArrayList<Timer>       due       = new ArrayList<Timer>();
+
+  /** The tick listeners. Held weakly, so they may be garbage collected. */
+  private final Set<TickListener>      listeners = Collections.newSetFromMap(new WeakHashMap<TickListener, Boolean>());
+
+  /** The thread driving the wheel. */
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Constructor. Starts the thread driving the wheel.
+   */
+  private ExpiryWheel() {
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        this.wheel[level][slot] = new Slot();
+      }
+    }
+
+    this.currentTick = System.currentTimeMillis() / TICK;
+
+    this.executor    = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread thread = new Thread(r, "ExpiryWheel");
+          thread.setDaemon(true);
+
+          return thread;
+        }
+      });
+
+    this.executor.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          try {
+            advance(System.currentTimeMillis() / TICK);
+          } catch (Throwable t) {
+            log.error("! Error advancing the expiry wheel: " + t.getMessage());
+          }
+        }
+      }, TICK, TICK, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Get the wheel, starting it if needed.
+   *
+   * @return The wheel.
+   */
+  public static ExpiryWheel getInstance() {
+    if (instance == null) {
+      synchronized (mutex) {
+        if (instance == null) {
+          instance = new ExpiryWheel();
+        }
+      }
+    }
+
+    return instance;
+  }
+
+
+  /**
+   * Get the thread driving the wheel, to run other periodic
+   * house keeping tasks on. Such tasks must be short, as
+   * they delay the ticks of the wheel.
+   *
+   * @return The executor of the thread driving the wheel.
+   */
+  public ScheduledExecutorService getExecutor() {
+    return this.executor;
+  }
+
+
+  /**
+   * Schedule a timer. If the timer was scheduled already, it
+   * is rescheduled.
+   *
+   * @param timer The timer.
+   * @param expiryTime The time at which the timer is due, in milliseconds.
+   */
+  public synchronized void schedule(Timer timer, long expiryTime) {
+    unlink(timer);
+    timer.deadline = (expiryTime + TICK - 1) / TICK;
+    insert(timer);
+  }
+
+
+  /**
+   * Cancel a timer. Nothing happens if the timer was not
+   * scheduled.
+   *
+   * @param timer The timer.
+   */
+  public synchronized void cancel(Timer timer) {
+    unlink(timer);
+  }
+
+
+  /**
+   * Register a listener to be called once per tick.
+   *
+   * @param listener The listener.
+   */
+  public void addTickListener(TickListener listener) {
+    synchronized (this.listeners) {
+      this.listeners.add(listener);
+    }
+  }
+
+
+  /**
+   * Unregister a tick listener.
+   *
+   * @param listener The listener.
+   */
+  public void removeTickListener(TickListener listener) {
+    synchronized (this.listeners) {
+      this.listeners.remove(listener);
+    }
+  }
+
+
+  /**
+   * Advance the wheel to the given tick and expire the timers
+   * that are due. The timers are expired after the wheel lock
+   * was released, so they may take other locks.
+   *
+   * @param tick The tick to advance to.
+   */
+  private void advance(long tick) {
+    synchronized (this) {
+      while (this.currentTick < tick) {
+        ++this.currentTick;
+
+        /*
+         * Move the timers of the levels above down,
+         * starting with the highest level that reached
+         * the boundary of one of its slots.
+         */
+        for (int level = LEVELS - 1; level > 0; level--) {
+          if ((this.currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+            final Timer slot = this.wheel[level][(int) ((this.currentTick >>> (BITS * level)) & (SLOTS - 1))];
+
+            while (slot.next != slot) {
+              final Timer timer = slot.next;
+              unlink(timer);
+              insert(timer);
+            }
+          }
+        }
+
+        final Timer slot = this.wheel[0][(int) (this.currentTick & (SLOTS - 1))];
+
+        while (slot.next != slot) {
+          final Timer timer = slot.next;
+          unlink(timer);
+
+          if (timer.deadline <= this.currentTick) {
+            this.due.add(timer);
+          } else {
+            insert(timer);
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < this.due.size(); i++) {
+      try {
+        this.due.get(i).expire();
+      } catch (Throwable t) {
+        log.error("! Error expiring a timer: " + t.getMessage());
+      }
+    }
+
+    this.due.clear();
+
+    final TickListener[] tickListeners;
+
+    synchronized (this.listeners) {
+      tickListeners = this.listeners.toArray(new TickListener[this.listeners.size()]);
+    }
+
+    for (final TickListener listener : tickListeners) {
+      /*
+       * Listeners collected while copying the
+       * set leave empty places in the array.
+       */
+      if (listener == null) {
+        continue;
+      }
+
+      try {
+        listener.tick();
+      } catch (Throwable t) {
+        log.error("! Error calling a tick listener: " + t.getMessage());
+      }
+    }
+  }
+
+
+  /**
+   * Put a timer into the slot it belongs to.
+   *
+   * @param timer The timer.
+   */
+  private void insert(Timer timer) {
+    long deadline = timer.deadline;
+
+    if (deadline <= this.currentTick) {
+      deadline = this.currentTick + 1;
+    } else if ((deadline - this.currentTick) >= SPAN) {
+      deadline = this.currentTick + SPAN - 1;
+    }
+
+    final long delta = deadline - this.currentTick;
+    int        level = 0;
+
+    while ((level < (LEVELS - 1)) && (delta >= (1L << (BITS * (level + 1))))) {
+      level++;
+    }
+
+    final Timer slot = this.wheel[level][(int) ((deadline >>> (BITS * level)) & (SLOTS - 1))];
+
+    timer.prev     = slot.prev;
+    timer.next     = slot;
+    slot.prev.next = timer;
+    slot.prev      = timer;
+  }
+
+
+  /**
+   * Take a timer out of its slot.
+   *
+   * @param timer The timer.
+   */
+  private void unlink(Timer timer) {
+    if (timer.prev == null) {
+      return;
+    }
+
+    timer.prev.next = timer.next;
+    timer.next.prev = timer.prev;
+    timer.prev      = null;
+    timer.next      = null;
+  }
+
+
+  /**
+   * A timer. Subclasses implement what happens when it is due.
+   */
+  public abstract static class Timer {
+    /** The previous timer in the slot. Null if not scheduled. */
+    private Timer prev     = null;
+
+    /** The next timer in the slot. */
+    private Timer next     = null;
+
+    /** The tick at which the timer is due. */
+    private long  deadline = 0;
+
+    /**
+     * Called by the thread driving the wheel when the timer is due.
+     */
+    protected abstract void expire();
+  }
+
+  /**
+   * The sentinel of a slot.
+   */
+  private static class Slot extends Timer {
+    /**
+     * Constructor.
+     */
+    protected Slot() {
+      ((Timer) this).prev = this;
+      ((Timer) this).next = this;
+    }
+
+
+    protected void expire() {}
+  }
+
+  /**
+   * A listener to be called once per tick.
+   */
+  public interface TickListener {
+    public void tick();
+  }
+}
@@ -0,0 +1,187 @@
+package com.sap.hcpcu.tools;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class provides a compact estimate of how often keys have been
+ * accessed recently, as used by the TinyLFU admission policy of the
+ * {@link Cache}.
+ * <p>
+ * The estimate is a count-min sketch: Each key is counted in four counters,
+ * picked by four different hash functions, and its frequency is the smallest
+ * of them, so that collisions can only make a key look more frequent than it
+ * is. The counters have four bits each, i.e. they count up to 15, and sixteen
+ * of them are packed into one long. Once the number of increments reaches ten
+ * times the number of keys the sketch was sized for, all counters are halved,
+ * so that the sketch forgets about keys that used to be popular but are not
+ * accessed anymore.
+ * <p>
+ * The counters are updated with compare and set operations, so the sketch can
+ * be incremented and read by any number of threads without locking.
+ */
+public class FrequencySketch {
+  /** The seeds of the four hash functions. */
+  private static final long[] SEEDS      = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+  /** Mask clearing the bit that moves into the next counter when halving. */
+  private static final long   RESET_MASK = 0x7777777777777777L;
+
+  /** Mask selecting the lowest bit of each counter. */
+  private static final long   ONE_MASK   = 0x1111111111111111L;
+
+  /** The counters, sixteen per long. */
+  private final AtomicLongArray table;
+
+  /** Mask selecting a long of the table. */
+  private final int           tableMask;
+
+  /** Number of increments after which the counters are halved. */
+  private final int           sampleSize;
+
+  /** Number of increments since the counters were last halved. */
+  private final AtomicInteger size       = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param maximumSize The number of keys the sketch is sized for,
+   *          typically the size of the cache.
+   */
+  public FrequencySketch(int maximumSize) {
+    final int maximum = Math.min(Math.max(1, maximumSize), 1 << 26);
+    int       length  = 8;
+
+    while (length < maximum) {
+      length <<= 1;
+    }
+
+    this.table      = new AtomicLongArray(length);
+    this.tableMask  = length - 1;
+    this.sampleSize = 10 * maximum;
+  }
+
+  /**
+   * Get the estimated number of recent accesses to a key.
+   *
+   * @param hashCode The hash code of the key.
+   * @return The estimated frequency, from 0 to 15.
+   */
+  public int frequency(int hashCode) {
+    final int hash  = spread(hashCode);
+    final int start = (hash & 3) << 2;
+    int       freq  = 15;
+
+    for (int i = 0; i < 4; i++) {
+      final int count = (int) ((this.table.get(indexOf(hash, i)) >>> ((start + i) << 2)) & 0xfL);
+      freq = Math.min(freq, count);
+    }
+
+    return freq;
+  }
+
+
+  /**
+   * Record an access to a key. The counters are halved whenever
+   * the sample size was reached.
+   *
+   * @param hashCode The hash code of the key.
+   */
+  public void increment(int hashCode) {
+    final int hash  = spread(hashCode);
+    final int start = (hash & 3) << 2;
+    boolean   added = false;
+
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+
+    if (added && (this.size.incrementAndGet() >= this.sampleSize)) {
+      reset();
+    }
+  }
+
+
+  /**
+   * Increment a counter, unless it is saturated.
+   *
+   * @param i The index of the long holding the counter.
+   * @param j The index of the counter within the long.
+   * @return True if the counter was incremented.
+   */
+  private boolean incrementAt(int i, int j) {
+    final int  offset = j << 2;
+    final long mask   = 0xfL << offset;
+
+    while (true) {
+      final long value = this.table.get(i);
+
+      if ((value & mask) == mask) {
+        return false;
+      }
+
+      if (this.table.compareAndSet(i, value, value + (1L << offset))) {
+        return true;
+      }
+    }
+  }
+
+
+  /**
+   * Halve all counters. Only one thread does so at a time;
+   * the others keep counting meanwhile.
+   */
+  private synchronized void reset() {
+    if (this.size.get() < this.sampleSize) {
+      return;
+    }
+
+    int odd = 0;
+
+    for (int i = 0; i < this.table.length(); i++) {
+      while (true) {
+        final long value = this.table.get(i);
+
+        if (this.table.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) {
+          odd += Long.bitCount(value & ONE_MASK);
+
+          break;
+        }
+      }
+    }
+
+    this.size.set(Math.max(0, (this.size.get() - (odd >>> 2)) >>> 1));
+  }
+
+
+  /**
+   * Get the long holding the counter of a key for one of the
+   * hash functions.
+   *
+   * @param hash The spread hash code of the key.
+   * @param i The hash function.
+   * @return The index of the long.
+   */
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += (h >>> 32);
+
+    return ((int) h) & this.tableMask;
+  }
+
+
+  /**
+   * Spread the bits of a hash code, as hash codes of strings
+   * differ mostly in their low bits.
+   *
+   * @param x The hash code.
+   * @return The spread hash code.
+   */
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+    return (x >>> 16) ^ x;
+  }
+}
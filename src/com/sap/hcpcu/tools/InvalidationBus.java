@@ -0,0 +1,164 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * This class provides the means for caches on several nodes of a cluster to
+ * tell each other about the entries they changed, so that each node drops its
+ * own copy of a changed entry at once rather than serving it until it expires.
+ * <p>
+ * A cache attached to a bus by its setBus function publishes an event on its
+ * channel whenever an entry is put into it or removed from it by its user, or
+ * when it is flushed; the other caches on the same channel then remove the
+ * entry, or the entries, from themselves. They do not publish the removal in
+ * turn, and entries moved out or expired by a cache on its own are not
+ * published at all.
+ * <p>
+ * How the events get from one cache to the others is up to the transport,
+ * i.e. the subclass: The {@link Loopback} bus delivers them to the other
+ * caches of the same JVM, e.g. for testing; the {@link DatagramInvalidationBus}
+ * sends them to other JVMs, e.g. other instances of the application on the
+ * same machine or in the same network. Either way, the events are only hints:
+ * A node that misses an event still drops its stale entry when it expires.
+ */
+public abstract class InvalidationBus {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger                                     log           = LoggerFactory.getLogger(InvalidationBus.class);
+
+  /** Event: An entry was put into the cache. */
+  public static final int                                   PUT           = 0;
+
+  /** Event: An entry was removed from the cache. */
+  public static final int                                   REMOVE        = 1;
+
+  /** Event: The entries whose keys start with the key were removed. */
+  public static final int                                   REMOVE_PREFIX = 2;
+
+  /** Event: The entries given the tag in the key were removed. */
+  public static final int                                   REMOVE_TAG    = 3;
+
+  /** Event: The entries whose keys contain the key were removed. */
+  public static final int                                   REMOVE_LIKE   = 4;
+
+  /** Event: The cache was flushed. The key is empty. */
+  public static final int                                   FLUSH         = 5;
+
+  /** The listeners of this node, by channel. */
+  private final ConcurrentHashMap<String, List<Listener>> listeners     = new ConcurrentHashMap<String, List<Listener>>();
+
+  /**
+   * Subscribe a listener to the events of a channel.
+   *
+   * @param channel The channel, e.g. the name of the cache.
+   * @param listener The listener.
+   */
+  public void subscribe(String channel, Listener listener) {
+    List<Listener> list = this.listeners.get(channel);
+
+    if (list == null) {
+      final List<Listener> created = new CopyOnWriteArrayList<Listener>();
+
+      list = this.listeners.putIfAbsent(channel, created);
+
+      if (list == null) {
+        list = created;
+      }
+    }
+
+    list.add(listener);
+  }
+
+
+  /**
+   * Unsubscribe a listener from the events of a channel.
+   *
+   * @param channel The channel.
+   * @param listener The listener.
+   */
+  public void unsubscribe(String channel, Listener listener) {
+    final List<Listener> list = this.listeners.get(channel);
+
+    if (list != null) {
+      list.remove(listener);
+    }
+  }
+
+
+  /**
+   * Publish an event to the other listeners of a channel.
+   *
+   * @param origin The listener publishing the event, which does
+   *          not receive it.
+   * @param channel The channel.
+   * @param type The type of the event, e.g. PUT.
+   * @param key The key the event is about.
+   */
+  public abstract void publish(Listener origin, String channel, int type, String key);
+
+
+  /**
+   * Stop the transport of the bus. The default does nothing.
+   */
+  public void close() {}
+
+
+  /**
+   * Deliver an event to the listeners of this node.
+   *
+   * @param origin The listener that published the event, if it is
+   *          on this node, which does not receive it; else null.
+   * @param channel The channel.
+   * @param type The type of the event.
+   * @param key The key the event is about.
+   */
+  protected void deliver(Listener origin, String channel, int type, String key) {
+    final List<Listener> list = this.listeners.get(channel);
+
+    if (list == null) {
+      return;
+    }
+
+    for (final Listener listener : list) {
+      if (listener == origin) {
+        continue;
+      }
+
+      try {
+        listener.onEvent(type, key);
+      } catch (RuntimeException re) {
+        log.error("! Error delivering event " + type + " for " + key + " on " + channel + ": " + re.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Receives the events published by the other listeners of a channel.
+   */
+  public interface Listener {
+    /**
+     * Called for each event published by another listener.
+     *
+     * @param type The type of the event, e.g. PUT.
+     * @param key The key the event is about.
+     */
+    void onEvent(int type, String key);
+  }
+
+  /**
+   * A bus delivering the events to the other listeners of the
+   * same JVM, in the thread publishing them.
+   */
+  public static class Loopback extends InvalidationBus {
+    public void publish(Listener origin, String channel, int type, String key) {
+      deliver(origin, channel, type, key);
+    }
+  }
+}
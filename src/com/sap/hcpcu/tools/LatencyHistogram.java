@@ -0,0 +1,179 @@
+package com.sap.hcpcu.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class provides a histogram of latencies, e.g. of the loads of the
+ * {@link Cache}, from which the percentiles of the latencies can be read.
+ * <p>
+ * The latencies are counted in microseconds, in buckets of logarithmic
+ * size: each power of two is split into four buckets, so that a percentile
+ * is off by at most a quarter of its value, however long the latencies
+ * are, while the histogram takes a fixed 256 counters. Recording a latency
+ * increments one bucket without locking, so the histogram can be recorded
+ * and read by any number of threads at the same time.
+ */
+public class LatencyHistogram {
+  /** Number of buckets per power of two, as a power of two. */
+  private static final int      SUB_BITS = 2;
+
+  /** Number of buckets per power of two. */
+  private static final int      SUB      = 1 << SUB_BITS;
+
+  /** Number of buckets. */
+  private static final int      BUCKETS  = SUB * (64 - SUB_BITS + 1);
+
+  /** The number of latencies per bucket. */
+  private final AtomicLongArray buckets  = new AtomicLongArray(BUCKETS);
+
+  /** The number of latencies. */
+  private final StripedCounter  count    = new StripedCounter();
+
+  /** The sum of the latencies, in microseconds. */
+  private final StripedCounter  total    = new StripedCounter();
+
+  /** The longest latency, in microseconds. */
+  private final AtomicLong      max      = new AtomicLong();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos The latency in nanoseconds.
+   */
+  public void record(long nanos) {
+    final long micros = Math.max(0, nanos / 1000);
+
+    this.buckets.incrementAndGet(bucket(micros));
+    this.count.increment();
+    this.total.add(micros);
+
+    long current;
+
+    while ((current = this.max.get()) < micros) {
+      if (this.max.compareAndSet(current, micros)) {
+        break;
+      }
+    }
+  }
+
+
+  /**
+   * Get the number of latencies recorded.
+   *
+   * @return The number of latencies.
+   */
+  public long getCount() {
+    return this.count.sum();
+  }
+
+
+  /**
+   * Get the mean latency.
+   *
+   * @return The mean latency in milliseconds, 0 if none was recorded.
+   */
+  public double getMean() {
+    final long count = this.count.sum();
+
+    return (count == 0) ? 0 : (this.total.sum() / (1000.0 * count));
+  }
+
+
+  /**
+   * Get the longest latency.
+   *
+   * @return The longest latency in milliseconds.
+   */
+  public double getMax() {
+    return this.max.get() / 1000.0;
+  }
+
+
+  /**
+   * Get a percentile of the latencies, i.e. the latency that the given
+   * share of the latencies did not exceed. The latency returned is the
+   * upper bound of the bucket holding the percentile, but never more
+   * than the longest latency.
+   *
+   * @param percentile The percentile, from 0 to 100, e.g. 99.9.
+   * @return The latency in milliseconds, 0 if none was recorded.
+   */
+  public double getPercentile(double percentile) {
+    final long[] counts = new long[BUCKETS];
+    long         count  = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = this.buckets.get(i);
+      count    += counts[i];
+    }
+
+    if (count == 0) {
+      return 0;
+    }
+
+    final long rank = Math.max(1, (long) Math.ceil((count * Math.min(100, Math.max(0, percentile))) / 100));
+    long       seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+
+      if (seen >= rank) {
+        return Math.min(upperBound(i), this.max.get()) / 1000.0;
+      }
+    }
+
+    return getMax();
+  }
+
+
+  /**
+   * Clear the histogram. Latencies recorded while clearing
+   * may or may not be kept.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      this.buckets.set(i, 0);
+    }
+
+    this.count.add(-this.count.sum());
+    this.total.add(-this.total.sum());
+    this.max.set(0);
+  }
+
+
+  /**
+   * Get the bucket of a latency.
+   *
+   * @param micros The latency in microseconds.
+   * @return The index of the bucket.
+   */
+  private static int bucket(long micros) {
+    if (micros < SUB) {
+      return (int) micros;
+    }
+
+    final int msb = 63 - Long.numberOfLeadingZeros(micros);
+
+    return ((msb - SUB_BITS + 1) << SUB_BITS) + (int) ((micros >>> (msb - SUB_BITS)) & (SUB - 1));
+  }
+
+
+  /**
+   * Get the longest latency falling into a bucket.
+   *
+   * @param bucket The index of the bucket.
+   * @return The latency in microseconds.
+   */
+  private static long upperBound(int bucket) {
+    if (bucket < SUB) {
+      return bucket;
+    }
+
+    final int shift = (bucket >>> SUB_BITS) - 1;
+    final int sub   = bucket & (SUB - 1);
+
+    return ((long) (SUB + sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,199 @@
+package com.sap.hcpcu.tools;
+
+import java.nio.charset.Charset;
+
+import java.util.Arrays;
+
+
+/**
+ * A batch of lines, as read by the {@link LineSplitter}: the bytes of the
+ * lines in one buffer, and where each line starts and ends in it. The lines
+ * are only decoded into Strings when asked for, one by one, or field by
+ * field; the line breaks are not part of the lines.
+ * <p>
+ * The buffer is taken from a {@link BufferPool}; release the batch when
+ * done with it, to give the buffer back.
+ */
+public class LineBatch {
+  private final BufferPool pool;
+  private final Charset    charset;
+  private byte[]           buffer;
+
+  /** The start and end of each line, one after the other. */
+  private int[]            bounds;
+  private int              count     = 0;
+  private int              maxLength = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param pool The pool to give the buffer back to.
+   * @param buffer The buffer holding the lines.
+   * @param charset The charset to decode the lines with.
+   * @param lines The number of lines expected.
+   */
+  protected LineBatch(BufferPool pool, byte[] buffer, Charset charset, int lines) {
+    this.pool    = pool;
+    this.buffer  = buffer;
+    this.charset = charset;
+    this.bounds  = new int[2 * Math.max(16, lines)];
+  }
+
+  /**
+   * Add a line.
+   *
+   * @param start The start of the line in the buffer.
+   * @param end The end of the line in the buffer, exclusive.
+   */
+  protected void add(int start, int end) {
+    if ((2 * this.count) == this.bounds.length) {
+      this.bounds = Arrays.copyOf(this.bounds, 2 * this.bounds.length);
+    }
+
+    this.bounds[2 * this.count]       = start;
+    this.bounds[(2 * this.count) + 1] = end;
+    this.count++;
+
+    if ((end - start) > this.maxLength) {
+      this.maxLength = end - start;
+    }
+  }
+
+
+  /**
+   * Get the number of lines.
+   *
+   * @return The number of lines.
+   */
+  public int size() {
+    return this.count;
+  }
+
+
+  /**
+   * Get the length of the longest line.
+   *
+   * @return The length in bytes.
+   */
+  public int getMaxLength() {
+    return this.maxLength;
+  }
+
+
+  /**
+   * Get the buffer holding the lines, e.g. to parse them without
+   * decoding them first.
+   *
+   * @return The buffer.
+   */
+  public byte[] getBuffer() {
+    return this.buffer;
+  }
+
+
+  /**
+   * Get where a line starts in the buffer.
+   *
+   * @param line The line, from 0.
+   * @return The offset of the line.
+   */
+  public int getStart(int line) {
+    return this.bounds[2 * line];
+  }
+
+
+  /**
+   * Get the length of a line.
+   *
+   * @param line The line, from 0.
+   * @return The length in bytes.
+   */
+  public int getLength(int line) {
+    return this.bounds[(2 * line) + 1] - this.bounds[2 * line];
+  }
+
+
+  /**
+   * Check whether a line is blank, i.e. empty or only
+   * holding spaces and tabs.
+   *
+   * @param line The line, from 0.
+   * @return True if it is blank.
+   */
+  public boolean isBlank(int line) {
+    final int end = getStart(line) + getLength(line);
+
+    for (int i = getStart(line); i < end; i++) {
+      if ((this.buffer[i] != ' ') && (this.buffer[i] != '\t')) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Decode a line.
+   *
+   * @param line The line, from 0.
+   * @return The line.
+   */
+  public String getLine(int line) {
+    return new String(this.buffer, getStart(line), getLength(line), this.charset);
+  }
+
+
+  /**
+   * Decode the fields of a line, as separated by a separator. Like
+   * {@link StringUtility#split(String, String)}, empty fields are kept.
+   * The separator must be a single byte character, e.g. a comma.
+   *
+   * @param line The line, from 0.
+   * @param separator The separator.
+   * @return The fields; none for an empty line.
+   */
+  public String[] split(int line, char separator) {
+    final int start = getStart(line);
+    final int end   = start + getLength(line);
+
+    if (start == end) {
+      return new String[0];
+    }
+
+    final byte sep    = (byte) separator;
+    int        fields = 1;
+
+    for (int i = start; i < end; i++) {
+      if (this.buffer[i] == sep) {
+        fields++;
+      }
+    }
+
+    final String[] result = new String[fields];
+    int            field  = 0;
+    int            from   = start;
+
+    for (int i = start; i < end; i++) {
+      if (this.buffer[i] == sep) {
+        result[field++] = new String(this.buffer, from, i - from, this.charset);
+        from            = i + 1;
+      }
+    }
+
+    result[field] = new String(this.buffer, from, end - from, this.charset);
+
+    return result;
+  }
+
+
+  /**
+   * Give the buffer back to its pool. The batch must no longer be used.
+   */
+  public void release() {
+    if (this.buffer != null) {
+      this.pool.release(this.buffer);
+      this.buffer = null;
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package com.sap.hcpcu.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * This class splits a stream of bytes into {@link LineBatch}es, without
+ * decoding the bytes or making a String of each line: the bytes are read
+ * straight into a buffer from a {@link BufferPool}, the line breaks are
+ * found by scanning the buffer, and the lines are handed over as the
+ * offsets and lengths of the lines in the buffer, to be decoded only if
+ * and when needed.
+ * <p>
+ * A batch ends after a given number of lines, or when its buffer is full;
+ * only the bytes read after its last line are copied over to the buffer
+ * of the next batch. A line longer than a buffer gets a larger one, of
+ * up to {@link #MAX_LINE} bytes. Lines end at LF, or CR LF; the last line
+ * need not end with a line break.
+ * <p>
+ * The bytes may be read from the stream by {@link #next(InputStream)},
+ * which blocks until a batch is complete, or be given to the splitter as
+ * they come, by calling {@link #read(InputStream)} as long as there are
+ * bytes to read, taking the complete batches with {@link #poll()}, and
+ * the last one with {@link #finish()}. A splitter is used by one thread
+ * at a time; the batches may be handed over to other threads.
+ */
+public class LineSplitter {
+  /** The longest line, in bytes. */
+  public static final int  MAX_LINE  = 64 * 1024 * 1024;
+
+  /**
+   * The most bytes to read at once, so that little is read
+   * past the end of a batch, to be copied to the next one.
+   */
+  public static final int  MAX_READ  = 64 * 1024;
+
+  /** The pool of the buffers. */
+  private final BufferPool pool;
+
+  /** The charset to decode the lines with. */
+  private final Charset    charset;
+
+  /** The most lines in a batch. */
+  private final int        lines;
+
+  /** The buffer read into. */
+  private byte[]           buffer;
+
+  /** The batch being filled. */
+  private LineBatch        batch;
+
+  /** The batch complete, and not yet taken. */
+  private LineBatch        ready     = null;
+
+  /** The start of the line not yet complete. */
+  private int              lineStart = 0;
+
+  /** The end of the bytes scanned. */
+  private int              position  = 0;
+
+  /** The end of the bytes read. */
+  private int              limit     = 0;
+
+  /** Whether the end of the stream was read. */
+  private boolean          finished  = false;
+
+  /**
+   * Constructor.
+   *
+   * @param pool The pool of the buffers.
+   * @param charset The charset to decode the lines with.
+   * @param lines The most lines in a batch.
+   */
+  public LineSplitter(BufferPool pool, Charset charset, int lines) {
+    this.pool    = pool;
+    this.charset = charset;
+    this.lines   = Math.max(1, lines);
+    this.buffer  = pool.acquire();
+    this.batch   = newBatch();
+  }
+
+  /**
+   * Read the next batch of lines from a stream, blocking until it is
+   * complete or the end of the stream is read.
+   *
+   * @param in The stream.
+   * @return The batch, or null at the end of the stream.
+   * @throws IOException If the stream cannot be read, or a line is
+   *         longer than {@link #MAX_LINE}.
+   */
+  public LineBatch next(InputStream in) throws IOException {
+    while (true) {
+      final LineBatch result = poll();
+
+      if (result != null) {
+        return result;
+      }
+
+      if (this.finished) {
+        return null;
+      }
+
+      if (read(in) < 0) {
+        return finish();
+      }
+    }
+  }
+
+
+  /**
+   * Read from a stream once, as much as there is room for in the
+   * buffer, up to {@link #MAX_READ} bytes, and split what was read.
+   * If this completes a batch, it is to be taken by {@link #poll()}
+   * before reading on.
+   *
+   * @param in The stream.
+   * @return The number of bytes read, 0 if a batch is to be taken
+   *         first, or -1 at the end of the stream.
+   * @throws IOException If the stream cannot be read, or a line is
+   *         longer than {@link #MAX_LINE}.
+   */
+  public int read(InputStream in) throws IOException {
+    if (this.ready != null) {
+      return 0;
+    }
+
+    if (this.limit == this.buffer.length) {
+      if (this.batch.size() > 0) {
+        complete();
+
+        return 0;
+      }
+
+      grow();
+    }
+
+    final int n = in.read(this.buffer, this.limit, Math.min(MAX_READ, this.buffer.length - this.limit));
+
+    if (n < 0) {
+      return -1;
+    }
+
+    this.limit += n;
+    scan();
+
+    return n;
+  }
+
+
+  /**
+   * Take the batch completed, if any.
+   *
+   * @return The batch, or null if none is complete yet.
+   */
+  public LineBatch poll() {
+    final LineBatch result = this.ready;
+
+    if (result != null) {
+      this.ready = null;
+
+      /*
+       * Split what was read after the end of the
+       * batch, which may complete the next one.
+       */
+      scan();
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Take the last batch, at the end of the stream, with the last
+   * line if it did not end with a line break. Any batch completed
+   * before must have been taken by {@link #poll()}.
+   *
+   * @return The batch, or null if there are no more lines.
+   */
+  public LineBatch finish() {
+    if (this.finished) {
+      return null;
+    }
+
+    this.finished = true;
+
+    if (this.lineStart < this.limit) {
+      addLine(this.limit);
+    }
+
+    final LineBatch result = this.batch;
+    this.batch  = null;
+    this.buffer = null;
+
+    if (result.size() == 0) {
+      result.release();
+
+      return null;
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Give back the buffer of the batch being filled, e.g. when giving up
+   * on the stream. Batches taken before are to be released on their own.
+   */
+  public void release() {
+    this.finished = true;
+
+    if (this.ready != null) {
+      this.ready.release();
+      this.ready = null;
+    }
+
+    if (this.batch != null) {
+      this.batch.release();
+      this.batch  = null;
+      this.buffer = null;
+    }
+  }
+
+
+  /**
+   * Split bytes already in memory into one batch, e.g. as read back
+   * from a file. The last line must end with a line break.
+   *
+   * @param pool The pool to give the buffer to when the batch is released.
+   * @param buffer The bytes.
+   * @param charset The charset to decode the lines with.
+   * @return The batch, holding the buffer.
+   */
+  public static LineBatch split(BufferPool pool, byte[] buffer, Charset charset) {
+    final LineBatch batch = new LineBatch(pool, buffer, charset, 1024);
+    int             start = 0;
+
+    for (int i = 0; i < buffer.length; i++) {
+      if (buffer[i] == '\n') {
+        batch.add(start, ((i > start) && (buffer[i - 1] == '\r')) ? (i - 1) : i);
+        start = i + 1;
+      }
+    }
+
+    return batch;
+  }
+
+
+  /**
+   * Find the line breaks in the bytes read and not yet scanned, until
+   * the batch is complete.
+   */
+  private void scan() {
+    final byte[] b     = this.buffer;
+    final int    limit = this.limit;
+
+    for (int i = this.position; i < limit; i++) {
+      if (b[i] == '\n') {
+        addLine(i);
+        this.lineStart = i + 1;
+
+        if (this.batch.size() == this.lines) {
+          this.position = i + 1;
+          complete();
+
+          return;
+        }
+      }
+    }
+
+    this.position = limit;
+  }
+
+
+  /**
+   * Add the line from the start of the line to a line break,
+   * without a CR before it.
+   *
+   * @param end The line break, or the end of the bytes read.
+   */
+  private void addLine(int end) {
+    if ((end > this.lineStart) && (this.buffer[end - 1] == '\r')) {
+      end--;
+    }
+
+    this.batch.add(this.lineStart, end);
+  }
+
+
+  /**
+   * Complete the batch being filled, and start the next one in a buffer
+   * of its own, with the bytes read after the last line of the batch.
+   */
+  private void complete() {
+    final int rest = this.limit - this.lineStart;
+    byte[]    next = this.pool.acquire();
+
+    if (rest > (next.length / 2)) {
+      this.pool.release(next);
+      next = new byte[Math.max(this.pool.getSize(), 2 * rest)];
+    }
+
+    System.arraycopy(this.buffer, this.lineStart, next, 0, rest);
+
+    this.ready     = this.batch;
+    this.buffer    = next;
+    this.batch     = newBatch();
+    this.position -= this.lineStart;
+    this.limit     = rest;
+    this.lineStart = 0;
+  }
+
+
+  /**
+   * Give the line not yet complete, which fills the whole buffer,
+   * a larger buffer.
+   *
+   * @throws IOException If the line would be longer than {@link #MAX_LINE}.
+   */
+  private void grow() throws IOException {
+    if (this.buffer.length >= MAX_LINE) {
+      throw new IOException("Line longer than " + MAX_LINE + " bytes");
+    }
+
+    final byte[] next = new byte[(int) Math.min(MAX_LINE, 2L * this.buffer.length)];
+
+    System.arraycopy(this.buffer, 0, next, 0, this.limit);
+    this.batch.release();
+    this.buffer = next;
+    this.batch  = newBatch();
+  }
+
+
+  /**
+   * Create a batch in the buffer.
+   *
+   * @return The batch.
+   */
+  private LineBatch newBatch() {
+    return new LineBatch(this.pool, this.buffer, this.charset, Math.min(this.lines, 1024));
+  }
+}
@@ -0,0 +1,336 @@
+package com.sap.hcpcu.tools;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class provides storage for byte arrays outside of the Java heap, as
+ * used by the {@link Cache} for the compressed form of its entries.
+ * <p>
+ * The memory is taken from direct ByteBuffers of one megabyte each, the
+ * slabs. Each slab is cut into blocks of one size, a power of two between 64
+ * bytes and the size of a slab; a byte array is stored in the smallest block
+ * that fits it. Freed blocks are kept for reuse by later arrays of the same
+ * size class, so that the slabs, once allocated, are never given back, and
+ * up to half of a block may remain unused. Arrays bigger than a slab get a
+ * direct ByteBuffer of their own, which is released by the garbage collector
+ * once it was freed.
+ * <p>
+ * The store never takes more than its capacity; if an array does not fit,
+ * storing it fails, and the caller has to keep it on the heap.
+ * <p>
+ * A stored array is read through an InputStream running directly over its
+ * block, i.e. without copying it back to the heap first. As blocks are
+ * reused, a reader must retain a block while reading it, and the block is
+ * only put back for reuse once the last reader released it.
+ */
+public class OffHeapStore {
+  /** The size of a slab. */
+  public static final int       SLAB_SIZE  = 1 << 20;
+
+  /** The size of the smallest block. */
+  private static final int      MIN_SHIFT  = 6;
+
+  /** Number of size classes. */
+  private static final int      CLASSES    = 20 - MIN_SHIFT + 1;
+
+  /** The free blocks, by size class. */
+  private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>(CLASSES);
+
+  /** The maximum number of bytes to allocate. */
+  private final long            capacity;
+
+  /** The number of bytes allocated, in slabs and in blocks of their own. */
+  private long                  allocated  = 0;
+
+  /** The number of bytes held by the blocks in use. */
+  private long                  used       = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity The maximum number of bytes to allocate.
+   */
+  public OffHeapStore(long capacity) {
+    this.capacity = capacity;
+
+    for (int i = 0; i < CLASSES; i++) {
+      this.free.add(new ArrayDeque<ByteBuffer>());
+    }
+  }
+
+  /**
+   * Get the maximum number of bytes the store allocates.
+   *
+   * @return The number of bytes.
+   */
+  public long getCapacity() {
+    return this.capacity;
+  }
+
+
+  /**
+   * Get the number of bytes allocated by the store.
+   *
+   * @return The number of bytes.
+   */
+  public synchronized long getAllocated() {
+    return this.allocated;
+  }
+
+
+  /**
+   * Get the number of bytes held by the blocks in use.
+   *
+   * @return The number of bytes.
+   */
+  public synchronized long getUsed() {
+    return this.used;
+  }
+
+
+  /**
+   * Store a byte array.
+   *
+   * @param b The array.
+   * @param off The offset of the bytes to store.
+   * @param len The number of bytes to store.
+   * @return The block holding the bytes, null if they
+   *         do not fit into the store anymore.
+   */
+  public Block store(byte[] b, int off, int len) {
+    final ByteBuffer chunk = allocate(len);
+
+    if (chunk == null) {
+      return null;
+    }
+
+    chunk.put(b, off, len);
+    chunk.clear();
+
+    return new Block(this, chunk, len);
+  }
+
+
+  /**
+   * Take a block for a number of bytes.
+   *
+   * @param len The number of bytes.
+   * @return The block, cleared, null if there is no room.
+   */
+  private synchronized ByteBuffer allocate(int len) {
+    if (len > SLAB_SIZE) {
+      if ((this.allocated + len) > this.capacity) {
+        return null;
+      }
+
+      this.allocated += len;
+      this.used      += len;
+
+      return ByteBuffer.allocateDirect(len);
+    }
+
+    final int sizeClass = sizeClass(len);
+    final int blockSize = 1 << (sizeClass + MIN_SHIFT);
+
+    if (this.free.get(sizeClass).isEmpty()) {
+      if ((this.allocated + SLAB_SIZE) > this.capacity) {
+        return null;
+      }
+
+      final ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+      this.allocated += SLAB_SIZE;
+
+      for (int offset = 0; offset < SLAB_SIZE; offset += blockSize) {
+        slab.limit(offset + blockSize);
+        slab.position(offset);
+        this.free.get(sizeClass).add(slab.slice());
+      }
+    }
+
+    this.used += blockSize;
+
+    final ByteBuffer chunk = this.free.get(sizeClass).poll();
+    chunk.clear();
+
+    return chunk;
+  }
+
+
+  /**
+   * Put a block back for reuse.
+   *
+   * @param chunk The block.
+   */
+  private synchronized void free(ByteBuffer chunk) {
+    if (chunk.capacity() > SLAB_SIZE) {
+      this.allocated -= chunk.capacity();
+      this.used      -= chunk.capacity();
+
+      return;
+    }
+
+    this.used -= chunk.capacity();
+    this.free.get(sizeClass(chunk.capacity())).add(chunk);
+  }
+
+
+  /**
+   * Get the size class of the smallest block holding
+   * a number of bytes.
+   *
+   * @param len The number of bytes, at most the size of a slab.
+   * @return The size class.
+   */
+  private static int sizeClass(int len) {
+    int sizeClass = 0;
+
+    while ((1 << (sizeClass + MIN_SHIFT)) < len) {
+      sizeClass++;
+    }
+
+    return sizeClass;
+  }
+
+
+  /**
+   * A byte array held by the store. The block is freed
+   * once it was released by its owner and by all readers.
+   */
+  public static class Block {
+    /** The store holding the block. */
+    private final OffHeapStore  store;
+
+    /** The block. */
+    private final ByteBuffer    chunk;
+
+    /** The number of bytes stored. */
+    private final int           length;
+
+    /** The owner and the readers holding the block. */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Constructor.
+     *
+     * @param store The store holding the block.
+     * @param chunk The block.
+     * @param length The number of bytes stored.
+     */
+    protected Block(OffHeapStore store, ByteBuffer chunk, int length) {
+      this.store  = store;
+      this.chunk  = chunk;
+      this.length = length;
+    }
+
+    /**
+     * Get the number of bytes stored.
+     *
+     * @return The number of bytes.
+     */
+    public int getLength() {
+      return this.length;
+    }
+
+
+    /**
+     * Retain the block for reading.
+     *
+     * @return True if the block was retained, false if
+     *         it has been freed already.
+     */
+    public boolean retain() {
+      while (true) {
+        final int count = this.references.get();
+
+        if (count <= 0) {
+          return false;
+        }
+
+        if (this.references.compareAndSet(count, count + 1)) {
+          return true;
+        }
+      }
+    }
+
+
+    /**
+     * Release the block. The block is freed when the last
+     * reference was released.
+     */
+    public void release() {
+      if (this.references.decrementAndGet() == 0) {
+        this.store.free(this.chunk);
+      }
+    }
+
+
+    /**
+     * Open a stream reading the stored bytes straight from the
+     * block. The block must be retained while reading.
+     *
+     * @return The stream.
+     */
+    public InputStream openStream() {
+      final ByteBuffer buffer = this.chunk.duplicate();
+      buffer.limit(this.length);
+
+      return new ByteBufferInputStream(buffer);
+    }
+  }
+
+  /**
+   * An InputStream reading from a ByteBuffer.
+   */
+  protected static class ByteBufferInputStream extends InputStream {
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer The buffer, positioned at the first byte to read.
+     */
+    protected ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    public int read() {
+      return this.buffer.hasRemaining() ? (this.buffer.get() & 0xff) : -1;
+    }
+
+
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+
+      final int n = Math.min(len, this.buffer.remaining());
+      this.buffer.get(b, off, n);
+
+      return n;
+    }
+
+
+    public long skip(long n) {
+      final int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+      this.buffer.position(this.buffer.position() + skipped);
+
+      return skipped;
+    }
+
+
+    public int available() {
+      return this.buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,425 @@
+package com.sap.hcpcu.tools;
+
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Writer;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * This class provides the statistics of a {@link DatabasePool}: how many
+ * of its connections are in use, idle or waited for, how long it took to
+ * get one, how long the statements took, by their SQL, and how many
+ * connections were not given back to the pool.
+ * <p>
+ * As the {@link CacheStatistics}, the counters are {@link StripedCounter}s
+ * and the latencies are kept in {@link LatencyHistogram}s, so recording
+ * never takes a lock. The latencies of the statements are kept for the
+ * first {@link #MAX_STATEMENTS} different SQL statements; the others are
+ * counted together, under {@link #OTHER}.
+ * <p>
+ * The connections in use, idle and waited for are read from the pool of
+ * connections when asked for; for a container managed data source, they
+ * are up to the container, and reported as 0.
+ * <p>
+ * The statistics can be registered with the platform MBean server, to be
+ * watched with any JMX console, and they are returned as JSON by the
+ * JSONPoolStatistics model of the application.
+ */
+public class PoolStatistics implements PoolStatisticsMBean {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger                                      log               = LoggerFactory.getLogger(PoolStatistics.class);
+
+  /** The most different SQL statements to keep the latencies of. */
+  public static final int                                    MAX_STATEMENTS    = 256;
+
+  /** The SQL the other statements are counted under. */
+  public static final String                                 OTHER             = "(other)";
+
+  /** The pool the statistics are kept for. */
+  private final DatabasePool                                 pool;
+
+  /** The connections had from the pool. */
+  private final StripedCounter                               borrows           = new StripedCounter();
+
+  /** The attempts to get a connection that failed. */
+  private final StripedCounter                               borrowFailures    = new StripedCounter();
+
+  /** The statements that failed. */
+  private final StripedCounter                               statementFailures = new StripedCounter();
+
+  /** The connections given up on, as they were not given back in time. */
+  private final StripedCounter                               abandoned         = new StripedCounter();
+
+  /** The latencies of getting a connection. */
+  private final LatencyHistogram                             borrowLatency     = new LatencyHistogram();
+
+  /** The latencies of all statements. */
+  private final LatencyHistogram                             statementLatency  = new LatencyHistogram();
+
+  /** The latencies of the batches written. */
+  private final LatencyHistogram                             batchLatency      = new LatencyHistogram();
+
+  /** The latencies of the statements, by their SQL. */
+  private final ConcurrentHashMap<String, LatencyHistogram>  statements        = new ConcurrentHashMap<String, LatencyHistogram>();
+
+  /** The name the statistics are registered under, null if they are not. */
+  private ObjectName                                         name              = null;
+
+  /**
+   * Constructor.
+   *
+   * @param pool The pool to keep the statistics for.
+   */
+  public PoolStatistics(DatabasePool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Record getting a connection.
+   *
+   * @param nanos The time it took, in nanoseconds.
+   * @param success False if no connection could be had.
+   */
+  public void recordBorrow(long nanos, boolean success) {
+    if (success) {
+      this.borrows.increment();
+    } else {
+      this.borrowFailures.increment();
+    }
+
+    this.borrowLatency.record(nanos);
+  }
+
+
+  /**
+   * Record running a statement, from preparing it to having
+   * read its result.
+   *
+   * @param sql The SQL of the statement.
+   * @param nanos The time it took, in nanoseconds.
+   * @param success False if the statement failed.
+   */
+  public void recordStatement(String sql, long nanos, boolean success) {
+    if (!success) {
+      this.statementFailures.increment();
+    }
+
+    this.statementLatency.record(nanos);
+
+    LatencyHistogram latency = this.statements.get(sql);
+
+    if (latency == null) {
+      final String key = (this.statements.size() < MAX_STATEMENTS) ? sql : OTHER;
+
+      latency = this.statements.get(key);
+
+      if (latency == null) {
+        final LatencyHistogram created = new LatencyHistogram();
+
+        latency = this.statements.putIfAbsent(key, created);
+
+        if (latency == null) {
+          latency = created;
+        }
+      }
+    }
+
+    latency.record(nanos);
+  }
+
+
+  /**
+   * Record a connection given up on.
+   */
+  public void recordAbandoned() {
+    this.abandoned.increment();
+  }
+
+
+  public int getActive() {
+    final GenericObjectPool<PoolableConnection> connections = this.pool.getConnectionPool();
+
+    return (connections == null) ? 0 : connections.getNumActive();
+  }
+
+
+  public int getIdle() {
+    final GenericObjectPool<PoolableConnection> connections = this.pool.getConnectionPool();
+
+    return (connections == null) ? 0 : connections.getNumIdle();
+  }
+
+
+  public int getWaiters() {
+    final GenericObjectPool<PoolableConnection> connections = this.pool.getConnectionPool();
+
+    return (connections == null) ? 0 : connections.getNumWaiters();
+  }
+
+
+  public int getMaxTotal() {
+    final GenericObjectPool<PoolableConnection> connections = this.pool.getConnectionPool();
+
+    return (connections == null) ? 0 : connections.getMaxTotal();
+  }
+
+
+  public long getBorrowCount() {
+    return this.borrows.sum();
+  }
+
+
+  public long getBorrowFailureCount() {
+    return this.borrowFailures.sum();
+  }
+
+
+  public double getBorrowLatencyMean() {
+    return this.borrowLatency.getMean();
+  }
+
+
+  public double getBorrowLatency50() {
+    return this.borrowLatency.getPercentile(50);
+  }
+
+
+  public double getBorrowLatency99() {
+    return this.borrowLatency.getPercentile(99);
+  }
+
+
+  public double getMaxBorrowLatency() {
+    return this.borrowLatency.getMax();
+  }
+
+
+  public long getStatementCount() {
+    return this.statementLatency.getCount();
+  }
+
+
+  public long getStatementFailureCount() {
+    return this.statementFailures.sum();
+  }
+
+
+  public double getStatementLatency99() {
+    return this.statementLatency.getPercentile(99);
+  }
+
+
+  public long getBatchCount() {
+    return this.batchLatency.getCount();
+  }
+
+
+  public double getBatchLatency99() {
+    return this.batchLatency.getPercentile(99);
+  }
+
+
+  public long getAbandonedCount() {
+    return this.abandoned.sum();
+  }
+
+
+  /**
+   * Get the ten statements with the longest 99th percentile latency,
+   * each as one line giving its latencies and SQL.
+   *
+   * @return The statements, slowest first.
+   */
+  public String[] getSlowestStatements() {
+    final List<Map.Entry<String, LatencyHistogram>> slowest = getSlowest(10);
+    final String[]                                  result  = new String[slowest.size()];
+
+    for (int i = 0; i < result.length; i++) {
+      final LatencyHistogram latency = slowest.get(i).getValue();
+
+      result[i] = "p99 " + latency.getPercentile(99) + " ms, mean " + latency.getMean() + " ms, " + latency.getCount() + " runs: " + slowest.get(i).getKey();
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Get the statements with the longest 99th percentile latency.
+   *
+   * @param max The most statements to return.
+   * @return The SQL of the statements with their latencies, slowest first.
+   */
+  public List<Map.Entry<String, LatencyHistogram>> getSlowest(int max) {
+    final List<Map.Entry<String, LatencyHistogram>> result = new ArrayList<Map.Entry<String, LatencyHistogram>>(this.statements.entrySet());
+
+    Collections.sort(result, new Comparator<Map.Entry<String, LatencyHistogram>>() {
+        public int compare(Map.Entry<String, LatencyHistogram> a, Map.Entry<String, LatencyHistogram> b) {
+          return Double.compare(b.getValue().getPercentile(99), a.getValue().getPercentile(99));
+        }
+      });
+
+    return (result.size() > max) ? result.subList(0, max) : result;
+  }
+
+
+  /**
+   * Get the latencies of getting a connection.
+   *
+   * @return The latencies.
+   */
+  public LatencyHistogram getBorrowLatency() {
+    return this.borrowLatency;
+  }
+
+
+  /**
+   * Get the latencies of all statements.
+   *
+   * @return The latencies.
+   */
+  public LatencyHistogram getStatementLatency() {
+    return this.statementLatency;
+  }
+
+
+  /**
+   * Get the latencies of the batches written.
+   *
+   * @return The latencies.
+   */
+  public LatencyHistogram getBatchLatency() {
+    return this.batchLatency;
+  }
+
+
+  public void reset() {
+    for (final StripedCounter counter : new StripedCounter[] { this.borrows, this.borrowFailures, this.statementFailures, this.abandoned }) {
+      counter.add(-counter.sum());
+    }
+
+    this.borrowLatency.reset();
+    this.statementLatency.reset();
+    this.batchLatency.reset();
+    this.statements.clear();
+  }
+
+
+  /**
+   * Get a Writer for the pool of connections to log the connections
+   * it gives up on to, with the stack traces of where they were had
+   * from the pool; each one given up on is counted.
+   *
+   * @return The Writer.
+   */
+  protected Writer getAbandonedLog() {
+    return new Writer() {
+        private final StringBuilder line = new StringBuilder();
+
+        public void write(char[] cbuf, int off, int len) {
+          synchronized (this.line) {
+            for (int i = off; i < (off + len); i++) {
+              if (cbuf[i] == '\n') {
+                log();
+              } else if (cbuf[i] != '\r') {
+                this.line.append(cbuf[i]);
+              }
+            }
+          }
+        }
+
+
+        public void flush() {
+          synchronized (this.line) {
+            log();
+          }
+        }
+
+
+        public void close() {
+          flush();
+        }
+
+
+        private void log() {
+          if (this.line.length() == 0) {
+            return;
+          }
+
+          final String text = this.line.toString();
+          this.line.setLength(0);
+
+          if (text.contains("has not been returned to the pool")) {
+            recordAbandoned();
+            log.error("! Connection of " + PoolStatistics.this.pool.getName() + " given up on, not given back in time: " + text);
+          } else {
+            log.error("!   " + text);
+          }
+        }
+      };
+  }
+
+
+  /**
+   * Register the statistics with the platform MBean server, under
+   * com.sap.hcpcu:type=DatabasePool,name=<i>name</i>, replacing any
+   * statistics registered under that name before.
+   *
+   * @param name The name of the pool.
+   */
+  public synchronized void register(String name) {
+    unregister();
+
+    try {
+      final MBeanServer server     = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName  objectName = new ObjectName("com.sap.hcpcu:type=DatabasePool,name=" + ObjectName.quote(name));
+
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+
+      server.registerMBean(this, objectName);
+      this.name = objectName;
+      log.debug("+ Registered pool statistics as " + objectName);
+    } catch (Exception e) {
+      log.error("! Could not register the pool statistics as " + name + ": " + e.getMessage());
+    }
+  }
+
+
+  /**
+   * Unregister the statistics from the platform MBean server,
+   * if they are registered.
+   */
+  public synchronized void unregister() {
+    if (this.name == null) {
+      return;
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+    } catch (Exception e) {
+      log.debug("! Could not unregister the pool statistics " + this.name + ": " + e.getMessage());
+    }
+
+    this.name = null;
+  }
+}
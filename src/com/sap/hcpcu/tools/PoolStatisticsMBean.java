@@ -0,0 +1,44 @@
+package com.sap.hcpcu.tools;
+
+/**
+ * The management interface of the {@link PoolStatistics}, as shown by JMX
+ * consoles. Counts are cumulative since the pool was created or the
+ * statistics were last reset; latencies are in milliseconds.
+ */
+public interface PoolStatisticsMBean {
+  public int getActive();
+
+  public int getIdle();
+
+  public int getWaiters();
+
+  public int getMaxTotal();
+
+  public long getBorrowCount();
+
+  public long getBorrowFailureCount();
+
+  public double getBorrowLatencyMean();
+
+  public double getBorrowLatency50();
+
+  public double getBorrowLatency99();
+
+  public double getMaxBorrowLatency();
+
+  public long getStatementCount();
+
+  public long getStatementFailureCount();
+
+  public double getStatementLatency99();
+
+  public long getBatchCount();
+
+  public double getBatchLatency99();
+
+  public long getAbandonedCount();
+
+  public String[] getSlowestStatements();
+
+  public void reset();
+}
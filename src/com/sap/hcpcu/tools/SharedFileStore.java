@@ -0,0 +1,647 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class provides a key/value store in a memory mapped file, which the
+ * processes of a host share, as used by the {@link Cache} as its second
+ * level: Entries loaded or moved out by the cache of one process can be
+ * found there by the caches of the other processes, and by the cache of the
+ * same process after a restart.
+ * <p>
+ * The file holds a header, a hash table of slots, and a data area. Each
+ * entry is appended to the data area as a record holding its key, its
+ * value, its expiry time and a CRC32 of all of them; its slot, found by
+ * linear probing on the hash of its key, holds the offset of the record.
+ * Records are never changed once written: Putting an entry again appends a
+ * new record and moves its slot, and removing an entry only marks its slot
+ * as deleted. Once the data area or the slots are full, the store starts
+ * over empty. It is a cache after all, and any entry may be lost.
+ * <p>
+ * Writers take the lock of the file, so that only one process writes at a
+ * time. Readers do not take any lock: The header holds a sequence number
+ * that a writer makes odd while it changes the slots, and even again when
+ * done; a reader retries whenever the number was odd or changed while it
+ * was reading, and only takes the lock if it had to retry too often. A
+ * store left with an odd number, by a writer that died, is cleared when
+ * it is opened next. The CRC32 of each record protects the readers of
+ * other processes from seeing a record that was not written entirely.
+ * <p>
+ * Each process must open a file only once, as the file locks are held on
+ * behalf of the entire process.
+ */
+public class SharedFileStore {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger            log       = LoggerFactory.getLogger(SharedFileStore.class);
+
+  /** Marks a store file. */
+  private static final int         MAGIC     = 0x48435346;
+
+  /** The version of the file format. */
+  private static final int         VERSION   = 1;
+
+  /** The length of the header. */
+  private static final int         HEADER    = 64;
+
+  /** Header: The number of slots. */
+  private static final int         H_SLOTS   = 8;
+
+  /** Header: The length of the data area. */
+  private static final int         H_DATA    = 16;
+
+  /** Header: The sequence number, odd while the slots change. */
+  private static final int         H_SEQ     = 24;
+
+  /** Header: The end of the records in the data area. */
+  private static final int         H_END     = 32;
+
+  /** Header: The number of slots used or deleted. */
+  private static final int         H_USED    = 40;
+
+  /** The length of a slot: the hash of the key, the state, the offset of the record. */
+  private static final int         SLOT      = 16;
+
+  /** The length of a record before its key and value. */
+  private static final int         RECORD    = 20;
+
+  /** Slot state: Never used since the store was cleared. */
+  private static final int         EMPTY     = 0;
+
+  /** Slot state: Holding an entry. */
+  private static final int         USED      = 1;
+
+  /** Slot state: The entry was removed. */
+  private static final int         DELETED   = 2;
+
+  /** Number of times a reader retries before taking the lock. */
+  private static final int         RETRIES   = 16;
+
+  /** The file. */
+  private final File               file;
+
+  /** The channel of the file, locked by writers. */
+  private final FileChannel        channel;
+
+  /** The mapped file. */
+  private final MappedByteBuffer   buffer;
+
+  /** The number of slots, a power of two. */
+  private final int                slots;
+
+  /** The offset of the data area in the file. */
+  private final int                dataStart;
+
+  /** The length of the data area. */
+  private final int                dataLength;
+
+  /**
+   * Constructor. Opens the store in a file, creating it if it does not
+   * exist. If the file exists, but was created for another number of slots
+   * or another length, it is cleared.
+   *
+   * @param file The file.
+   * @param slots The number of entries the store holds at most; rounded up
+   *          to a power of two.
+   * @param capacity The number of bytes the keys and values may take.
+   * @throws IOException If the file could not be opened or mapped.
+   */
+  public SharedFileStore(File file, int slots, int capacity) throws IOException {
+    int n = 16;
+
+    while (n < slots) {
+      n <<= 1;
+    }
+
+    this.file       = file;
+    this.slots      = n;
+    this.dataStart  = HEADER + (n * SLOT);
+    this.dataLength = capacity;
+
+    if (((long) this.dataStart + capacity) > Integer.MAX_VALUE) {
+      throw new IOException("Shared file store too large: " + file);
+    }
+
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    this.channel = raf.getChannel();
+
+    final FileLock lock = this.channel.lock();
+
+    try {
+      if (raf.length() < (this.dataStart + capacity)) {
+        raf.setLength(this.dataStart + capacity);
+      }
+
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.dataStart + capacity);
+
+      if ((this.buffer.getInt(0) != MAGIC) || (this.buffer.getInt(4) != VERSION) || (this.buffer.getInt(H_SLOTS) != n) || (this.buffer.getLong(H_DATA) != capacity)) {
+        log.debug("+ Initializing the shared file store " + file);
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, VERSION);
+        this.buffer.putInt(H_SLOTS, n);
+        this.buffer.putLong(H_DATA, capacity);
+        this.buffer.putLong(H_SEQ, 0);
+        reset();
+      } else if ((this.buffer.getLong(H_SEQ) & 1) != 0) {
+        /*
+         * A writer died while changing the slots, which may be
+         * half written; as we hold the lock, no one else writes.
+         */
+        log.warn("! Clearing the shared file store " + file + ", left in the middle of a change");
+        reset();
+        end();
+      }
+    } finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Get the file of the store.
+   *
+   * @return The file.
+   */
+  public File getFile() {
+    return this.file;
+  }
+
+
+  /**
+   * Get an entry.
+   *
+   * @param key The key.
+   * @return The entry, null if there is none or it has expired.
+   */
+  public Entry get(String key) {
+    final byte[] k = bytes(key);
+
+    for (int i = 0; i < RETRIES; i++) {
+      final long seq = this.buffer.getLong(H_SEQ);
+
+      if ((seq & 1) != 0) {
+        Thread.yield();
+
+        continue;
+      }
+
+      Entry entry;
+
+      try {
+        entry = lookup(k, key.hashCode());
+      } catch (RuntimeException re) {
+        /*
+         * We read a slot while it changed.
+         */
+        entry = null;
+      }
+
+      if (this.buffer.getLong(H_SEQ) == seq) {
+        return ((entry == null) || entry.expired()) ? null : entry;
+      }
+    }
+
+    synchronized (this) {
+      final FileLock lock = lock();
+
+      try {
+        final Entry entry = lookup(k, key.hashCode());
+
+        return ((entry == null) || entry.expired()) ? null : entry;
+      } finally {
+        unlock(lock);
+      }
+    }
+  }
+
+
+  /**
+   * Put an entry, replacing the entry previously stored under its key. If
+   * the store is full, it is cleared first. Entries taking more than a
+   * quarter of the store are not stored.
+   *
+   * @param key The key.
+   * @param value The value.
+   * @param expiryTime The time the entry expires, in milliseconds, or -1
+   *          if it never expires.
+   */
+  public synchronized void put(String key, byte[] value, long expiryTime) {
+    final byte[] k   = bytes(key);
+    final int    len = RECORD + k.length + value.length;
+
+    if (len > (this.dataLength / 4)) {
+      remove(key);
+
+      return;
+    }
+
+    final FileLock lock = lock();
+
+    try {
+      begin();
+
+      try {
+        if (((int) this.buffer.getLong(H_END) + len > this.dataLength) || (this.buffer.getInt(H_USED) >= ((this.slots * 3) / 4))) {
+          log.debug("+ The shared file store " + this.file + " is full; clearing it");
+          reset();
+        }
+
+        final int    end = (int) this.buffer.getLong(H_END);
+        final CRC32  crc = new CRC32();
+        crc.update(k);
+        crc.update(value);
+
+        final int    at  = this.dataStart + end;
+        this.buffer.putInt(at, k.length);
+        this.buffer.putInt(at + 4, value.length);
+        this.buffer.putLong(at + 8, expiryTime);
+        this.buffer.putInt(at + 16, (int) crc.getValue());
+
+        final ByteBuffer record = this.buffer.duplicate();
+        record.position(at + RECORD);
+        record.put(k);
+        record.put(value);
+
+        this.buffer.putLong(H_END, end + len);
+
+        final int slot = find(k, key.hashCode(), true);
+
+        if (this.buffer.getInt(slot + 4) == EMPTY) {
+          this.buffer.putInt(H_USED, this.buffer.getInt(H_USED) + 1);
+        }
+
+        this.buffer.putInt(slot, key.hashCode());
+        this.buffer.putLong(slot + 8, end);
+        this.buffer.putInt(slot + 4, USED);
+      } finally {
+        end();
+      }
+    } finally {
+      unlock(lock);
+    }
+  }
+
+
+  /**
+   * Remove an entry.
+   *
+   * @param key The key.
+   */
+  public synchronized void remove(String key) {
+    final byte[]   k    = bytes(key);
+    final FileLock lock = lock();
+
+    try {
+      final int slot = find(k, key.hashCode(), false);
+
+      if (slot != -1) {
+        begin();
+        this.buffer.putInt(slot + 4, DELETED);
+        end();
+      }
+    } finally {
+      unlock(lock);
+    }
+  }
+
+
+  /**
+   * Remove all entries.
+   */
+  public synchronized void clear() {
+    final FileLock lock = lock();
+
+    try {
+      begin();
+      reset();
+      end();
+    } finally {
+      unlock(lock);
+    }
+  }
+
+
+  /**
+   * Get the keys of the entries, e.g. to remove the entries
+   * whose keys match some pattern.
+   *
+   * @return The keys.
+   */
+  public synchronized List<String> getKeys() {
+    final List<String> keys = new ArrayList<String>();
+    final FileLock     lock = lock();
+
+    try {
+      for (int i = 0; i < this.slots; i++) {
+        final int slot = HEADER + (i * SLOT);
+
+        if (this.buffer.getInt(slot + 4) == USED) {
+          final int        at     = this.dataStart + (int) this.buffer.getLong(slot + 8);
+          final byte[]     k      = new byte[this.buffer.getInt(at)];
+          final ByteBuffer record = this.buffer.duplicate();
+
+          record.position(at + RECORD);
+          record.get(k);
+
+          keys.add(string(k));
+        }
+      }
+    } finally {
+      unlock(lock);
+    }
+
+    return keys;
+  }
+
+
+  /**
+   * Unmap and close the file. The mapping is only released
+   * by the garbage collector.
+   */
+  public synchronized void close() {
+    try {
+      this.buffer.force();
+      this.channel.close();
+    } catch (IOException ioe) {
+      log.debug("! Could not close the shared file store " + this.file + ": " + ioe.getMessage());
+    }
+  }
+
+
+  /**
+   * Look up the record of a key.
+   *
+   * @param k The key, encoded.
+   * @param hash The hash of the key.
+   * @return The entry, null if there is none or its record is invalid.
+   */
+  private Entry lookup(byte[] k, int hash) {
+    final int slot = find(k, hash, false);
+
+    if (slot == -1) {
+      return null;
+    }
+
+    final int at  = this.dataStart + (int) this.buffer.getLong(slot + 8);
+    final int len = this.buffer.getInt(at + 4);
+
+    if ((len < 0) || (len > (this.dataLength / 4))) {
+      return null;
+    }
+
+    final byte[]     value  = new byte[len];
+    final long       expiry = this.buffer.getLong(at + 8);
+    final int        check  = this.buffer.getInt(at + 16);
+    final ByteBuffer record = this.buffer.duplicate();
+
+    record.position(at + RECORD + k.length);
+    record.get(value);
+
+    final CRC32 crc = new CRC32();
+    crc.update(k);
+    crc.update(value);
+
+    return (((int) crc.getValue()) == check) ? new Entry(value, expiry) : null;
+  }
+
+
+  /**
+   * Find the slot of a key by linear probing.
+   *
+   * @param k The key, encoded.
+   * @param hash The hash of the key.
+   * @param free True to return the first free slot if the key is not
+   *          found, rather than -1.
+   * @return The offset of the slot in the file, or -1.
+   */
+  private int find(byte[] k, int hash, boolean free) {
+    int       firstFree = -1;
+    final int mask      = this.slots - 1;
+    int       i         = spread(hash) & mask;
+
+    for (int probes = 0; probes < this.slots; probes++, i = (i + 1) & mask) {
+      final int slot  = HEADER + (i * SLOT);
+      final int state = this.buffer.getInt(slot + 4);
+
+      if (state == EMPTY) {
+        return free ? ((firstFree != -1) ? firstFree : slot) : -1;
+      }
+
+      if (state == DELETED) {
+        if (firstFree == -1) {
+          firstFree = slot;
+        }
+
+        continue;
+      }
+
+      if ((this.buffer.getInt(slot) == hash) && sameKey(this.dataStart + (int) this.buffer.getLong(slot + 8), k)) {
+        return slot;
+      }
+    }
+
+    return free ? firstFree : -1;
+  }
+
+
+  /**
+   * Check whether a record holds a key.
+   *
+   * @param at The offset of the record in the file.
+   * @param k The key, encoded.
+   * @return True if the record holds the key.
+   */
+  private boolean sameKey(int at, byte[] k) {
+    if (this.buffer.getInt(at) != k.length) {
+      return false;
+    }
+
+    for (int i = 0; i < k.length; i++) {
+      if (this.buffer.get(at + RECORD + i) != k[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Empty the slots and the data area. The caller must hold the lock.
+   */
+  private void reset() {
+    for (int i = 0; i < this.slots; i++) {
+      this.buffer.putInt(HEADER + (i * SLOT) + 4, EMPTY);
+    }
+
+    this.buffer.putLong(H_END, 0);
+    this.buffer.putInt(H_USED, 0);
+  }
+
+
+  /**
+   * Make the sequence number odd before changing the slots. It is set
+   * rather than counted up, so that it is odd even if a writer died
+   * before making it even again.
+   */
+  private void begin() {
+    this.buffer.putLong(H_SEQ, this.buffer.getLong(H_SEQ) | 1);
+  }
+
+
+  /**
+   * Make the sequence number even, and larger than before, after
+   * changing the slots.
+   */
+  private void end() {
+    this.buffer.putLong(H_SEQ, (this.buffer.getLong(H_SEQ) | 1) + 1);
+  }
+
+
+  /**
+   * Take the lock of the file, for writing.
+   *
+   * @return The lock, null if it could not be taken; the store is then
+   *         only guarded against the other threads of this process.
+   */
+  private FileLock lock() {
+    try {
+      return this.channel.lock();
+    } catch (OverlappingFileLockException ofle) {
+      log.error("! The shared file store " + this.file + " is opened twice by this process");
+
+      return null;
+    } catch (IOException ioe) {
+      log.error("! Could not lock the shared file store " + this.file + ": " + ioe.getMessage());
+
+      return null;
+    }
+  }
+
+
+  /**
+   * Release the lock of the file.
+   *
+   * @param lock The lock, or null.
+   */
+  private void unlock(FileLock lock) {
+    if (lock == null) {
+      return;
+    }
+
+    try {
+      lock.release();
+    } catch (IOException ioe) {
+      log.error("! Could not unlock the shared file store " + this.file + ": " + ioe.getMessage());
+    }
+  }
+
+
+  /**
+   * Encode a key.
+   *
+   * @param key The key.
+   * @return The UTF-8 bytes of the key.
+   */
+  private static byte[] bytes(String key) {
+    try {
+      return key.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+
+  /**
+   * Decode a key.
+   *
+   * @param k The UTF-8 bytes of the key.
+   * @return The key.
+   */
+  private static String string(byte[] k) {
+    try {
+      return new String(k, "UTF-8");
+    } catch (UnsupportedEncodingException uee) {
+      throw new IllegalStateException(uee);
+    }
+  }
+
+
+  /**
+   * Spread the bits of a hash code.
+   *
+   * @param x The hash code.
+   * @return The spread hash code.
+   */
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+    return (x >>> 16) ^ x;
+  }
+
+  /**
+   * An entry read from the store.
+   */
+  public static class Entry {
+    /** The value. */
+    private final byte[] value;
+
+    /** The time the entry expires, -1 if never. */
+    private final long   expiryTime;
+
+    /**
+     * Constructor.
+     *
+     * @param value The value.
+     * @param expiryTime The time the entry expires, -1 if never.
+     */
+    protected Entry(byte[] value, long expiryTime) {
+      this.value      = value;
+      this.expiryTime = expiryTime;
+    }
+
+    /**
+     * Get the value.
+     *
+     * @return The value.
+     */
+    public byte[] getValue() {
+      return this.value;
+    }
+
+
+    /**
+     * Get the time the entry expires.
+     *
+     * @return The time in milliseconds, -1 if the entry never expires.
+     */
+    public long getExpiryTime() {
+      return this.expiryTime;
+    }
+
+
+    /**
+     * Check whether the entry has expired.
+     *
+     * @return True if it has expired.
+     */
+    protected boolean expired() {
+      return (this.expiryTime >= 0) && (this.expiryTime <= System.currentTimeMillis());
+    }
+  }
+}
@@ -0,0 +1,635 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class reads and writes the snapshot files of the {@link Cache}.
+ * <p>
+ * A snapshot file is a log of records that is only ever appended to. After
+ * a header, each record consists of its length, a CRC32 checksum, a type and
+ * its content. An ENTRY record holds a key, the expiry time and the encoded
+ * object; a REMOVE record holds a key that was removed since it was written
+ * before; a CONFIG record holds the settings of the cache; and a COMMIT
+ * record ends a consistent set of the records before it. A snapshot can so
+ * be written incrementally: The first save writes all entries, later saves
+ * only append the entries that changed, followed by a COMMIT record.
+ * <p>
+ * Reading the file stops at the first record that is incomplete or does not
+ * match its checksum, e.g. because writing it was interrupted by a crash,
+ * and only the records up to the last COMMIT record before are used. The
+ * file is memory mapped when read, and the encoded objects are returned as
+ * slices of the mapping, so that they can be decoded only when needed.
+ */
+public class SnapshotFile {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger        log     = LoggerFactory.getLogger(SnapshotFile.class);
+
+  /** The magic number at the start of a snapshot file, "HCPC". */
+  public static final int      MAGIC   = 0x48435043;
+
+  /** The version of the format. */
+  private static final int     VERSION = 1;
+
+  /** The length of the header. */
+  private static final int     HEADER  = 8;
+
+  /** Record: An entry. */
+  private static final byte    ENTRY   = 1;
+
+  /** Record: A removed entry. */
+  private static final byte    REMOVE  = 2;
+
+  /** Record: The settings of the cache. */
+  private static final byte    CONFIG  = 3;
+
+  /** Record: The end of a consistent set of records. */
+  private static final byte    COMMIT  = 4;
+
+  /** The charset of keys. */
+  private static final Charset UTF8    = Charset.forName("UTF-8");
+
+  private SnapshotFile() {}
+
+  /**
+   * Check whether a buffer holds a snapshot file.
+   *
+   * @param buffer The buffer, positioned at its start.
+   * @return True if it starts with the magic number.
+   */
+  public static boolean isSnapshot(ByteBuffer buffer) {
+    return (buffer.remaining() >= HEADER) && (buffer.getInt(buffer.position()) == MAGIC);
+  }
+
+
+  /**
+   * Map a file into memory.
+   *
+   * @param file The file.
+   * @return The mapping.
+   */
+  public static ByteBuffer map(File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+
+  /**
+   * Release a mapping made by the map function right away, rather than
+   * when it is garbage collected, e.g. so that the file can be replaced
+   * on Windows. The mapping, and all slices of it, must no longer be
+   * used. Where the JVM does not allow it, the mapping is left to the
+   * garbage collector.
+   *
+   * @param buffer The mapping.
+   * @return True if the mapping was released.
+   */
+  public static boolean unmap(ByteBuffer buffer) {
+    if ((buffer == null) || !buffer.isDirect()) {
+      return false;
+    }
+
+    try {
+      final java.lang.reflect.Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+
+      final Object cleaner = cleanerMethod.invoke(buffer);
+
+      if (cleaner == null) {
+        return false;
+      }
+
+      final java.lang.reflect.Method cleanMethod = cleaner.getClass().getMethod("clean");
+      cleanMethod.setAccessible(true);
+      cleanMethod.invoke(cleaner);
+
+      return true;
+    } catch (Exception e) {
+      log.debug("! Could not unmap the snapshot: " + e);
+
+      return false;
+    }
+  }
+
+
+  /**
+   * Force the directory entry of a file to disk, e.g. after the file was
+   * created or renamed, so that it is not lost in a crash. This needs Java
+   * 7 or later, and a file system that allows opening directories; it is
+   * skipped elsewhere.
+   *
+   * @param file The file.
+   */
+  public static void syncDirectory(File file) {
+    final File dir = file.getAbsoluteFile().getParentFile();
+
+    if (dir == null) {
+      return;
+    }
+
+    try {
+      final Class<?> pathClass   = Class.forName("java.nio.file.Path");
+      final Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+      final Object   options     = java.lang.reflect.Array.newInstance(optionClass, 1);
+
+      java.lang.reflect.Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+
+      final Object      path    = File.class.getMethod("toPath").invoke(dir);
+      final FileChannel channel = (FileChannel) FileChannel.class.getMethod("open", pathClass, options.getClass()).invoke(null, path, options);
+
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (Exception e) {
+      log.debug("! Could not sync the directory " + dir + ": " + e);
+    }
+  }
+
+
+  /**
+   * Read a stream into a buffer, for files that are not
+   * in the file system.
+   *
+   * @param in The stream.
+   * @return The buffer.
+   */
+  public static ByteBuffer read(InputStream in) throws IOException {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final byte[]                buf = new byte[8192];
+    int                         n;
+
+    try {
+      while ((n = in.read(buf)) != -1) {
+        bos.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+
+    return ByteBuffer.wrap(bos.toByteArray());
+  }
+
+
+  /**
+   * Read the committed content of a snapshot.
+   *
+   * @param buffer The snapshot, e.g. as mapped by the map function.
+   * @return The content.
+   */
+  public static Content read(ByteBuffer buffer) throws IOException {
+    final ByteBuffer b = buffer.duplicate();
+
+    if (!isSnapshot(b)) {
+      throw new IOException("Not a snapshot file");
+    }
+
+    b.position(b.position() + 4);
+
+    if (b.getInt() != VERSION) {
+      throw new IOException("Unsupported snapshot version");
+    }
+
+    final Content            content = new Content();
+    Map<String, Entry>       pending = new LinkedHashMap<String, Entry>();
+    final Set<String>        removed = new LinkedHashSet<String>();
+    final CRC32              crc     = new CRC32();
+    final byte[]             chunk   = new byte[8192];
+    Properties               config  = null;
+
+    content.length = b.position();
+
+    while (b.remaining() >= 9) {
+      final int start  = b.position();
+      final int length = b.getInt();
+      final int sum    = b.getInt();
+
+      if ((length < 1) || (length > b.remaining())) {
+        break;
+      }
+
+      final ByteBuffer record = b.slice();
+      record.limit(length);
+
+      crc.reset();
+
+      while (record.hasRemaining()) {
+        final int n = Math.min(chunk.length, record.remaining());
+        record.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+
+      record.rewind();
+
+      if ((int) crc.getValue() != sum) {
+        log.warn("! Snapshot record at " + start + " does not match its checksum");
+
+        break;
+      }
+
+      b.position(b.position() + length);
+
+      final byte type = record.get();
+
+      switch (type) {
+        case ENTRY: {
+          final String     key        = readString(record);
+          final long       expiryTime = record.getLong();
+          final ByteBuffer value      = record.slice();
+
+          removed.remove(key);
+          pending.remove(key);
+          pending.put(key, new Entry(expiryTime, value));
+
+          break;
+        }
+
+        case REMOVE: {
+          final String key = readString(record);
+
+          pending.remove(key);
+          removed.add(key);
+
+          break;
+        }
+
+        case CONFIG: {
+          config = new Properties();
+
+          final int n = record.getInt();
+
+          for (int i = 0; i < n; i++) {
+            config.setProperty(readString(record), readString(record));
+          }
+
+          break;
+        }
+
+        case COMMIT: {
+          if (content.entries.isEmpty()) {
+            /*
+             * Typically, the first commit holds most
+             * of the entries; take them as they are.
+             */
+            content.entries = pending;
+            pending         = new LinkedHashMap<String, Entry>();
+          } else {
+            for (final String key : removed) {
+              content.entries.remove(key);
+            }
+
+            for (final Map.Entry<String, Entry> entry : pending.entrySet()) {
+              content.entries.remove(entry.getKey());
+              content.entries.put(entry.getKey(), entry.getValue());
+            }
+          }
+
+          if (config != null) {
+            content.config = config;
+          }
+
+          pending.clear();
+          removed.clear();
+          config         = null;
+          content.length = b.position();
+
+          break;
+        }
+
+        default:
+          log.warn("! Unknown snapshot record type " + type + " at " + start);
+      }
+    }
+
+    return content;
+  }
+
+
+  /**
+   * Read a string written by the Writer.
+   */
+  private static String readString(ByteBuffer b) {
+    final byte[] bytes = new byte[b.getInt()];
+    b.get(bytes);
+
+    return new String(bytes, UTF8);
+  }
+
+
+  /**
+   * The committed content of a snapshot.
+   */
+  public static class Content {
+    /** The entries, in the order they were last written. */
+    private Map<String, Entry>                 entries = new LinkedHashMap<String, Entry>();
+
+    /** The last settings written, null if none. */
+    private Properties                         config  = null;
+
+    /** The length of the file up to the last commit. */
+    private long                               length  = 0;
+
+    /**
+     * Get the entries, in the order they were last written.
+     *
+     * @return The entries, by key.
+     */
+    public Map<String, Entry> getEntries() {
+      return this.entries;
+    }
+
+
+    /**
+     * Get the last settings written.
+     *
+     * @return The settings, null if none.
+     */
+    public Properties getConfig() {
+      return this.config;
+    }
+
+
+    /**
+     * Get the length of the file up to the last commit. Anything
+     * behind it was not committed, and may be overwritten.
+     *
+     * @return The length.
+     */
+    public long getLength() {
+      return this.length;
+    }
+  }
+
+  /**
+   * An entry of a snapshot.
+   */
+  public static class Entry {
+    /** The expiry time, in milliseconds; -1 if it never expires. */
+    private final long       expiryTime;
+
+    /** The encoded object. */
+    private final ByteBuffer value;
+
+    /**
+     * Constructor.
+     *
+     * @param expiryTime The expiry time.
+     * @param value The encoded object.
+     */
+    protected Entry(long expiryTime, ByteBuffer value) {
+      this.expiryTime = expiryTime;
+      this.value      = value;
+    }
+
+    /**
+     * Get the expiry time.
+     *
+     * @return The expiry time, in milliseconds; -1 if it never expires.
+     */
+    public long getExpiryTime() {
+      return this.expiryTime;
+    }
+
+
+    /**
+     * Get the encoded object.
+     *
+     * @return A buffer holding exactly the encoded object.
+     */
+    public ByteBuffer getValue() {
+      return this.value.duplicate();
+    }
+  }
+
+  /**
+   * Writes records to a snapshot file.
+   */
+  public static class Writer {
+    /** The file. */
+    private final RandomAccessFile    raf;
+
+    /** The buffer for the content of a record. */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+    /** The stream writing to the buffer. */
+    private final DataOutputStream    out    = new DataOutputStream(this.record);
+
+    /** The buffer for the records not yet written to the file. */
+    private final ByteArrayOutputStream batch  = new ByteArrayOutputStream();
+
+    /** The checksum. */
+    private final CRC32               crc    = new CRC32();
+
+    /**
+     * Constructor. Opens a file for writing. A new file gets a header;
+     * an existing file is cut at the given length, i.e. after its last
+     * commit, and appended to.
+     *
+     * @param file The file.
+     * @param length The length of the existing content to keep, 0 to
+     *          start a new file.
+     */
+    public Writer(File file, long length) throws IOException {
+      this.raf = new RandomAccessFile(file, "rw");
+
+      if (length <= 0) {
+        this.raf.setLength(0);
+        this.raf.writeInt(MAGIC);
+        this.raf.writeInt(VERSION);
+      } else {
+        this.raf.setLength(length);
+        this.raf.seek(length);
+      }
+    }
+
+    /**
+     * Write an entry.
+     *
+     * @param key The key.
+     * @param expiryTime The expiry time in milliseconds, -1 if it never expires.
+     * @param value The encoded object.
+     */
+    public void writeEntry(String key, long expiryTime, ByteBuffer value) throws IOException {
+      this.out.writeByte(ENTRY);
+      writeString(key);
+      this.out.writeLong(expiryTime);
+
+      final byte[] bytes = new byte[value.remaining()];
+      value.duplicate().get(bytes);
+      this.out.write(bytes);
+      endRecord();
+    }
+
+
+    /**
+     * Write an entry.
+     *
+     * @param key The key.
+     * @param expiryTime The expiry time in milliseconds, -1 if it never expires.
+     * @param value The encoded object.
+     * @param off The offset of the encoded object.
+     * @param len The length of the encoded object.
+     */
+    public void writeEntry(String key, long expiryTime, byte[] value, int off, int len) throws IOException {
+      this.out.writeByte(ENTRY);
+      writeString(key);
+      this.out.writeLong(expiryTime);
+      this.out.write(value, off, len);
+      endRecord();
+    }
+
+
+    /**
+     * Write a removed entry.
+     *
+     * @param key The key.
+     */
+    public void writeRemove(String key) throws IOException {
+      this.out.writeByte(REMOVE);
+      writeString(key);
+      endRecord();
+    }
+
+
+    /**
+     * Write the settings of the cache.
+     *
+     * @param config The settings.
+     */
+    public void writeConfig(Properties config) throws IOException {
+      this.out.writeByte(CONFIG);
+      this.out.writeInt(config.size());
+
+      for (final String name : config.stringPropertyNames()) {
+        writeString(name);
+        writeString(config.getProperty(name));
+      }
+
+      endRecord();
+    }
+
+
+    /**
+     * Write a commit record, and force all records to disk.
+     *
+     * @return The length of the file.
+     */
+    public long commit() throws IOException {
+      this.out.writeByte(COMMIT);
+      endRecord();
+      flush();
+      this.raf.getFD().sync();
+
+      return this.raf.getFilePointer();
+    }
+
+
+    /**
+     * Close the file. Records written after the last commit
+     * are not read back.
+     */
+    public void close() throws IOException {
+      this.raf.close();
+    }
+
+
+    /**
+     * Write a string.
+     */
+    private void writeString(String s) throws IOException {
+      final byte[] bytes = s.getBytes(UTF8);
+      this.out.writeInt(bytes.length);
+      this.out.write(bytes);
+    }
+
+
+    /**
+     * Put the record into the batch, with its length and checksum.
+     */
+    private void endRecord() throws IOException {
+      this.out.flush();
+
+      final byte[] bytes = this.record.toByteArray();
+
+      this.record.reset();
+      this.crc.reset();
+      this.crc.update(bytes);
+
+      final int sum = (int) this.crc.getValue();
+
+      this.batch.write(bytes.length >>> 24);
+      this.batch.write(bytes.length >>> 16);
+      this.batch.write(bytes.length >>> 8);
+      this.batch.write(bytes.length);
+      this.batch.write(sum >>> 24);
+      this.batch.write(sum >>> 16);
+      this.batch.write(sum >>> 8);
+      this.batch.write(sum);
+      this.batch.write(bytes);
+
+      if (this.batch.size() >= (1 << 16)) {
+        flush();
+      }
+    }
+
+
+    /**
+     * Write the batch to the file.
+     */
+    private void flush() throws IOException {
+      this.batch.writeTo(new RafOutput(this.raf));
+      this.batch.reset();
+    }
+  }
+
+  /**
+   * An OutputStream writing to a RandomAccessFile.
+   */
+  private static class RafOutput extends java.io.OutputStream {
+    /** The file. */
+    private final RandomAccessFile raf;
+
+    /**
+     * Constructor.
+     *
+     * @param raf The file.
+     */
+    protected RafOutput(RandomAccessFile raf) {
+      this.raf = raf;
+    }
+
+    public void write(int b) throws IOException {
+      this.raf.write(b);
+    }
+
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.raf.write(b, off, len);
+    }
+  }
+}
@@ -0,0 +1,916 @@
+package com.sap.hcpcu.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class provides a write ahead spool for the batches of lines the
+ * collector receives: each batch is appended to the spool before the upload
+ * is acknowledged, and marked as done once it is persisted, so that the
+ * batches not yet persisted when the process ends are persisted again on
+ * the next start, instead of being lost.
+ * <p>
+ * The spool is a directory of segment files, each memory mapped and only
+ * ever appended to. As in the {@link SnapshotFile}, after a header, each
+ * record consists of its length, a CRC32 checksum, a type and its content.
+ * A BATCH record holds the partition key, the charset and the bytes of the
+ * lines of a batch; a DONE record holds the offset of a batch that was
+ * persisted, and is written into the segment of the batch, where room for
+ * it is kept when the batch is appended. A segment is started once the
+ * current one is full, and deleted once all of its batches are done.
+ * <p>
+ * Appending only copies the batch into the mapping. The records are forced
+ * to disk by a thread of the spool, once a given number of batches were
+ * appended, or a given time after the first of them, so that one sync to
+ * disk makes many batches durable (group commit); a writer waits for this
+ * with {@link #sync(Entry)}, or is called back with
+ * {@link #whenDurable(Entry, Runnable)}.
+ * <p>
+ * A batch that could not be persisted is handed back with
+ * {@link #failed(Entry)}, and handed over again by {@link #retry(Replayer)},
+ * read back from the segment, without holding on to its lines meanwhile.
+ * <p>
+ * Reading a segment on start stops at the first record that is incomplete
+ * or does not match its checksum; the segments are read in the order they
+ * were started. A batch may be persisted twice, if the process ended after
+ * persisting it, but before its DONE record was forced to disk, and so may
+ * the batches after a record that does not match its checksum.
+ */
+public class Spool {
+  /**
+   * The Log4J Logger.
+   */
+  private static Logger              log        = LoggerFactory.getLogger(Spool.class);
+
+  /** The magic number at the start of a segment, "HCPS". */
+  public static final int            MAGIC      = 0x48435053;
+
+  /** The version of the format. */
+  private static final int           VERSION    = 2;
+
+  /** The length of the header. */
+  private static final int           HEADER     = 8;
+
+  /** The length of a record before its content: length and checksum. */
+  private static final int           RECORD     = 8;
+
+  /** Record: A batch. */
+  private static final byte          BATCH      = 1;
+
+  /** Record: A batch that was persisted. */
+  private static final byte          DONE       = 2;
+
+  /** The length of a DONE record: type, offset. */
+  private static final int           DONE_SIZE  = 5;
+
+  /** The prefix of the names of the segments. */
+  private static final String        PREFIX     = "spool-";
+
+  /** The suffix of the names of the segments. */
+  private static final String        SUFFIX     = ".dat";
+
+  /** The charset of partition keys and charset names. */
+  private static final Charset       UTF8       = Charset.forName("UTF-8");
+
+  /** A pool that keeps no buffers, for the batches read back. */
+  private static final BufferPool    NONE       = new BufferPool(0, 0);
+
+  /** The directory of the segments. */
+  private final File                 directory;
+
+  /** The length of a segment. */
+  private final int                  segmentSize;
+
+  /** The number of batches to make durable at once. */
+  private final int                  groupBatches;
+
+  /** The longest time to wait for more batches to make durable at once. */
+  private final long                 groupMillis;
+
+  /** The checksum. */
+  private final CRC32                crc        = new CRC32();
+
+  /** The segments left by a previous process, with batches not done. */
+  private final List<Segment>        previous   = new ArrayList<Segment>();
+
+  /** The segments written to since they were last forced to disk. */
+  private final Set<Segment>         dirty      = new LinkedHashSet<Segment>();
+
+  /** The batches that could not be persisted, to be retried. */
+  private final List<Entry>          failed     = new ArrayList<Entry>();
+
+  /** The callbacks waiting for batches to be durable. */
+  private final List<Waiter>         waiters    = new ArrayList<Waiter>();
+
+  /** The thread forcing the records to disk. */
+  private final Thread               flusher;
+
+  /** The segment appended to. */
+  private Segment                    current    = null;
+
+  /** The number of the next segment. */
+  private long                       next       = 1;
+
+  /** The number of batches appended. */
+  private long                       appended   = 0;
+
+  /** The number of batches durable. */
+  private long                       durable    = 0;
+
+  /** When the first record not yet durable was appended, 0 if none. */
+  private long                       firstDirty = 0;
+
+  /** The number of times the records were forced to disk. */
+  private long                       flushes    = 0;
+
+  /** Whether the spool is closed. */
+  private boolean                    closed     = false;
+
+  /**
+   * Constructor. Opens the spool in a directory, creating it if it does
+   * not exist. The batches not done in the segments found there are kept
+   * to be replayed with {@link #replay(Replayer)}.
+   *
+   * @param directory The directory.
+   * @param segmentSize The length of a segment, in bytes.
+   * @param groupBatches The number of batches to make durable at once.
+   * @param groupMillis The longest time to wait for as many batches, in
+   *        milliseconds.
+   * @throws IOException If the directory or the segments cannot be read.
+   */
+  public Spool(File directory, int segmentSize, int groupBatches, long groupMillis) throws IOException {
+    this.directory    = directory;
+    this.segmentSize  = Math.max(64 * 1024, segmentSize);
+    this.groupBatches = Math.max(1, groupBatches);
+    this.groupMillis  = Math.max(0, groupMillis);
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create the spool directory " + directory);
+    }
+
+    open();
+
+    this.flusher = new Thread(new Runnable() {
+          public void run() {
+            flush();
+          }
+        }, "Spool-Flusher");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * Replay the batches that were not done when the spool was opened.
+   * Each batch is to be marked as done once persisted, as any other.
+   *
+   * @param replayer The replayer to hand the batches to.
+   * @return The number of batches replayed.
+   * @throws IOException If the replayer could not take a batch.
+   */
+  public int replay(Replayer replayer) throws IOException {
+    final List<Segment> segments;
+
+    synchronized (this) {
+      segments = new ArrayList<Segment>(this.previous);
+      this.previous.clear();
+    }
+
+    int count = 0;
+
+    for (final Segment segment : segments) {
+      for (final int offset : segment.replay) {
+        replay(replayer, new Entry(segment, offset, 0));
+        count++;
+      }
+
+      segment.replay = null;
+    }
+
+    if (count > 0) {
+      log.debug("+ Replayed " + count + " batches from the spool " + this.directory);
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Hand over the batches that could not be persisted since the last
+   * retry again. Each batch is to be marked as done once persisted, or
+   * handed back with {@link #failed(Entry)} if it fails again.
+   *
+   * @param replayer The replayer to hand the batches to.
+   * @return The number of batches handed over, or -1 if the spool
+   *         is closed.
+   * @throws IOException If the replayer could not take a batch; the
+   *         batches not yet taken are kept for the next retry.
+   */
+  public int retry(Replayer replayer) throws IOException {
+    final List<Entry> entries;
+
+    synchronized (this) {
+      if (this.closed) {
+        return -1;
+      }
+
+      entries = new ArrayList<Entry>(this.failed);
+      this.failed.clear();
+    }
+
+    for (int i = 0; i < entries.size(); i++) {
+      try {
+        replay(replayer, entries.get(i));
+      } catch (IOException ioe) {
+        synchronized (this) {
+          this.failed.addAll(entries.subList(i, entries.size()));
+        }
+
+        throw ioe;
+      }
+    }
+
+    if (!entries.isEmpty()) {
+      log.debug("+ Retried " + entries.size() + " batches from the spool " + this.directory);
+    }
+
+    return entries.size();
+  }
+
+
+  /**
+   * Append a batch.
+   *
+   * @param batch The batch.
+   * @param partition The partition key of the batch, or null.
+   * @param charset The charset of the lines.
+   * @return The entry of the batch in the spool.
+   * @throws IOException If the spool is closed, or a segment could
+   *         not be started.
+   */
+  public Entry append(LineBatch batch, String partition, Charset charset) throws IOException {
+    final int    lines = batch.size();
+    final int    from  = (lines == 0) ? 0 : batch.getStart(0);
+    final int    to    = (lines == 0) ? 0 : (batch.getStart(lines - 1) + batch.getLength(lines - 1));
+    final byte[] key   = (partition == null) ? null : partition.getBytes(UTF8);
+    final byte[] name  = charset.name().getBytes(UTF8);
+    final int    head  = 1 + 4 + ((key == null) ? 0 : key.length) + 4 + name.length;
+
+    /*
+     * The header of the record is put together on its own,
+     * and the lines are copied from the buffer of the batch
+     * straight into the mapping.
+     */
+    final ByteBuffer header = ByteBuffer.allocate(head);
+
+    header.put(BATCH);
+    writeString(header, key);
+    writeString(header, name);
+
+    synchronized (this) {
+      if (this.closed) {
+        throw new IOException("The spool is closed");
+      }
+
+      final Segment segment = reserve(RECORD + head + (to - from));
+      final int     offset  = segment.end;
+
+      this.crc.reset();
+      this.crc.update(header.array(), 0, head);
+      this.crc.update(batch.getBuffer(), from, to - from);
+
+      segment.buffer.position(offset);
+      segment.buffer.putInt(head + (to - from));
+      segment.buffer.putInt((int) this.crc.getValue());
+      segment.buffer.put(header.array(), 0, head);
+      segment.buffer.put(batch.getBuffer(), from, to - from);
+      segment.end = segment.buffer.position();
+      segment.outstanding++;
+
+      this.appended++;
+      written(segment);
+
+      return new Entry(segment, offset, this.appended);
+    }
+  }
+
+
+  /**
+   * Mark a batch as done, once it is persisted. The segment of the
+   * batch is deleted if it is full, and all its batches are done.
+   *
+   * @param entry The entry of the batch.
+   */
+  public synchronized void done(Entry entry) {
+    if (this.closed) {
+      return;
+    }
+
+    final Segment segment = entry.segment;
+
+    segment.outstanding--;
+
+    if ((segment != this.current) && (segment.outstanding == 0)) {
+      delete(segment);
+
+      return;
+    }
+
+    /*
+     * The room for the record was kept when the batch was
+     * appended, or by the process that appended it
+     */
+    if ((segment.end + RECORD + DONE_SIZE) > segment.buffer.capacity()) {
+      log.error("! No room to mark a batch as done in " + segment.file);
+
+      return;
+    }
+
+    final ByteBuffer content = ByteBuffer.allocate(DONE_SIZE);
+
+    content.put(DONE);
+    content.putInt(entry.offset);
+
+    this.crc.reset();
+    this.crc.update(content.array(), 0, DONE_SIZE);
+
+    segment.buffer.position(segment.end);
+    segment.buffer.putInt(DONE_SIZE);
+    segment.buffer.putInt((int) this.crc.getValue());
+    segment.buffer.put(content.array(), 0, DONE_SIZE);
+    segment.end = segment.buffer.position();
+
+    written(segment);
+  }
+
+
+  /**
+   * Hand back a batch that could not be persisted, to be handed over
+   * again by {@link #retry(Replayer)}. Until then, it is not done, and
+   * is replayed when the spool is opened again.
+   *
+   * @param entry The entry of the batch.
+   */
+  public synchronized void failed(Entry entry) {
+    if (!this.closed) {
+      this.failed.add(entry);
+    }
+  }
+
+
+  /**
+   * Wait until a batch, and all batches before it, are durable.
+   *
+   * @param entry The entry of the batch.
+   * @throws IOException If the spool was closed before, or
+   *         interrupted while waiting.
+   */
+  public synchronized void sync(Entry entry) throws IOException {
+    while (this.durable < entry.ticket) {
+      if (this.closed) {
+        throw new IOException("The spool is closed");
+      }
+
+      try {
+        wait();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+
+        throw new InterruptedIOException("Interrupted waiting for the spool");
+      }
+    }
+  }
+
+
+  /**
+   * Call back once a batch, and all batches before it, are durable,
+   * on the thread of the spool; at once if they are durable already.
+   * The callback is not called if the spool is closed before.
+   *
+   * @param entry The entry of the batch.
+   * @param callback The callback.
+   */
+  public void whenDurable(Entry entry, Runnable callback) {
+    synchronized (this) {
+      if (this.durable < entry.ticket) {
+        this.waiters.add(new Waiter(entry.ticket, callback));
+
+        return;
+      }
+    }
+
+    callback.run();
+  }
+
+
+  /**
+   * Get the number of batches appended, but not yet durable.
+   *
+   * @return The number of batches.
+   */
+  public synchronized long getPending() {
+    return this.appended - this.durable;
+  }
+
+
+  /**
+   * Get the number of times the records were forced to disk.
+   *
+   * @return The number of times.
+   */
+  public synchronized long getFlushes() {
+    return this.flushes;
+  }
+
+
+  /**
+   * Close the spool, once the records appended are forced to disk.
+   * The batches not done are replayed when the spool is opened again.
+   *
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void close() throws InterruptedException {
+    synchronized (this) {
+      this.closed = true;
+      notifyAll();
+    }
+
+    this.flusher.join();
+  }
+
+
+  /**
+   * Read the segments found in the directory: collect the batches not
+   * done in each of them, and delete those where all batches are done.
+   *
+   * @throws IOException If a segment cannot be read.
+   */
+  private void open() throws IOException {
+    final File[] files = this.directory.listFiles(new FileFilter() {
+          public boolean accept(File file) {
+            return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+          }
+        });
+
+    final List<Segment> segments = new ArrayList<Segment>();
+
+    for (final File file : (files == null) ? new File[0] : files) {
+      try {
+        segments.add(new Segment(Long.parseLong(file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length())), file));
+      } catch (NumberFormatException nfe) {
+        log.warn("! Not a spool segment: " + file);
+      }
+    }
+
+    /*
+     * Replay in the order the segments were started
+     */
+    Collections.sort(segments, new Comparator<Segment>() {
+        public int compare(Segment a, Segment b) {
+          return (a.number < b.number) ? -1 : ((a.number == b.number) ? 0 : 1);
+        }
+      });
+
+    for (final Segment segment : segments) {
+      final List<Integer> batches = new ArrayList<Integer>();
+      final Set<Integer>  done    = new HashSet<Integer>();
+      final List<Integer> replay  = new ArrayList<Integer>();
+
+      read(segment, batches, done);
+      this.next = Math.max(this.next, segment.number + 1);
+
+      for (final Integer offset : batches) {
+        if (!done.contains(offset)) {
+          replay.add(offset);
+        }
+      }
+
+      if (replay.isEmpty()) {
+        delete(segment);
+      } else {
+        segment.replay      = new int[replay.size()];
+        segment.outstanding = replay.size();
+
+        for (int j = 0; j < segment.replay.length; j++) {
+          segment.replay[j] = replay.get(j).intValue();
+        }
+
+        this.previous.add(segment);
+        log.debug("+ Found " + replay.size() + " batches to replay in " + segment.file);
+      }
+    }
+  }
+
+
+  /**
+   * Read the records of a segment.
+   *
+   * @param segment The segment.
+   * @param batches The offsets of the batches, added to.
+   * @param done The offsets of the batches done, added to.
+   * @throws IOException If the segment is not a segment.
+   */
+  private void read(Segment segment, List<Integer> batches, Set<Integer> done) throws IOException {
+    final ByteBuffer b     = segment.buffer.duplicate();
+    final CRC32      crc   = new CRC32();
+    final byte[]     chunk = new byte[8192];
+
+    if ((b.remaining() < HEADER) || (b.getInt() != MAGIC)) {
+      throw new IOException("Not a spool segment: " + segment.file);
+    }
+
+    if (b.getInt() != VERSION) {
+      throw new IOException("Unsupported spool version: " + segment.file);
+    }
+
+    while (b.remaining() > RECORD) {
+      final int start  = b.position();
+      final int length = b.getInt();
+      final int sum    = b.getInt();
+
+      if ((length < 1) || (length > b.remaining())) {
+        break;
+      }
+
+      final ByteBuffer record = b.slice();
+      record.limit(length);
+
+      crc.reset();
+
+      while (record.hasRemaining()) {
+        final int n = Math.min(chunk.length, record.remaining());
+        record.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+
+      record.rewind();
+
+      if ((int) crc.getValue() != sum) {
+        log.warn("! Spool record at " + start + " of " + segment.file + " does not match its checksum");
+
+        break;
+      }
+
+      b.position(b.position() + length);
+
+      switch (record.get()) {
+        case BATCH:
+          batches.add(Integer.valueOf(start));
+
+          break;
+
+        case DONE:
+          done.add(Integer.valueOf(record.getInt()));
+
+          break;
+
+        default:
+          log.warn("! Unknown spool record at " + start + " of " + segment.file);
+      }
+    }
+
+    segment.end = b.position();
+  }
+
+
+  /**
+   * Get the segment to append a batch to, starting a new one if the
+   * current one does not have room for it, and for the DONE records
+   * of its batches not yet done and of the batch.
+   *
+   * @param length The length of the record of the batch.
+   * @return The segment.
+   * @throws IOException If a segment could not be started.
+   */
+  private Segment reserve(int length) throws IOException {
+    final int done = RECORD + DONE_SIZE;
+
+    if ((this.current != null) && ((this.current.end + length + ((this.current.outstanding + 1) * done)) <= this.current.buffer.capacity())) {
+      return this.current;
+    }
+
+    final Segment full   = this.current;
+    final long    number = this.next++;
+    final File    file   = new File(this.directory, PREFIX + number + SUFFIX);
+
+    this.current = new Segment(number, file, Math.max(this.segmentSize, HEADER + length + done));
+
+    /*
+     * So that the segment is found after a crash
+     */
+    SnapshotFile.syncDirectory(file);
+
+    if ((full != null) && (full.outstanding == 0)) {
+      delete(full);
+    }
+
+    log.debug("+ Started spool segment " + file);
+
+    return this.current;
+  }
+
+
+  /**
+   * Note that a record was written to a segment, and wake up the flusher.
+   *
+   * @param segment The segment.
+   */
+  private void written(Segment segment) {
+    this.dirty.add(segment);
+
+    if (this.firstDirty == 0) {
+      this.firstDirty = System.currentTimeMillis();
+    }
+
+    notifyAll();
+  }
+
+
+  /**
+   * Delete a segment, as all its batches are done.
+   *
+   * @param segment The segment.
+   */
+  private void delete(Segment segment) {
+    this.dirty.remove(segment);
+
+    if (segment.file.delete()) {
+      log.debug("+ Deleted spool segment " + segment.file);
+    } else {
+      log.error("! Could not delete spool segment " + segment.file);
+    }
+  }
+
+
+  /**
+   * Force the records to disk, as many batches at once as are appended
+   * within the time to wait, until the spool is closed.
+   */
+  private void flush() {
+    while (true) {
+      final long      target;
+      final Segment[] segments;
+      final boolean   last;
+
+      synchronized (this) {
+        try {
+          while (!this.closed && this.dirty.isEmpty()) {
+            wait();
+          }
+
+          while (!this.closed && ((this.appended - this.durable) < this.groupBatches)) {
+            final long wait = (this.firstDirty + this.groupMillis) - System.currentTimeMillis();
+
+            if (wait <= 0) {
+              break;
+            }
+
+            wait(wait);
+          }
+        } catch (InterruptedException ie) {
+          this.closed = true;
+        }
+
+        target          = this.appended;
+        segments        = this.dirty.toArray(new Segment[this.dirty.size()]);
+        last            = this.closed;
+        this.firstDirty = 0;
+        this.dirty.clear();
+      }
+
+      for (final Segment segment : segments) {
+        segment.buffer.force();
+      }
+
+      final List<Waiter> ready = new ArrayList<Waiter>();
+
+      synchronized (this) {
+        if (segments.length > 0) {
+          this.flushes++;
+        }
+
+        this.durable = target;
+
+        for (int i = this.waiters.size() - 1; i >= 0; i--) {
+          if (this.waiters.get(i).ticket <= target) {
+            ready.add(0, this.waiters.remove(i));
+          }
+        }
+
+        notifyAll();
+      }
+
+      for (final Waiter waiter : ready) {
+        try {
+          waiter.callback.run();
+        } catch (RuntimeException re) {
+          log.error("! Error calling back for a durable batch: " + re.getMessage());
+        }
+      }
+
+      if (last) {
+        log.debug("+ Closed the spool " + this.directory);
+
+        return;
+      }
+    }
+  }
+
+
+  /**
+   * Hand a batch over to a replayer, read back from its segment.
+   *
+   * @param replayer The replayer.
+   * @param entry The entry of the batch.
+   * @throws IOException If the replayer could not take the batch.
+   */
+  private static void replay(Replayer replayer, Entry entry) throws IOException {
+    final Segment    segment = entry.segment;
+    final int        offset  = entry.offset;
+    final ByteBuffer b       = segment.buffer.duplicate();
+
+    /*
+     * Skip the length, checksum and type
+     */
+    b.position(offset + RECORD + 1);
+
+    final String partition = readString(b);
+    final String charset   = readString(b);
+    final int    end       = offset + RECORD + segment.buffer.getInt(offset);
+    final byte[] data      = new byte[(end - b.position()) + 1];
+
+    b.get(data, 0, data.length - 1);
+    data[data.length - 1] = '\n';
+
+    replayer.replay(entry, LineSplitter.split(NONE, data, Charset.forName(charset)), partition);
+  }
+
+
+  /**
+   * Write a string, null as -1.
+   */
+  private static void writeString(ByteBuffer b, byte[] bytes) {
+    if (bytes == null) {
+      b.putInt(-1);
+    } else {
+      b.putInt(bytes.length);
+      b.put(bytes);
+    }
+  }
+
+
+  /**
+   * Read a string, -1 as null.
+   */
+  private static String readString(ByteBuffer b) {
+    final int length = b.getInt();
+
+    if (length < 0) {
+      return null;
+    }
+
+    final byte[] bytes = new byte[length];
+    b.get(bytes);
+
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Takes the batches replayed from the spool.
+   */
+  public interface Replayer {
+    /**
+     * Take a batch to persist.
+     *
+     * @param entry The entry of the batch, to be marked as done.
+     * @param batch The batch.
+     * @param partition The partition key of the batch, or null.
+     * @throws IOException If the batch cannot be taken.
+     */
+    public void replay(Entry entry, LineBatch batch, String partition) throws IOException;
+  }
+
+  /**
+   * The entry of a batch in the spool.
+   */
+  public static final class Entry {
+    private final Segment segment;
+    private final int     offset;
+    private final long    ticket;
+
+    /**
+     * Constructor.
+     *
+     * @param segment The segment of the batch.
+     * @param offset The offset of the batch in the segment.
+     * @param ticket The number of the batch among those appended,
+     *        0 for a batch that is durable already.
+     */
+    private Entry(Segment segment, int offset, long ticket) {
+      this.segment = segment;
+      this.offset  = offset;
+      this.ticket  = ticket;
+    }
+  }
+
+  /**
+   * A segment file, mapped into memory.
+   */
+  private static final class Segment {
+    private final long             number;
+    private final File             file;
+    private final MappedByteBuffer buffer;
+
+    /** The end of the records. */
+    private int                    end;
+
+    /** The number of batches not done. */
+    private int                    outstanding = 0;
+
+    /** The offsets of the batches to replay, if left by a previous process. */
+    private int[]                  replay      = null;
+
+    /**
+     * Constructor. Maps an existing segment, to mark its batches
+     * as done.
+     *
+     * @param number The number of the segment.
+     * @param file The file.
+     */
+    private Segment(long number, File file) throws IOException {
+      this.number = number;
+      this.file   = file;
+
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try {
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      } finally {
+        raf.close();
+      }
+    }
+
+    /**
+     * Constructor. Creates a new segment.
+     *
+     * @param number The number of the segment.
+     * @param file The file.
+     * @param size The length of the segment.
+     */
+    private Segment(long number, File file, int size) throws IOException {
+      this.number = number;
+      this.file   = file;
+
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try {
+        raf.setLength(0);
+        raf.setLength(size);
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+      }
+
+      this.buffer.putInt(MAGIC);
+      this.buffer.putInt(VERSION);
+      this.end = HEADER;
+    }
+  }
+
+  /**
+   * A callback waiting for batches to be durable.
+   */
+  private static final class Waiter {
+    private final long     ticket;
+    private final Runnable callback;
+
+    /**
+     * Constructor.
+     *
+     * @param ticket The number of the last batch waited for.
+     * @param callback The callback.
+     */
+    private Waiter(long ticket, Runnable callback) {
+      this.ticket   = ticket;
+      this.callback = callback;
+    }
+  }
+}
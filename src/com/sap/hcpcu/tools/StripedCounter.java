@@ -0,0 +1,99 @@
+package com.sap.hcpcu.tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class provides a counter that can be incremented by many threads at
+ * the same time without them waiting for each other, as used for the
+ * statistics of the {@link Cache}.
+ * <p>
+ * The count is spread over a number of cells, the stripes, each on a cache
+ * line of its own. A thread always adds to the same stripe, picked by its
+ * id, so that threads running on different processors rarely touch the same
+ * cache line. Reading the count sums up all stripes; the sum is exact if
+ * no thread adds to the counter meanwhile, and else misses at most the
+ * additions running concurrently.
+ */
+public class StripedCounter {
+  /** Number of longs between two stripes, so that each takes a cache line of its own. */
+  private static final int      PAD     = 8;
+
+  /** Number of stripes, a power of two of at least twice the number of processors. */
+  private static final int      STRIPES = stripes();
+
+  /** The stripes. */
+  private final AtomicLongArray cells   = new AtomicLongArray(STRIPES * PAD);
+
+  /**
+   * Add one to the counter.
+   */
+  public void increment() {
+    add(1);
+  }
+
+
+  /**
+   * Add a value to the counter.
+   *
+   * @param x The value.
+   */
+  public void add(long x) {
+    this.cells.getAndAdd(index(), x);
+  }
+
+
+  /**
+   * Get the count.
+   *
+   * @return The sum of all stripes.
+   */
+  public long sum() {
+    long sum = 0;
+
+    for (int i = 0; i < STRIPES; i++) {
+      sum += this.cells.get(i * PAD);
+    }
+
+    return sum;
+  }
+
+
+  /**
+   * Get the index of the stripe of the current thread.
+   *
+   * @return The index of the first long of the stripe.
+   */
+  private static int index() {
+    final long h = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+
+    return ((int) (h >>> 32) & (STRIPES - 1)) * PAD;
+  }
+
+
+  /**
+   * Get the number of stripes.
+   *
+   * @return The number of stripes.
+   */
+  private static int stripes() {
+    final int processors = 2 * Runtime.getRuntime().availableProcessors();
+    int       stripes    = 1;
+
+    while (stripes < processors) {
+      stripes <<= 1;
+    }
+
+    return stripes;
+  }
+
+
+  /**
+   * Print the count.
+   *
+   * @return The count.
+   */
+  public String toString() {
+    return "" + sum();
+  }
+}
@@ -1,21 +1,31 @@
 package com.sap.hcpcu.worker;
 
+import com.sap.hcpcu.application.Service;
+import com.sap.hcpcu.tools.BatchWriter;
+import com.sap.hcpcu.tools.DatabasePool;
+import com.sap.hcpcu.tools.LineBatch;
+import com.sap.hcpcu.tools.StringUtility;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.SQLException;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public class Worker {
   /**
    * The Log4J Logger
    */
-  static Logger             log      = LoggerFactory.getLogger(Worker.class);
+  static Logger                log      = LoggerFactory.getLogger(Worker.class);
 
-  private static Worker     instance = null;
-  private static Object     mutex    = new Object();
+  private static Worker        instance = null;
+  private static Object        mutex    = new Object();
 
-  private ArrayList<String> batch;
+  private ArrayList<String>    batch;
+  private ArrayList<LineBatch> lines;
 
   public Worker(final String some, final String config, final String parameters) {}
 
@@ -41,6 +51,7 @@ public class Worker {
     log.debug("+ Preparing Batch");
 
     this.batch = new ArrayList<String>();
+    this.lines = new ArrayList<LineBatch>();
   }
 
 
@@ -50,10 +61,79 @@ public class Worker {
   }
 
 
-  public void executeBatch() {
+  /**
+   * Add the lines of a batch read by the collector. The lines are not
+   * decoded until the batch is executed, and then only field by field.
+   * The lines must not be released before the batch is closed.
+   *
+   * @param what The lines.
+   */
+  public void addToBatch(LineBatch what) {
+    log.debug("+ Adding " + what.size() + " lines to Batch");
+    this.lines.add(what);
+  }
+
+
+  /**
+   * Execute the batch. If worker_insert is configured, and we have a
+   * database, each line of the batch is split at commas into the
+   * parameters of that statement, blank lines are skipped, and the
+   * lines are written in batches of worker_batch rows, rewritten into
+   * multi row inserts if worker_rewrite is true. All of them are
+   * committed at once.
+   *
+   * @throws SQLException If writing the batch failed.
+   */
+  public void executeBatch() throws SQLException {
     log.debug("> ExecuteBatch");
-    for (final String what : this.batch) {
-      log.debug("+ Batch executing: " + what);
+
+    final String       sql = Service.getAttribute("worker_insert");
+    final DatabasePool db  = (sql == null) ? null : Service.getDatabasePool();
+
+    if (db == null) {
+      for (final String what : this.batch) {
+        log.debug("+ Batch executing: " + what);
+      }
+
+      if (log.isDebugEnabled()) {
+        for (final LineBatch what : this.lines) {
+          for (int i = 0; i < what.size(); i++) {
+            log.debug("+ Batch executing: " + what.getLine(i));
+          }
+        }
+      }
+    } else {
+      /*
+       * Write the whole batch in one transaction, so that
+       * it is either persisted or can be persisted again.
+       */
+      final BatchWriter writer = db.openBatch(sql, StringUtility.StringToInteger(Service.getAttribute("worker_batch"), 1000), "true".equals(Service.getAttribute("worker_rewrite")), true);
+
+      try {
+        /*
+         * Skip blank lines, which have no parameters to
+         * bind, rather than failing the whole batch.
+         */
+        for (final String what : this.batch) {
+          if (what.trim().length() > 0) {
+            writer.add(Arrays.asList((Object[]) StringUtility.split(what, ",")));
+          }
+        }
+
+        for (final LineBatch what : this.lines) {
+          for (int i = 0; i < what.size(); i++) {
+            if (!what.isBlank(i)) {
+              writer.add(Arrays.asList((Object[]) what.split(i, ',')));
+            }
+          }
+        }
+
+        writer.close();
+      } finally {
+        writer.abort();
+      }
+
+      log.debug("+ Wrote " + writer.getRows() + " rows in " + writer.getBatches() + " batches");
     }
 
     log.debug("< ExecuteBatch");
@@ -62,5 +142,9 @@ public class Worker {
 
   public void closeBatch() {
     log.debug("+ Closing Batch");
+
+    if (this.lines != null) {
+      this.lines.clear();
+    }
   }
 }
@@ -0,0 +1,137 @@
+package com.sap.hcpcu.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class holds a number of independent {@link Worker}s, each with a
+ * batch of its own, so that as many batches can be worked on at the same
+ * time, rather than one after the other by a single worker.
+ * <p>
+ * A worker is used by one thread at a time: it is acquired for a batch,
+ * and released when the batch is done. A batch with a partition key always
+ * goes to the same worker, by the hash of the key, so that the batches of
+ * one partition are never worked on at the same time; a batch without a key
+ * goes to any worker not in use, or waits for the next one in turn if all
+ * of them are.
+ */
+public class WorkerPool {
+  /**
+   * The Log4J Logger
+   */
+  static Logger               log  = LoggerFactory.getLogger(WorkerPool.class);
+
+  /** The workers. */
+  private final Worker[]      workers;
+
+  /** A permit for each worker not in use. */
+  private final Semaphore[]   free;
+
+  /** The worker to try first for a batch without a key. */
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param size The number of workers.
+   * @param some As for the {@link Worker}.
+   * @param config As for the {@link Worker}.
+   * @param parameters As for the {@link Worker}.
+   */
+  public WorkerPool(final int size, final String some, final String config, final String parameters) {
+    this.workers = new Worker[Math.max(1, size)];
+    this.free    = new Semaphore[this.workers.length];
+
+    for (int i = 0; i < this.workers.length; i++) {
+      this.workers[i] = new Worker(some, config, parameters);
+      this.free[i]    = new Semaphore(1, true);
+    }
+  }
+
+  /**
+   * Get the number of workers.
+   *
+   * @return The number of workers.
+   */
+  public int size() {
+    return this.workers.length;
+  }
+
+
+  /**
+   * Acquire a worker, waiting until it is not in use.
+   *
+   * @param partitionKey The partition key of the batch, which picks the
+   *        worker; null to take any worker not in use.
+   * @return The worker. Release it when done.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public Worker acquire(final String partitionKey) throws InterruptedException {
+    if (partitionKey != null) {
+      final int i = shard(partitionKey);
+
+      this.free[i].acquire();
+
+      return this.workers[i];
+    }
+
+    final int first = (this.next.getAndIncrement() & Integer.MAX_VALUE) % this.workers.length;
+
+    for (int j = 0; j < this.workers.length; j++) {
+      final int i = (first + j) % this.workers.length;
+
+      if (this.free[i].tryAcquire()) {
+        return this.workers[i];
+      }
+    }
+
+    log.debug("+ All " + this.workers.length + " workers in use, waiting for worker " + first);
+
+    this.free[first].acquire();
+
+    return this.workers[first];
+  }
+
+
+  /**
+   * Release a worker acquired before.
+   *
+   * @param worker The worker.
+   */
+  public void release(final Worker worker) {
+    for (int i = 0; i < this.workers.length; i++) {
+      if (this.workers[i] == worker) {
+        this.free[i].release();
+
+        return;
+      }
+    }
+
+    throw new IllegalArgumentException("Not a worker of this pool");
+  }
+
+
+  /**
+   * Get the worker of a partition key.
+   *
+   * @param partitionKey The key.
+   * @return The index of the worker.
+   */
+  private int shard(final String partitionKey) {
+    int h = partitionKey.hashCode();
+
+    /*
+     * Spread the bits, as String hashes of similar
+     * keys differ in their low bits only.
+     */
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+
+    return (h & Integer.MAX_VALUE) % this.workers.length;
+  }
+}
@@ -0,0 +1,113 @@
+package com.sap.sometest;
+
+import com.sap.hcpcu.tools.BoundedExecutor;
+import com.sap.hcpcu.tools.ThreadRunner.ThreadCaller;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Show how the BoundedExecutor slows down a caller handing over work
+ * faster than it is done.
+ * <p>
+ * A producer submits calls that each sleep a while, like persisting a
+ * batch, as fast as it can. With a fixed number of threads and a bound
+ * on the calls waiting, the producer blocks once the queue is full; at
+ * no time are more calls running or waiting than the threads plus the
+ * queue, and the time to submit them all is about the time to run them.
+ * Exits with 1 if more calls were in flight, or not all of them done.
+ * <p>
+ * Usage: BoundedExecutorDemo [-threads n] [-queue n] [-calls n] [-millis n]
+ */
+public class BoundedExecutorDemo {
+  public static void main(String[] args) throws Exception {
+    int threads = 4;
+    int queue   = 2;
+    int calls   = 40;
+    int millis  = 50;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i + 1]);
+      } else if ("-queue".equals(args[i])) {
+        queue = Integer.parseInt(args[i + 1]);
+      } else if ("-calls".equals(args[i])) {
+        calls = Integer.parseInt(args[i + 1]);
+      } else if ("-millis".equals(args[i])) {
+        millis = Integer.parseInt(args[i + 1]);
+      }
+    }
+
+    final BoundedExecutor executor = new BoundedExecutor("Demo", threads, queue);
+    final Worker          worker   = new Worker(millis);
+    final long            start    = System.currentTimeMillis();
+
+    for (int i = 0; i < calls; i++) {
+      executor.submit(worker, "call", Integer.valueOf(i));
+      worker.submitted();
+    }
+
+    final long submitted = System.currentTimeMillis() - start;
+
+    executor.shutdown(60000);
+
+    final long done = System.currentTimeMillis() - start;
+
+    System.out.println(calls + " calls of " + millis + " ms on " + threads + " threads, queue " + queue);
+    System.out.println("submitted after " + submitted + " ms, done after " + done + " ms (" + ((calls * millis) / threads) + " ms of work per thread)");
+    System.out.println("calls blocked: " + executor.getBlocked() + ", most in flight: " + worker.getMost() + " (bound " + (threads + queue) + "), done: " + worker.getDone());
+
+    System.exit(((worker.getMost() <= (threads + queue)) && (worker.getDone() == calls)) ? 0 : 1);
+  }
+
+  /**
+   * A call that sleeps a while, and counts how many calls there were
+   * at most submitted and not yet done.
+   */
+  private static class Worker implements ThreadCaller {
+    private final int           millis;
+    private final AtomicInteger done     = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger most     = new AtomicInteger();
+
+    private Worker(int millis) {
+      this.millis = millis;
+    }
+
+    public Object threadStart(String callName, Object callArgument) {
+      try {
+        Thread.sleep(this.millis);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+
+      return callArgument;
+    }
+
+    public void threadEnd(String callName, Object callArgument, Object callResult) {
+      this.inFlight.decrementAndGet();
+      this.done.incrementAndGet();
+    }
+
+    /*
+     * Counted once submit returns, and uncounted before the permit
+     * of the call is given back, so never more than the bound.
+     */
+    private void submitted() {
+      final int count = this.inFlight.incrementAndGet();
+      int       current;
+
+      while ((current = this.most.get()) < count) {
+        this.most.compareAndSet(current, count);
+      }
+    }
+
+    private int getMost() {
+      return this.most.get();
+    }
+
+    private int getDone() {
+      return this.done.get();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.sap.sometest;
+
+import com.sap.hcpcu.tools.Cache;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Compare the hit ratios of the cache policies on key traces.
+ * <p>
+ * Each argument is a trace file holding one key per line, e.g. as
+ * collected from the debug output of the cache. Each key is looked up
+ * in the cache, and put into the cache on a miss, like Service does for
+ * the database indirections. Without arguments, a synthetic trace is
+ * used: a small set of hot keys, like the menu placeholders, accessed
+ * with a skewed distribution, interrupted by scans over one-off keys,
+ * like a bulk prefill.
+ * <p>
+ * Usage: CachePolicySimulation [-size n] [trace file ...]
+ */
+public class CachePolicySimulation {
+  public static void main(String[] args) throws Exception {
+    int                 size   = 1000;
+    final List<String>  files  = new ArrayList<String>();
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-size".equals(args[i]) && (i + 1 < args.length)) {
+        size = Integer.parseInt(args[++i]);
+      } else {
+        files.add(args[i]);
+      }
+    }
+
+    if (files.isEmpty()) {
+      simulate("synthetic", syntheticTrace(size), size);
+    } else {
+      for (final String file : files) {
+        simulate(file, readTrace(file), size);
+      }
+    }
+
+    System.exit(0);
+  }
+
+
+  /**
+   * Replay a trace on all combinations of engine and policy, and
+   * print the hit ratios.
+   */
+  private static void simulate(String name, List<String> trace, int size) {
+    System.out.println(name + ": " + trace.size() + " accesses, cache size " + size);
+
+    for (int engine = Cache.ENGINE_LEGACY; engine <= Cache.ENGINE_CONCURRENT; engine++) {
+      for (int policy = Cache.POLICY_LRU; policy <= Cache.POLICY_TINYLFU; policy++) {
+        final Cache c = new Cache(engine, policy);
+        c.setCacheSize(size);
+
+        for (final String key : trace) {
+          if (c.getEntry(key) == null) {
+            c.setEntry(key, key);
+          }
+        }
+
+        final double ratio = (100.0 * c.getCacheHit()) / Math.max(1, c.getCacheHit() + c.getCacheMiss());
+
+        System.out.println("  " + ((engine == Cache.ENGINE_LEGACY) ? "legacy    " : "concurrent") + " " + ((policy == Cache.POLICY_LRU) ? "lru    " : "tinylfu") + " hit ratio: " + String.format("%.2f", ratio) + "%");
+        c.destroy();
+      }
+    }
+  }
+
+
+  /**
+   * Read a trace file, one key per line.
+   */
+  private static List<String> readTrace(String file) throws Exception {
+    final List<String>   trace = new ArrayList<String>();
+    final BufferedReader in    = new BufferedReader(new FileReader(file));
+
+    try {
+      String line;
+
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+
+        if (line.length() > 0) {
+          trace.add(line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    return trace;
+  }
+
+
+  /**
+   * Build a trace of hot keys with a skewed distribution, with
+   * a scan over twice as many one-off keys as the cache holds
+   * after every ten times the cache size hot accesses.
+   */
+  private static List<String> syntheticTrace(int size) {
+    final Random       random = new Random(42);
+    final List<String> trace  = new ArrayList<String>();
+    final int          hot    = size / 2;
+    int                oneOff = 0;
+
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < (10 * size); i++) {
+        trace.add("@ref" + (int) (hot * Math.pow(random.nextDouble(), 3)) + "@");
+      }
+
+      for (int i = 0; i < (2 * size); i++) {
+        trace.add("scan" + oneOff++);
+      }
+    }
+
+    return trace;
+  }
+}
@@ -74,6 +74,18 @@ public class CacheTest {
     c.setEntry("0025-xml", "xml data");
     c.setEntry("0025-xls", "xls data");
 
+    // when the data of 0025 changes, drop all of its views at once
+
+    c.removeByPrefix("0025-");
+
+    // or tag the entries, if their keys do not share a prefix
+
+    c.setEntry("0025-xml", "xml data");
+    c.setEntry("report-0025", "report data");
+    c.tag("0025-xml", "0025");
+    c.tag("report-0025", "0025");
+    c.removeTagged("0025");
+
     // starting the application
     // either read some OE from some configuration file
 
@@ -0,0 +1,198 @@
+package com.sap.sometest;
+
+import com.sap.hcpcu.tools.BufferPool;
+import com.sap.hcpcu.tools.LineBatch;
+import com.sap.hcpcu.tools.LineSplitter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Show how the LineSplitter splits an upload into batches of lines, and
+ * check the lines against those of a BufferedReader.
+ * <p>
+ * The upload mixes LF and CR LF line breaks, empty and non ASCII lines,
+ * lines longer than a buffer of the pool, and a last line without a line
+ * break. It is read in chunks of random size, as the data of a request
+ * arrives, splitting a CR LF or a multi byte character here and there;
+ * once with {@link LineSplitter#next(InputStream)}, and once with
+ * {@link LineSplitter#read(InputStream)}, {@link LineSplitter#poll()} and
+ * {@link LineSplitter#finish()}, as the Collector does asynchronously.
+ * Exits with 1 if any line is wrong or missing.
+ * <p>
+ * Usage: LineSplitterDemo [-lines n] [-batch n] [-buffer n] [-chunk n]
+ */
+public class LineSplitterDemo {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public static void main(String[] args) throws Exception {
+    int lines  = 20000;
+    int batch  = 1000;
+    int buffer = 8192;
+    int chunk  = 100;
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if ("-lines".equals(args[i])) {
+        lines = Integer.parseInt(args[i + 1]);
+      } else if ("-batch".equals(args[i])) {
+        batch = Integer.parseInt(args[i + 1]);
+      } else if ("-buffer".equals(args[i])) {
+        buffer = Integer.parseInt(args[i + 1]);
+      } else if ("-chunk".equals(args[i])) {
+        chunk = Integer.parseInt(args[i + 1]);
+      }
+    }
+
+    final byte[]         upload   = upload(lines, buffer);
+    final List<String>   expected = new ArrayList<String>();
+    final BufferedReader reader   = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(upload), UTF8));
+    String               line;
+
+    while ((line = reader.readLine()) != null) {
+      expected.add(line);
+    }
+
+    System.out.println(upload.length + " bytes, " + expected.size() + " lines, in chunks of up to " + chunk + " bytes");
+
+    final BufferPool pool = new BufferPool(buffer, 4);
+
+    final boolean blocking = check("next", expected, blocking(new LineSplitter(pool, UTF8, batch), new Chunked(upload, chunk)));
+    final boolean polling  = check("read/poll", expected, polling(new LineSplitter(pool, UTF8, batch), new Chunked(upload, chunk)));
+
+    System.exit((blocking && polling) ? 0 : 1);
+  }
+
+
+  /**
+   * Put together an upload.
+   */
+  private static byte[] upload(int lines, int buffer) {
+    final StringBuilder sb     = new StringBuilder();
+    final Random        random = new Random(1);
+
+    for (int i = 0; i < lines; i++) {
+      switch (i % 5) {
+        case 0:
+          sb.append("line ").append(i).append(",\u00e4\u00f6\u00fc,\u20ac").append("\r\n");
+
+          break;
+
+        case 1:
+          sb.append("\n");
+
+          break;
+
+        default:
+          sb.append("line ").append(i).append(',').append(random.nextInt()).append("\n");
+      }
+
+      if ((i % 5000) == 4999) {
+        for (int j = 0; j < 3 * buffer; j++) {
+          sb.append((char) ('a' + (j % 26)));
+        }
+
+        sb.append("\r\n");
+      }
+    }
+
+    sb.append("last line without a line break");
+
+    return sb.toString().getBytes(UTF8);
+  }
+
+
+  /**
+   * Split with next, blocking until each batch is complete.
+   */
+  private static List<LineBatch> blocking(LineSplitter splitter, InputStream in) throws IOException {
+    final List<LineBatch> batches = new ArrayList<LineBatch>();
+    LineBatch             batch;
+
+    while ((batch = splitter.next(in)) != null) {
+      batches.add(batch);
+    }
+
+    return batches;
+  }
+
+
+  /**
+   * Split with read and poll, as the bytes come, and finish.
+   */
+  private static List<LineBatch> polling(LineSplitter splitter, InputStream in) throws IOException {
+    final List<LineBatch> batches = new ArrayList<LineBatch>();
+    LineBatch             batch;
+
+    while (true) {
+      final int n = splitter.read(in);
+
+      while ((batch = splitter.poll()) != null) {
+        batches.add(batch);
+      }
+
+      if (n < 0) {
+        break;
+      }
+    }
+
+    if ((batch = splitter.finish()) != null) {
+      batches.add(batch);
+    }
+
+    return batches;
+  }
+
+
+  /**
+   * Compare the lines of the batches to the expected lines, print
+   * the outcome, and release the batches. True if all lines match.
+   */
+  private static boolean check(String name, List<String> expected, List<LineBatch> batches) {
+    int line  = 0;
+    int wrong = 0;
+    int most  = 0;
+
+    for (final LineBatch batch : batches) {
+      for (int i = 0; i < batch.size(); i++, line++) {
+        if ((line >= expected.size()) || !expected.get(line).equals(batch.getLine(i))) {
+          if (wrong++ == 0) {
+            System.out.println("  line " + line + ": [" + batch.getLine(i) + "], expected [" + ((line < expected.size()) ? expected.get(line) : null) + "]");
+          }
+        }
+      }
+
+      most = Math.max(most, batch.getBuffer().length);
+      batch.release();
+    }
+
+    System.out.println(name + ": " + batches.size() + " batches, " + line + " lines, " + wrong + " wrong, " + (expected.size() - Math.min(line, expected.size())) + " missing, largest buffer " + most + " bytes");
+
+    return (wrong == 0) && (line == expected.size());
+  }
+
+  /**
+   * A stream that returns the bytes in chunks of random size.
+   */
+  private static class Chunked extends FilterInputStream {
+    private final Random random = new Random(2);
+    private final int    chunk;
+
+    private Chunked(byte[] bytes, int chunk) {
+      super(new ByteArrayInputStream(bytes));
+      this.chunk = Math.max(1, chunk);
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 1 + this.random.nextInt(this.chunk)));
+    }
+  }
+}
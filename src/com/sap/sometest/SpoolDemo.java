@@ -0,0 +1,141 @@
+package com.sap.sometest;
+
+import com.sap.hcpcu.tools.BufferPool;
+import com.sap.hcpcu.tools.LineBatch;
+import com.sap.hcpcu.tools.LineSplitter;
+import com.sap.hcpcu.tools.Spool;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Show which batches the Spool replays after it is opened again.
+ * <p>
+ * Five batches are appended, each about a third of a segment, so that b1
+ * and b2 end up in the first segment, b3 and b4 in the second, and b5 in
+ * the third. b1 and b3 are marked as done, and the second segment is the
+ * current one meanwhile. After the spool is closed and opened again, b2,
+ * b4 and b5 are to be replayed, in this order. b2 then fails, and is
+ * handed over again by a retry; once all are done, the segments are gone.
+ * Exits with 1 if any of this does not hold.
+ * <p>
+ * Usage: SpoolDemo [directory]
+ */
+public class SpoolDemo {
+  private static final Charset UTF8    = Charset.forName("UTF-8");
+
+  private static final int     SEGMENT = 64 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    final File directory = new File((args.length > 0) ? args[0] : new File(System.getProperty("java.io.tmpdir"), "spool-demo").getPath());
+
+    if (directory.isDirectory()) {
+      for (final File file : directory.listFiles()) {
+        file.delete();
+      }
+    }
+
+    Spool spool = new Spool(directory, SEGMENT, 1, 0);
+
+    final Spool.Entry b1 = spool.append(batch("b1"), null, UTF8);
+    final Spool.Entry b2 = spool.append(batch("b2"), "p2", UTF8);
+    final Spool.Entry b3 = spool.append(batch("b3"), null, UTF8);
+
+    spool.done(b1);
+    spool.done(b3);
+
+    spool.append(batch("b4"), "p4", UTF8);
+    spool.sync(spool.append(batch("b5"), null, UTF8));
+
+    System.out.println("appended b1..b5, done b1 and b3: " + segments(directory));
+    spool.close();
+
+    /*
+     * Open again, as on the next start
+     */
+    spool = new Spool(directory, SEGMENT, 1, 0);
+
+    final List<Spool.Entry> entries  = new ArrayList<Spool.Entry>();
+    final List<String>      names    = new ArrayList<String>();
+    final Spool.Replayer    replayer = new Spool.Replayer() {
+        public void replay(Spool.Entry entry, LineBatch batch, String partition) {
+          entries.add(entry);
+          names.add(batch.getLine(0));
+          batch.release();
+        }
+      };
+
+    spool.replay(replayer);
+
+    boolean ok = check("replayed", names, "[b2, b4, b5]");
+
+    /*
+     * b2 fails, the others are persisted
+     */
+    spool.failed(entries.get(0));
+    spool.done(entries.get(1));
+    spool.done(entries.get(2));
+    entries.clear();
+    names.clear();
+
+    spool.retry(replayer);
+    ok &= check("retried", names, "[b2]");
+
+    spool.done(entries.get(0));
+    ok &= check("segments left", Arrays.asList(directory.list()), "[]");
+    spool.close();
+
+    spool = new Spool(directory, SEGMENT, 1, 0);
+    names.clear();
+    spool.replay(replayer);
+    ok &= check("replayed after opening again", names, "[]");
+    spool.close();
+
+    System.exit(ok ? 0 : 1);
+  }
+
+
+  /**
+   * Print what was found, and what was expected if it differs.
+   */
+  private static boolean check(String name, List<String> found, String expected) {
+    final boolean ok = expected.equals(found.toString());
+
+    System.out.println(name + ": " + found + (ok ? "" : (", expected " + expected)));
+
+    return ok;
+  }
+
+
+  /**
+   * Make a batch of about a third of a segment, its first line
+   * being its name.
+   */
+  private static LineBatch batch(String name) throws IOException {
+    final StringBuilder sb = new StringBuilder(name).append('\n');
+
+    for (int i = 0; sb.length() < (SEGMENT / 3); i++) {
+      sb.append(name).append(',').append(i).append("\r\n");
+    }
+
+    return new LineSplitter(new BufferPool(SEGMENT, 1), UTF8, Integer.MAX_VALUE).next(new ByteArrayInputStream(sb.toString().getBytes(UTF8)));
+  }
+
+
+  /**
+   * List the segments in the directory.
+   */
+  private static String segments(File directory) {
+    final String[] names = directory.list();
+
+    Arrays.sort(names);
+
+    return Arrays.toString(names);
+  }
+}
@@ -0,0 +1,163 @@
+package com.sap.sometest;
+
+import com.sap.hcpcu.tools.BoundedExecutor;
+import com.sap.hcpcu.tools.BoundedExecutor.Waiter;
+import com.sap.hcpcu.tools.ThreadRunner.ThreadCaller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Show how a call that is done hands its room over to the callers of
+ * {@link BoundedExecutor#trySubmit(ThreadCaller, String, Object, Waiter)}
+ * waiting for it, as the uploads read asynchronously by the Collector do.
+ * <p>
+ * A number of producers each have calls to submit, and never block: when
+ * there is no room, a producer stops, and goes on once it is called back,
+ * on the thread of a call that is done. Some producers give up after the
+ * first time there is no room, like an upload that timed out; the room
+ * they are called back for is to be handed on to the next producer. At
+ * the end, no producer that did not give up may be left waiting, or the
+ * exit code is 1.
+ * <p>
+ * Usage: TrySubmitDemo [producers [quitters]]
+ */
+public class TrySubmitDemo {
+  /** The calls each producer submits. */
+  private static final int CALLS = 25;
+
+  public static void main(String[] args) throws Exception {
+    final int             producers = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+    final int             quitters  = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+    final BoundedExecutor executor  = new BoundedExecutor("Demo", 2, 1);
+    final List<Producer>  all       = new ArrayList<Producer>();
+    final List<Thread>    starters  = new ArrayList<Thread>();
+
+    for (int p = 0; p < producers; p++) {
+      final Producer producer = new Producer(executor, CALLS, p < quitters);
+
+      all.add(producer);
+      starters.add(new Thread(new Runnable() {
+            public void run() {
+              producer.pump();
+            }
+          }));
+    }
+
+    for (final Thread starter : starters) {
+      starter.start();
+    }
+
+    for (final Thread starter : starters) {
+      starter.join();
+    }
+
+    /*
+     * Wait for the calls to be done; a producer left
+     * waiting for room would never finish
+     */
+    final long until = System.currentTimeMillis() + 10000;
+
+    while (!finished(all) && (System.currentTimeMillis() < until)) {
+      Thread.sleep(10);
+    }
+
+    executor.shutdown(10000);
+
+    int stranded = 0;
+    int p        = 0;
+
+    for (final Producer producer : all) {
+      System.out.println("producer " + (p++) + (producer.quitter ? " (gave up)" : "") + ": " + producer.done + " calls done, " + producer.remaining + " left, called back " + producer.resumed + " times, passed on " + producer.passed + " times");
+
+      if (!producer.quitter && (producer.remaining > 0)) {
+        stranded++;
+      }
+    }
+
+    System.out.println("no room " + executor.getBlocked() + " times, producers left waiting: " + stranded);
+
+    System.exit((stranded == 0) ? 0 : 1);
+  }
+
+
+  /**
+   * Check whether all producers that did not give up are done.
+   */
+  private static boolean finished(List<Producer> all) {
+    for (final Producer producer : all) {
+      synchronized (producer) {
+        if (!producer.quitter && ((producer.remaining > 0) || (producer.done.get() < producer.submitted))) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Submits its calls without blocking, and goes on when called back.
+   */
+  private static class Producer implements ThreadCaller, Waiter {
+    private final BoundedExecutor executor;
+    private final boolean         quitter;
+    private final AtomicInteger   done      = new AtomicInteger();
+    private int                   remaining;
+    private int                   submitted = 0;
+    private boolean               gaveUp    = false;
+    private int                   resumed   = 0;
+    private int                   passed    = 0;
+
+    private Producer(BoundedExecutor executor, int calls, boolean quitter) {
+      this.executor  = executor;
+      this.remaining = calls;
+      this.quitter   = quitter;
+    }
+
+    /**
+     * Submit calls until there is no room, or none are left.
+     */
+    private synchronized void pump() {
+      while (!this.gaveUp && (this.remaining > 0)) {
+        if (this.executor.trySubmit(this, "work", null, this) == null) {
+          this.gaveUp = this.quitter;
+
+          return;
+        }
+
+        this.remaining--;
+        this.submitted++;
+      }
+    }
+
+    public synchronized boolean room() {
+      if (this.gaveUp || (this.remaining == 0)) {
+        this.passed++;
+
+        return false;
+      }
+
+      this.resumed++;
+      pump();
+
+      return true;
+    }
+
+    public Object threadStart(String callName, Object callArgument) {
+      try {
+        Thread.sleep(2);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+
+      return null;
+    }
+
+    public void threadEnd(String callName, Object callArgument, Object callResult) {
+      this.done.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.sap.sometest;
+
+import com.sap.hcpcu.worker.Worker;
+import com.sap.hcpcu.worker.WorkerPool;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Show how the WorkerPool hands out its workers to the threads
+ * persisting batches.
+ * <p>
+ * A number of threads each take a worker for a batch, hold it a while,
+ * and give it back. Every other batch has a partition key, out of a few;
+ * the others have none. At the end, we check that no worker was used by
+ * two threads at the same time, that the batches of one key always went
+ * to the same worker, and print how many batches each worker took; the
+ * exit code is 1 if either check failed.
+ * <p>
+ * Usage: WorkerPoolDemo [workers [threads]]
+ */
+public class WorkerPoolDemo {
+  /** The batches each thread persists. */
+  private static final int BATCHES = 50;
+
+  /** The number of partition keys. */
+  private static final int KEYS    = 6;
+
+  public static void main(String[] args) throws Exception {
+    final int                          workers  = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+    final int                          threads  = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+    final WorkerPool                   pool     = new WorkerPool(workers, null, null, null);
+    final Map<Worker, AtomicInteger>   inUse    = new IdentityHashMap<Worker, AtomicInteger>();
+    final Map<Worker, AtomicInteger>   taken    = new IdentityHashMap<Worker, AtomicInteger>();
+    final Map<String, Worker>          byKey    = new ConcurrentHashMap<String, Worker>();
+    final AtomicInteger                overlaps = new AtomicInteger();
+    final AtomicInteger                moved    = new AtomicInteger();
+    final Thread[]                     running  = new Thread[threads];
+
+    /*
+     * Find the workers of the pool by taking them all once
+     */
+    for (int i = 0; i < pool.size(); i++) {
+      final Worker worker = pool.acquire(null);
+
+      inUse.put(worker, new AtomicInteger());
+      taken.put(worker, new AtomicInteger());
+    }
+
+    for (final Worker worker : inUse.keySet()) {
+      pool.release(worker);
+    }
+
+    final long start = System.currentTimeMillis();
+
+    for (int t = 0; t < threads; t++) {
+      final Random random = new Random(t);
+
+      running[t] = new Thread(new Runnable() {
+            public void run() {
+              try {
+                for (int b = 0; b < BATCHES; b++) {
+                  final String key    = ((b % 2) == 0) ? ("p" + random.nextInt(KEYS)) : null;
+                  final Worker worker = pool.acquire(key);
+
+                  if (inUse.get(worker).incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                  }
+
+                  if (key != null) {
+                    final Worker before = byKey.put(key, worker);
+
+                    if ((before != null) && (before != worker)) {
+                      moved.incrementAndGet();
+                    }
+                  }
+
+                  taken.get(worker).incrementAndGet();
+                  Thread.sleep(1 + random.nextInt(5));
+                  inUse.get(worker).decrementAndGet();
+                  pool.release(worker);
+                }
+              } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }, "Demo-" + t);
+      running[t].start();
+    }
+
+    for (final Thread thread : running) {
+      thread.join();
+    }
+
+    System.out.println((threads * BATCHES) + " batches on " + threads + " threads, " + pool.size() + " workers, in " + (System.currentTimeMillis() - start) + " ms");
+
+    int w = 0;
+
+    for (final Map.Entry<Worker, AtomicInteger> entry : taken.entrySet()) {
+      final StringBuilder owned = new StringBuilder();
+
+      for (final Map.Entry<String, Worker> key : byKey.entrySet()) {
+        if (key.getValue() == entry.getKey()) {
+          owned.append(' ').append(key.getKey());
+        }
+      }
+
+      System.out.println("worker " + (w++) + ": " + entry.getValue() + " batches, keys:" + owned);
+    }
+
+    System.out.println("used by two threads at once: " + overlaps + ", keys on another worker: " + moved);
+
+    System.exit(((overlaps.get() == 0) && (moved.get() == 0)) ? 0 : 1);
+  }
+}